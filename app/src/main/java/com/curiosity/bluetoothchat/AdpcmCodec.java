@@ -0,0 +1,123 @@
+package com.curiosity.bluetoothchat;
+
+/**
+ * IMA ADPCM 编解码, 16 位 PCM 压缩为每采样 4 位
+ */
+public class AdpcmCodec {
+
+    private static final int[] INDEX_TABLE = {
+            -1, -1, -1, -1, 2, 4, 6, 8,
+            -1, -1, -1, -1, 2, 4, 6, 8
+    };
+
+    private static final int[] STEP_TABLE = {
+            7, 8, 9, 10, 11, 12, 13, 14, 16, 17,
+            19, 21, 23, 25, 28, 31, 34, 37, 41, 45,
+            50, 55, 60, 66, 73, 80, 88, 97, 107, 118,
+            130, 143, 157, 173, 190, 209, 230, 253, 279, 307,
+            337, 371, 408, 449, 494, 544, 598, 658, 724, 796,
+            876, 963, 1060, 1166, 1282, 1411, 1552, 1707, 1878, 2066,
+            2272, 2499, 2749, 3024, 3327, 3660, 4026, 4428, 4871, 5358,
+            5894, 6484, 7132, 7845, 8630, 9493, 10442, 11487, 12635, 13899,
+            15289, 16818, 18500, 20350, 22385, 24623, 27086, 29794, 32767
+    };
+
+    // 编解码状态: 预测值和步长索引
+    private int mPredictor;
+    private int mIndex;
+
+    public int getPredictor() {
+        return mPredictor;
+    }
+
+    public int getIndex() {
+        return mIndex;
+    }
+
+    public void setState(int predictor, int index) {
+        mPredictor = predictor;
+        mIndex = Math.max(0, Math.min(STEP_TABLE.length - 1, index));
+    }
+
+    /**
+     * 编码 count 个采样(须为偶数)到 out, 占用 count / 2 字节
+     */
+    public void encode(short[] pcm, int offset, int count, byte[] out, int outOffset) {
+        for (int i = 0; i < count; i += 2) {
+            int low = encodeSample(pcm[offset + i]);
+            int high = encodeSample(pcm[offset + i + 1]);
+            out[outOffset + i / 2] = (byte) (low | high << 4);
+        }
+    }
+
+    /**
+     * 从 in 解码 count 个采样(须为偶数)到 pcm
+     */
+    public void decode(byte[] in, int inOffset, int count, short[] pcm, int offset) {
+        for (int i = 0; i < count; i += 2) {
+            int b = in[inOffset + i / 2];
+            pcm[offset + i] = decodeSample(b & 0x0F);
+            pcm[offset + i + 1] = decodeSample((b >> 4) & 0x0F);
+        }
+    }
+
+    private int encodeSample(int sample) {
+        int step = STEP_TABLE[mIndex];
+        int diff = sample - mPredictor;
+        int code = 0;
+        if (diff < 0) {
+            code = 8;
+            diff = -diff;
+        }
+
+        int delta = step >> 3;
+        if (diff >= step) {
+            code |= 4;
+            diff -= step;
+            delta += step;
+        }
+        step >>= 1;
+        if (diff >= step) {
+            code |= 2;
+            diff -= step;
+            delta += step;
+        }
+        step >>= 1;
+        if (diff >= step) {
+            code |= 1;
+            delta += step;
+        }
+
+        update(code, delta);
+        return code;
+    }
+
+    private short decodeSample(int code) {
+        int step = STEP_TABLE[mIndex];
+        int delta = step >> 3;
+        if ((code & 4) != 0) {
+            delta += step;
+        }
+        if ((code & 2) != 0) {
+            delta += step >> 1;
+        }
+        if ((code & 1) != 0) {
+            delta += step >> 2;
+        }
+
+        update(code, delta);
+        return (short) mPredictor;
+    }
+
+    private void update(int code, int delta) {
+        if ((code & 8) != 0) {
+            mPredictor -= delta;
+        } else {
+            mPredictor += delta;
+        }
+        mPredictor = Math.max(Short.MIN_VALUE, Math.min(Short.MAX_VALUE, mPredictor));
+
+        mIndex += INDEX_TABLE[code];
+        mIndex = Math.max(0, Math.min(STEP_TABLE.length - 1, mIndex));
+    }
+}
@@ -0,0 +1,82 @@
+package com.curiosity.bluetoothchat;
+
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothServerSocket;
+import android.bluetooth.BluetoothSocket;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.UUID;
+
+/**
+ * 基于 RFCOMM BluetoothSocket 的链路
+ */
+public class BluetoothLink implements Link {
+
+    private final BluetoothSocket mSocket;
+
+    public BluetoothLink(BluetoothSocket socket) {
+        mSocket = socket;
+    }
+
+    @Override
+    public void connect() throws IOException {
+        mSocket.connect();
+    }
+
+    @Override
+    public InputStream getInputStream() throws IOException {
+        return mSocket.getInputStream();
+    }
+
+    @Override
+    public OutputStream getOutputStream() throws IOException {
+        return mSocket.getOutputStream();
+    }
+
+    @Override
+    public String getAddress() {
+        BluetoothDevice device = mSocket.getRemoteDevice();
+        return device != null ? device.getAddress() : null;
+    }
+
+    @Override
+    public void close() throws IOException {
+        mSocket.close();
+    }
+
+    public static class Factory implements Link.Factory {
+
+        private final BluetoothAdapter mBluetoothAdapter;
+
+        public Factory() {
+            mBluetoothAdapter = BluetoothAdapter.getDefaultAdapter();
+        }
+
+        @Override
+        public Link.Server listen(String name, UUID uuid) throws IOException {
+            final BluetoothServerSocket serverSocket =
+                    mBluetoothAdapter.listenUsingRfcommWithServiceRecord(name, uuid);
+
+            return new Link.Server() {
+                @Override
+                public Link accept() throws IOException {
+                    return new BluetoothLink(serverSocket.accept());
+                }
+
+                @Override
+                public void close() throws IOException {
+                    serverSocket.close();
+                }
+            };
+        }
+
+        @Override
+        public Link create(String address, UUID uuid) throws IOException {
+            BluetoothDevice device = mBluetoothAdapter.getRemoteDevice(address);
+            return new BluetoothLink(device.createRfcommSocketToServiceRecord(uuid));
+        }
+    }
+}
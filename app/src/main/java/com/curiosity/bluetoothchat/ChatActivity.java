@@ -1,15 +1,22 @@
 package com.curiosity.bluetoothchat;
 
+import android.Manifest;
 import android.bluetooth.BluetoothAdapter;
 import android.content.Intent;
+import android.content.SharedPreferences;
+import android.content.pm.PackageManager;
 import android.os.Bundle;
 import android.os.Handler;
 import android.os.Message;
+import android.support.v4.app.ActivityCompat;
+import android.support.v4.content.ContextCompat;
 import android.support.v7.app.AppCompatActivity;
+import android.support.v7.widget.SearchView;
 import android.util.Log;
 import android.view.KeyEvent;
 import android.view.Menu;
 import android.view.MenuItem;
+import android.view.MotionEvent;
 import android.view.View;
 import android.view.inputmethod.EditorInfo;
 import android.widget.Button;
@@ -18,23 +25,56 @@ import android.widget.ListView;
 import android.widget.TextView;
 import android.widget.Toast;
 
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.Random;
+
 public class ChatActivity extends AppCompatActivity {
 
     private static final String TAG = "ChatActivity";
 
     private final int REQUEST_ENABLE_BT = 1;
     private final int REQUEST_SEARCH_BT = 0;
+    private final int REQUEST_RECORD_AUDIO = 2;
 
     private BluetoothAdapter BTAdapter;
     private ConnectionManager mConnectionManager;
+    private Outbox mOutbox;
+    private MessageSearchIndex mSearchIndex;
+    private MessageLog mMessageLog;
+    private MessageLayoutCache mLayoutCache;
+    private MessageAdapter mMessageAdapter;
+    private HistorySync mHistorySync;
+    private HistoryArchive mHistoryArchive;
+    private VoiceStreamer mVoiceStreamer;
+    private String mSearchQuery;
+    private int mSearchOffset;
     private EditText mMessageEditor;
     private Button mSendBtn;
+    private Button mTalkBtn;
     private ListView mMessageListView;
     private MenuItem mConnectionMenuItem;
 
+    private SharedPreferences mPreferences;
+    private long mLocalId;
+    // 下一个消息序号, 在主线程分配, 发件箱加载时按已用过的序号校正
+    private long mNextMessageId;
+
     private final static int MSG_SENT_DATA = 0;
     private final static int MSG_RECEIVE_DATA = 1;
     private final static int MSG_UPDATE_UI = 2;
+    private final static int MSG_SEARCH_RESULT = 3;
+    private final static int MSG_ARCHIVE_FINISHED = 4;
+    private final static int MSG_MESSAGE_DROPPED = 5;
+
+    private final static String ARCHIVE_FILE_NAME = "history.bcar";
+
+    private final static String PREFS_NAME = "chat";
+    private final static String PREF_LOCAL_ID = "local_id";
+    private final static String PREF_NEXT_MESSAGE_ID = "next_message_id";
+    // 对端能力缓存单独存放, 条目随连接过的设备增长
+    private final static String PREFS_PEER_PROFILES = "peer_profiles";
 
     private Handler mHandler = new Handler() {
         @Override
@@ -43,42 +83,44 @@ public class ChatActivity extends AppCompatActivity {
             switch (msg.what) {
                 case MSG_SENT_DATA: {
 
-                    byte[] data = (byte[]) msg.obj;
-                    boolean suc = msg.arg1 == 1;
-                    if (data != null && suc) {
-
-                        ChatMessage chatMsg = new ChatMessage();
-                        chatMsg.messageSender = ChatMessage.MSG_SENDER_ME;
-                        chatMsg.messageContent = new String(data);
-
-                        MessageAdapter adapter = (MessageAdapter) mMessageListView.getAdapter();
-                        adapter.add(chatMsg);
-                        adapter.notifyDataSetChanged();
-
-                        mMessageEditor.setText("");
-                    }
+                    addMessage((ChatMessage) msg.obj);
                 }
                 break;
 
                 case MSG_RECEIVE_DATA: {
 
-                    byte[] data = (byte[]) msg.obj;
-                    if (data != null) {
+                    // 数据已离开消息队列, 归还接收窗口
+                    mConnectionManager.consumeData(msg.arg1);
 
-                        ChatMessage chatMsg = new ChatMessage();
-                        chatMsg.messageSender = ChatMessage.MSG_SENDER_OTHERS;
-                        chatMsg.messageContent = new String(data);
+                    addMessage((ChatMessage) msg.obj);
+                }
+                break;
 
-                        MessageAdapter adapter = (MessageAdapter) mMessageListView.getAdapter();
-                        adapter.add(chatMsg);
-                        adapter.notifyDataSetChanged();
+                case MSG_UPDATE_UI: {
+                    updateUI();
+                }
+                break;
+
+                case MSG_SEARCH_RESULT: {
+                    long[] key = (long[]) msg.obj;
+                    if (key != null) {
+                        mMessageAdapter.findPosition(key[0], key[1], mSearchPositionCallback);
+                    } else {
+                        mSearchOffset = 0;
+                        Toast.makeText(ChatActivity.this, R.string.no_match, Toast.LENGTH_SHORT).show();
                     }
+                }
+                break;
 
+                case MSG_ARCHIVE_FINISHED: {
+                    Toast.makeText(ChatActivity.this, msg.arg1 != 0
+                            ? getString(R.string.archive_done, msg.obj) : getString(R.string.archive_failed, msg.obj),
+                            Toast.LENGTH_LONG).show();
                 }
                 break;
 
-                case MSG_UPDATE_UI: {
-                    updateUI();
+                case MSG_MESSAGE_DROPPED: {
+                    Toast.makeText(ChatActivity.this, R.string.message_dropped, Toast.LENGTH_LONG).show();
                 }
                 break;
             }
@@ -93,6 +135,15 @@ public class ChatActivity extends AppCompatActivity {
 
         BTAdapter = BluetoothAdapter.getDefaultAdapter();
 
+        mPreferences = getSharedPreferences(PREFS_NAME, MODE_PRIVATE);
+        mLocalId = mPreferences.getLong(PREF_LOCAL_ID, 0);
+        if (mLocalId == 0) {
+            // 首次运行时生成本机 ID
+            mLocalId = new Random().nextLong() & Long.MAX_VALUE;
+            mPreferences.edit().putLong(PREF_LOCAL_ID, mLocalId).apply();
+        }
+        mNextMessageId = mPreferences.getLong(PREF_NEXT_MESSAGE_ID, 1);
+
         requestBT();
 
     }
@@ -139,12 +190,51 @@ public class ChatActivity extends AppCompatActivity {
         });
 
         mMessageListView = (ListView) findViewById(R.id.message_list);
-        MessageAdapter adapter = new MessageAdapter(this, R.layout.me_list_item, R.layout.others_list_item);
-        mMessageListView.setAdapter(adapter);
+        mMessageLog = new MessageLog(getFilesDir());
+
+        // 列表只在内存中保留最近的消息, 更早的从历史中读回
+        mLayoutCache = new MessageLayoutCache(this);
+        mMessageAdapter = new MessageAdapter(this, R.layout.me_list_item, R.layout.others_list_item,
+                mLayoutCache, mMessageLog, mLocalId);
+        mMessageListView.setAdapter(mMessageAdapter);
+
+        // 索引跟随历史更新, 包括同步和导入的消息
+        mSearchIndex = new MessageSearchIndex(getFilesDir(), mMessageLog);
 
         mConnectionManager = new ConnectionManager(mConnectionListener);
+        mConnectionManager.setProfileStore(new PreferencesProfileStore(
+                getSharedPreferences(PREFS_PEER_PROFILES, MODE_PRIVATE)));
+        mHistorySync = new HistorySync(mMessageLog, mConnectionManager);
+        mHistoryArchive = new HistoryArchive(mMessageLog);
         mConnectionManager.startListen();
 
+        mOutbox = new Outbox(getFilesDir(), mConnectionManager, mOutboxListener);
+
+        mVoiceStreamer = new VoiceStreamer(mConnectionManager);
+        mVoiceStreamer.start();
+
+        // 按住说话, 松开结束
+        mTalkBtn = (Button) findViewById(R.id.talk_btn);
+        mTalkBtn.setOnTouchListener(new View.OnTouchListener() {
+            @Override
+            public boolean onTouch(View v, MotionEvent event) {
+                switch (event.getAction()) {
+                    case MotionEvent.ACTION_DOWN:
+                        startTalking();
+                        return true;
+                    case MotionEvent.ACTION_UP:
+                    case MotionEvent.ACTION_CANCEL:
+                        mVoiceStreamer.stopTalking();
+                        return true;
+                }
+                return false;
+            }
+        });
+
+        // 发件箱在任何连接状态下都接收消息
+        mMessageEditor.setEnabled(true);
+        mSendBtn.setEnabled(true);
+
         // 请求可被检测性
 //        if (BTAdapter.getScanMode() != BluetoothAdapter.SCAN_MODE_CONNECTABLE_DISCOVERABLE) {
             Intent i = new Intent(BluetoothAdapter.ACTION_REQUEST_DISCOVERABLE);
@@ -159,10 +249,46 @@ public class ChatActivity extends AppCompatActivity {
         mHandler.removeMessages(MSG_UPDATE_UI);
         mHandler.removeMessages(MSG_SENT_DATA);
         mHandler.removeMessages(MSG_RECEIVE_DATA);
+        mHandler.removeMessages(MSG_SEARCH_RESULT);
+        mHandler.removeMessages(MSG_ARCHIVE_FINISHED);
+        mHandler.removeMessages(MSG_MESSAGE_DROPPED);
+
+        if (mSearchIndex != null) {
+            mSearchIndex.close();
+        }
+
+        if (mOutbox != null) {
+            mOutbox.close();
+        }
+
+        if (mVoiceStreamer != null) {
+            mVoiceStreamer.release();
+        }
+
+        if (mHistorySync != null) {
+            mHistorySync.close();
+        }
+
+        if (mHistoryArchive != null) {
+            mHistoryArchive.close();
+        }
 
         if (mConnectionManager != null) {
-            mConnectionManager.disconnect();
-            mConnectionManager.stopListen();
+            mConnectionManager.release();
+        }
+
+        if (mMessageAdapter != null) {
+            Log.d(TAG, "message window: " + mMessageAdapter);
+            mMessageAdapter.close();
+        }
+
+        if (mMessageLog != null) {
+            mMessageLog.close();
+        }
+
+        if (mLayoutCache != null) {
+            Log.d(TAG, "layout cache: " + mLayoutCache);
+            mLayoutCache.close();
         }
     }
 
@@ -174,15 +300,144 @@ public class ChatActivity extends AppCompatActivity {
         if (content != null) {
             content = content.trim();
             if (content.length() > 0) {
-                // 由 Manager 负责发送
-                boolean ret = mConnectionManager.sendData(content.getBytes());
-                if (!ret) {
-                    Toast.makeText(ChatActivity.this, R.string.send_fail, Toast.LENGTH_SHORT).show();
+                // 先放入发件箱, 写入磁盘后即显示, 连接建立后由发件箱按顺序发出
+                if (!mOutbox.enqueue(MessageCodec.encode(newTextMessage(content)))) {
+                    Toast.makeText(ChatActivity.this, R.string.message_too_long, Toast.LENGTH_SHORT).show();
+                    return;
+                }
+                mMessageEditor.setText("");
+
+                if (mConnectionManager.getCurrentConnectState() != ConnectionManager.CONNECT_STATE_CONNECTED) {
+                    Toast.makeText(ChatActivity.this, R.string.send_queued, Toast.LENGTH_SHORT).show();
                 }
             }
         }
     }
 
+    /**
+     * 开始说话, 没有录音权限时先请求
+     */
+    private void startTalking() {
+        if (ContextCompat.checkSelfPermission(this, Manifest.permission.RECORD_AUDIO)
+                != PackageManager.PERMISSION_GRANTED) {
+            ActivityCompat.requestPermissions(this,
+                    new String[]{Manifest.permission.RECORD_AUDIO}, REQUEST_RECORD_AUDIO);
+            return;
+        }
+        if (mConnectionManager.getCurrentConnectState() != ConnectionManager.CONNECT_STATE_CONNECTED) {
+            Toast.makeText(ChatActivity.this, R.string.talk_not_connected, Toast.LENGTH_SHORT).show();
+            return;
+        }
+        mVoiceStreamer.startTalking();
+    }
+
+    @Override
+    public void onRequestPermissionsResult(int requestCode, String[] permissions, int[] grantResults) {
+        super.onRequestPermissionsResult(requestCode, permissions, grantResults);
+
+        if (requestCode == REQUEST_RECORD_AUDIO
+                && (grantResults.length == 0 || grantResults[0] != PackageManager.PERMISSION_GRANTED)) {
+            Toast.makeText(ChatActivity.this, R.string.talk_refuse, Toast.LENGTH_SHORT).show();
+        }
+    }
+
+    /**
+     * 在事件线程中解码并存入历史, 提交后台排版, 返回需要显示的新消息.
+     * 格式错误, 非文本或已存在(如同步时对端推送的重复消息)的消息返回 null
+     */
+    private ChatMessage recordMessage(byte[] data) {
+        ChatMessage chatMsg = new ChatMessage();
+        if (!MessageCodec.decode(data, 0, data.length, chatMsg)) {
+            Log.w(TAG, "drop malformed message, length=" + data.length);
+            return null;
+        }
+        // 暂不显示回执, 输入状态等非文本消息
+        if (chatMsg.messageType != ChatMessage.TYPE_TEXT) {
+            return null;
+        }
+        if (!mMessageLog.append(chatMsg)) {
+            return null;
+        }
+
+        chatMsg.messageSender = chatMsg.senderId == mLocalId
+                ? ChatMessage.MSG_SENDER_ME : ChatMessage.MSG_SENDER_OTHERS;
+        // 显示前在后台排版
+        mLayoutCache.prefetch(chatMsg.senderId, chatMsg.messageId, chatMsg.messageContent);
+        return chatMsg;
+    }
+
+    /**
+     * 添加消息到列表
+     */
+    private void addMessage(ChatMessage message) {
+        mMessageAdapter.add(message);
+        mMessageAdapter.notifyDataSetChanged();
+    }
+
+    /**
+     * 查找消息, 重复提交同一关键词时依次跳到更早的匹配
+     */
+    private void searchMessage(String query) {
+        if (query.equals(mSearchQuery)) {
+            mSearchOffset++;
+        } else {
+            mSearchQuery = query;
+            mSearchOffset = 0;
+        }
+
+        mSearchIndex.searchAsync(query, mSearchOffset, 1, new MessageSearchIndex.SearchCallback() {
+            @Override
+            public void onSearchResult(String query, long[] senderIds, long[] messageIds) {
+                mHandler.obtainMessage(MSG_SEARCH_RESULT,
+                        senderIds.length > 0 ? new long[]{senderIds[0], messageIds[0]} : null).sendToTarget();
+            }
+        });
+    }
+
+    private final MessageWindow.PositionCallback mSearchPositionCallback = new MessageWindow.PositionCallback() {
+        @Override
+        public void onPositionFound(long senderId, long messageId, int position) {
+            if (position >= 0) {
+                mMessageListView.setSelection(position);
+            } else {
+                // 同步或导入的历史消息不在本次的列表中
+                Toast.makeText(ChatActivity.this, R.string.match_not_shown, Toast.LENGTH_SHORT).show();
+            }
+        }
+    };
+
+    /**
+     * 创建一条本机发出的文本消息, 分配递增的消息序号
+     */
+    private ChatMessage newTextMessage(String content) {
+        long messageId = allocateMessageId();
+
+        ChatMessage message = new ChatMessage();
+        message.messageSender = ChatMessage.MSG_SENDER_ME;
+        message.messageType = ChatMessage.TYPE_TEXT;
+        message.senderId = mLocalId;
+        message.messageId = messageId;
+        message.timestamp = System.currentTimeMillis();
+        message.messageContent = content;
+        return message;
+    }
+
+    // 序号在后台保存, 不等待写入. 进程在保存前退出时, 用过的序号已随消息写入发件箱或历史, 加载时据此跳过
+    private synchronized long allocateMessageId() {
+        long messageId = mNextMessageId++;
+        mPreferences.edit().putLong(PREF_NEXT_MESSAGE_ID, mNextMessageId).apply();
+        return messageId;
+    }
+
+    // 发件箱线程中执行, 启动后很快完成. 重复的序号会被对端和历史当作重复消息丢弃
+    private synchronized void reserveMessageIds(long usedId) {
+        if (usedId >= mNextMessageId) {
+            Log.w(TAG, "next message id " + mNextMessageId + " was not saved, skip to " + (usedId + 1));
+            mNextMessageId = usedId + 1;
+            mPreferences.edit().putLong(PREF_NEXT_MESSAGE_ID, mNextMessageId).apply();
+        }
+    }
+
     @Override
     public boolean onCreateOptionsMenu(Menu menu) {
         super.onCreateOptionsMenu(menu);
@@ -191,6 +446,22 @@ public class ChatActivity extends AppCompatActivity {
         mConnectionMenuItem = menu.findItem(R.id.connect_menu);
         updateUI();
 
+        SearchView searchView = (SearchView) menu.findItem(R.id.find_menu).getActionView();
+        searchView.setOnQueryTextListener(new SearchView.OnQueryTextListener() {
+            @Override
+            public boolean onQueryTextSubmit(String query) {
+                if (mSearchIndex != null) {
+                    searchMessage(query.trim());
+                }
+                return true;
+            }
+
+            @Override
+            public boolean onQueryTextChange(String newText) {
+                return false;
+            }
+        });
+
         return true;
     }
 
@@ -212,11 +483,44 @@ public class ChatActivity extends AppCompatActivity {
             }
             return true;
 
+            case R.id.export_menu:
+                if (mHistoryArchive != null) {
+                    mHistoryArchive.exportAsync(getArchiveFile(), mArchiveListener);
+                }
+                return true;
+
+            case R.id.import_menu:
+                if (mHistoryArchive != null) {
+                    mHistoryArchive.importAsync(getArchiveFile(), mArchiveListener);
+                }
+                return true;
+
             default:
                 return false;
         }
     }
 
+    /**
+     * 归档放在应用的外部存储目录, 便于用 USB 取出; 外部存储不可用时放在内部目录
+     */
+    private File getArchiveFile() {
+        File dir = getExternalFilesDir(null);
+        return new File(dir != null ? dir : getFilesDir(), ARCHIVE_FILE_NAME);
+    }
+
+    private final HistoryArchive.Listener mArchiveListener = new HistoryArchive.Listener() {
+        @Override
+        public void onProgress(HistoryArchive.Progress progress) {
+            Log.d(TAG, "archive progress " + Math.round(progress.getFraction() * 100) + "%: " + progress);
+        }
+
+        @Override
+        public void onFinished(HistoryArchive.Progress progress, IOException error) {
+            mHandler.obtainMessage(MSG_ARCHIVE_FINISHED, error == null ? 1 : 0, 0,
+                    error == null ? progress.toString() : error.getMessage()).sendToTarget();
+        }
+    };
+
     @Override
     protected void onActivityResult(int requestCode, int resultCode, Intent data) {
         super.onActivityResult(requestCode, resultCode, data);
@@ -258,9 +562,6 @@ public class ChatActivity extends AppCompatActivity {
         }
 
         if (mConnectionMenuItem == null) {
-            mMessageEditor.setEnabled(false);
-            mSendBtn.setEnabled(false);
-
             return;
         }
 
@@ -269,19 +570,10 @@ public class ChatActivity extends AppCompatActivity {
 
         if (mConnectionManager.getCurrentConnectState() == ConnectionManager.CONNECT_STATE_CONNECTED) {
             mConnectionMenuItem.setTitle(R.string.disconnect);
-
-            mMessageEditor.setEnabled(true);
-            mSendBtn.setEnabled(true);
         } else if (mConnectionManager.getCurrentConnectState() == ConnectionManager.CONNECT_STATE_CONNECTING) {
             mConnectionMenuItem.setTitle(R.string.cancel);
-
-            mMessageEditor.setEnabled(false);
-            mSendBtn.setEnabled(false);
         } else if (mConnectionManager.getCurrentConnectState() == ConnectionManager.CONNECT_STATE_IDLE) {
             mConnectionMenuItem.setTitle(R.string.connect);
-
-            mMessageEditor.setEnabled(false);
-            mSendBtn.setEnabled(false);
         }
     }
 
@@ -292,6 +584,10 @@ public class ChatActivity extends AppCompatActivity {
         @Override
         public void onConnectStateChange(int oldState, int State) {
 
+            // 连接建立后发出发件箱中积压的消息
+            if (State == ConnectionManager.CONNECT_STATE_CONNECTED && mOutbox != null) {
+                mOutbox.drain();
+            }
             mHandler.obtainMessage(MSG_UPDATE_UI).sendToTarget();
         }
 
@@ -306,16 +602,64 @@ public class ChatActivity extends AppCompatActivity {
         @Override
         public void onSendData(boolean suc, byte[] data) {
 
-            mHandler.obtainMessage(MSG_SENT_DATA, suc ? 1 : 0, 0, data).sendToTarget();
+            ChatMessage chatMsg = suc && data != null ? recordMessage(data) : null;
+            if (chatMsg != null) {
+                mHandler.obtainMessage(MSG_SENT_DATA, chatMsg).sendToTarget();
+            }
         }
 
         // 接收消息
         @Override
         public void onReadData(byte[] data) {
 
-            mHandler.obtainMessage(MSG_RECEIVE_DATA, data).sendToTarget();
+            ChatMessage chatMsg = recordMessage(data);
+            if (chatMsg != null) {
+                mHandler.obtainMessage(MSG_RECEIVE_DATA, data.length, 0, chatMsg).sendToTarget();
+            } else {
+                mConnectionManager.consumeData(data.length);
+            }
+        }
 
+    };
+
+    // 发件箱进度
+    private Outbox.OutboxListener mOutboxListener = new Outbox.OutboxListener() {
+
+        // 已发出的消息在历史中, 未发出的在发件箱中, 保存前用过的序号不会再分配
+        @Override
+        public void onOutboxLoaded(List<byte[]> queued) {
+
+            long usedId = mMessageLog.getLastMessageId(mLocalId);
+            ChatMessage chatMsg = new ChatMessage();
+            for (byte[] data : queued) {
+                if (MessageCodec.decode(data, 0, data.length, chatMsg) && chatMsg.senderId == mLocalId) {
+                    usedId = Math.max(usedId, chatMsg.messageId);
+                }
+            }
+            reserveMessageIds(usedId);
+        }
+
+        // 尚未发出的消息也先存入历史并显示, 发送成功时已存在, 不会重复添加
+        @Override
+        public void onMessageQueued(byte[] data, int queued) {
+
+            ChatMessage chatMsg = recordMessage(data);
+            if (chatMsg != null) {
+                mHandler.obtainMessage(MSG_SENT_DATA, chatMsg).sendToTarget();
+            }
         }
 
+        @Override
+        public void onMessageSent(byte[] data, int remaining) {
+
+            Log.d(TAG, "outbox message sent, remaining=" + remaining);
+        }
+
+        @Override
+        public void onMessageDropped(byte[] data, int remaining) {
+
+            Log.w(TAG, "outbox message dropped, length=" + data.length + " remaining=" + remaining);
+            mHandler.obtainMessage(MSG_MESSAGE_DROPPED).sendToTarget();
+        }
     };
 }
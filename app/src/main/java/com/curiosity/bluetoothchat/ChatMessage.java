@@ -8,6 +8,16 @@ public class ChatMessage {
     public static final int MSG_SENDER_ME = 0;
     public static final int MSG_SENDER_OTHERS = 1;
 
+    // 消息类型, 未知类型在界面上忽略
+    public static final int TYPE_TEXT = 0;
+    public static final int TYPE_RECEIPT = 1;
+    public static final int TYPE_TYPING = 2;
+
     public int messageSender;
     public String messageContent;
+
+    public int messageType;
+    public long senderId;      // 发送方设备 ID
+    public long messageId;     // 发送方内递增的消息序号
+    public long timestamp;     // 发送时间, 毫秒
 }
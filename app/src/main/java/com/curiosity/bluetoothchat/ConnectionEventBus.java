@@ -0,0 +1,219 @@
+package com.curiosity.bluetoothchat;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+
+/**
+ * 连接事件分发
+ * <p>
+ * I/O 线程只负责发布事件, 每个订阅者有自己的有界队列和投递线程, 慢的订阅者不会阻塞收发,
+ * 也不会影响其它订阅者. 队列满时丢弃新的数据事件并计数; 连接和监听状态事件很少, 总是入队, 订阅者不会错过状态变化.
+ * 容量为 {@link #UNBOUNDED} 的订阅者不丢弃事件.
+ */
+public class ConnectionEventBus {
+
+    /**
+     * 不限容量, 用于不能丢失数据的订阅者, 积压需由其它机制(如接收窗口)限制
+     */
+    public static final int UNBOUNDED = Integer.MAX_VALUE;
+
+    static final int EVENT_CONNECT_STATE = 0;
+    static final int EVENT_LISTEN_STATE = 1;
+    static final int EVENT_SEND_DATA = 2;
+    static final int EVENT_READ_DATA = 3;
+
+    public interface DropListener {
+
+        /**
+         * 订阅者队列已满, 事件被丢弃
+         */
+        void onEventDropped(Subscription subscription, int event, byte[] data);
+    }
+
+    private final CopyOnWriteArrayList<Subscription> mSubscriptions = new CopyOnWriteArrayList<>();
+    private DropListener mDropListener;
+
+    public void setDropListener(DropListener listener) {
+        mDropListener = listener;
+    }
+
+    /**
+     * 订阅连接事件
+     *
+     * @param executor 投递回调的线程, 同一订阅者的事件按发布顺序依次投递
+     * @param capacity 队列中数据事件的容量, 超出后丢弃, 观察者应使用有界队列
+     */
+    public Subscription subscribe(ConnectionManager.ConnectionListener listener, Executor executor, int capacity) {
+        Subscription subscription = new Subscription(listener, executor, capacity);
+        mSubscriptions.add(subscription);
+        return subscription;
+    }
+
+    public void unsubscribe(Subscription subscription) {
+        mSubscriptions.remove(subscription);
+        subscription.cancel();
+    }
+
+    public boolean hasSubscribers() {
+        return !mSubscriptions.isEmpty();
+    }
+
+    public void publishConnectState(int oldState, int state) {
+        publish(EVENT_CONNECT_STATE, oldState, state, false, null);
+    }
+
+    public void publishListenState(int oldState, int state) {
+        publish(EVENT_LISTEN_STATE, oldState, state, false, null);
+    }
+
+    public void publishSendData(boolean suc, byte[] data) {
+        publish(EVENT_SEND_DATA, 0, 0, suc, data);
+    }
+
+    public void publishReadData(byte[] data) {
+        publish(EVENT_READ_DATA, 0, 0, false, data);
+    }
+
+    private void publish(int event, int oldState, int state, boolean suc, byte[] data) {
+        for (Subscription subscription : mSubscriptions) {
+            if (!subscription.offer(new Event(event, oldState, state, suc, data))) {
+                DropListener dropListener = mDropListener;
+                if (dropListener != null) {
+                    dropListener.onEventDropped(subscription, event, data);
+                }
+            }
+        }
+    }
+
+    private static class Event {
+
+        final int mEvent;
+        final int mOldState;
+        final int mState;
+        final boolean mSuc;
+        final byte[] mData;
+
+        Event(int event, int oldState, int state, boolean suc, byte[] data) {
+            mEvent = event;
+            mOldState = oldState;
+            mState = state;
+            mSuc = suc;
+            mData = data;
+        }
+    }
+
+    /**
+     * 一个订阅者, 提供队列积压和丢弃计数
+     */
+    public static class Subscription implements Runnable {
+
+        private final ConnectionManager.ConnectionListener mListener;
+        private final Executor mExecutor;
+        private final int mCapacity;
+
+        private final ArrayDeque<Event> mQueue = new ArrayDeque<>();
+        private boolean mScheduled;
+        private boolean mCancelled;
+
+        private long mDeliveredCount;
+        private long mDropCount;
+        private int mMaxLag;
+
+        Subscription(ConnectionManager.ConnectionListener listener, Executor executor, int capacity) {
+            mListener = listener;
+            mExecutor = executor;
+            mCapacity = capacity;
+        }
+
+        boolean offer(Event event) {
+            synchronized (this) {
+                if (mCancelled) {
+                    return true;
+                }
+                if (mQueue.size() >= mCapacity
+                        && (event.mEvent == EVENT_SEND_DATA || event.mEvent == EVENT_READ_DATA)) {
+                    mDropCount++;
+                    return false;
+                }
+                mQueue.add(event);
+                mMaxLag = Math.max(mMaxLag, mQueue.size());
+                if (mScheduled) {
+                    return true;
+                }
+                mScheduled = true;
+            }
+            mExecutor.execute(this);
+            return true;
+        }
+
+        // 在订阅者的线程中依次投递积压的事件
+        @Override
+        public void run() {
+            while (true) {
+                Event event;
+                synchronized (this) {
+                    event = mQueue.poll();
+                    if (event == null || mCancelled) {
+                        mScheduled = false;
+                        return;
+                    }
+                }
+
+                try {
+                    deliver(event);
+                } catch (RuntimeException e) {
+                    synchronized (this) {
+                        mScheduled = false;
+                    }
+                    throw e;
+                }
+
+                synchronized (this) {
+                    mDeliveredCount++;
+                }
+            }
+        }
+
+        private void deliver(Event event) {
+            switch (event.mEvent) {
+                case EVENT_CONNECT_STATE:
+                    mListener.onConnectStateChange(event.mOldState, event.mState);
+                    break;
+                case EVENT_LISTEN_STATE:
+                    mListener.onListenStateChange(event.mOldState, event.mState);
+                    break;
+                case EVENT_SEND_DATA:
+                    mListener.onSendData(event.mSuc, event.mData);
+                    break;
+                case EVENT_READ_DATA:
+                    mListener.onReadData(event.mData);
+                    break;
+            }
+        }
+
+        synchronized void cancel() {
+            mCancelled = true;
+            mQueue.clear();
+        }
+
+        /**
+         * 当前积压的事件数
+         */
+        public synchronized int getLag() {
+            return mQueue.size();
+        }
+
+        public synchronized int getMaxLag() {
+            return mMaxLag;
+        }
+
+        public synchronized long getDropCount() {
+            return mDropCount;
+        }
+
+        public synchronized long getDeliveredCount() {
+            return mDeliveredCount;
+        }
+    }
+}
@@ -1,15 +1,19 @@
 package com.curiosity.bluetoothchat;
 
-import android.bluetooth.BluetoothAdapter;
-import android.bluetooth.BluetoothDevice;
-import android.bluetooth.BluetoothServerSocket;
-import android.bluetooth.BluetoothSocket;
 import android.util.Log;
 
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
+import java.net.ProtocolException;
+import java.util.List;
 import java.util.UUID;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
 
 public class ConnectionManager {
 
@@ -21,16 +25,39 @@ public class ConnectionManager {
     public static final int LISTEN_STATE_IDLE = 3;
     public static final int LISTEN_STATE_LISTENING = 4;
 
-    private static final String BT_NAME = "Chat";
-    private static final UUID BT_UUID = UUID.fromString("00001101-0000-1000-8000-00805F9B34FB");
+    static final String BT_NAME = "Chat";
+    static final UUID BT_UUID = UUID.fromString("00001101-0000-1000-8000-00805F9B34FB");
+
+    // 默认接收窗口, 已收到但未被处理的数据不超过该值. 也是所有版本保证接受的下限, 握手完成前按此发送
+    public static final int RECEIVE_WINDOW = 128 * 1024;
+
+    // 打开逻辑流前等待对端握手帧的最长时间
+    private static final long HELLO_TIMEOUT_MS = 3000;
+
+    // 写入块大小和批大小的调整范围
+    private static final int MIN_WRITE_CHUNK = 128;
+    private static final int MAX_WRITE_CHUNK = 16 * 1024;
+    private static final int MIN_WRITE_BATCH = 512;
+    private static final int MAX_WRITE_BATCH = 64 * 1024;
 
     private int mConnectState = CONNECT_STATE_IDLE;
     private int mListenState = LISTEN_STATE_IDLE;
-    private ConnectionListener mConnectionListener;
-    private final BluetoothAdapter mBluetoothAdapter;
+    private final ConnectionEventBus mEventBus = new ConnectionEventBus();
+    private ConnectionEventBus.Subscription mPrimarySubscription;
+    private ExecutorService mEventExecutor;
+    private final Link.Factory mLinkFactory;
+    private final WriteSizeController mWriteSizeController = new WriteSizeController(
+            MIN_WRITE_CHUNK, MAX_WRITE_CHUNK, MIN_WRITE_BATCH, MAX_WRITE_BATCH);
 
     private AcceptThread mAcceptThread;
     private ConnectedThread mConnectedThread;
+    private volatile TrafficRecorder mTrafficRecorder;
+    private volatile AudioListener mAudioListener;
+    private volatile SyncListener mSyncListener;
+    private volatile StreamListener mStreamListener;
+    private volatile PeerProfile.Store mProfileStore;
+    private volatile int mReceiveWindow = RECEIVE_WINDOW;
+    private volatile LinkClock mClock = LinkClock.SYSTEM;
 
     public interface ConnectionListener {
         void onConnectStateChange(int oldState, int State);
@@ -39,15 +66,103 @@ public class ConnectionManager {
 
         void onSendData(boolean suc, byte[] data);
 
+        /**
+         * 收到数据, 处理完后需调用 {@link #consumeData(int)} 归还接收窗口
+         */
         void onReadData(byte[] data);
     }
 
+    /**
+     * 实时语音帧, 在读线程中直接回调, 不经过事件队列, 实现中不能阻塞
+     */
+    public interface AudioListener {
+        void onAudioFrame(byte[] buf, int offset, int length);
+    }
+
+    /**
+     * 历史同步摘要, 在读线程中回调, 数据需复制后再处理
+     */
+    public interface SyncListener {
+        void onSyncFrame(byte[] buf, int offset, int length);
+    }
+
+    /**
+     * 对端打开了逻辑流, 在读线程中回调, 不能阻塞, 流的读写应在其它线程中进行.
+     * 未设置时对端打开的流被直接中止
+     */
+    public interface StreamListener {
+        void onStreamOpened(StreamMux.Stream stream);
+    }
+
     public ConnectionManager(ConnectionListener cl) {
-        mConnectionListener = cl;
-        mBluetoothAdapter = BluetoothAdapter.getDefaultAdapter();
+        this(cl, new BluetoothLink.Factory());
+    }
+
+    /**
+     * @param linkFactory 链路工厂, 测试时可传入 {@link SimulatedNetwork} 的节点
+     */
+    public ConnectionManager(ConnectionListener cl, Link.Factory linkFactory) {
+        mLinkFactory = linkFactory;
+
+        if (cl != null) {
+            mEventExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "ConnectionEvents");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+            // 主监听者负责处理收到的数据并归还接收窗口, 不能丢弃事件. 接收窗口只按字节限制,
+            // 小消息的条数可以远超任何固定的条数上限, 因此队列不限容量, 积压的数据总量仍受接收窗口限制
+            mPrimarySubscription = mEventBus.subscribe(cl, mEventExecutor, ConnectionEventBus.UNBOUNDED);
+        }
+
+        // 只有观察者的有界队列会丢弃事件
+        mEventBus.setDropListener(new ConnectionEventBus.DropListener() {
+            @Override
+            public void onEventDropped(ConnectionEventBus.Subscription subscription, int event, byte[] data) {
+                Log.w(TAG, "connection event dropped, event=" + event + " lag=" + subscription.getLag());
+            }
+        });
+    }
+
+    /**
+     * 增加一个连接事件订阅者, 回调在指定的 executor 中执行
+     * <p>
+     * 只有构造时传入的监听者负责调用 {@link #consumeData(int)}, 其它订阅者仅作观察.
+     */
+    public ConnectionEventBus.Subscription subscribe(ConnectionListener listener, Executor executor, int capacity) {
+        return mEventBus.subscribe(listener, executor, capacity);
+    }
+
+    public void unsubscribe(ConnectionEventBus.Subscription subscription) {
+        mEventBus.unsubscribe(subscription);
+    }
+
+    /**
+     * 构造时传入的监听者的订阅, 可查看其积压和丢弃计数
+     */
+    public ConnectionEventBus.Subscription getPrimarySubscription() {
+        return mPrimarySubscription;
     }
 
-    public void startListen() {
+    /**
+     * 不再使用时调用, 结束事件投递线程
+     */
+    public void release() {
+        disconnect();
+        stopListen();
+        // 先取消订阅, 读写线程退出时发布的事件不再投递到已关闭的线程
+        if (mPrimarySubscription != null) {
+            mEventBus.unsubscribe(mPrimarySubscription);
+        }
+        if (mEventExecutor != null) {
+            mEventExecutor.shutdown();
+        }
+    }
+
+    public synchronized void startListen() {
 
         Log.d(TAG, "ConnectionManager startListen");
 
@@ -59,7 +174,7 @@ public class ConnectionManager {
         mAcceptThread.start();
     }
 
-    public void stopListen() {
+    public synchronized void stopListen() {
 
         Log.d(TAG, "ConnectionManager stopListen");
 
@@ -71,16 +186,11 @@ public class ConnectionManager {
     public synchronized void connect(String deviceAddr) {
 
         Log.d(TAG, "ConnectionManager about to connect BT device at:" + deviceAddr);
-        if (mConnectedThread != null) {
-            mConnectedThread.cancel();
-        }
-
-        BluetoothDevice device = mBluetoothAdapter.getRemoteDevice(deviceAddr);
 
         try {
 
-            BluetoothSocket socket = device.createRfcommSocketToServiceRecord(BT_UUID);
-            connected(socket, true);
+            Link link = mLinkFactory.create(deviceAddr, BT_UUID);
+            connected(link, true);
 
         } catch (IOException e) {
             Log.e(TAG, "Connect failed", e);
@@ -88,13 +198,29 @@ public class ConnectionManager {
 
     }
 
-    private synchronized void connected(BluetoothSocket socket, boolean needConnect) {
-        // 启动客户端线程
-        mConnectedThread = new ConnectedThread(socket, needConnect);
+    // 替换当前连接: 取消旧的连接线程, 在锁内切换到新线程并进入连接中状态, 旧线程之后的状态更新被忽略
+    private synchronized void connected(Link link, boolean needConnect) {
+        if (mConnectedThread != null) {
+            mConnectedThread.cancel();
+        }
+        mConnectedThread = new ConnectedThread(link, needConnect);
+        setConnectState(CONNECT_STATE_CONNECTING);
         mConnectedThread.start();
     }
 
-    public void disconnect() {
+    /**
+     * 接管一条已监听到的连接, 如多个 ConnectionManager 共用的监听线程. 只在空闲时接受,
+     * 检查和切换在同一次加锁中完成; 返回 false 时由调用者关闭链路
+     */
+    public synchronized boolean attach(Link link) {
+        if (mConnectedThread != null || mConnectState != CONNECT_STATE_IDLE) {
+            return false;
+        }
+        connected(link, false);
+        return true;
+    }
+
+    public synchronized void disconnect() {
 
         Log.d(TAG, "ConnectionManager disconnect connection");
 
@@ -111,13 +237,211 @@ public class ConnectionManager {
         return mListenState;
     }
 
-    public synchronized boolean sendData(byte[] data) {
-        if (mConnectedThread != null && mConnectState == CONNECT_STATE_CONNECTED) {
-            mConnectedThread.sendData(data);
+    /**
+     * 发送数据, 对端接收窗口已满时阻塞等待, 不要在主线程调用
+     */
+    public boolean sendData(byte[] data) {
+        ConnectedThread thread;
+        synchronized (this) {
+            if (mConnectedThread == null || mConnectState != CONNECT_STATE_CONNECTED) {
+                return false;
+            }
+            thread = mConnectedThread;
+        }
+        return thread.sendData(data);
+    }
+
+    /**
+     * 按顺序发送多条数据, 全部排队后再等待写入, 不必每条等待一次. 阻塞规则同 {@link #sendData(byte[])}
+     *
+     * @return 成功发送的条数, 总是从第一条起连续的若干条. 遇到超过 {@link #getMaxFrameSize()} 的数据时停在它之前
+     */
+    public int sendData(List<byte[]> batch) {
+        ConnectedThread thread;
+        synchronized (this) {
+            if (mConnectedThread == null || mConnectState != CONNECT_STATE_CONNECTED) {
+                return 0;
+            }
+            thread = mConnectedThread;
+        }
+        return thread.sendData(batch);
+    }
+
+    /**
+     * 当前连接一条数据的最大长度, 收到对端握手前或未连接时为 {@link FrameCodec#MAX_FRAME_SIZE}
+     */
+    public int getMaxFrameSize() {
+        ConnectedThread thread;
+        synchronized (this) {
+            thread = mConnectedThread;
+        }
+        return thread != null ? thread.getMaxFrameSize() : FrameCodec.MAX_FRAME_SIZE;
+    }
+
+    /**
+     * 发送实时语音帧, 立即返回. 优先于数据发送且不受流量控制, 积压过多时丢弃旧帧
+     */
+    public boolean sendAudio(byte[] payload) {
+        ConnectedThread thread;
+        synchronized (this) {
+            if (mConnectedThread == null || mConnectState != CONNECT_STATE_CONNECTED) {
+                return false;
+            }
+            thread = mConnectedThread;
+        }
+        return thread.sendAudio(payload);
+    }
+
+    public void setAudioListener(AudioListener listener) {
+        mAudioListener = listener;
+    }
 
+    /**
+     * 发送历史同步摘要, 立即返回, 摘要不受流量控制. 大小不能超过 {@link #getMaxFrameSize()},
+     * 未连接或超过时返回 false
+     */
+    public boolean sendSync(byte[] payload) {
+        ConnectedThread thread;
+        synchronized (this) {
+            if (mConnectedThread == null || mConnectState != CONNECT_STATE_CONNECTED) {
+                return false;
+            }
+            thread = mConnectedThread;
+        }
+        return thread.sendControl(FrameCodec.TYPE_SYNC, payload);
+    }
+
+    public void setSyncListener(SyncListener listener) {
+        mSyncListener = listener;
+    }
+
+    /**
+     * 在当前连接上打开一条逻辑流, 阻塞直到 OPEN 帧写入链路, 不要在主线程调用.
+     * 连接断开后流的读写以 IOException 结束
+     */
+    public StreamMux.Stream openStream() throws IOException {
+        ConnectedThread thread;
+        synchronized (this) {
+            if (mConnectedThread == null || mConnectState != CONNECT_STATE_CONNECTED) {
+                throw new IOException("not connected");
+            }
+            thread = mConnectedThread;
+        }
+        return thread.openStream();
+    }
+
+    public void setStreamListener(StreamListener listener) {
+        mStreamListener = listener;
+    }
+
+    /**
+     * 设置对端能力的缓存, 重连已知对端时不等握手即按其功能和帧长度发送
+     */
+    public void setProfileStore(PeerProfile.Store store) {
+        mProfileStore = store;
+    }
+
+    /**
+     * 设置本端接收窗口, 从下一次连接起生效, 不低于 {@link #RECEIVE_WINDOW}
+     */
+    public void setReceiveWindow(int window) {
+        mReceiveWindow = Math.max(RECEIVE_WINDOW, window);
+    }
+
+    /**
+     * 设置写入计时用的时钟, 从下一次连接起生效. 测试在虚拟时钟上运行时传入同一个时钟, 使分块大小可重现
+     */
+    public void setClock(LinkClock clock) {
+        mClock = clock;
+    }
+
+    /**
+     * 与当前对端协商的能力, 未连接或尚未收到对端握手且无缓存时返回 null
+     */
+    public PeerProfile getPeerProfile() {
+        ConnectedThread thread;
+        synchronized (this) {
+            thread = mConnectedThread;
+        }
+        return thread != null ? thread.getPeerProfile() : null;
+    }
+
+    /**
+     * 通知已处理完 onReadData 收到的数据, 释放接收窗口
+     */
+    public void consumeData(int bytes) {
+        ConnectedThread thread;
+        synchronized (this) {
+            thread = mConnectedThread;
+        }
+        if (thread != null) {
+            thread.consume(bytes);
+        }
+    }
+
+    /**
+     * 已收到但尚未处理的字节数
+     */
+    public long getReceiveBufferOccupancy() {
+        ConnectedThread thread;
+        synchronized (this) {
+            thread = mConnectedThread;
+        }
+        return thread != null ? thread.getReceiveOccupancy() : 0;
+    }
+
+    /**
+     * 本次连接中接收缓冲占用的最大值
+     */
+    public long getReceiveBufferPeak() {
+        ConnectedThread thread;
+        synchronized (this) {
+            thread = mConnectedThread;
+        }
+        return thread != null ? thread.getReceivePeak() : 0;
+    }
+
+    /**
+     * 写入大小控制器, 可查看当前选择的块大小, 批大小和测得的吞吐量.
+     * 跨连接保留, 重连同一设备时从上次的结果开始调整.
+     */
+    public WriteSizeController getWriteSizeController() {
+        return mWriteSizeController;
+    }
+
+    /**
+     * 开始抓取链路流量, 所有读写数据将记录到指定文件
+     */
+    public synchronized boolean startCapture(File file) {
+        stopCapture();
+
+        try {
+            mTrafficRecorder = new TrafficRecorder(file);
+            Log.d(TAG, "ConnectionManager start capture to: " + file);
             return true;
+        } catch (IOException e) {
+            Log.e(TAG, "start capture failed", e);
+            return false;
+        }
+    }
+
+    public synchronized void stopCapture() {
+        TrafficRecorder recorder = mTrafficRecorder;
+        if (recorder == null) {
+            return;
+        }
+        mTrafficRecorder = null;
+
+        try {
+            recorder.close();
+            Log.d(TAG, "ConnectionManager stop capture, records=" + recorder.getRecordCount());
+        } catch (IOException e) {
+            Log.e(TAG, "stop capture failed", e);
         }
-        return false;
+    }
+
+    public boolean isCapturing() {
+        return mTrafficRecorder != null;
     }
 
     public String getState(int state) {
@@ -152,11 +476,8 @@ public class ConnectionManager {
         int oldState = mConnectState;
         mConnectState = state;
 
-        if (mConnectionListener != null) {
-
-            Log.d(TAG, "BT state change: " + getState(oldState) + " -> " + getState(mConnectState));
-            mConnectionListener.onConnectStateChange(oldState, mConnectState);
-        }
+        Log.d(TAG, "BT state change: " + getState(oldState) + " -> " + getState(mConnectState));
+        mEventBus.publishConnectState(oldState, mConnectState);
     }
 
     private synchronized void setListenState(int state) {
@@ -168,11 +489,8 @@ public class ConnectionManager {
         int oldState = mListenState;
         mListenState = state;
 
-        if (mConnectionListener != null) {
-
-            Log.d(TAG, "BT state change: " + getState(oldState) + " -> " + getState(mListenState));
-            mConnectionListener.onListenStateChange(oldState, mListenState);
-        }
+        Log.d(TAG, "BT state change: " + getState(oldState) + " -> " + getState(mListenState));
+        mEventBus.publishListenState(oldState, mListenState);
     }
 
 
@@ -181,18 +499,17 @@ public class ConnectionManager {
 
         private final String TAG = "AcceptThread";
 
-        private BluetoothServerSocket mServerSocket;
-        private boolean mUserCancel;
+        private Link.Server mServerSocket;
+        private volatile boolean mUserCancel;
 
         public AcceptThread() {
             Log.d(TAG, "create AcceptThread");
-            BluetoothServerSocket tmp = null; // 服务端 socket
+            Link.Server tmp = null; // 服务端 socket
             mUserCancel = false;
 
             // 创建 socket
             try {
-                tmp = mBluetoothAdapter.listenUsingRfcommWithServiceRecord(
-                        BT_NAME, BT_UUID);
+                tmp = mLinkFactory.listen(BT_NAME, BT_UUID);
             } catch (IOException e) {
                 Log.e(TAG, "AcceptThread create fail: ", e);
             }
@@ -208,7 +525,7 @@ public class ConnectionManager {
 
             setListenState(LISTEN_STATE_LISTENING);
 
-            BluetoothSocket socket = null; // 客户端 socket
+            Link socket = null; // 客户端 socket
 
             while (!mUserCancel) {
                 try {
@@ -221,15 +538,14 @@ public class ConnectionManager {
                     break;
                 }
 
-                Log.d(TAG, "AcceptThread accepted a connection, ConnectState=: " + ConnectionManager.this.getState(mConnectState));
-                if (mConnectState == CONNECT_STATE_CONNECTED || mConnectState == CONNECT_STATE_CONNECTING) {
+                Log.d(TAG, "AcceptThread accepted a connection");
+                if (!attach(socket)) {
+                    Log.d(TAG, "AcceptThread already connected, reject");
                     try {
                         socket.close();
                     } catch (IOException e) {
                         e.printStackTrace();
                     }
-                } else if (mConnectState == CONNECT_STATE_IDLE) {
-                    connected(socket, false);
                 }
             }
 
@@ -242,8 +558,12 @@ public class ConnectionManager {
                 }
                 mServerSocket = null;
             }
-            setListenState(LISTEN_STATE_IDLE);
-            mAcceptThread = null;
+            synchronized (ConnectionManager.this) {
+                if (mAcceptThread == this) {
+                    mAcceptThread = null;
+                    setListenState(LISTEN_STATE_IDLE);
+                }
+            }
 
             // 打印关闭原因
             if (mUserCancel) {
@@ -268,23 +588,42 @@ public class ConnectionManager {
     }
 
     // 连接为客户端
-    private class ConnectedThread extends Thread {
+    private class ConnectedThread extends Thread implements FrameCodec.FrameListener, FrameWriter.Callback,
+            StreamMux.Listener {
 
         private final int MAX_BUFFER_SIZE = 1024;
 
-        private BluetoothSocket mSocket;
+        private Link mSocket;
         private InputStream mInStream;
         private OutputStream mOutStream;
-        private boolean mUserCancel;
+        private volatile FrameWriter mFrameWriter;
+        private volatile StreamMux mStreamMux;
+        private volatile boolean mUserCancel;
         private boolean mNeedConnect;
 
-        public ConnectedThread(BluetoothSocket socket, boolean needConnect) {
+        // 本端能力在创建时确定, 对端能力来自缓存或握手帧
+        private final int mReceiveWindow;
+        private final PeerProfile mLocalProfile;
+        private final Object mProfileLock = new Object();
+        private PeerProfile mCachedProfile;
+        private PeerProfile mPeerProfile;
+        private boolean mHelloReceived;
+
+        // 接收窗口: 已交给上层但未处理的字节数, 以及已处理但尚未授予对端的信用
+        private final Object mReceiveLock = new Object();
+        private long mReceiveOutstanding;
+        private long mReceivePeak;
+        private long mPendingGrant;
+
+        public ConnectedThread(Link socket, boolean needConnect) {
             Log.d(TAG, "create ConnectedThread");
 
             setName("ConnectedThread");
             mNeedConnect = needConnect;
             mSocket = socket;
             mUserCancel = false;
+            mReceiveWindow = ConnectionManager.this.mReceiveWindow;
+            mLocalProfile = PeerProfile.local(mReceiveWindow);
         }
 
         @Override
@@ -292,18 +631,13 @@ public class ConnectionManager {
 
             Log.d(TAG, "ConnectedThread START");
 
-            setConnectState(CONNECT_STATE_CONNECTING);
-
             if (mNeedConnect && !mUserCancel) {
                 try {
                     mSocket.connect();
                 } catch (IOException e) {
 
                     Log.d(TAG, "ConnectedThread END at connect(), " + e);
-                    setConnectState(CONNECT_STATE_IDLE);
-                    mSocket = null;
-                    mConnectedThread = null;
-
+                    finish();
                     return;
                 }
             }
@@ -316,43 +650,65 @@ public class ConnectionManager {
                 tmpOut = mSocket.getOutputStream();
             } catch (IOException e) {
                 Log.d(TAG, "ConnectedThread END at getStream(), " + e);
-                setConnectState(CONNECT_STATE_IDLE);
-                mSocket = null;
-                mConnectedThread = null;
-
+                finish();
                 return;
             }
 
             mInStream = tmpIn;
             mOutStream = tmpOut;
 
+            // 已知对端按缓存的能力直接发送. 缓存的窗口可能比对端现在的大, 信用先按所有版本都接受的下限,
+            // 收到握手帧确认实际窗口后再补足
+            PeerProfile.Store store = mProfileStore;
+            String address = mSocket.getAddress();
+            mCachedProfile = store != null && address != null ? store.load(address) : null;
+            if (mCachedProfile != null) {
+                synchronized (mProfileLock) {
+                    mPeerProfile = PeerProfile.negotiate(mLocalProfile, mCachedProfile);
+                }
+            }
+            mFrameWriter = new FrameWriter(mOutStream, RECEIVE_WINDOW, mWriteSizeController, mClock, this);
+            mFrameWriter.start();
+            mStreamMux = new StreamMux(mFrameWriter, mNeedConnect, this);
+
+            updateConnectState(CONNECT_STATE_CONNECTED);
 
-            setConnectState(CONNECT_STATE_CONNECTED);
+            // 握手帧作为控制帧排在所有数据之前发出, 双方不互相等待
+            mFrameWriter.sendControl(FrameCodec.TYPE_HELLO, mLocalProfile.encode());
 
             byte[] buffer = new byte[MAX_BUFFER_SIZE];
             int bytes;
+            FrameCodec frameCodec = new FrameCodec(this);
 
             // 保持接收, 处理消息
             while (!mUserCancel) {
                 try {
                     Log.d(TAG, "ConnectedThread wait for read data");
                     bytes = mInStream.read(buffer);
+                    if (bytes < 0) {
+                        Log.d(TAG, "ConnectedThread end of stream");
+                        break;
+                    }
 
-                    if (mConnectionListener != null && bytes > 0) {
-
-                        byte[] data = new byte[bytes];
-                        System.arraycopy(buffer, 0, data, 0, bytes);
-                        mConnectionListener.onReadData(data); // 回调处理
+                    TrafficRecorder recorder = mTrafficRecorder;
+                    if (recorder != null && bytes > 0) {
+                        recorder.record(TrafficRecorder.DIRECTION_IN, buffer, 0, bytes);
                     }
+
+                    frameCodec.feed(buffer, 0, bytes);
+                } catch (ProtocolException e) {
+                    Log.e(TAG, "ConnectedThread protocol error, ", e);
+                    break;
                 } catch (IOException e) {
                     Log.d(TAG, "ConnectedThread disconnected, ", e);
                     break;
                 }
             }
 
-            setConnectState(CONNECT_STATE_IDLE);
-            mSocket = null;
-            mConnectedThread = null;
+            mFrameWriter.close();
+            mStreamMux.close();
+            Log.d(TAG, "ConnectedThread write sizing: " + mWriteSizeController);
+            finish();
 
             // 打印关闭原因
             if (mUserCancel) {
@@ -362,11 +718,207 @@ public class ConnectionManager {
             }
         }
 
+        @Override
+        public void onFrame(int type, byte[] buf, int offset, int length) throws ProtocolException {
+            // 不认识的帧类型直接忽略, 以兼容新版本
+            switch (type) {
+                case FrameCodec.TYPE_DATA: {
+                    synchronized (mReceiveLock) {
+                        mReceiveOutstanding += length;
+                        if (mReceiveOutstanding > mReceiveWindow) {
+                            throw new ProtocolException("peer exceeded receive window");
+                        }
+                        mReceivePeak = Math.max(mReceivePeak, mReceiveOutstanding);
+                    }
+
+                    if (mEventBus.hasSubscribers()) {
+                        byte[] data = new byte[length];
+                        System.arraycopy(buf, offset, data, 0, length);
+                        mEventBus.publishReadData(data); // 回调处理
+                    }
+                    if (mPrimarySubscription == null) {
+                        consume(length);
+                    }
+                }
+                break;
+
+                case FrameCodec.TYPE_CREDIT: {
+                    if (Varint.length(buf, offset, offset + length) < 0) {
+                        throw new ProtocolException("malformed credit frame");
+                    }
+                    mFrameWriter.addCredit(Varint.read(buf, offset));
+                }
+                break;
+
+                case FrameCodec.TYPE_AUDIO: {
+                    AudioListener listener = mAudioListener;
+                    if (listener != null) {
+                        listener.onAudioFrame(buf, offset, length);
+                    }
+                }
+                break;
+
+                case FrameCodec.TYPE_SYNC: {
+                    SyncListener listener = mSyncListener;
+                    if (listener != null) {
+                        listener.onSyncFrame(buf, offset, length);
+                    }
+                }
+                break;
+
+                case FrameCodec.TYPE_STREAM:
+                    mStreamMux.onFrame(buf, offset, length);
+                    break;
+
+                case FrameCodec.TYPE_HELLO:
+                    onHello(PeerProfile.decode(buf, offset, length));
+                    break;
+            }
+        }
+
+        // 对端的握手帧, 按对端窗口调整信用, 并更新缓存
+        private void onHello(PeerProfile remote) throws ProtocolException {
+            if (remote.version < PeerProfile.MIN_PROTOCOL_VERSION) {
+                throw new ProtocolException("unsupported peer protocol version " + remote.version);
+            }
+
+            PeerProfile profile = PeerProfile.negotiate(mLocalProfile, remote);
+            synchronized (mProfileLock) {
+                if (mHelloReceived) {
+                    throw new ProtocolException("duplicate hello frame");
+                }
+                mHelloReceived = true;
+                mPeerProfile = profile;
+                mProfileLock.notifyAll();
+            }
+            // 协商的窗口不低于初始信用, 只需补足差值
+            mFrameWriter.addCredit(profile.receiveWindow - RECEIVE_WINDOW);
+            Log.d(TAG, "peer profile: " + profile + (mCachedProfile != null ? " (cached)" : ""));
+
+            PeerProfile.Store store = mProfileStore;
+            String address = mSocket.getAddress();
+            if (store != null && address != null && !remote.equals(mCachedProfile)) {
+                store.save(address, remote);
+            }
+        }
+
+        public PeerProfile getPeerProfile() {
+            synchronized (mProfileLock) {
+                return mPeerProfile;
+            }
+        }
+
+        // 等待对端握手帧, 已有缓存时直接返回
+        private PeerProfile awaitPeerProfile(long timeoutMillis) throws InterruptedException {
+            long deadline = System.currentTimeMillis() + timeoutMillis;
+            synchronized (mProfileLock) {
+                while (mPeerProfile == null && !mUserCancel) {
+                    long wait = deadline - System.currentTimeMillis();
+                    if (wait <= 0) {
+                        break;
+                    }
+                    mProfileLock.wait(wait);
+                }
+                return mPeerProfile;
+            }
+        }
+
+        // 上层处理完数据, 累计到阈值后授予对端信用
+        public void consume(int bytes) {
+            long grant = 0;
+            synchronized (mReceiveLock) {
+                bytes = (int) Math.min(bytes, mReceiveOutstanding);
+                mReceiveOutstanding -= bytes;
+                mPendingGrant += bytes;
+                // 累计处理达到窗口的 1/4 时才向对端授予信用, 减少 CREDIT 帧数量
+                if (mPendingGrant >= mReceiveWindow / 4) {
+                    grant = mPendingGrant;
+                    mPendingGrant = 0;
+                }
+            }
+
+            FrameWriter writer = mFrameWriter;
+            if (grant > 0 && writer != null) {
+                byte[] payload = new byte[Varint.size(grant)];
+                Varint.write(payload, 0, grant);
+                writer.sendControl(FrameCodec.TYPE_CREDIT, payload);
+            }
+        }
+
+        public long getReceiveOccupancy() {
+            synchronized (mReceiveLock) {
+                return mReceiveOutstanding;
+            }
+        }
+
+        public long getReceivePeak() {
+            synchronized (mReceiveLock) {
+                return mReceivePeak;
+            }
+        }
+
+        @Override
+        public void onStreamOpened(StreamMux.Stream stream) {
+            StreamListener listener = mStreamListener;
+            if (listener != null) {
+                listener.onStreamOpened(stream);
+            } else {
+                stream.reset();
+            }
+        }
+
+        @Override
+        public void onBytesWritten(byte[] buf, int offset, int length) {
+            TrafficRecorder recorder = mTrafficRecorder;
+            if (recorder != null) {
+                recorder.record(TrafficRecorder.DIRECTION_OUT, buf, offset, length);
+            }
+        }
+
+        @Override
+        public void onDataSent(boolean suc, byte[] data) {
+            if (!suc) {
+                Log.e(TAG, "send data fail");
+            }
+            mEventBus.publishSendData(suc, data);
+        }
+
+        private void closeSocket() {
+            try {
+                mSocket.close();
+            } catch (IOException e) {
+                Log.e(TAG, "ConnectedThread close socket failed", e);
+            }
+        }
+
+        // 线程结束时总是关闭链路; 只有仍是当前连接时才清除引用和状态, 避免覆盖已经新建的连接
+        private void finish() {
+            closeSocket();
+            synchronized (ConnectionManager.this) {
+                if (mConnectedThread == this) {
+                    mConnectedThread = null;
+                    setConnectState(CONNECT_STATE_IDLE);
+                }
+            }
+        }
+
+        // 已被新连接替换或已取消的线程不再改变连接状态
+        private void updateConnectState(int state) {
+            synchronized (ConnectionManager.this) {
+                if (mConnectedThread == this && !mUserCancel) {
+                    setConnectState(state);
+                }
+            }
+        }
+
         // 手动关闭 serverSocket
         public void cancel() {
             Log.d(TAG, "ConnectedThread cancel START");
-            try {
+            synchronized (mProfileLock) {
                 mUserCancel = true;
+                mProfileLock.notifyAll();
+            }
+            try {
                 if (mSocket != null) {
                     mSocket.close();
                 }
@@ -379,21 +931,74 @@ public class ConnectionManager {
         }
 
         // 发送消息
-        public void sendData(byte[] data) {
+        public boolean sendData(byte[] data) {
+            FrameWriter writer = mFrameWriter;
+            if (writer == null || data.length > getMaxFrameSize()) {
+                return false;
+            }
+            return writer.sendData(data);
+        }
+
+        public int sendData(List<byte[]> batch) {
+            FrameWriter writer = mFrameWriter;
+            if (writer == null) {
+                return 0;
+            }
+            int maxFrameSize = getMaxFrameSize();
+            int count = 0;
+            while (count < batch.size() && batch.get(count).length <= maxFrameSize) {
+                count++;
+            }
+            return count == 0 ? 0 : writer.sendData(count == batch.size() ? batch : batch.subList(0, count));
+        }
+
+        public boolean sendAudio(byte[] payload) {
+            FrameWriter writer = mFrameWriter;
+            if (writer == null || payload.length > FrameCodec.MAX_FRAME_SIZE) {
+                return false;
+            }
+            writer.sendPriority(FrameCodec.TYPE_AUDIO, payload);
+            return true;
+        }
+
+        public StreamMux.Stream openStream() throws IOException {
+            StreamMux mux = mStreamMux;
+            if (mux == null) {
+                throw new IOException("not connected");
+            }
+
+            PeerProfile profile;
             try {
-                mOutStream.write(data);
+                profile = awaitPeerProfile(HELLO_TIMEOUT_MS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("interrupted waiting for peer profile");
+            }
+            if (profile == null) {
+                throw new IOException("peer did not send its profile");
+            }
+            if (!profile.hasFeature(PeerProfile.FEATURE_STREAMS)) {
+                throw new IOException("peer does not support streams");
+            }
+            return mux.open();
+        }
 
-                if (mConnectionListener != null) {
-                    mConnectionListener.onSendData(true, data);
-                }
-            } catch (IOException e) {
-                Log.e(TAG, "send data fail", e);
-                if (mConnectionListener != null) {
-                    mConnectionListener.onSendData(true, data);
-                }
+        int getMaxFrameSize() {
+            PeerProfile profile = getPeerProfile();
+            return profile != null ? profile.maxFrameSize : FrameCodec.MAX_FRAME_SIZE;
+        }
+
+        public boolean sendControl(int type, byte[] payload) {
+            FrameWriter writer = mFrameWriter;
+            if (writer == null) {
+                return false;
+            }
+            if (payload.length > getMaxFrameSize()) {
+                Log.e(TAG, "control frame too large, type=" + type + " length=" + payload.length);
+                return false;
             }
+            writer.sendControl(type, payload);
+            return true;
         }
     }
 }
-
-
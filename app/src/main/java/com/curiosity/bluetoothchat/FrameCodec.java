@@ -0,0 +1,126 @@
+package com.curiosity.bluetoothchat;
+
+import java.net.ProtocolException;
+
+/**
+ * 链路分帧, 将字节流切分为独立的帧
+ * <p>
+ * 帧格式: 长度(varint, 类型 + 负载的字节数) 类型(byte) 负载
+ */
+public class FrameCodec {
+
+    public static final int TYPE_DATA = 0;
+    // 流量控制, 负载为授予对端的信用字节数(varint)
+    public static final int TYPE_CREDIT = 1;
+    // 实时语音, 负载见 VoiceCodec, 不受流量控制
+    public static final int TYPE_AUDIO = 2;
+    // 历史同步摘要, 负载见 HistorySync
+    public static final int TYPE_SYNC = 3;
+    // 逻辑流, 负载见 StreamMux
+    public static final int TYPE_STREAM = 4;
+    // 能力握手, 负载见 PeerProfile
+    public static final int TYPE_HELLO = 5;
+
+    public static final int MAX_FRAME_SIZE = 64 * 1024;
+
+    public interface FrameListener {
+        void onFrame(int type, byte[] buf, int offset, int length) throws ProtocolException;
+    }
+
+    private final FrameListener mFrameListener;
+
+    // 未凑成完整帧的数据
+    private byte[] mBuffer = new byte[1024];
+    private int mBuffered;
+
+    public FrameCodec(FrameListener listener) {
+        mFrameListener = listener;
+    }
+
+    public static int encodedSize(int payloadLength) {
+        return Varint.size(payloadLength + 1) + 1 + payloadLength;
+    }
+
+    /**
+     * 将负载编码为一帧写入 buf 的 pos 处, 返回写入后的位置
+     */
+    public static int encode(int type, byte[] payload, int offset, int length, byte[] buf, int pos) {
+        pos = Varint.write(buf, pos, length + 1);
+        buf[pos++] = (byte) type;
+        System.arraycopy(payload, offset, buf, pos, length);
+        return pos + length;
+    }
+
+    public static byte[] encode(int type, byte[] payload) {
+        byte[] frame = new byte[encodedSize(payload.length)];
+        encode(type, payload, 0, payload.length, frame, 0);
+        return frame;
+    }
+
+    /**
+     * 送入收到的字节, 每凑成一帧回调一次
+     *
+     * @throws ProtocolException 帧长度非法, 连接应当断开
+     */
+    public void feed(byte[] data, int offset, int length) throws ProtocolException {
+        if (mBuffered == 0) {
+            // 无残留数据时直接在输入上解析, 避免拷贝
+            int consumed = parse(data, offset, offset + length);
+            append(data, offset + consumed, length - consumed);
+            return;
+        }
+
+        append(data, offset, length);
+        int consumed = parse(mBuffer, 0, mBuffered);
+        if (consumed > 0) {
+            System.arraycopy(mBuffer, consumed, mBuffer, 0, mBuffered - consumed);
+            mBuffered -= consumed;
+        }
+    }
+
+    public void reset() {
+        mBuffered = 0;
+    }
+
+    // 解析 [start, end) 中的完整帧, 返回消耗的字节数
+    private int parse(byte[] buf, int start, int end) throws ProtocolException {
+        int pos = start;
+        while (pos < end) {
+            int headerLength = Varint.length(buf, pos, end);
+            if (headerLength < 0) {
+                if (end - pos >= Varint.MAX_SIZE) {
+                    throw new ProtocolException("malformed frame length");
+                }
+                break;
+            }
+
+            long frameLength = Varint.read(buf, pos);
+            if (frameLength < 1 || frameLength > MAX_FRAME_SIZE + 1) {
+                throw new ProtocolException("bad frame length: " + frameLength);
+            }
+            if (end - pos - headerLength < frameLength) {
+                break;
+            }
+
+            int type = buf[pos + headerLength] & 0xFF;
+            int payload = pos + headerLength + 1;
+            mFrameListener.onFrame(type, buf, payload, (int) frameLength - 1);
+
+            pos = payload + (int) frameLength - 1;
+        }
+        return pos - start;
+    }
+
+    private void append(byte[] data, int offset, int length) {
+        if (length <= 0) {
+            return;
+        }
+        if (mBuffered + length > mBuffer.length) {
+            byte[] tmp = new byte[Math.max(mBuffer.length * 2, mBuffered + length)];
+            System.arraycopy(mBuffer, 0, tmp, 0, mBuffered);
+            mBuffer = tmp;
+        }
+        System.arraycopy(data, offset, mBuffer, mBuffered, length);
+        mBuffered += length;
+    }
+}
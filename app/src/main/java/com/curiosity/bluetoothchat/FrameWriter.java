@@ -0,0 +1,412 @@
+package com.curiosity.bluetoothchat;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.List;
+
+/**
+ * 连接的写线程
+ * <p>
+ * 控制帧优先发送, 且不受流量控制; 实时帧(语音)其次, 同样不受流量控制, 队列有界, 满时丢弃最旧的帧;
+ * 数据帧按顺序发送, 每帧消耗与负载等长的信用, 信用不足时暂停, 直到对端通过 CREDIT 帧授予新的信用.
+ * 流帧最后发送, 不占用连接级信用, 由 {@link StreamMux} 按流做流量控制.
+ * 多个排队的帧合并为一批, 按 {@link WriteSizeController} 给出的块大小分次写入; 每写完一块检查
+ * 控制帧和实时帧, 有等待的就在下一个帧边界插入, 语音不必等整批数据写完.
+ */
+public class FrameWriter extends Thread {
+
+    public interface Callback {
+
+        /**
+         * 一段数据已写入链路, 按写入顺序回调
+         */
+        void onBytesWritten(byte[] buf, int offset, int length);
+
+        void onDataSent(boolean suc, byte[] data);
+    }
+
+    private final OutputStream mOutStream;
+    private final Callback mCallback;
+    private final WriteSizeController mSizeController;
+    private final LinkClock mClock;
+
+    // 合并发送的缓冲和其中每帧的结束位置, 只在写线程中使用
+    private byte[] mBatch = new byte[4096];
+    private int[] mFrameEnds = new int[64];
+    private int mFrameCount;
+    // 批中插入的控制帧和实时帧
+    private byte[] mUrgent = new byte[1024];
+
+    private final LinkedList<byte[]> mControlQueue = new LinkedList<>();
+    private final LinkedList<byte[]> mPriorityQueue = new LinkedList<>();
+    private final LinkedList<PendingData> mDataQueue = new LinkedList<>();
+    private final LinkedList<PendingData> mStreamQueue = new LinkedList<>();
+
+    // 实时帧队列上限, 积压过多说明链路跟不上, 旧帧已无播放价值
+    private static final int MAX_PRIORITY_FRAMES = 10;
+    private long mPriorityDropCount;
+
+    private long mSendCredit;
+    private boolean mClosed;
+
+    public FrameWriter(OutputStream out, long initialCredit, WriteSizeController sizeController,
+                       LinkClock clock, Callback callback) {
+        setName("FrameWriter");
+        mOutStream = out;
+        mSendCredit = initialCredit;
+        mSizeController = sizeController;
+        mClock = clock;
+        mCallback = callback;
+    }
+
+    /**
+     * 发送控制帧, 立即返回
+     */
+    public synchronized void sendControl(int type, byte[] payload) {
+        if (mClosed) {
+            return;
+        }
+        mControlQueue.add(FrameCodec.encode(type, payload));
+        notifyAll();
+    }
+
+    /**
+     * 发送实时帧, 立即返回, 队列满时丢弃最旧的帧
+     */
+    public synchronized void sendPriority(int type, byte[] payload) {
+        if (mClosed) {
+            return;
+        }
+        if (mPriorityQueue.size() >= MAX_PRIORITY_FRAMES) {
+            mPriorityQueue.removeFirst();
+            mPriorityDropCount++;
+        }
+        mPriorityQueue.add(FrameCodec.encode(type, payload));
+        notifyAll();
+    }
+
+    public synchronized long getPriorityDropCount() {
+        return mPriorityDropCount;
+    }
+
+    /**
+     * 发送数据帧, 阻塞直到写入链路或失败
+     */
+    public boolean sendData(byte[] data) {
+        PendingData pending = new PendingData(data);
+        synchronized (this) {
+            if (mClosed) {
+                return false;
+            }
+            mDataQueue.add(pending);
+            notifyAll();
+        }
+
+        try {
+            return pending.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    /**
+     * 按顺序发送多个数据帧, 全部排队后再等待, 可以合并到同一批写入, 阻塞直到全部写入链路或失败
+     *
+     * @return 成功写入的帧数, 总是从第一帧起连续的若干帧
+     */
+    public int sendData(List<byte[]> batch) {
+        List<PendingData> pendings = new ArrayList<>(batch.size());
+        synchronized (this) {
+            if (mClosed) {
+                return 0;
+            }
+            for (byte[] data : batch) {
+                PendingData pending = new PendingData(data);
+                mDataQueue.add(pending);
+                pendings.add(pending);
+            }
+            notifyAll();
+        }
+
+        int sent = 0;
+        try {
+            for (PendingData pending : pendings) {
+                if (!pending.await()) {
+                    break;
+                }
+                sent++;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        return sent;
+    }
+
+    /**
+     * 发送流帧, 阻塞直到写入链路或失败
+     */
+    public boolean sendStream(byte[] payload) {
+        PendingData pending = new PendingData(payload);
+        synchronized (this) {
+            if (mClosed) {
+                return false;
+            }
+            mStreamQueue.add(pending);
+            notifyAll();
+        }
+
+        try {
+            return pending.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    /**
+     * 对端授予信用
+     */
+    public synchronized void addCredit(long credit) {
+        mSendCredit += credit;
+        notifyAll();
+    }
+
+    public synchronized long getSendCredit() {
+        return mSendCredit;
+    }
+
+    public synchronized void close() {
+        mClosed = true;
+        notifyAll();
+    }
+
+    @Override
+    public void run() {
+        List<PendingData> sent = new ArrayList<>();
+        List<PendingData> sentStreams = new ArrayList<>();
+
+        while (true) {
+            int length;
+
+            synchronized (this) {
+                while (!mClosed && !hasSendableFrame()) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        mClosed = true;
+                    }
+                }
+                if (mClosed) {
+                    break;
+                }
+                length = fillBatch(sent, sentStreams);
+            }
+
+            try {
+                writeBatch(length);
+            } catch (IOException e) {
+                for (PendingData pending : sent) {
+                    pending.complete(false);
+                    mCallback.onDataSent(false, pending.mData);
+                }
+                for (PendingData pending : sentStreams) {
+                    pending.complete(false);
+                }
+                close();
+                break;
+            }
+
+            for (PendingData pending : sent) {
+                pending.complete(true);
+                mCallback.onDataSent(true, pending.mData);
+            }
+            for (PendingData pending : sentStreams) {
+                pending.complete(true);
+            }
+            sent.clear();
+            sentStreams.clear();
+        }
+
+        // 连接结束, 未发送的数据全部失败
+        LinkedList<PendingData> remaining;
+        LinkedList<PendingData> remainingStreams;
+        synchronized (this) {
+            remaining = new LinkedList<>(mDataQueue);
+            remainingStreams = new LinkedList<>(mStreamQueue);
+            mDataQueue.clear();
+            mStreamQueue.clear();
+            mControlQueue.clear();
+            mPriorityQueue.clear();
+        }
+        for (PendingData pending : remaining) {
+            pending.complete(false);
+            mCallback.onDataSent(false, pending.mData);
+        }
+        for (PendingData pending : remainingStreams) {
+            pending.complete(false);
+        }
+    }
+
+    // 将可发送的帧合并到 mBatch 中, 依次为控制帧, 实时帧, 数据帧, 流帧, 总大小不超过批大小(至少一帧), 返回字节数
+    private int fillBatch(List<PendingData> sent, List<PendingData> sentStreams) {
+        int batchSize = mSizeController.getBatchSize();
+        mFrameCount = 0;
+        int length = fillFrames(mControlQueue, 0, batchSize);
+        length = fillFrames(mPriorityQueue, length, batchSize);
+
+        while (!mDataQueue.isEmpty()) {
+            byte[] data = mDataQueue.getFirst().mData;
+            int frameSize = FrameCodec.encodedSize(data.length);
+            if (data.length > mSendCredit || (length > 0 && length + frameSize > batchSize)) {
+                break;
+            }
+
+            PendingData pending = mDataQueue.removeFirst();
+            mSendCredit -= data.length;
+            ensureBatchCapacity(length + frameSize);
+            length = FrameCodec.encode(FrameCodec.TYPE_DATA, data, 0, data.length, mBatch, length);
+            addFrameEnd(length);
+            sent.add(pending);
+        }
+
+        while (!mStreamQueue.isEmpty()) {
+            byte[] payload = mStreamQueue.getFirst().mData;
+            int frameSize = FrameCodec.encodedSize(payload.length);
+            if (length > 0 && length + frameSize > batchSize) {
+                break;
+            }
+
+            PendingData pending = mStreamQueue.removeFirst();
+            ensureBatchCapacity(length + frameSize);
+            length = FrameCodec.encode(FrameCodec.TYPE_STREAM, payload, 0, payload.length, mBatch, length);
+            addFrameEnd(length);
+            sentStreams.add(pending);
+        }
+
+        return length;
+    }
+
+    private int fillFrames(LinkedList<byte[]> queue, int length, int batchSize) {
+        while (!queue.isEmpty() && (length == 0 || length + queue.getFirst().length <= batchSize)) {
+            byte[] frame = queue.removeFirst();
+            ensureBatchCapacity(length + frame.length);
+            System.arraycopy(frame, 0, mBatch, length, frame.length);
+            length += frame.length;
+            addFrameEnd(length);
+        }
+        return length;
+    }
+
+    private void addFrameEnd(int end) {
+        if (mFrameCount == mFrameEnds.length) {
+            int[] tmp = new int[mFrameEnds.length * 2];
+            System.arraycopy(mFrameEnds, 0, tmp, 0, mFrameCount);
+            mFrameEnds = tmp;
+        }
+        mFrameEnds[mFrameCount++] = end;
+    }
+
+    // 按块大小分次写入, 并记录每次写入的耗时. 有控制帧或实时帧等待时, 当前块截止到所在帧的末尾,
+    // 随后插入等待的帧, 语音最多等一个数据帧而不是整批
+    private void writeBatch(int length) throws IOException {
+        int offset = 0;
+        int frame = 0;
+        while (offset < length) {
+            int end = offset + Math.min(mSizeController.getChunkSize(), length - offset);
+            boolean urgent = hasUrgentFrame();
+            if (urgent) {
+                // 之前的块可能跨过了多个帧, 先找到 offset 所在的帧
+                while (mFrameEnds[frame] <= offset) {
+                    frame++;
+                }
+                end = Math.min(end, mFrameEnds[frame]);
+            }
+            write(mBatch, offset, end - offset);
+            offset = end;
+
+            if (urgent && offset == mFrameEnds[frame] && offset < length) {
+                writeUrgentFrames();
+            }
+        }
+    }
+
+    private void writeUrgentFrames() throws IOException {
+        int length;
+        synchronized (this) {
+            length = drainUrgent(mControlQueue, 0);
+            length = drainUrgent(mPriorityQueue, length);
+        }
+        int offset = 0;
+        while (offset < length) {
+            int count = Math.min(mSizeController.getChunkSize(), length - offset);
+            write(mUrgent, offset, count);
+            offset += count;
+        }
+    }
+
+    private int drainUrgent(LinkedList<byte[]> queue, int length) {
+        while (!queue.isEmpty()) {
+            byte[] frame = queue.removeFirst();
+            if (length + frame.length > mUrgent.length) {
+                mUrgent = Arrays.copyOf(mUrgent, Math.max(length + frame.length, mUrgent.length * 2));
+            }
+            System.arraycopy(frame, 0, mUrgent, length, frame.length);
+            length += frame.length;
+        }
+        return length;
+    }
+
+    private void write(byte[] buf, int offset, int count) throws IOException {
+        long start = mClock.nanoTime();
+        mOutStream.write(buf, offset, count);
+        mSizeController.onWrite(count, mClock.nanoTime() - start);
+        mCallback.onBytesWritten(buf, offset, count);
+    }
+
+    private void ensureBatchCapacity(int capacity) {
+        if (capacity > mBatch.length) {
+            byte[] tmp = new byte[Math.max(capacity, mBatch.length * 2)];
+            System.arraycopy(mBatch, 0, tmp, 0, mBatch.length);
+            mBatch = tmp;
+        }
+    }
+
+    private synchronized boolean hasUrgentFrame() {
+        return !mControlQueue.isEmpty() || !mPriorityQueue.isEmpty();
+    }
+
+    private boolean hasSendableFrame() {
+        return !mControlQueue.isEmpty()
+                || !mPriorityQueue.isEmpty()
+                || !mStreamQueue.isEmpty()
+                || (!mDataQueue.isEmpty() && mDataQueue.getFirst().mData.length <= mSendCredit);
+    }
+
+    private static class PendingData {
+
+        final byte[] mData;
+        private boolean mDone;
+        private boolean mSuccess;
+
+        PendingData(byte[] data) {
+            mData = data;
+        }
+
+        synchronized void complete(boolean success) {
+            mDone = true;
+            mSuccess = success;
+            notifyAll();
+        }
+
+        synchronized boolean await() throws InterruptedException {
+            while (!mDone) {
+                wait();
+            }
+            return mSuccess;
+        }
+    }
+}
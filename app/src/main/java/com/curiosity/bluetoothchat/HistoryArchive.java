@@ -0,0 +1,359 @@
+package com.curiosity.bluetoothchat;
+
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.ProtocolException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.zip.CRC32;
+
+/**
+ * 历史消息的导出和导入
+ * <p>
+ * 归档格式: 魔数 "BCAR" 版本(byte), 之后为若干记录, 每条为 长度(varint) + {@link MessageCodec} 编码的消息,
+ * 长度 0 表示记录结束, 最后是 消息数(8 字节) 和 所有记录的 CRC32(4 字节).
+ * 导出按发送方分页遍历 {@link MessageLog}, 导入逐条追加, 已有的消息跳过. 两者都流式处理,
+ * 内存占用与归档大小无关, 在后台线程中执行并定期回调进度.
+ */
+public class HistoryArchive {
+
+    private static final String TAG = "HistoryArchive";
+
+    public static final int VERSION = 1;
+
+    private static final byte[] MAGIC = {'B', 'C', 'A', 'R'};
+    private static final int BUFFER_SIZE = 64 * 1024;
+    // 导出时每次从历史中取出的消息序号数
+    private static final int PAGE_SIZE = 256;
+    private static final long PROGRESS_INTERVAL_NANOS = 250 * 1000000L;
+
+    public interface Listener {
+
+        /**
+         * 定期回调, 在后台线程中执行
+         */
+        void onProgress(Progress progress);
+
+        /**
+         * 结束时回调, 在后台线程中执行, 成功时 error 为 null
+         */
+        void onFinished(Progress progress, IOException error);
+    }
+
+    /**
+     * 进度, 总量未知时为 -1
+     */
+    public static class Progress {
+        public long messages;
+        public long totalMessages = -1;
+        // 导入时已存在而跳过的消息
+        public long skipped;
+        public long bytes;
+        public long totalBytes = -1;
+        public long elapsedNanos;
+
+        public long getBytesPerSecond() {
+            return elapsedNanos > 0 ? (long) (bytes * 1e9 / elapsedNanos) : 0;
+        }
+
+        /**
+         * 完成比例 [0, 1], 总量未知时为 -1
+         */
+        public float getFraction() {
+            if (totalBytes > 0) {
+                return Math.min(1f, (float) bytes / totalBytes);
+            }
+            if (totalMessages > 0) {
+                return Math.min(1f, (float) messages / totalMessages);
+            }
+            return -1;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%d messages (%d skipped), %d KB, %d ms, %d KB/s",
+                    messages, skipped, bytes / 1024, elapsedNanos / 1000000, getBytesPerSecond() / 1024);
+        }
+    }
+
+    private final MessageLog mMessageLog;
+    private final ExecutorService mExecutor;
+    private volatile boolean mCancelled;
+
+    public HistoryArchive(MessageLog messageLog) {
+        mMessageLog = messageLog;
+        mExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, TAG);
+                thread.setPriority(Thread.MIN_PRIORITY);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * 在后台线程中导出到文件, 先写入临时文件, 完成后再替换, 失败时不留下不完整的归档
+     */
+    public void exportAsync(final File file, final Listener listener) {
+        mCancelled = false;
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                Progress progress = new Progress();
+                File tmp = new File(file.getPath() + ".tmp");
+                try {
+                    OutputStream out = new FileOutputStream(tmp);
+                    try {
+                        exportNow(out, progress, listener);
+                    } finally {
+                        out.close();
+                    }
+                    if (!tmp.renameTo(file)) {
+                        throw new IOException("rename " + tmp + " failed");
+                    }
+                    listener.onFinished(progress, null);
+                } catch (IOException e) {
+                    Log.e(TAG, "export failed", e);
+                    tmp.delete();
+                    listener.onFinished(progress, e);
+                }
+            }
+        });
+    }
+
+    /**
+     * 在后台线程中从文件导入
+     */
+    public void importAsync(final File file, final Listener listener) {
+        mCancelled = false;
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                Progress progress = new Progress();
+                progress.totalBytes = file.length();
+                try {
+                    InputStream in = new FileInputStream(file);
+                    try {
+                        importNow(in, progress, listener);
+                    } finally {
+                        in.close();
+                    }
+                    listener.onFinished(progress, null);
+                } catch (IOException e) {
+                    Log.e(TAG, "import failed", e);
+                    listener.onFinished(progress, e);
+                }
+            }
+        });
+    }
+
+    /**
+     * 中止正在进行的导出或导入, 回调以 InterruptedIOException 结束
+     */
+    public void cancel() {
+        mCancelled = true;
+    }
+
+    public void close() {
+        mCancelled = true;
+        mExecutor.shutdown();
+    }
+
+    /**
+     * 导出全部历史到 out, 不关闭 out
+     */
+    public void exportNow(OutputStream out, Progress progress, Listener listener) throws IOException {
+        BufferedOutputStream buffered = new BufferedOutputStream(out, BUFFER_SIZE);
+        long start = System.nanoTime();
+        long lastReport = start;
+        progress.totalMessages = mMessageLog.getCount();
+
+        buffered.write(MAGIC);
+        buffered.write(VERSION);
+        progress.bytes = MAGIC.length + 1;
+
+        CRC32 crc = new CRC32();
+        byte[] header = new byte[Varint.MAX_SIZE];
+        long[] ids = new long[PAGE_SIZE];
+        for (Long senderId : mMessageLog.getSenderIds()) {
+            long afterId = 0;
+            int count;
+            while ((count = mMessageLog.getMessageIds(senderId, afterId, ids)) > 0) {
+                for (int i = 0; i < count; i++) {
+                    if (mCancelled) {
+                        throw new InterruptedIOException("export cancelled");
+                    }
+                    // 遍历期间可能被保留策略删除
+                    byte[] record = mMessageLog.read(senderId, ids[i]);
+                    if (record == null) {
+                        continue;
+                    }
+
+                    int headerLength = Varint.write(header, 0, record.length);
+                    buffered.write(header, 0, headerLength);
+                    buffered.write(record);
+                    crc.update(header, 0, headerLength);
+                    crc.update(record, 0, record.length);
+
+                    progress.messages++;
+                    progress.bytes += headerLength + record.length;
+                    lastReport = report(progress, listener, start, lastReport);
+                }
+                afterId = ids[count - 1];
+            }
+        }
+
+        byte[] trailer = new byte[1 + 8 + 4];
+        trailer[0] = 0;
+        writeLong(trailer, 1, progress.messages);
+        writeInt(trailer, 9, (int) crc.getValue());
+        buffered.write(trailer);
+        buffered.flush();
+
+        progress.bytes += trailer.length;
+        progress.elapsedNanos = System.nanoTime() - start;
+        Log.d(TAG, "exported " + progress);
+    }
+
+    /**
+     * 从 in 导入, 不关闭 in. 校验失败时已导入的消息保留, 重复导入会跳过它们
+     *
+     * @throws ProtocolException 归档格式错误或校验失败
+     */
+    public void importNow(InputStream in, Progress progress, Listener listener) throws IOException {
+        BufferedInputStream buffered = new BufferedInputStream(in, BUFFER_SIZE);
+        long start = System.nanoTime();
+        long lastReport = start;
+
+        byte[] magic = new byte[MAGIC.length + 1];
+        readFully(buffered, magic, magic.length);
+        for (int i = 0; i < MAGIC.length; i++) {
+            if (magic[i] != MAGIC[i]) {
+                throw new ProtocolException("not a history archive");
+            }
+        }
+        if (magic[MAGIC.length] > VERSION) {
+            throw new ProtocolException("unsupported archive version " + magic[MAGIC.length]);
+        }
+        progress.bytes = magic.length;
+
+        CRC32 crc = new CRC32();
+        byte[] header = new byte[Varint.MAX_SIZE];
+        byte[] record = new byte[1024];
+        ChatMessage message = new ChatMessage();
+        while (true) {
+            if (mCancelled) {
+                throw new InterruptedIOException("import cancelled");
+            }
+
+            int headerLength = readVarint(buffered, header);
+            long length = Varint.read(header, 0);
+            if (length == 0) {
+                progress.bytes += headerLength;
+                break;
+            }
+            if (length > FrameCodec.MAX_FRAME_SIZE) {
+                throw new ProtocolException("bad record length: " + length);
+            }
+            if (length > record.length) {
+                record = new byte[Math.max((int) length, record.length * 2)];
+            }
+            readFully(buffered, record, (int) length);
+            crc.update(header, 0, headerLength);
+            crc.update(record, 0, (int) length);
+
+            if (!MessageCodec.decode(record, 0, (int) length, message)) {
+                throw new ProtocolException("malformed message at " + progress.bytes);
+            }
+            if (mMessageLog.append(message)) {
+                progress.messages++;
+            } else {
+                progress.skipped++;
+            }
+            progress.bytes += headerLength + length;
+            lastReport = report(progress, listener, start, lastReport);
+        }
+
+        byte[] trailer = new byte[8 + 4];
+        readFully(buffered, trailer, trailer.length);
+        progress.bytes += trailer.length;
+        progress.elapsedNanos = System.nanoTime() - start;
+
+        long count = readLong(trailer, 0);
+        if (count != progress.messages + progress.skipped || readInt(trailer, 8) != (int) crc.getValue()) {
+            throw new ProtocolException("archive checksum mismatch");
+        }
+        Log.d(TAG, "imported " + progress);
+    }
+
+    //==============================================================================================
+    private static long report(Progress progress, Listener listener, long start, long lastReport) {
+        long now = System.nanoTime();
+        if (now - lastReport < PROGRESS_INTERVAL_NANOS) {
+            return lastReport;
+        }
+        progress.elapsedNanos = now - start;
+        if (listener != null) {
+            listener.onProgress(progress);
+        }
+        return now;
+    }
+
+    // 读出一个 varint 到 buf, 返回其字节数
+    private static int readVarint(InputStream in, byte[] buf) throws IOException {
+        for (int i = 0; i < Varint.MAX_SIZE; i++) {
+            int b = in.read();
+            if (b < 0) {
+                throw new EOFException("truncated archive");
+            }
+            buf[i] = (byte) b;
+            if ((b & 0x80) == 0) {
+                return i + 1;
+            }
+        }
+        throw new ProtocolException("malformed record length");
+    }
+
+    private static void readFully(InputStream in, byte[] buf, int length) throws IOException {
+        int pos = 0;
+        while (pos < length) {
+            int n = in.read(buf, pos, length - pos);
+            if (n < 0) {
+                throw new EOFException("truncated archive");
+            }
+            pos += n;
+        }
+    }
+
+    private static void writeLong(byte[] buf, int pos, long value) {
+        writeInt(buf, pos, (int) (value >>> 32));
+        writeInt(buf, pos + 4, (int) value);
+    }
+
+    private static void writeInt(byte[] buf, int pos, int value) {
+        buf[pos] = (byte) (value >>> 24);
+        buf[pos + 1] = (byte) (value >>> 16);
+        buf[pos + 2] = (byte) (value >>> 8);
+        buf[pos + 3] = (byte) value;
+    }
+
+    private static long readLong(byte[] buf, int pos) {
+        return ((long) readInt(buf, pos) << 32) | (readInt(buf, pos + 4) & 0xFFFFFFFFL);
+    }
+
+    private static int readInt(byte[] buf, int pos) {
+        return (buf[pos] & 0xFF) << 24 | (buf[pos + 1] & 0xFF) << 16 | (buf[pos + 2] & 0xFF) << 8 | (buf[pos + 3] & 0xFF);
+    }
+}
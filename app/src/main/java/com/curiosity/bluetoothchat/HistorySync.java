@@ -0,0 +1,414 @@
+package com.curiosity.bluetoothchat;
+
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * 重连后的历史同步
+ * <p>
+ * 连接建立后双方各发送一份摘要: 每个发送方持有的消息序号区间, 保留策略删除过的序号也算作持有.
+ * 收到对端摘要后, 把对端缺少的消息作为普通数据帧推送过去(受流量控制), 对端按 (发送方 ID, 消息序号) 去重后存入历史.
+ * 摘要大小与发送方数量和序号区间的碎片程度有关, 与历史长度无关; 推送量只与差异有关.
+ * <p>
+ * 摘要按 SUMMARY_PART_SIZE 分成若干个 SYNC 帧, 每帧格式: 版本(varint) 标志(varint) 发送方数(varint),
+ * 之后每个发送方为 发送方 ID(varint) 区间数(varint) 若干区间, 区间为 与上一区间末尾的间隔(varint) 长度 - 1(varint).
+ * 标志标记第一帧和最后一帧; 一个发送方的区间可以分在相邻的几帧中, 接收方按顺序拼接.
+ * <p>
+ * 事件线程只负责分派, 编码摘要和推送在单独的后台线程中进行. 推送按页读取序号, 攒成批后一次排队发送.
+ */
+public class HistorySync implements ConnectionManager.ConnectionListener, ConnectionManager.SyncListener {
+
+    private static final String TAG = "HistorySync";
+
+    private static final int VERSION = 2;
+    private static final int FLAG_FIRST = 1;
+    private static final int FLAG_LAST = 2;
+    // 版本和标志各占 1 字节, 发送方数最多 5 字节
+    private static final int PART_HEADER_SIZE = 7;
+    private static final int SUMMARY_PART_SIZE = 16 * 1024;
+    // 每帧至少能放下一个发送方和一个区间: 发送方 ID, 区间数(1 字节), 区间的两个 varint
+    static final int MIN_PART_SIZE = PART_HEADER_SIZE + Varint.MAX_SIZE + 1 + 2 * Varint.MAX_SIZE;
+
+    // 推送时每批的消息数和字节数上限
+    private static final int PUSH_BATCH_MESSAGES = 64;
+    private static final int PUSH_BATCH_BYTES = 64 * 1024;
+
+    // 只关心连接状态, 状态事件不会被丢弃
+    private static final int EVENT_QUEUE_CAPACITY = 16;
+
+    private final MessageLog mMessageLog;
+    private final ConnectionManager mConnectionManager;
+    private final ConnectionEventBus.Subscription mSubscription;
+    private final ExecutorService mEventExecutor;
+    private final ExecutorService mExecutor;
+
+    // 只在 mExecutor 中访问: 正在接收的对端摘要
+    private HashMap<Long, long[]> mPeerRanges;
+
+    private volatile int mLastSummarySize;
+    private volatile int mLastSummaryParts;
+    private volatile int mLastPushedCount;
+    private volatile long mLastPushedBytes;
+
+    public HistorySync(MessageLog messageLog, ConnectionManager connectionManager) {
+        mMessageLog = messageLog;
+        mConnectionManager = connectionManager;
+
+        mEventExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "HistorySyncEvents");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        mExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                return new Thread(r, "HistorySync");
+            }
+        });
+        mSubscription = connectionManager.subscribe(this, mEventExecutor, EVENT_QUEUE_CAPACITY);
+        connectionManager.setSyncListener(this);
+    }
+
+    public void close() {
+        mConnectionManager.setSyncListener(null);
+        mConnectionManager.unsubscribe(mSubscription);
+        mEventExecutor.shutdown();
+        mExecutor.shutdown();
+    }
+
+    /**
+     * 最近一次发出的摘要字节数和帧数
+     */
+    public int getLastSummarySize() {
+        return mLastSummarySize;
+    }
+
+    public int getLastSummaryParts() {
+        return mLastSummaryParts;
+    }
+
+    /**
+     * 最近一次推送给对端的消息数和字节数
+     */
+    public int getLastPushedCount() {
+        return mLastPushedCount;
+    }
+
+    public long getLastPushedBytes() {
+        return mLastPushedBytes;
+    }
+
+    // 在 mEventExecutor 线程中回调
+    @Override
+    public void onConnectStateChange(int oldState, int State) {
+        if (State == ConnectionManager.CONNECT_STATE_CONNECTED) {
+            execute(new Runnable() {
+                @Override
+                public void run() {
+                    sendSummary();
+                }
+            });
+        }
+    }
+
+    @Override
+    public void onListenStateChange(int oldState, int State) {
+    }
+
+    @Override
+    public void onSendData(boolean suc, byte[] data) {
+    }
+
+    @Override
+    public void onReadData(byte[] data) {
+    }
+
+    // 读线程中回调
+    @Override
+    public void onSyncFrame(byte[] buf, int offset, int length) {
+        final byte[] part = new byte[length];
+        System.arraycopy(buf, offset, part, 0, length);
+        execute(new Runnable() {
+            @Override
+            public void run() {
+                onSummaryPart(part);
+            }
+        });
+    }
+
+    //==============================================================================================
+    private void execute(Runnable task) {
+        try {
+            mExecutor.execute(task);
+        } catch (RejectedExecutionException e) {
+            // 已关闭
+        }
+    }
+
+    private void sendSummary() {
+        int maxFrameSize = mConnectionManager.getMaxFrameSize();
+        List<byte[]> parts = encodeSummary(Math.max(MIN_PART_SIZE, Math.min(SUMMARY_PART_SIZE, maxFrameSize)));
+
+        int size = 0;
+        for (int i = 0; i < parts.size(); i++) {
+            byte[] part = parts.get(i);
+            if (!mConnectionManager.sendSync(part)) {
+                Log.w(TAG, "send summary failed at part " + (i + 1) + "/" + parts.size() + ", size=" + part.length);
+                return;
+            }
+            size += part.length;
+        }
+        mLastSummarySize = size;
+        mLastSummaryParts = parts.size();
+        Log.d(TAG, "summary sent, parts=" + parts.size() + " bytes=" + size);
+    }
+
+    // 按顺序拼接对端摘要的各帧, 收齐后推送
+    private void onSummaryPart(byte[] part) {
+        int[] pos = {0};
+        long version = readVarint(part, pos);
+        long flags = readVarint(part, pos);
+        if (version != VERSION) {
+            Log.w(TAG, "drop summary of unsupported version " + version);
+            mPeerRanges = null;
+            return;
+        }
+        if ((flags & FLAG_FIRST) != 0) {
+            mPeerRanges = new HashMap<>();
+        }
+        if (mPeerRanges == null) {
+            Log.w(TAG, "drop summary part without first part");
+            return;
+        }
+        if (!decodeSummary(part, pos, mPeerRanges)) {
+            Log.w(TAG, "drop malformed summary, length=" + part.length);
+            mPeerRanges = null;
+            return;
+        }
+        if ((flags & FLAG_LAST) != 0) {
+            HashMap<Long, long[]> ranges = mPeerRanges;
+            mPeerRanges = null;
+            push(ranges);
+        }
+    }
+
+    // 编码摘要, 每帧不超过 partSize 字节, partSize 不低于 MIN_PART_SIZE
+    List<byte[]> encodeSummary(int partSize) {
+        List<byte[]> parts = new ArrayList<>();
+        byte[] body = new byte[partSize - PART_HEADER_SIZE];
+        int length = 0;
+        int senderCount = 0;
+
+        for (Long senderId : mMessageLog.getSenderIds()) {
+            long[] ranges = toRanges(mMessageLog.getMessageIds(senderId), mMessageLog.getFloor(senderId));
+            int r = 0;
+            do {
+                // 本帧能放下的区间数
+                int n = 0;
+                int size = 0;
+                long prevEnd = 0;
+                while (r + 2 * n < ranges.length) {
+                    long start = ranges[r + 2 * n];
+                    long end = ranges[r + 2 * n + 1];
+                    int rangeSize = Varint.size(start - prevEnd) + Varint.size(end - start);
+                    if (length + Varint.size(senderId) + Varint.size(n + 1) + size + rangeSize > body.length) {
+                        break;
+                    }
+                    size += rangeSize;
+                    prevEnd = end;
+                    n++;
+                }
+                if (n == 0 && r < ranges.length) {
+                    if (length == 0) {
+                        // 空帧也放不下, 换帧不会有进展
+                        throw new IllegalStateException("summary part size " + partSize + " is too small");
+                    }
+                    // 一个区间也放不下, 换下一帧
+                    parts.add(encodePart(body, length, senderCount));
+                    length = 0;
+                    senderCount = 0;
+                    continue;
+                }
+
+                length = Varint.write(body, length, senderId);
+                length = Varint.write(body, length, n);
+                prevEnd = 0;
+                for (int i = 0; i < n; i++, r += 2) {
+                    length = Varint.write(body, length, ranges[r] - prevEnd);
+                    length = Varint.write(body, length, ranges[r + 1] - ranges[r]);
+                    prevEnd = ranges[r + 1];
+                }
+                senderCount++;
+            } while (r < ranges.length);
+        }
+        if (senderCount > 0 || parts.isEmpty()) {
+            parts.add(encodePart(body, length, senderCount));
+        }
+
+        // 标志只占 1 字节, 直接改写
+        parts.get(0)[Varint.size(VERSION)] |= FLAG_FIRST;
+        parts.get(parts.size() - 1)[Varint.size(VERSION)] |= FLAG_LAST;
+        return parts;
+    }
+
+    private static byte[] encodePart(byte[] body, int length, int senderCount) {
+        byte[] part = new byte[Varint.size(VERSION) + 1 + Varint.size(senderCount) + length];
+        int pos = Varint.write(part, 0, VERSION);
+        pos = Varint.write(part, pos, 0);
+        pos = Varint.write(part, pos, senderCount);
+        System.arraycopy(body, 0, part, pos, length);
+        return part;
+    }
+
+    /**
+     * 升序序号合并为连续区间(依次为区间首尾), 保留下限以内的序号视为全部持有
+     */
+    private static long[] toRanges(long[] ids, long floor) {
+        long[] ranges = new long[2 * (ids.length + 1)];
+        int count = 0;
+        if (floor > 0) {
+            ranges[0] = 1;
+            ranges[1] = floor;
+            count = 2;
+        }
+        for (long id : ids) {
+            if (count > 0 && id <= ranges[count - 1] + 1) {
+                ranges[count - 1] = Math.max(ranges[count - 1], id);
+            } else {
+                ranges[count++] = id;
+                ranges[count++] = id;
+            }
+        }
+        return Arrays.copyOf(ranges, count);
+    }
+
+    /**
+     * 解析一帧摘要中的发送方, 区间数组(依次为区间首尾)按顺序拼接到 result 中, 格式错误时返回 false
+     */
+    private static boolean decodeSummary(byte[] buf, int[] pos, HashMap<Long, long[]> result) {
+        long senderCount = readVarint(buf, pos);
+        if (senderCount < 0 || senderCount > buf.length) {
+            return false;
+        }
+
+        for (long i = 0; i < senderCount; i++) {
+            long senderId = readVarint(buf, pos);
+            long rangeCount = readVarint(buf, pos);
+            if (senderId < 0 || rangeCount < 0 || rangeCount > buf.length) {
+                return false;
+            }
+
+            long[] ranges = new long[(int) rangeCount * 2];
+            long prevEnd = 0;
+            for (int j = 0; j < ranges.length; j += 2) {
+                long gap = readVarint(buf, pos);
+                long length = readVarint(buf, pos);
+                if (gap < 0 || length < 0) {
+                    return false;
+                }
+                ranges[j] = prevEnd + gap;
+                ranges[j + 1] = ranges[j] + length;
+                prevEnd = ranges[j + 1];
+            }
+
+            long[] previous = result.get(senderId);
+            if (previous != null) {
+                long[] merged = Arrays.copyOf(previous, previous.length + ranges.length);
+                System.arraycopy(ranges, 0, merged, previous.length, ranges.length);
+                ranges = merged;
+            }
+            result.put(senderId, ranges);
+        }
+        return true;
+    }
+
+    // 读取一个 varint 并前移 pos[0], 数据不完整时返回 -1
+    private static long readVarint(byte[] buf, int[] pos) {
+        int n = Varint.length(buf, pos[0], buf.length);
+        if (n < 0) {
+            return -1;
+        }
+        long value = Varint.read(buf, pos[0]);
+        pos[0] += n;
+        return value;
+    }
+
+    // 推送本地有而对端摘要中没有的消息. 序号按页读取, 消息攒成批后一次排队, 等整批写出再读下一批
+    private void push(HashMap<Long, long[]> peerRanges) {
+        int maxFrameSize = mConnectionManager.getMaxFrameSize();
+        List<byte[]> batch = new ArrayList<>(PUSH_BATCH_MESSAGES);
+        int batchBytes = 0;
+        long[] ids = new long[PUSH_BATCH_MESSAGES];
+        mLastPushedCount = 0;
+        mLastPushedBytes = 0;
+
+        for (Long senderId : mMessageLog.getSenderIds()) {
+            long[] ranges = peerRanges.get(senderId);
+            int r = 0;
+            long afterId = 0;
+            int n;
+            while ((n = mMessageLog.getMessageIds(senderId, afterId, ids)) > 0) {
+                for (int i = 0; i < n; i++) {
+                    long id = ids[i];
+                    // 两边均为升序, 合并扫描
+                    while (ranges != null && r < ranges.length && ranges[r + 1] < id) {
+                        r += 2;
+                    }
+                    if (ranges != null && r < ranges.length && ranges[r] <= id) {
+                        continue;
+                    }
+
+                    byte[] data = mMessageLog.read(senderId, id);
+                    if (data == null) {
+                        continue;
+                    }
+                    if (data.length > maxFrameSize) {
+                        Log.w(TAG, "skip message larger than peer frame, length=" + data.length);
+                        continue;
+                    }
+                    batch.add(data);
+                    batchBytes += data.length;
+                    if (batch.size() >= PUSH_BATCH_MESSAGES || batchBytes >= PUSH_BATCH_BYTES) {
+                        if (!sendBatch(batch)) {
+                            return;
+                        }
+                        batchBytes = 0;
+                    }
+                }
+                afterId = ids[n - 1];
+            }
+        }
+        if (!batch.isEmpty() && !sendBatch(batch)) {
+            return;
+        }
+        Log.d(TAG, "push finished, messages=" + mLastPushedCount + " bytes=" + mLastPushedBytes);
+    }
+
+    private boolean sendBatch(List<byte[]> batch) {
+        int sent = mConnectionManager.sendData(batch);
+        long bytes = 0;
+        for (int i = 0; i < sent; i++) {
+            bytes += batch.get(i).length;
+        }
+        mLastPushedCount += sent;
+        mLastPushedBytes += bytes;
+
+        boolean complete = sent == batch.size();
+        batch.clear();
+        if (!complete) {
+            Log.d(TAG, "push interrupted, pushed=" + mLastPushedCount);
+        }
+        return complete;
+    }
+}
@@ -0,0 +1,239 @@
+package com.curiosity.bluetoothchat;
+
+/**
+ * 自适应抖动缓冲
+ * <p>
+ * 按到达时间估算传输抖动, 目标缓冲延迟 = 一帧 + 4 倍抖动 (限制在 MIN_DELAY ~ MAX_DELAY 之间).
+ * 每段讲话开始时先缓冲到目标延迟再播放; 播放中遇到缺帧时用上一帧衰减后补偿, 迟到的帧直接丢弃;
+ * 缓冲耗尽时记为一次欠载并重新缓冲; 缓冲延迟超过目标一帧以上时跳过一帧以降低延迟.
+ * <p>
+ * 时间均由调用方传入(毫秒), 与具体时钟无关, 便于在 JVM 上测试.
+ */
+public class JitterBuffer {
+
+    public static final int RESULT_PLAY = 0;      // 正常播放一帧
+    public static final int RESULT_CONCEALED = 1; // 缺帧, 输出补偿数据
+    public static final int RESULT_SILENCE = 2;   // 无可播放数据, 输出静音
+
+    private static final int CAPACITY = 64;
+    private static final int MIN_DELAY = 2 * VoiceCodec.FRAME_MILLIS;
+    private static final int MAX_DELAY = 400;
+
+    private final VoicePacket[] mSlots = new VoicePacket[CAPACITY];
+    private final short[] mLastPcm = new short[VoiceCodec.FRAME_SAMPLES];
+
+    private boolean mPlaying;
+    private boolean mHasNext;
+    private int mNextSequence;
+
+    // 传输时间 = 到达时间 - 发送时间戳, 收发双方时钟不同步时只有差值有意义
+    private long mBaseTransit = Long.MAX_VALUE;
+    private long mLastTransit;
+    private boolean mHasTransit;
+    private double mJitter;
+    private int mTargetDelay = MIN_DELAY;
+
+    private long mReceivedCount;
+    private long mPlayedCount;
+    private long mConcealedCount;
+    private long mLateCount;
+    private long mUnderrunCount;
+    private long mSkippedCount;
+    private long mLatencySum;
+    private long mBufferDelaySum;
+
+    /**
+     * 放入收到的一帧
+     */
+    public synchronized void put(VoicePacket packet, long now) {
+        mReceivedCount++;
+
+        long transit = now - packet.timestamp;
+        if (mHasTransit) {
+            long d = Math.abs(transit - mLastTransit);
+            // RFC 3550 的到达间隔抖动估计
+            mJitter += (d - mJitter) / 16;
+        }
+        mLastTransit = transit;
+        mHasTransit = true;
+        mBaseTransit = Math.min(mBaseTransit, transit);
+        mTargetDelay = (int) Math.max(MIN_DELAY, Math.min(MAX_DELAY, VoiceCodec.FRAME_MILLIS + 4 * mJitter));
+
+        if (mHasNext) {
+            int distance = packet.sequence - mNextSequence;
+            if (distance < 0) {
+                if (mPlaying) {
+                    // 已经错过播放时间
+                    mLateCount++;
+                    return;
+                }
+                mNextSequence = packet.sequence;
+            } else if (distance >= CAPACITY) {
+                // 序号跳变过大, 重新同步
+                clear();
+                mNextSequence = packet.sequence;
+            }
+        } else {
+            mNextSequence = packet.sequence;
+            mHasNext = true;
+        }
+
+        mSlots[slot(packet.sequence)] = packet;
+    }
+
+    /**
+     * 取出下一帧播放数据, 播放线程每帧时长调用一次
+     *
+     * @param out 输出 FRAME_SAMPLES 个采样
+     * @return RESULT_PLAY, RESULT_CONCEALED 或 RESULT_SILENCE
+     */
+    public synchronized int poll(long now, short[] out) {
+        if (!mPlaying) {
+            VoicePacket head = mHasNext ? earliest() : null;
+            if (head == null || now < head.timestamp + mBaseTransit + mTargetDelay) {
+                fillSilence(out);
+                return RESULT_SILENCE;
+            }
+            // 重新缓冲期间缺失的帧不再等待
+            mNextSequence = head.sequence;
+            mPlaying = true;
+        }
+
+        VoicePacket packet = take(mNextSequence);
+        if (packet != null) {
+            System.arraycopy(packet.pcm, 0, out, 0, out.length);
+            System.arraycopy(packet.pcm, 0, mLastPcm, 0, mLastPcm.length);
+            mNextSequence++;
+            mPlayedCount++;
+            long bufferDelay = now - packet.timestamp - mBaseTransit;
+            mLatencySum += now - packet.timestamp;
+            mBufferDelaySum += bufferDelay;
+
+            if (packet.isEnd()) {
+                // 一段讲话结束, 下一段重新缓冲
+                mPlaying = false;
+                mHasNext = false;
+            } else if (bufferDelay >= mTargetDelay + VoiceCodec.FRAME_MILLIS) {
+                // 卡顿后积压的帧使延迟超过目标, 跳过一帧追赶
+                if (take(mNextSequence) != null) {
+                    mNextSequence++;
+                    mSkippedCount++;
+                }
+            }
+            return RESULT_PLAY;
+        }
+
+        if (earliest() != null) {
+            // 缺帧, 用上一帧衰减后补偿
+            for (int i = 0; i < mLastPcm.length; i++) {
+                mLastPcm[i] = (short) (mLastPcm[i] / 2);
+            }
+            System.arraycopy(mLastPcm, 0, out, 0, out.length);
+            mNextSequence++;
+            mConcealedCount++;
+            return RESULT_CONCEALED;
+        }
+
+        // 缓冲耗尽, 重新缓冲
+        mUnderrunCount++;
+        mPlaying = false;
+        fillSilence(out);
+        return RESULT_SILENCE;
+    }
+
+    /**
+     * 一段讲话已播放到结束帧, 且之后没有收到新的帧
+     */
+    public synchronized boolean isIdle() {
+        return !mPlaying && !mHasNext;
+    }
+
+    public synchronized void clear() {
+        for (int i = 0; i < CAPACITY; i++) {
+            mSlots[i] = null;
+        }
+        mPlaying = false;
+        mHasNext = false;
+    }
+
+    public synchronized int getTargetDelay() {
+        return mTargetDelay;
+    }
+
+    public synchronized double getJitter() {
+        return mJitter;
+    }
+
+    public synchronized long getReceivedCount() {
+        return mReceivedCount;
+    }
+
+    public synchronized long getPlayedCount() {
+        return mPlayedCount;
+    }
+
+    public synchronized long getConcealedCount() {
+        return mConcealedCount;
+    }
+
+    public synchronized long getLateCount() {
+        return mLateCount;
+    }
+
+    public synchronized long getUnderrunCount() {
+        return mUnderrunCount;
+    }
+
+    public synchronized long getSkippedCount() {
+        return mSkippedCount;
+    }
+
+    /**
+     * 平均端到端延迟(播放时间 - 发送时间戳), 毫秒, 仅在收发双方使用同一时钟时有意义
+     */
+    public synchronized double getAverageLatency() {
+        return mPlayedCount > 0 ? (double) mLatencySum / mPlayedCount : 0;
+    }
+
+    /**
+     * 平均缓冲延迟(相对于最小传输时间), 毫秒
+     */
+    public synchronized double getAverageBufferDelay() {
+        return mPlayedCount > 0 ? (double) mBufferDelaySum / mPlayedCount : 0;
+    }
+
+    //==============================================================================================
+    private static int slot(int sequence) {
+        return sequence & (CAPACITY - 1);
+    }
+
+    private VoicePacket peek(int sequence) {
+        VoicePacket packet = mSlots[slot(sequence)];
+        return packet != null && packet.sequence == sequence ? packet : null;
+    }
+
+    private VoicePacket take(int sequence) {
+        VoicePacket packet = peek(sequence);
+        if (packet != null) {
+            mSlots[slot(sequence)] = null;
+        }
+        return packet;
+    }
+
+    // 缓冲中序号不早于 mNextSequence 的第一帧
+    private VoicePacket earliest() {
+        for (int i = 0; i < CAPACITY; i++) {
+            VoicePacket packet = peek(mNextSequence + i);
+            if (packet != null) {
+                return packet;
+            }
+        }
+        return null;
+    }
+
+    private static void fillSilence(short[] out) {
+        for (int i = 0; i < out.length; i++) {
+            out[i] = 0;
+        }
+    }
+}
@@ -0,0 +1,51 @@
+package com.curiosity.bluetoothchat;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.UUID;
+
+/**
+ * 数据链路, 对 BluetoothSocket 的抽象, 便于替换为模拟链路
+ */
+public interface Link {
+
+    /**
+     * 主动发起连接, 阻塞直到连接成功或失败
+     */
+    void connect() throws IOException;
+
+    InputStream getInputStream() throws IOException;
+
+    OutputStream getOutputStream() throws IOException;
+
+    /**
+     * 对端地址
+     */
+    String getAddress();
+
+    void close() throws IOException;
+
+    /**
+     * 服务端监听, 对应 BluetoothServerSocket
+     */
+    interface Server {
+
+        /**
+         * 阻塞等待新的连接
+         */
+        Link accept() throws IOException;
+
+        void close() throws IOException;
+    }
+
+    /**
+     * 链路工厂, ConnectionManager 通过它监听和创建链路
+     */
+    interface Factory {
+
+        Server listen(String name, UUID uuid) throws IOException;
+
+        Link create(String address, UUID uuid) throws IOException;
+    }
+}
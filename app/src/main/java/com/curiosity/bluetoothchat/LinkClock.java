@@ -0,0 +1,164 @@
+package com.curiosity.bluetoothchat;
+
+import java.util.TreeSet;
+
+/**
+ * 链路时钟, 模拟链路通过它计时和等待, 测试时可替换为虚拟时钟
+ */
+public interface LinkClock {
+
+    long nanoTime();
+
+    /**
+     * 等待直到时钟到达指定时间
+     */
+    void sleepUntil(long nanoTime) throws InterruptedException;
+
+    /**
+     * 系统时钟, 按真实时间等待
+     */
+    LinkClock SYSTEM = new LinkClock() {
+        @Override
+        public long nanoTime() {
+            return System.nanoTime();
+        }
+
+        @Override
+        public void sleepUntil(long nanoTime) throws InterruptedException {
+            long delay = nanoTime - System.nanoTime();
+            if (delay > 0) {
+                Thread.sleep(delay / 1000000, (int) (delay % 1000000));
+            }
+        }
+    };
+
+    /**
+     * 虚拟时钟, 不真正休眠. 只有指定线程组中的所有线程都已阻塞(在时钟上等待, 或无超时地等待锁/条件)时,
+     * 才把时间推进到最早的唤醒时间, 并且每次只唤醒一个线程, 让它运行到再次阻塞.
+     * 这样事件顺序由虚拟时间决定, 与机器快慢和线程调度无关.
+     * <p>
+     * 测试应在该线程组的线程中创建 ConnectionManager, 其内部线程会继承线程组.
+     * 组内线程按真实时间限时等待(如 Thread.sleep)时视为仍在运行, 时间不会推进.
+     */
+    class Virtual implements LinkClock {
+
+        // 检查组内线程是否全部阻塞的间隔
+        private static final long POLL_MILLIS = 1;
+        // 被唤醒的线程在真正运行前仍显示为等待状态, 连续多次检查都为阻塞才推进时间
+        private static final int IDLE_CHECKS = 3;
+
+        private final ThreadGroup mGroup;
+        private final TreeSet<Sleeper> mSleepers = new TreeSet<>();
+        private long mNow;
+        private long mNextSequence;
+        // 时钟调用计数, 两次检查之间有变化说明有线程在运行
+        private long mActivity;
+        private long mIdleActivity = -1;
+        private int mIdleCount;
+
+        public Virtual(ThreadGroup group) {
+            mGroup = group;
+        }
+
+        @Override
+        public synchronized long nanoTime() {
+            mActivity++;
+            return mNow;
+        }
+
+        @Override
+        public synchronized void sleepUntil(long nanoTime) throws InterruptedException {
+            mActivity++;
+            if (nanoTime <= mNow) {
+                return;
+            }
+            Sleeper sleeper = new Sleeper(Thread.currentThread(), nanoTime, mNextSequence++);
+            mSleepers.add(sleeper);
+            try {
+                while (!sleeper.mWoken) {
+                    tryAdvance();
+                    if (!sleeper.mWoken) {
+                        wait(POLL_MILLIS);
+                    }
+                }
+            } finally {
+                mSleepers.remove(sleeper);
+            }
+        }
+
+        /**
+         * 不经等待直接推进时间, 由测试线程调用
+         */
+        public synchronized void advance(long nanos) {
+            mNow += nanos;
+            notifyAll();
+        }
+
+        // 组内线程全部阻塞时唤醒最早的一个等待者
+        private void tryAdvance() {
+            if (mSleepers.isEmpty() || !isGroupIdle()) {
+                mIdleCount = 0;
+                return;
+            }
+            if (mIdleActivity != mActivity) {
+                mIdleActivity = mActivity;
+                mIdleCount = 0;
+            }
+            if (++mIdleCount < IDLE_CHECKS) {
+                return;
+            }
+            mIdleCount = 0;
+            Sleeper first = mSleepers.pollFirst();
+            mNow = Math.max(mNow, first.mDeadline);
+            first.mWoken = true;
+            notifyAll();
+        }
+
+        private boolean isGroupIdle() {
+            Thread[] threads = new Thread[mGroup.activeCount() + 16];
+            int count = mGroup.enumerate(threads, true);
+            for (int i = 0; i < count; i++) {
+                Thread thread = threads[i];
+                if (isSleeping(thread)) {
+                    continue;
+                }
+                Thread.State state = thread.getState();
+                if (state != Thread.State.WAITING && state != Thread.State.TERMINATED) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private boolean isSleeping(Thread thread) {
+            for (Sleeper sleeper : mSleepers) {
+                if (sleeper.mThread == thread) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        private static class Sleeper implements Comparable<Sleeper> {
+
+            final Thread mThread;
+            final long mDeadline;
+            final long mSequence;
+            boolean mWoken;
+
+            Sleeper(Thread thread, long deadline, long sequence) {
+                mThread = thread;
+                mDeadline = deadline;
+                mSequence = sequence;
+            }
+
+            @Override
+            public int compareTo(Sleeper other) {
+                if (mDeadline != other.mDeadline) {
+                    return mDeadline < other.mDeadline ? -1 : 1;
+                }
+                return mSequence < other.mSequence ? -1 : (mSequence > other.mSequence ? 1 : 0);
+            }
+        }
+    }
+}
@@ -4,33 +4,121 @@ import android.content.Context;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
-import android.widget.ArrayAdapter;
-import android.widget.TextView;
+import android.widget.BaseAdapter;
+
+import java.io.File;
 
 /**
- * 消息 item 适配器
+ * 消息 item 适配器, 数据取自 {@link MessageWindow}, 文字排版取自 {@link MessageLayoutCache}
  */
-public class MessageAdapter extends ArrayAdapter<ChatMessage> {
+public class MessageAdapter extends BaseAdapter implements MessageWindow.Listener {
+
+    private static final int VIEW_TYPE_ME = 0;
+    private static final int VIEW_TYPE_OTHERS = 1;
+    // 发送方尚未读出时的空白 item, 读出后刷新
+    private static final int VIEW_TYPE_PLACEHOLDER = 2;
 
     private final LayoutInflater mInflater;
+    private final MessageLayoutCache mLayoutCache;
+    private final MessageWindow mWindow;
     private int mResourceMe;
     private int mResourceOthers;
+    // 绑定时复用, 只在主线程使用
+    private final long[] mKey = new long[2];
 
-    public MessageAdapter(Context context, int resourceMe, int resourceOthers) {
-        super(context, 0);
+    public MessageAdapter(Context context, int resourceMe, int resourceOthers, MessageLayoutCache layoutCache,
+                          MessageLog messageLog, long localId) {
         mInflater = LayoutInflater.from(context);
         mResourceMe = resourceMe;
         mResourceOthers = resourceOthers;
+        mLayoutCache = layoutCache;
+        mWindow = new MessageWindow(new File(context.getFilesDir(), "message_window.idx"),
+                messageLog, layoutCache, localId, this);
+    }
+
+    /**
+     * 在末尾添加一条消息, 返回它的位置
+     */
+    public int add(ChatMessage message) {
+        return mWindow.add(message);
+    }
+
+    /**
+     * 查找消息在列表中的位置, 在主线程回调
+     */
+    public void findPosition(long senderId, long messageId, MessageWindow.PositionCallback callback) {
+        mWindow.findPosition(senderId, messageId, callback);
+    }
+
+    public void close() {
+        mWindow.close();
+    }
+
+    @Override
+    public String toString() {
+        return mWindow.toString();
+    }
+
+    @Override
+    public void onMessagesFetched() {
+        notifyDataSetChanged();
+    }
+
+    @Override
+    public int getCount() {
+        return mWindow.getCount();
+    }
+
+    /**
+     * 已移出窗口且尚未读回时返回 null. 每次生成新的对象, 绑定视图时不使用
+     */
+    @Override
+    public ChatMessage getItem(int position) {
+        return mWindow.get(position);
+    }
+
+    @Override
+    public long getItemId(int position) {
+        return position;
+    }
+
+    @Override
+    public int getViewTypeCount() {
+        return 3;
+    }
+
+    @Override
+    public int getItemViewType(int position) {
+        switch (mWindow.getSender(position)) {
+            case ChatMessage.MSG_SENDER_ME:
+                return VIEW_TYPE_ME;
+            case ChatMessage.MSG_SENDER_OTHERS:
+                return VIEW_TYPE_OTHERS;
+            default:
+                return VIEW_TYPE_PLACEHOLDER;
+        }
     }
 
     @Override
     public View getView(int position, View convertView, ViewGroup parent) {
 
-        ChatMessage message = getItem(position);
-        convertView = mInflater.inflate(message.messageSender == ChatMessage.MSG_SENDER_ME ? mResourceMe : mResourceOthers, parent, false);
+        if (convertView == null) {
+            int viewType = getItemViewType(position);
+            int resource = viewType == VIEW_TYPE_ME ? mResourceMe
+                    : viewType == VIEW_TYPE_OTHERS ? mResourceOthers : R.layout.placeholder_list_item;
+            convertView = mInflater.inflate(resource, parent, false);
+        }
 
-        TextView name = (TextView) convertView.findViewById(R.id.message_content);
-        name.setText(message.messageContent);
+        MessageTextView content = (MessageTextView) convertView.findViewById(R.id.message_content);
+        if (mWindow.getKey(position, mKey)) {
+            // 同一条消息的文字不变, 已绑定时不再解码
+            if (!content.isBoundTo(mKey[0], mKey[1])) {
+                content.bind(mLayoutCache, mKey[0], mKey[1], mWindow.getText(position));
+            }
+        } else {
+            // 读回前先显示空白, 读回后刷新
+            content.bind(mLayoutCache, 0, -1, "");
+        }
 
         return convertView;
     }
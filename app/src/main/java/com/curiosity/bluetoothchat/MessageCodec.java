@@ -0,0 +1,193 @@
+package com.curiosity.bluetoothchat;
+
+import java.nio.charset.Charset;
+
+/**
+ * ChatMessage 二进制编解码
+ * <p>
+ * 格式: 版本(varint) 之后为若干字段, 每个字段以 key(varint) = 字段号 &lt;&lt; 3 | 类型 开头,
+ * 类型 0 为 varint, 类型 2 为 长度(varint) + 字节.
+ * 解码时跳过不认识的字段, 新版本增加字段不影响旧版本解析.
+ */
+public final class MessageCodec {
+
+    public static final int VERSION = 1;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static final int WIRE_VARINT = 0;
+    private static final int WIRE_BYTES = 2;
+
+    private static final int FIELD_TYPE = 1;
+    private static final int FIELD_SENDER_ID = 2;
+    private static final int FIELD_TIMESTAMP = 3;
+    private static final int FIELD_MESSAGE_ID = 4;
+    private static final int FIELD_CONTENT = 5;
+
+    private MessageCodec() {
+    }
+
+    public static int encodedSize(ChatMessage message) {
+        int contentLength = utf8Length(message.messageContent);
+        return Varint.size(VERSION)
+                + 1 + Varint.size(message.messageType)
+                + 1 + Varint.size(message.senderId)
+                + 1 + Varint.size(message.timestamp)
+                + 1 + Varint.size(message.messageId)
+                + 1 + Varint.size(contentLength) + contentLength;
+    }
+
+    /**
+     * 编码到 buf 的 pos 处, 返回写入后的位置, buf 需至少有 {@link #encodedSize} 字节空间
+     */
+    public static int encode(ChatMessage message, byte[] buf, int pos) {
+        pos = Varint.write(buf, pos, VERSION);
+        pos = writeVarintField(buf, pos, FIELD_TYPE, message.messageType);
+        pos = writeVarintField(buf, pos, FIELD_SENDER_ID, message.senderId);
+        pos = writeVarintField(buf, pos, FIELD_TIMESTAMP, message.timestamp);
+        pos = writeVarintField(buf, pos, FIELD_MESSAGE_ID, message.messageId);
+
+        buf[pos++] = (byte) (FIELD_CONTENT << 3 | WIRE_BYTES);
+        pos = Varint.write(buf, pos, utf8Length(message.messageContent));
+        return writeUtf8(message.messageContent, buf, pos);
+    }
+
+    public static byte[] encode(ChatMessage message) {
+        byte[] buf = new byte[encodedSize(message)];
+        encode(message, buf, 0);
+        return buf;
+    }
+
+    /**
+     * 解码到 out, 不修改 out.messageSender
+     *
+     * @return 数据格式错误时返回 false
+     */
+    public static boolean decode(byte[] buf, int offset, int length, ChatMessage out) {
+        int end = offset + length;
+        int pos = offset;
+
+        int n = Varint.length(buf, pos, end);
+        if (n < 0) {
+            return false;
+        }
+        pos += n; // 版本号, 目前所有版本均向前兼容
+
+        out.messageType = ChatMessage.TYPE_TEXT;
+        out.senderId = 0;
+        out.timestamp = 0;
+        out.messageId = 0;
+        out.messageContent = "";
+
+        while (pos < end) {
+            n = Varint.length(buf, pos, end);
+            if (n < 0) {
+                return false;
+            }
+            long key = Varint.read(buf, pos);
+            pos += n;
+
+            int field = (int) (key >>> 3);
+            int wire = (int) (key & 0x7);
+
+            if (wire == WIRE_VARINT) {
+                n = Varint.length(buf, pos, end);
+                if (n < 0) {
+                    return false;
+                }
+                long value = Varint.read(buf, pos);
+                pos += n;
+
+                switch (field) {
+                    case FIELD_TYPE:
+                        out.messageType = (int) value;
+                        break;
+                    case FIELD_SENDER_ID:
+                        out.senderId = value;
+                        break;
+                    case FIELD_TIMESTAMP:
+                        out.timestamp = value;
+                        break;
+                    case FIELD_MESSAGE_ID:
+                        out.messageId = value;
+                        break;
+                }
+            } else if (wire == WIRE_BYTES) {
+                n = Varint.length(buf, pos, end);
+                if (n < 0) {
+                    return false;
+                }
+                long size = Varint.read(buf, pos);
+                pos += n;
+                if (size < 0 || size > end - pos) {
+                    return false;
+                }
+
+                if (field == FIELD_CONTENT) {
+                    out.messageContent = new String(buf, pos, (int) size, UTF_8);
+                }
+                pos += (int) size;
+            } else {
+                // 未知的字段类型无法跳过
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    //==============================================================================================
+    private static int writeVarintField(byte[] buf, int pos, int field, long value) {
+        buf[pos++] = (byte) (field << 3 | WIRE_VARINT);
+        return Varint.write(buf, pos, value);
+    }
+
+    static int utf8Length(String s) {
+        if (s == null) {
+            return 0;
+        }
+        int length = 0;
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c < 0x80) {
+                length += 1;
+            } else if (c < 0x800) {
+                length += 2;
+            } else if (Character.isHighSurrogate(c) && i + 1 < s.length()
+                    && Character.isLowSurrogate(s.charAt(i + 1))) {
+                length += 4;
+                i++;
+            } else {
+                length += 3;
+            }
+        }
+        return length;
+    }
+
+    static int writeUtf8(String s, byte[] buf, int pos) {
+        if (s == null) {
+            return pos;
+        }
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c < 0x80) {
+                buf[pos++] = (byte) c;
+            } else if (c < 0x800) {
+                buf[pos++] = (byte) (0xC0 | c >> 6);
+                buf[pos++] = (byte) (0x80 | c & 0x3F);
+            } else if (Character.isHighSurrogate(c) && i + 1 < s.length()
+                    && Character.isLowSurrogate(s.charAt(i + 1))) {
+                int cp = Character.toCodePoint(c, s.charAt(++i));
+                buf[pos++] = (byte) (0xF0 | cp >> 18);
+                buf[pos++] = (byte) (0x80 | cp >> 12 & 0x3F);
+                buf[pos++] = (byte) (0x80 | cp >> 6 & 0x3F);
+                buf[pos++] = (byte) (0x80 | cp & 0x3F);
+            } else {
+                buf[pos++] = (byte) (0xE0 | c >> 12);
+                buf[pos++] = (byte) (0x80 | c >> 6 & 0x3F);
+                buf[pos++] = (byte) (0x80 | c & 0x3F);
+            }
+        }
+        return pos;
+    }
+}
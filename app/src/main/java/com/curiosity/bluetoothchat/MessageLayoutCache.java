@@ -0,0 +1,224 @@
+package com.curiosity.bluetoothchat;
+
+import android.content.Context;
+import android.support.v4.content.ContextCompat;
+import android.text.Layout;
+import android.text.StaticLayout;
+import android.text.TextPaint;
+import android.util.LruCache;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * 消息气泡的文字排版缓存
+ * <p>
+ * 消息到达时在后台线程按已知的气泡文字宽度预先生成 StaticLayout, 放入按 (发送方 ID, 消息序号, 宽度)
+ * 索引的 LRU 缓存; 列表绑定时直接取用, 滑动过程中不再测量文字. 宽度由 {@link MessageTextView}
+ * 第一次测量时记录, 之前到达的消息在绑定时同步排版. 从历史中读回的消息同样整块预先排版后再显示.
+ */
+public class MessageLayoutCache {
+
+    private static final String TAG = "MessageLayoutCache";
+
+    // 缓存大小上限, 按文字和行数估算
+    private static final int MAX_CACHE_BYTES = 1024 * 1024;
+    // 记录的气泡宽度种类, 自己和对方的气泡内边距不同
+    private static final int MAX_WIDTHS = 4;
+
+    private final TextPaint mPaint;
+    private final LruCache<Key, Layout> mCache;
+    private final ExecutorService mExecutor;
+
+    private final int[] mWidths = new int[MAX_WIDTHS];
+    private int mWidthCount;
+
+    private long mPrefetchCount;
+    private long mSyncBuildCount;
+    private long mBuildNanos;
+    private long mBuildCount;
+
+    public MessageLayoutCache(Context context) {
+        mPaint = new TextPaint(TextPaint.ANTI_ALIAS_FLAG);
+        mPaint.setTextSize(context.getResources().getDimension(R.dimen.message_text_size));
+        mPaint.setColor(ContextCompat.getColor(context, R.color.messageText));
+
+        mCache = new LruCache<Key, Layout>(MAX_CACHE_BYTES) {
+            @Override
+            protected int sizeOf(Key key, Layout layout) {
+                return 64 + 2 * layout.getText().length() + 32 * layout.getLineCount();
+            }
+        };
+
+        mExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "MessageLayout");
+                thread.setPriority(Thread.MIN_PRIORITY);
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    public void close() {
+        mExecutor.shutdownNow();
+        mCache.evictAll();
+    }
+
+    /**
+     * 在后台按已知宽度排版一条消息, 可在任意线程调用
+     */
+    public void prefetch(final long senderId, final long messageId, final CharSequence text) {
+        final int[] widths = getWidths();
+        if (widths == null) {
+            return;
+        }
+
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                prefetch(senderId, messageId, text, widths);
+            }
+        });
+    }
+
+    /**
+     * 在后台按已知宽度排版一批消息, 全部完成后在排版线程中执行 done; 还不知道宽度或已关闭时直接执行.
+     * 可在任意线程调用
+     */
+    public void prefetch(final ChatMessage[] messages, final Runnable done) {
+        final int[] widths = getWidths();
+        if (widths == null) {
+            done.run();
+            return;
+        }
+
+        try {
+            mExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    for (ChatMessage message : messages) {
+                        prefetch(message.senderId, message.messageId, message.messageContent, widths);
+                    }
+                    done.run();
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // 已关闭
+            done.run();
+        }
+    }
+
+    /**
+     * 取得指定宽度的排版, 缓存中没有时同步生成. 在主线程测量时调用, 同时记录该宽度供之后预排版
+     */
+    public Layout obtain(long senderId, long messageId, CharSequence text, int width) {
+        addWidth(width);
+
+        Key key = new Key(senderId, messageId, width);
+        Layout layout = mCache.get(key);
+        if (layout == null) {
+            layout = build(text, width);
+            mCache.put(key, layout);
+            synchronized (this) {
+                mSyncBuildCount++;
+            }
+        }
+        return layout;
+    }
+
+    public TextPaint getPaint() {
+        return mPaint;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("%s{hit %d, miss %d, prefetched %d, built on bind %d, avg build %.1f us}",
+                TAG, mCache.hitCount(), mCache.missCount(), mPrefetchCount, mSyncBuildCount,
+                mBuildCount > 0 ? mBuildNanos / 1000.0 / mBuildCount : 0);
+    }
+
+    //==============================================================================================
+    // 已记录的宽度的副本, 还没有时返回 null
+    private synchronized int[] getWidths() {
+        if (mWidthCount == 0) {
+            return null;
+        }
+        int[] widths = new int[mWidthCount];
+        System.arraycopy(mWidths, 0, widths, 0, mWidthCount);
+        return widths;
+    }
+
+    // 排版线程中执行
+    private void prefetch(long senderId, long messageId, CharSequence text, int[] widths) {
+        for (int width : widths) {
+            Key key = new Key(senderId, messageId, width);
+            if (mCache.get(key) == null) {
+                mCache.put(key, build(text, width));
+                synchronized (this) {
+                    mPrefetchCount++;
+                }
+            }
+        }
+    }
+
+    private synchronized void addWidth(int width) {
+        for (int i = 0; i < mWidthCount; i++) {
+            if (mWidths[i] == width) {
+                return;
+            }
+        }
+        // 宽度变化(如旋转屏幕)后只保留最近的几种
+        if (mWidthCount == MAX_WIDTHS) {
+            System.arraycopy(mWidths, 1, mWidths, 0, MAX_WIDTHS - 1);
+            mWidthCount--;
+        }
+        mWidths[mWidthCount++] = width;
+    }
+
+    /**
+     * 生成排版, 不放入缓存. 每个排版使用独立的 TextPaint, 后台生成的排版在主线程绘制时不共用画笔
+     */
+    Layout build(CharSequence text, int width) {
+        long start = System.nanoTime();
+        Layout layout = new StaticLayout(text, new TextPaint(mPaint), width,
+                Layout.Alignment.ALIGN_NORMAL, 1.0f, 0.0f, true);
+        synchronized (this) {
+            mBuildNanos += System.nanoTime() - start;
+            mBuildCount++;
+        }
+        return layout;
+    }
+
+    private static final class Key {
+
+        final long mSenderId;
+        final long mMessageId;
+        final int mWidth;
+
+        Key(long senderId, long messageId, int width) {
+            mSenderId = senderId;
+            mMessageId = messageId;
+            mWidth = width;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) o;
+            return mSenderId == other.mSenderId && mMessageId == other.mMessageId && mWidth == other.mWidth;
+        }
+
+        @Override
+        public int hashCode() {
+            int h = (int) (mSenderId ^ (mSenderId >>> 32));
+            h = 31 * h + (int) (mMessageId ^ (mMessageId >>> 32));
+            return 31 * h + mWidth;
+        }
+    }
+}
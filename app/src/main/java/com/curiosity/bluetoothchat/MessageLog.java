@@ -0,0 +1,1141 @@
+package com.curiosity.bluetoothchat;
+
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * 消息历史, 按 (发送方 ID, 消息序号) 去重后持久化
+ * <p>
+ * 历史分段存放在 messages 目录下: N.log 只追加写入, 每条记录为 长度(int) + MessageCodec 编码的消息;
+ * 写满 SEGMENT_SIZE 后封存, 并在后台写出 N.idx (每条记录的 发送方 ID, 消息序号, 偏移, 长度, 时间戳).
+ * 加载时封存的段只读索引, 只有正在写入的段需要扫描.
+ * <p>
+ * 内存中为每个发送方保存有序的消息序号和记录位置 (每条 16 字节), 用于去重, 同步摘要和按序号读取;
+ * 记录长度和时间戳只在磁盘上, 总量由 {@link Retention} 限制.
+ * 后台低优先级线程按 {@link Retention} 删除消息, 并重写有效数据过少的段; 重写时不持有锁,
+ * 追加和读取不受影响. 每个发送方被删除的最大序号记为下限, 同步时视为已持有, 避免对端重复推送.
+ * <p>
+ * 首次访问时加载索引, 不要在主线程调用.
+ */
+public class MessageLog {
+
+    private static final String TAG = "MessageLog";
+
+    private static final String DIR = "messages";
+    private static final String FLOOR_FILE = "floors";
+    private static final String LOG_SUFFIX = ".log";
+    private static final String INDEX_SUFFIX = ".idx";
+    private static final String TMP_SUFFIX = ".tmp";
+
+    private static final long SEGMENT_SIZE = 1024 * 1024;
+    // 索引项: 发送方 ID(long) 消息序号(long) 偏移(int) 长度(int) 时间戳(long)
+    private static final int INDEX_ENTRY_SIZE = 32;
+    // 有效数据低于该比例的段会被重写
+    private static final double COMPACT_LIVE_RATIO = 0.5;
+
+    /**
+     * 保留策略, 值为 0 表示不限制
+     */
+    public static class Retention {
+
+        // 有效消息的总字节数, 超出时整段删除最早的消息
+        public long maxBytes = 64 * 1024 * 1024;
+        // 按消息时间戳计算
+        public long maxAgeMillis = 0;
+        // 每个发送方(会话)保留的最新消息数
+        public int maxMessagesPerSender = 0;
+    }
+
+    public interface AppendListener {
+
+        /**
+         * 一条消息已写入历史, 在追加的线程中持有锁回调, 不要在回调中执行耗时操作
+         */
+        void onMessageAppended(ChatMessage message);
+    }
+
+    private final File mDir;
+    private final Retention mRetention;
+    private AppendListener mAppendListener;
+
+    private boolean mLoaded;
+    private boolean mClosed;
+
+    private final TreeMap<Long, Segment> mSegments = new TreeMap<>();
+    private Segment mActive;
+    private final HashMap<Long, SenderIndex> mSenders = new HashMap<>();
+    private final HashMap<Long, Long> mFloors = new HashMap<>();
+    private int mCount;
+
+    private final ExecutorService mExecutor;
+    private final AtomicBoolean mMaintenanceScheduled = new AtomicBoolean();
+
+    private long mAppendCount;
+    private long mAppendNanos;
+    private long mMaxAppendNanos;
+    private long mCompactedBytes;
+    private long mCompactionNanos;
+    private long mRemovedCount;
+
+    public MessageLog(File dir) {
+        this(dir, new Retention());
+    }
+
+    public MessageLog(File dir, Retention retention) {
+        mDir = new File(dir, DIR);
+        mRetention = retention;
+
+        mExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "MessageLog");
+                thread.setPriority(Thread.MIN_PRIORITY);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * 追加一条消息
+     *
+     * @return 已存在, 不高于保留下限或写入失败时返回 false
+     */
+    public synchronized boolean append(ChatMessage message) {
+        if (!ensureLoaded() || message.messageId == 0) {
+            return false;
+        }
+
+        SenderIndex index = mSenders.get(message.senderId);
+        if (index != null && index.find(message.messageId) >= 0) {
+            return false;
+        }
+        Long floor = mFloors.get(message.senderId);
+        if (floor != null && message.messageId <= floor) {
+            return false;
+        }
+
+        long start = System.nanoTime();
+
+        int size = MessageCodec.encodedSize(message);
+        byte[] record = new byte[4 + size];
+        writeInt(record, 0, size);
+        MessageCodec.encode(message, record, 4);
+
+        Segment segment = mActive;
+        long position = segment.mLength;
+        try {
+            RandomAccessFile raf = segment.open();
+            raf.seek(position);
+            raf.write(record);
+        } catch (IOException e) {
+            Log.e(TAG, "append message failed", e);
+            return false;
+        }
+
+        if (index == null) {
+            index = new SenderIndex();
+            mSenders.put(message.senderId, index);
+        }
+        index.insert(message.messageId, location(segment.mId, position));
+        segment.addRecord(message.senderId, message.messageId, (int) position, size, message.timestamp);
+        mCount++;
+
+        long nanos = System.nanoTime() - start;
+        mAppendCount++;
+        mAppendNanos += nanos;
+        mMaxAppendNanos = Math.max(mMaxAppendNanos, nanos);
+
+        if (segment.mLength >= SEGMENT_SIZE) {
+            // 封存当前段, 索引由后台写出
+            mActive = new Segment(segment.mId + 1);
+            mSegments.put(mActive.mId, mActive);
+            scheduleMaintenance();
+        }
+
+        if (mAppendListener != null) {
+            mAppendListener.onMessageAppended(message);
+        }
+        return true;
+    }
+
+    /**
+     * 监听追加的消息, 包括同步和导入写入的消息, 用于维护全文索引等派生数据
+     */
+    public synchronized void setAppendListener(AppendListener listener) {
+        mAppendListener = listener;
+    }
+
+    public synchronized boolean contains(long senderId, long messageId) {
+        if (!ensureLoaded()) {
+            return false;
+        }
+        SenderIndex index = mSenders.get(senderId);
+        return index != null && index.find(messageId) >= 0;
+    }
+
+    /**
+     * 读取一条消息的编码数据, 不存在时返回 null
+     */
+    public synchronized byte[] read(long senderId, long messageId) {
+        if (!ensureLoaded()) {
+            return null;
+        }
+        SenderIndex index = mSenders.get(senderId);
+        int i = index != null ? index.find(messageId) : -1;
+        if (i < 0) {
+            return null;
+        }
+
+        long location = index.mLocations[i];
+        Segment segment = mSegments.get(location >>> 32);
+        try {
+            RandomAccessFile raf = segment.open();
+            raf.seek(location & 0xFFFFFFFFL);
+            byte[] data = new byte[raf.readInt()];
+            raf.readFully(data);
+            return data;
+        } catch (IOException e) {
+            Log.e(TAG, "read message failed", e);
+            return null;
+        }
+    }
+
+    /**
+     * 按追加顺序读取 (senderId, messageId) 之后的有效消息, 最多 max 条, 放入 out.
+     * messageId 为 0 时从最早的消息开始. 整理只删除记录, 不改变剩余记录的先后顺序,
+     * 因此以最后读到的消息为起点反复调用即可增量遍历新追加的消息.
+     *
+     * @return 读到的条数, 起点消息已被删除时返回 -1
+     */
+    public synchronized int readAfter(long senderId, long messageId, int max, List<ChatMessage> out) {
+        if (!ensureLoaded()) {
+            return 0;
+        }
+
+        long startSegment;
+        long startPosition;
+        if (messageId == 0) {
+            startSegment = mSegments.firstKey();
+            startPosition = 0;
+        } else {
+            SenderIndex index = mSenders.get(senderId);
+            int i = index != null ? index.find(messageId) : -1;
+            if (i < 0) {
+                return -1;
+            }
+            long location = index.mLocations[i];
+            startSegment = location >>> 32;
+            try {
+                RandomAccessFile raf = mSegments.get(startSegment).open();
+                raf.seek(location & 0xFFFFFFFFL);
+                startPosition = (location & 0xFFFFFFFFL) + 4 + raf.readInt();
+            } catch (IOException e) {
+                Log.e(TAG, "read message failed", e);
+                return 0;
+            }
+        }
+
+        int count = 0;
+        byte[] buf = new byte[16 * 1024];
+        for (Segment segment : mSegments.tailMap(startSegment, true).values()) {
+            long position = segment.mId == startSegment ? startPosition : 0;
+            try {
+                RandomAccessFile raf = segment.open();
+                // 按块读入, 块内解析完整的记录, 不完整的记录从下一块开头重新读
+                while (count < max && position + 4 <= segment.mLength) {
+                    int length = (int) Math.min(buf.length, segment.mLength - position);
+                    raf.seek(position);
+                    raf.readFully(buf, 0, length);
+
+                    int pos = 0;
+                    while (count < max && pos + 4 <= length) {
+                        int size = readInt(buf, pos);
+                        if (size < 0 || pos + 4 + size > length) {
+                            break;
+                        }
+                        long location = location(segment.mId, position + pos);
+                        ChatMessage message = new ChatMessage();
+                        if (MessageCodec.decode(buf, pos + 4, size, message)
+                                && isLive(message.senderId, message.messageId, location)) {
+                            out.add(message);
+                            count++;
+                        }
+                        pos += 4 + size;
+                    }
+                    if (pos == 0) {
+                        // 记录比缓冲区大
+                        int size = readInt(buf, 0);
+                        if (size < 0) {
+                            throw new IOException("bad record length " + size + " at " + position);
+                        }
+                        buf = new byte[Math.max(4 + size, buf.length * 2)];
+                    }
+                    position += pos;
+                }
+            } catch (IOException e) {
+                Log.e(TAG, "read segment " + segment.mId + " failed", e);
+                return count;
+            }
+            if (count >= max) {
+                break;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * 有消息或有保留下限的发送方
+     */
+    public synchronized Long[] getSenderIds() {
+        if (!ensureLoaded()) {
+            return new Long[0];
+        }
+        HashSet<Long> ids = new HashSet<>(mSenders.keySet());
+        ids.addAll(mFloors.keySet());
+        return ids.toArray(new Long[ids.size()]);
+    }
+
+    /**
+     * 某个发送方的全部消息序号, 升序
+     */
+    public synchronized long[] getMessageIds(long senderId) {
+        if (!ensureLoaded()) {
+            return new long[0];
+        }
+        SenderIndex index = mSenders.get(senderId);
+        if (index == null) {
+            return new long[0];
+        }
+        return Arrays.copyOf(index.mIds, index.mSize);
+    }
+
+    /**
+     * 某个发送方序号大于 afterId 的消息序号, 升序, 最多填满 out, 返回填入的个数. 用于分页遍历
+     */
+    public synchronized int getMessageIds(long senderId, long afterId, long[] out) {
+        if (!ensureLoaded()) {
+            return 0;
+        }
+        SenderIndex index = mSenders.get(senderId);
+        if (index == null) {
+            return 0;
+        }
+        int i = index.find(afterId);
+        i = i >= 0 ? i + 1 : -(i + 1);
+        int count = Math.min(out.length, index.mSize - i);
+        System.arraycopy(index.mIds, i, out, 0, count);
+        return count;
+    }
+
+    /**
+     * 某个发送方已有或已删除过的最大消息序号, 没有时返回 0
+     */
+    public synchronized long getLastMessageId(long senderId) {
+        if (!ensureLoaded()) {
+            return 0;
+        }
+        SenderIndex index = mSenders.get(senderId);
+        Long floor = mFloors.get(senderId);
+        long last = index != null && index.mSize > 0 ? index.mIds[index.mSize - 1] : 0;
+        return Math.max(last, floor != null ? floor : 0);
+    }
+
+    /**
+     * 保留策略删除过的最大消息序号, 不大于它的消息不再接收, 没有时返回 0
+     */
+    public synchronized long getFloor(long senderId) {
+        if (!ensureLoaded()) {
+            return 0;
+        }
+        Long floor = mFloors.get(senderId);
+        return floor != null ? floor : 0;
+    }
+
+    public synchronized int getCount() {
+        return ensureLoaded() ? mCount : 0;
+    }
+
+    public synchronized int getSegmentCount() {
+        return mSegments.size();
+    }
+
+    /**
+     * 所有段文件的总字节数
+     */
+    public synchronized long getDiskBytes() {
+        long bytes = 0;
+        for (Segment segment : mSegments.values()) {
+            bytes += segment.mLength;
+        }
+        return bytes;
+    }
+
+    /**
+     * 有效消息的总字节数
+     */
+    public synchronized long getLiveBytes() {
+        long bytes = 0;
+        for (Segment segment : mSegments.values()) {
+            bytes += segment.mLiveBytes;
+        }
+        return bytes;
+    }
+
+    public synchronized double getAverageAppendNanos() {
+        return mAppendCount > 0 ? (double) mAppendNanos / mAppendCount : 0;
+    }
+
+    public synchronized long getMaxAppendNanos() {
+        return mMaxAppendNanos;
+    }
+
+    /**
+     * 重写段时写出的字节数和耗时, 用于计算整理吞吐量
+     */
+    public synchronized long getCompactedBytes() {
+        return mCompactedBytes;
+    }
+
+    public synchronized long getCompactionNanos() {
+        return mCompactionNanos;
+    }
+
+    /**
+     * 保留策略累计删除的消息数
+     */
+    public synchronized long getRemovedCount() {
+        return mRemovedCount;
+    }
+
+    /**
+     * 在后台执行一次保留策略和整理, 封存新段时会自动触发
+     */
+    public void maintain() {
+        synchronized (this) {
+            if (!ensureLoaded()) {
+                return;
+            }
+        }
+        scheduleMaintenance();
+    }
+
+    public synchronized void close() {
+        mExecutor.shutdown();
+        for (Segment segment : mSegments.values()) {
+            segment.close();
+        }
+        mLoaded = false;
+        mClosed = true;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "messages=" + mCount + " segments=" + mSegments.size()
+                + " disk=" + getDiskBytes() + "B live=" + getLiveBytes() + "B"
+                + " append=" + (long) (getAverageAppendNanos() / 1000) + "us"
+                + " maxAppend=" + mMaxAppendNanos / 1000 + "us"
+                + " compacted=" + mCompactedBytes + "B in " + mCompactionNanos / 1000000 + "ms";
+    }
+
+    //==============================================================================================
+    private static long location(long segmentId, long position) {
+        return segmentId << 32 | position;
+    }
+
+    private void scheduleMaintenance() {
+        if (!mMaintenanceScheduled.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            mExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    mMaintenanceScheduled.set(false);
+                    maintainNow();
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // 已关闭
+        }
+    }
+
+    // 后台线程: 写出封存段的索引, 执行保留策略, 重写有效数据过少的段
+    private void maintainNow() {
+        writePendingIndexes();
+
+        List<Segment> dropped = new ArrayList<>();
+        boolean floorsChanged;
+        synchronized (this) {
+            if (mClosed) {
+                return;
+            }
+            floorsChanged = applyRetention(dropped);
+            for (Segment segment : dropped) {
+                segment.close();
+            }
+        }
+
+        if (floorsChanged) {
+            saveFloors();
+        }
+        for (Segment segment : dropped) {
+            segment.mLogFile.delete();
+            segment.mIndexFile.delete();
+        }
+
+        List<Segment> candidates = new ArrayList<>();
+        synchronized (this) {
+            for (Segment segment : mSegments.values()) {
+                if (segment != mActive && segment.mPendingIndex == null
+                        && segment.mLiveBytes < segment.mLength * COMPACT_LIVE_RATIO) {
+                    candidates.add(segment);
+                }
+            }
+        }
+        for (Segment segment : candidates) {
+            compact(segment);
+        }
+    }
+
+    private void writePendingIndexes() {
+        while (true) {
+            Segment segment = null;
+            byte[] index = null;
+            int length = 0;
+            synchronized (this) {
+                if (mClosed) {
+                    return;
+                }
+                for (Segment s : mSegments.values()) {
+                    if (s != mActive && s.mPendingIndex != null) {
+                        segment = s;
+                        index = s.mPendingIndex;
+                        length = s.mPendingIndexLength;
+                        break;
+                    }
+                }
+            }
+            if (segment == null) {
+                return;
+            }
+
+            try {
+                writeFile(segment.mIndexFile, index, length);
+            } catch (IOException e) {
+                Log.e(TAG, "write segment index failed", e);
+                return;
+            }
+
+            synchronized (this) {
+                segment.mPendingIndex = null;
+                segment.mPendingIndexLength = 0;
+            }
+        }
+    }
+
+    // 按保留策略从索引中删除消息, 完全失效的封存段放入 dropped, 返回保留下限是否变化
+    private boolean applyRetention(List<Segment> dropped) {
+        boolean floorsChanged = false;
+        long cutoff = mRetention.maxAgeMillis > 0 ? System.currentTimeMillis() - mRetention.maxAgeMillis : 0;
+
+        // 同一发送方的消息序号与时间顺序一致, 只需删除开头的一段.
+        // 内存中不保存时间戳, 按所在段的最新时间判断, 消息最多比期限多保留一个段的时间跨度
+        for (Map.Entry<Long, SenderIndex> entry : mSenders.entrySet()) {
+            SenderIndex index = entry.getValue();
+            int count = 0;
+            while (count < index.mSize
+                    && ((mRetention.maxMessagesPerSender > 0 && index.mSize - count > mRetention.maxMessagesPerSender)
+                    || mSegments.get(index.mLocations[count] >>> 32).mMaxTimestamp < cutoff)) {
+                count++;
+            }
+            if (count > 0) {
+                raiseFloor(entry.getKey(), index.mIds[count - 1]);
+                removePrefix(index, count);
+                floorsChanged = true;
+            }
+        }
+
+        // 总量超出时从最早的封存段开始整段删除
+        long liveBytes = 0;
+        for (Segment segment : mSegments.values()) {
+            liveBytes += segment.mLiveBytes;
+        }
+        while (mRetention.maxBytes > 0 && liveBytes > mRetention.maxBytes && mSegments.size() > 1) {
+            Segment oldest = mSegments.pollFirstEntry().getValue();
+            liveBytes -= oldest.mLiveBytes;
+            removeSegmentEntries(oldest.mId);
+            dropped.add(oldest);
+            floorsChanged = true;
+        }
+        if (!dropped.isEmpty()) {
+            // 之后同步写入的更早的消息也不高于新的下限, 和重新加载时一样一并删除
+            for (Map.Entry<Long, SenderIndex> entry : mSenders.entrySet()) {
+                Long floor = mFloors.get(entry.getKey());
+                SenderIndex index = entry.getValue();
+                int i = floor != null ? index.find(floor) : -1;
+                int count = i >= 0 ? i + 1 : -(i + 1);
+                if (count > 0) {
+                    removePrefix(index, count);
+                }
+            }
+        }
+
+        Iterator<Segment> segments = mSegments.values().iterator();
+        while (segments.hasNext()) {
+            Segment segment = segments.next();
+            if (segment != mActive && segment.mLiveCount == 0) {
+                segments.remove();
+                dropped.add(segment);
+            }
+        }
+
+        Iterator<SenderIndex> senders = mSenders.values().iterator();
+        while (senders.hasNext()) {
+            if (senders.next().mSize == 0) {
+                senders.remove();
+            }
+        }
+        return floorsChanged;
+    }
+
+    private void raiseFloor(long senderId, long messageId) {
+        Long floor = mFloors.get(senderId);
+        if (floor == null || floor < messageId) {
+            mFloors.put(senderId, messageId);
+        }
+    }
+
+    private void removePrefix(SenderIndex index, int count) {
+        for (int i = 0; i < count; i++) {
+            Segment segment = mSegments.get(index.mLocations[i] >>> 32);
+            if (segment != null) {
+                segment.removeRecord();
+            }
+        }
+        index.removePrefix(count);
+        mCount -= count;
+        mRemovedCount += count;
+    }
+
+    private void removeSegmentEntries(long segmentId) {
+        for (Map.Entry<Long, SenderIndex> entry : mSenders.entrySet()) {
+            SenderIndex index = entry.getValue();
+            int kept = 0;
+            for (int i = 0; i < index.mSize; i++) {
+                if (index.mLocations[i] >>> 32 == segmentId) {
+                    raiseFloor(entry.getKey(), index.mIds[i]);
+                } else {
+                    index.move(i, kept++);
+                }
+            }
+            mCount -= index.mSize - kept;
+            mRemovedCount += index.mSize - kept;
+            index.mSize = kept;
+            index.trim();
+        }
+    }
+
+    // 把段中仍然有效的记录复制到新文件后替换原文件, 复制期间不持有锁
+    private void compact(Segment segment) {
+        long start = System.nanoTime();
+
+        List<long[]> entries;
+        try {
+            entries = readIndex(segment.mIndexFile);
+        } catch (IOException e) {
+            Log.e(TAG, "read segment index failed", e);
+            return;
+        }
+
+        synchronized (this) {
+            if (mClosed || mSegments.get(segment.mId) != segment) {
+                return;
+            }
+            List<long[]> live = new ArrayList<>();
+            for (long[] e : entries) {
+                if (isLive(segment, e)) {
+                    live.add(e);
+                }
+            }
+            entries = live;
+        }
+
+        File logTmp = new File(mDir, segment.mId + LOG_SUFFIX + TMP_SUFFIX);
+        File indexTmp = new File(mDir, segment.mId + INDEX_SUFFIX + TMP_SUFFIX);
+        long[] newPositions = new long[entries.size()];
+        long length = 0;
+        try {
+            RandomAccessFile in = new RandomAccessFile(segment.mLogFile, "r");
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                    new FileOutputStream(logTmp), 64 * 1024));
+            DataOutputStream indexOut = new DataOutputStream(new BufferedOutputStream(
+                    new FileOutputStream(indexTmp), 16 * 1024));
+            try {
+                byte[] buf = new byte[256];
+                for (int i = 0; i < entries.size(); i++) {
+                    long[] e = entries.get(i);
+                    int size = (int) e[3];
+                    if (buf.length < 4 + size) {
+                        buf = new byte[Math.max(4 + size, buf.length * 2)];
+                    }
+                    in.seek(e[2]);
+                    in.readFully(buf, 0, 4 + size);
+                    out.write(buf, 0, 4 + size);
+
+                    newPositions[i] = length;
+                    indexOut.writeLong(e[0]);
+                    indexOut.writeLong(e[1]);
+                    indexOut.writeInt((int) length);
+                    indexOut.writeInt(size);
+                    indexOut.writeLong(e[4]);
+                    length += 4 + size;
+                }
+            } finally {
+                in.close();
+                out.close();
+                indexOut.close();
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "compact segment " + segment.mId + " failed", e);
+            logTmp.delete();
+            indexTmp.delete();
+            return;
+        }
+
+        synchronized (this) {
+            if (mClosed || mSegments.get(segment.mId) != segment) {
+                logTmp.delete();
+                indexTmp.delete();
+                return;
+            }
+
+            segment.close();
+            // 先删除旧索引, 再依次替换数据和索引. 中途失败时该段没有索引, 加载时重新扫描数据,
+            // 不会出现旧索引指向新数据的情况
+            segment.mIndexFile.delete();
+            if (!logTmp.renameTo(segment.mLogFile) || !indexTmp.renameTo(segment.mIndexFile)) {
+                Log.e(TAG, "replace segment " + segment.mId + " failed");
+                logTmp.delete();
+                indexTmp.delete();
+                segment.mIndexFile.delete();
+                return;
+            }
+
+            // 复制期间被删除的记录仍留在新文件中, 不计入有效数据
+            long liveBytes = 0;
+            int liveCount = 0;
+            for (int i = 0; i < entries.size(); i++) {
+                long[] e = entries.get(i);
+                if (isLive(segment, e)) {
+                    SenderIndex index = mSenders.get(e[0]);
+                    index.mLocations[index.find(e[1])] = location(segment.mId, newPositions[i]);
+                    liveBytes += 4 + e[3];
+                    liveCount++;
+                }
+            }
+            segment.mLength = length;
+            segment.mLiveBytes = liveBytes;
+            segment.mLiveCount = liveCount;
+
+            mCompactedBytes += length;
+            mCompactionNanos += System.nanoTime() - start;
+        }
+    }
+
+    // 索引项是否仍是该消息的有效记录
+    private boolean isLive(Segment segment, long[] entry) {
+        return isLive(entry[0], entry[1], location(segment.mId, entry[2]));
+    }
+
+    private boolean isLive(long senderId, long messageId, long location) {
+        SenderIndex index = mSenders.get(senderId);
+        int i = index != null ? index.find(messageId) : -1;
+        return i >= 0 && index.mLocations[i] == location;
+    }
+
+    private boolean ensureLoaded() {
+        if (mLoaded || mClosed) {
+            return mLoaded;
+        }
+
+        mSegments.clear();
+        mSenders.clear();
+        mFloors.clear();
+        mCount = 0;
+
+        if (!mDir.isDirectory() && !mDir.mkdirs()) {
+            Log.e(TAG, "create message dir failed");
+            return false;
+        }
+
+        loadFloors();
+
+        List<Long> ids = new ArrayList<>();
+        String[] names = mDir.list();
+        for (String name : names != null ? names : new String[0]) {
+            if (name.endsWith(TMP_SUFFIX)) {
+                new File(mDir, name).delete();
+            } else if (name.endsWith(LOG_SUFFIX)) {
+                try {
+                    ids.add(Long.parseLong(name.substring(0, name.length() - LOG_SUFFIX.length())));
+                } catch (NumberFormatException e) {
+                    Log.w(TAG, "unknown file in message dir: " + name);
+                }
+            }
+        }
+        Collections.sort(ids);
+
+        for (int i = 0; i < ids.size(); i++) {
+            Segment segment = new Segment(ids.get(i));
+            boolean last = i == ids.size() - 1;
+            if (last || !loadIndex(segment)) {
+                scanSegment(segment, last);
+            }
+            mSegments.put(segment.mId, segment);
+        }
+
+        if (mSegments.isEmpty()) {
+            mSegments.put(1L, new Segment(1));
+        }
+        mActive = mSegments.lastEntry().getValue();
+
+        Log.d(TAG, "MessageLog loaded, messages=" + mCount + " senders=" + mSenders.size()
+                + " segments=" + mSegments.size());
+        mLoaded = true;
+
+        // 重新执行保留策略, 上次删除后尚未整理掉的记录会再次被删除
+        scheduleMaintenance();
+        return true;
+    }
+
+    private boolean loadIndex(Segment segment) {
+        if (!segment.mIndexFile.exists()) {
+            return false;
+        }
+        List<long[]> entries;
+        try {
+            entries = readIndex(segment.mIndexFile);
+        } catch (IOException e) {
+            Log.w(TAG, "read segment index failed, rescan segment " + segment.mId, e);
+            return false;
+        }
+
+        long length = segment.mLogFile.length();
+        for (long[] e : entries) {
+            if (e[2] + 4 + e[3] > length) {
+                Log.w(TAG, "segment index mismatch, rescan segment " + segment.mId);
+                return false;
+            }
+        }
+
+        segment.mLength = length;
+        segment.mPendingIndex = null;
+        for (long[] e : entries) {
+            addLoaded(segment, e[0], e[1], e[2], (int) e[3], e[4]);
+        }
+        return true;
+    }
+
+    // 扫描段文件建立索引, 封存段的索引随后由后台写出
+    private void scanSegment(Segment segment, boolean active) {
+        long fileLength = segment.mLogFile.length();
+        long position = 0;
+        ChatMessage message = new ChatMessage();
+
+        try {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(
+                    new FileInputStream(segment.mLogFile), 16 * 1024));
+            try {
+                byte[] buf = new byte[256];
+                while (position + 4 <= fileLength) {
+                    int size = in.readInt();
+                    if (size < 0 || position + 4 + size > fileLength) {
+                        break;
+                    }
+                    if (size > buf.length) {
+                        buf = new byte[Math.max(size, buf.length * 2)];
+                    }
+                    in.readFully(buf, 0, size);
+                    if (!MessageCodec.decode(buf, 0, size, message)) {
+                        break;
+                    }
+
+                    segment.appendIndexEntry(message.senderId, message.messageId, (int) position, size,
+                            message.timestamp);
+                    addLoaded(segment, message.senderId, message.messageId, position, size, message.timestamp);
+                    position += 4 + size;
+                }
+            } finally {
+                in.close();
+            }
+        } catch (EOFException e) {
+            // 最后一条记录不完整
+        } catch (IOException e) {
+            Log.e(TAG, "scan segment " + segment.mId + " failed", e);
+        }
+        segment.mLength = position;
+
+        if (active && fileLength > position) {
+            // 丢弃写入中断留下的不完整记录
+            Log.w(TAG, "truncate segment " + segment.mId + " from " + fileLength + " to " + position);
+            try {
+                segment.open().setLength(position);
+            } catch (IOException e) {
+                Log.e(TAG, "truncate segment failed", e);
+            }
+        }
+    }
+
+    private void addLoaded(Segment segment, long senderId, long messageId, long position, int size, long timestamp) {
+        // 已按保留策略删除, 只是还没有整理掉
+        Long floor = mFloors.get(senderId);
+        if (floor != null && messageId <= floor) {
+            return;
+        }
+        SenderIndex index = mSenders.get(senderId);
+        if (index == null) {
+            index = new SenderIndex();
+            mSenders.put(senderId, index);
+        }
+        if (index.insert(messageId, location(segment.mId, position))) {
+            segment.mLiveBytes += 4 + size;
+            segment.mLiveCount++;
+            segment.mMaxTimestamp = Math.max(segment.mMaxTimestamp, timestamp);
+            mCount++;
+        }
+    }
+
+    private static List<long[]> readIndex(File file) throws IOException {
+        long length = file.length();
+        if (length % INDEX_ENTRY_SIZE != 0) {
+            throw new IOException("bad index length " + length);
+        }
+        List<long[]> entries = new ArrayList<>((int) (length / INDEX_ENTRY_SIZE));
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 16 * 1024));
+        try {
+            for (long i = 0; i < length; i += INDEX_ENTRY_SIZE) {
+                entries.add(new long[]{in.readLong(), in.readLong(), in.readInt() & 0xFFFFFFFFL,
+                        in.readInt(), in.readLong()});
+            }
+        } finally {
+            in.close();
+        }
+        return entries;
+    }
+
+    private void loadFloors() {
+        File file = new File(mDir, FLOOR_FILE);
+        if (!file.exists()) {
+            return;
+        }
+        try {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            try {
+                int count = in.readInt();
+                for (int i = 0; i < count; i++) {
+                    mFloors.put(in.readLong(), in.readLong());
+                }
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "read floors failed", e);
+        }
+    }
+
+    private void saveFloors() {
+        byte[] buf;
+        synchronized (this) {
+            buf = new byte[4 + mFloors.size() * 16];
+            int pos = writeInt(buf, 0, mFloors.size());
+            for (Map.Entry<Long, Long> entry : mFloors.entrySet()) {
+                pos = writeLong(buf, pos, entry.getKey());
+                pos = writeLong(buf, pos, entry.getValue());
+            }
+        }
+        try {
+            writeFile(new File(mDir, FLOOR_FILE), buf, buf.length);
+        } catch (IOException e) {
+            Log.e(TAG, "write floors failed", e);
+        }
+    }
+
+    // 先写临时文件再改名, 保证文件内容完整
+    private static void writeFile(File file, byte[] buf, int length) throws IOException {
+        File tmp = new File(file.getPath() + TMP_SUFFIX);
+        FileOutputStream out = new FileOutputStream(tmp);
+        try {
+            out.write(buf, 0, length);
+            out.getFD().sync();
+        } finally {
+            out.close();
+        }
+        if (!tmp.renameTo(file)) {
+            throw new IOException("rename " + tmp + " failed");
+        }
+    }
+
+    private static int readInt(byte[] buf, int pos) {
+        return (buf[pos] & 0xFF) << 24 | (buf[pos + 1] & 0xFF) << 16 | (buf[pos + 2] & 0xFF) << 8 | buf[pos + 3] & 0xFF;
+    }
+
+    private static int writeInt(byte[] buf, int pos, int value) {
+        buf[pos++] = (byte) (value >>> 24);
+        buf[pos++] = (byte) (value >>> 16);
+        buf[pos++] = (byte) (value >>> 8);
+        buf[pos++] = (byte) value;
+        return pos;
+    }
+
+    private static int writeLong(byte[] buf, int pos, long value) {
+        pos = writeInt(buf, pos, (int) (value >>> 32));
+        return writeInt(buf, pos, (int) value);
+    }
+
+    // 一个段文件
+    private class Segment {
+
+        final long mId;
+        final File mLogFile;
+        final File mIndexFile;
+
+        long mLength;
+        long mLiveBytes;
+        int mLiveCount;
+        // 段内消息的最新时间戳, 用于按时间删除
+        long mMaxTimestamp;
+
+        // 尚未写出的索引, 写入中的段和扫描得到的段使用
+        byte[] mPendingIndex = new byte[INDEX_ENTRY_SIZE * 64];
+        int mPendingIndexLength;
+
+        private RandomAccessFile mRaf;
+
+        Segment(long id) {
+            mId = id;
+            mLogFile = new File(mDir, id + LOG_SUFFIX);
+            mIndexFile = new File(mDir, id + INDEX_SUFFIX);
+        }
+
+        RandomAccessFile open() throws IOException {
+            if (mRaf == null) {
+                mRaf = new RandomAccessFile(mLogFile, "rw");
+            }
+            return mRaf;
+        }
+
+        void close() {
+            if (mRaf != null) {
+                try {
+                    mRaf.close();
+                } catch (IOException e) {
+                    Log.e(TAG, "close segment failed", e);
+                }
+                mRaf = null;
+            }
+        }
+
+        void addRecord(long senderId, long messageId, int position, int size, long timestamp) {
+            appendIndexEntry(senderId, messageId, position, size, timestamp);
+            mLength = position + 4 + size;
+            mLiveBytes += 4 + size;
+            mLiveCount++;
+            mMaxTimestamp = Math.max(mMaxTimestamp, timestamp);
+        }
+
+        // 内存中不保存记录长度, 按段内平均长度扣除, 整理时重新精确计算
+        void removeRecord() {
+            mLiveBytes -= mLiveBytes / mLiveCount;
+            mLiveCount--;
+        }
+
+        void appendIndexEntry(long senderId, long messageId, int position, int size, long timestamp) {
+            if (mPendingIndexLength + INDEX_ENTRY_SIZE > mPendingIndex.length) {
+                mPendingIndex = Arrays.copyOf(mPendingIndex, mPendingIndex.length * 2);
+            }
+            int pos = writeLong(mPendingIndex, mPendingIndexLength, senderId);
+            pos = writeLong(mPendingIndex, pos, messageId);
+            pos = writeInt(mPendingIndex, pos, position);
+            pos = writeInt(mPendingIndex, pos, size);
+            mPendingIndexLength = writeLong(mPendingIndex, pos, timestamp);
+        }
+    }
+
+    // 一个发送方的消息序号(升序)和记录位置(段号 << 32 | 偏移)
+    private static class SenderIndex {
+
+        long[] mIds = new long[16];
+        long[] mLocations = new long[16];
+        int mSize;
+
+        int find(long id) {
+            return Arrays.binarySearch(mIds, 0, mSize, id);
+        }
+
+        // 通常按序号递增追加, 同步得到的旧消息才需要插入到中间
+        boolean insert(long id, long location) {
+            int i = mSize > 0 && mIds[mSize - 1] < id ? -(mSize + 1) : find(id);
+            if (i >= 0) {
+                return false;
+            }
+            i = -(i + 1);
+
+            if (mSize == mIds.length) {
+                int capacity = mSize * 2;
+                mIds = Arrays.copyOf(mIds, capacity);
+                mLocations = Arrays.copyOf(mLocations, capacity);
+            }
+            System.arraycopy(mIds, i, mIds, i + 1, mSize - i);
+            System.arraycopy(mLocations, i, mLocations, i + 1, mSize - i);
+            mIds[i] = id;
+            mLocations[i] = location;
+            mSize++;
+            return true;
+        }
+
+        void removePrefix(int count) {
+            mSize -= count;
+            System.arraycopy(mIds, count, mIds, 0, mSize);
+            System.arraycopy(mLocations, count, mLocations, 0, mSize);
+            trim();
+        }
+
+        // 删除大量消息后缩小数组, 内存占用跟随保留的消息数
+        void trim() {
+            if (mIds.length > 16 && mSize < mIds.length / 4) {
+                int capacity = Math.max(16, mSize * 2);
+                mIds = Arrays.copyOf(mIds, capacity);
+                mLocations = Arrays.copyOf(mLocations, capacity);
+            }
+        }
+
+        void move(int from, int to) {
+            mIds[to] = mIds[from];
+            mLocations[to] = mLocations[from];
+        }
+    }
+}
@@ -0,0 +1,683 @@
+package com.curiosity.bluetoothchat;
+
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * 聊天记录全文索引
+ * <p>
+ * 倒排索引: 词 -> 文档号列表. 索引的内容来自 {@link MessageLog}, 包括聊天, 同步和导入写入的文本消息;
+ * 文档号按索引顺序分配, 文档表 search/docs 按文档号保存消息的 (发送方 ID, 消息序号), 重启后不变.
+ * 中日韩文字按单字和相邻二字切分, 其它文字按字母数字连续串切分并转为小写.
+ * 文档号列表以差值 varint 压缩存储.
+ * <p>
+ * 词表每新增 SNAPSHOT_INTERVAL 个文档和关闭时写出快照 search/terms, 启动时读回快照,
+ * 再从历史中补上快照之后追加的消息. 建立索引和查询各用一个后台线程, 查询不会排在建立索引之后.
+ */
+public class MessageSearchIndex {
+
+    private static final String TAG = "MessageSearchIndex";
+
+    private static final String DIR = "search";
+    private static final String DOCS_FILE = "docs";
+    private static final String TERMS_FILE = "terms";
+    private static final String TMP_SUFFIX = ".tmp";
+
+    private static final int SNAPSHOT_VERSION = 1;
+    // 文档表项: 发送方 ID(long) 消息序号(long)
+    private static final int DOC_ENTRY_SIZE = 16;
+    // 每次从历史中读取的消息数
+    private static final int READ_BATCH = 256;
+    private static final int SNAPSHOT_INTERVAL = 4096;
+
+    public interface SearchCallback {
+        /**
+         * @param senderIds  匹配消息的发送方 ID, 从新到旧排列
+         * @param messageIds 匹配消息的序号, 与 senderIds 一一对应
+         */
+        void onSearchResult(String query, long[] senderIds, long[] messageIds);
+    }
+
+    private final File mDir;
+    private final MessageLog mMessageLog;
+
+    private final TreeMap<String, Postings> mTerms = new TreeMap<>();
+    private final ReadWriteLock mLock = new ReentrantReadWriteLock();
+
+    private final ExecutorService mExecutor;
+    private final ExecutorService mQueryExecutor;
+    private final AtomicBoolean mUpdateScheduled = new AtomicBoolean();
+
+    private volatile FileChannel mDocs;
+    private int mDocCount;
+    private volatile boolean mClosed;
+
+    // 以下只在索引线程访问: 最后读到的消息, 上次快照覆盖的文档数
+    private long mLastSenderId;
+    private long mLastMessageId;
+    private int mSnapshotDocCount;
+
+    /**
+     * @param dir 索引文件存放在其下的 search 目录
+     */
+    public MessageSearchIndex(File dir, MessageLog messageLog) {
+        mDir = new File(dir, DIR);
+        mMessageLog = messageLog;
+
+        mExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "MessageSearchIndex");
+                thread.setPriority(Thread.MIN_PRIORITY);
+                return thread;
+            }
+        });
+        mQueryExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                return new Thread(r, "MessageSearchQuery");
+            }
+        });
+
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                load();
+                update();
+            }
+        });
+        mMessageLog.setAppendListener(new MessageLog.AppendListener() {
+            @Override
+            public void onMessageAppended(ChatMessage message) {
+                scheduleUpdate();
+            }
+        });
+    }
+
+    /**
+     * 在查询线程中查询, 已被保留策略删除的消息不计入结果, 结果在查询线程回调
+     *
+     * @param offset 跳过最新的 offset 条结果
+     * @param limit  最多返回的条数
+     */
+    public void searchAsync(final String query, final int offset, final int limit, final SearchCallback callback) {
+        mQueryExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                int[] docIds = search(query, 0, Integer.MAX_VALUE);
+                long[] senderIds = new long[Math.min(limit, docIds.length)];
+                long[] messageIds = new long[senderIds.length];
+                ByteBuffer key = ByteBuffer.allocate(DOC_ENTRY_SIZE);
+                int skipped = 0;
+                int count = 0;
+                for (int i = 0; i < docIds.length && count < senderIds.length; i++) {
+                    if (!readDoc(docIds[i], key)) {
+                        break;
+                    }
+                    long senderId = key.getLong(0);
+                    long messageId = key.getLong(8);
+                    if (!mMessageLog.contains(senderId, messageId)) {
+                        continue;
+                    }
+                    if (skipped < offset) {
+                        skipped++;
+                        continue;
+                    }
+                    senderIds[count] = senderId;
+                    messageIds[count] = messageId;
+                    count++;
+                }
+                callback.onSearchResult(query, Arrays.copyOf(senderIds, count), Arrays.copyOf(messageIds, count));
+            }
+        });
+    }
+
+    /**
+     * 停止建立索引并写出快照
+     */
+    public void close() {
+        mClosed = true;
+        mMessageLog.setAppendListener(null);
+        mQueryExecutor.shutdown();
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                FileChannel docs = mDocs;
+                if (docs == null) {
+                    return;
+                }
+                if (mDocCount != mSnapshotDocCount) {
+                    saveSnapshot();
+                }
+                try {
+                    docs.close();
+                } catch (IOException e) {
+                    Log.e(TAG, "close doc table failed", e);
+                }
+                mDocs = null;
+            }
+        });
+        mExecutor.shutdown();
+    }
+
+    /**
+     * 查询包含所有关键词的文档, 字母数字关键词按前缀匹配
+     *
+     * @param offset 跳过最新的 offset 条结果
+     * @param limit  最多返回的条数
+     * @return 文档号, 从新到旧排列
+     */
+    public int[] search(String query, int offset, int limit) {
+        List<String> tokens = new ArrayList<>();
+        tokenizeQuery(query, tokens);
+        if (tokens.isEmpty()) {
+            return new int[0];
+        }
+
+        List<int[]> lists = new ArrayList<>(tokens.size());
+
+        mLock.readLock().lock();
+        try {
+            for (String token : tokens) {
+                int[] docs;
+                if (isCjk(token.charAt(0))) {
+                    Postings postings = mTerms.get(token);
+                    docs = postings != null ? postings.toArray() : new int[0];
+                } else {
+                    docs = prefixDocs(token);
+                }
+                if (docs.length == 0) {
+                    return new int[0];
+                }
+                lists.add(docs);
+            }
+        } finally {
+            mLock.readLock().unlock();
+        }
+
+        // 从最短的列表开始求交集
+        Collections.sort(lists, new Comparator<int[]>() {
+            @Override
+            public int compare(int[] a, int[] b) {
+                return a.length - b.length;
+            }
+        });
+        int[] result = lists.get(0);
+        for (int i = 1; i < lists.size() && result.length > 0; i++) {
+            result = intersect(result, lists.get(i));
+        }
+
+        // 倒序分页, 最新的消息在前
+        int count = Math.max(0, Math.min(limit, result.length - offset));
+        int[] page = new int[count];
+        for (int i = 0; i < count; i++) {
+            page[i] = result[result.length - 1 - offset - i];
+        }
+        return page;
+    }
+
+    public int getDocCount() {
+        mLock.readLock().lock();
+        try {
+            return mDocCount;
+        } finally {
+            mLock.readLock().unlock();
+        }
+    }
+
+    public int getTermCount() {
+        mLock.readLock().lock();
+        try {
+            return mTerms.size();
+        } finally {
+            mLock.readLock().unlock();
+        }
+    }
+
+    //==============================================================================================
+    private void scheduleUpdate() {
+        if (mClosed || !mUpdateScheduled.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            mExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    mUpdateScheduled.set(false);
+                    update();
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // 已关闭
+        }
+    }
+
+    // 索引线程: 打开文档表, 读回快照; 快照与文档表不一致时清空重建
+    private void load() {
+        if (!mDir.isDirectory() && !mDir.mkdirs()) {
+            Log.e(TAG, "create search dir failed, search disabled");
+            return;
+        }
+        try {
+            mDocs = new RandomAccessFile(new File(mDir, DOCS_FILE), "rw").getChannel();
+        } catch (IOException e) {
+            Log.e(TAG, "open doc table failed, search disabled", e);
+            return;
+        }
+        new File(mDir, TERMS_FILE + TMP_SUFFIX).delete();
+
+        try {
+            if (loadSnapshot()) {
+                // 快照之后写入文档表的部分由 update 重新补上
+                mDocs.truncate((long) mDocCount * DOC_ENTRY_SIZE);
+                if (mDocCount > 0) {
+                    ByteBuffer key = ByteBuffer.allocate(DOC_ENTRY_SIZE);
+                    if (!readDoc(mDocCount - 1, key)) {
+                        throw new IOException("read last doc failed");
+                    }
+                    mLastSenderId = key.getLong(0);
+                    mLastMessageId = key.getLong(8);
+                }
+                mSnapshotDocCount = mDocCount;
+                Log.d(TAG, "index loaded, docs=" + mDocCount + " terms=" + mTerms.size());
+                return;
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "load index failed, rebuild", e);
+        }
+        reset();
+    }
+
+    private boolean loadSnapshot() throws IOException {
+        File file = new File(mDir, TERMS_FILE);
+        if (!file.exists()) {
+            return false;
+        }
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 64 * 1024));
+        try {
+            if (in.readInt() != SNAPSHOT_VERSION) {
+                return false;
+            }
+            int docCount = in.readInt();
+            if (mDocs.size() < (long) docCount * DOC_ENTRY_SIZE) {
+                return false;
+            }
+            int termCount = in.readInt();
+            mLock.writeLock().lock();
+            try {
+                for (int i = 0; i < termCount; i++) {
+                    String term = in.readUTF();
+                    mTerms.put(term, Postings.readFrom(in));
+                }
+                mDocCount = docCount;
+            } finally {
+                mLock.writeLock().unlock();
+            }
+            return true;
+        } finally {
+            in.close();
+        }
+    }
+
+    private void reset() {
+        mLock.writeLock().lock();
+        try {
+            mTerms.clear();
+            mDocCount = 0;
+        } finally {
+            mLock.writeLock().unlock();
+        }
+        new File(mDir, TERMS_FILE).delete();
+        try {
+            mDocs.truncate(0);
+        } catch (IOException e) {
+            Log.e(TAG, "truncate doc table failed", e);
+        }
+        mLastSenderId = 0;
+        mLastMessageId = 0;
+        mSnapshotDocCount = 0;
+    }
+
+    // 索引线程: 从最后读到的消息之后继续读取历史并建立索引
+    private void update() {
+        if (mDocs == null) {
+            return;
+        }
+        List<ChatMessage> messages = new ArrayList<>(READ_BATCH);
+        while (!mClosed) {
+            messages.clear();
+            int count = mMessageLog.readAfter(mLastSenderId, mLastMessageId, READ_BATCH, messages);
+            if (count < 0) {
+                Log.w(TAG, "last indexed message removed, rebuild index");
+                reset();
+                continue;
+            }
+            if (count == 0 || !addBatch(messages)) {
+                return;
+            }
+
+            ChatMessage last = messages.get(count - 1);
+            mLastSenderId = last.senderId;
+            mLastMessageId = last.messageId;
+            if (mDocCount - mSnapshotDocCount >= SNAPSHOT_INTERVAL) {
+                saveSnapshot();
+            }
+        }
+    }
+
+    // 先写入文档表再加入词表, 查询得到的文档号总能查到对应的消息
+    private boolean addBatch(List<ChatMessage> messages) {
+        List<List<String>> tokens = new ArrayList<>(messages.size());
+        ByteBuffer docs = ByteBuffer.allocate(messages.size() * DOC_ENTRY_SIZE);
+        for (ChatMessage message : messages) {
+            if (message.messageType != ChatMessage.TYPE_TEXT) {
+                continue;
+            }
+            List<String> list = new ArrayList<>();
+            tokenize(message.messageContent, list);
+            tokens.add(list);
+            docs.putLong(message.senderId);
+            docs.putLong(message.messageId);
+        }
+        if (tokens.isEmpty()) {
+            return true;
+        }
+
+        docs.flip();
+        try {
+            long position = (long) mDocCount * DOC_ENTRY_SIZE;
+            while (docs.hasRemaining()) {
+                position += mDocs.write(docs, position);
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "write doc table failed", e);
+            return false;
+        }
+
+        mLock.writeLock().lock();
+        try {
+            int docId = mDocCount;
+            for (List<String> list : tokens) {
+                for (String token : list) {
+                    Postings postings = mTerms.get(token);
+                    if (postings == null) {
+                        postings = new Postings();
+                        mTerms.put(token, postings);
+                    }
+                    postings.add(docId);
+                }
+                docId++;
+            }
+            mDocCount = docId;
+        } finally {
+            mLock.writeLock().unlock();
+        }
+        return true;
+    }
+
+    // 索引线程是唯一修改词表的线程, 写快照时不需要加锁
+    private void saveSnapshot() {
+        File tmp = new File(mDir, TERMS_FILE + TMP_SUFFIX);
+        try {
+            // 快照覆盖的文档必须已经在文档表中
+            mDocs.force(false);
+
+            FileOutputStream file = new FileOutputStream(tmp);
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(file, 64 * 1024));
+            try {
+                out.writeInt(SNAPSHOT_VERSION);
+                out.writeInt(mDocCount);
+                out.writeInt(mTerms.size());
+                for (Map.Entry<String, Postings> entry : mTerms.entrySet()) {
+                    out.writeUTF(entry.getKey());
+                    entry.getValue().writeTo(out);
+                }
+                out.flush();
+                file.getFD().sync();
+            } finally {
+                out.close();
+            }
+            if (!tmp.renameTo(new File(mDir, TERMS_FILE))) {
+                throw new IOException("rename " + tmp + " failed");
+            }
+            mSnapshotDocCount = mDocCount;
+        } catch (IOException e) {
+            Log.e(TAG, "save index snapshot failed", e);
+            tmp.delete();
+        }
+    }
+
+    // 按文档号读出消息的键, 可在任意线程调用
+    private boolean readDoc(int docId, ByteBuffer key) {
+        FileChannel docs = mDocs;
+        if (docs == null) {
+            return false;
+        }
+        key.clear();
+        long position = (long) docId * DOC_ENTRY_SIZE;
+        try {
+            while (key.hasRemaining()) {
+                int n = docs.read(key, position + key.position());
+                if (n < 0) {
+                    return false;
+                }
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "read doc table failed", e);
+            return false;
+        }
+        return true;
+    }
+
+    // 合并所有以 prefix 开头的词的文档列表
+    private int[] prefixDocs(String prefix) {
+        SortedMap<String, Postings> range = mTerms.subMap(prefix, prefix + Character.MAX_VALUE);
+        if (range.size() == 1) {
+            return range.values().iterator().next().toArray();
+        }
+
+        int total = 0;
+        for (Postings postings : range.values()) {
+            total += postings.mCount;
+        }
+
+        // 拼接后排序去重, 避免逐个归并的平方开销
+        int[] docs = new int[total];
+        int n = 0;
+        for (Postings postings : range.values()) {
+            n = postings.copyTo(docs, n);
+        }
+        Arrays.sort(docs);
+
+        int unique = 0;
+        for (int i = 0; i < docs.length; i++) {
+            if (unique == 0 || docs[i] != docs[unique - 1]) {
+                docs[unique++] = docs[i];
+            }
+        }
+        return trim(docs, unique);
+    }
+
+    static void tokenize(String text, List<String> out) {
+        if (text == null) {
+            return;
+        }
+
+        int length = text.length();
+        int i = 0;
+        while (i < length) {
+            char c = text.charAt(i);
+            if (isCjk(c)) {
+                // 单字和相邻二字
+                out.add(String.valueOf(c));
+                if (i + 1 < length && isCjk(text.charAt(i + 1))) {
+                    out.add(text.substring(i, i + 2));
+                }
+                i++;
+            } else if (Character.isLetterOrDigit(c)) {
+                int start = i;
+                while (i < length && Character.isLetterOrDigit(text.charAt(i)) && !isCjk(text.charAt(i))) {
+                    i++;
+                }
+                out.add(text.substring(start, i).toLowerCase(Locale.ROOT));
+            } else {
+                i++;
+            }
+        }
+    }
+
+    // 查询时中日韩文字只用二字(孤立的单字用单字), 减少需要求交集的列表数量
+    static void tokenizeQuery(String query, List<String> out) {
+        if (query == null) {
+            return;
+        }
+
+        int length = query.length();
+        int i = 0;
+        while (i < length) {
+            char c = query.charAt(i);
+            if (isCjk(c)) {
+                int start = i;
+                while (i < length && isCjk(query.charAt(i))) {
+                    i++;
+                }
+                if (i - start == 1) {
+                    out.add(String.valueOf(c));
+                } else {
+                    for (int j = start; j + 1 < i; j++) {
+                        out.add(query.substring(j, j + 2));
+                    }
+                }
+            } else if (Character.isLetterOrDigit(c)) {
+                int start = i;
+                while (i < length && Character.isLetterOrDigit(query.charAt(i)) && !isCjk(query.charAt(i))) {
+                    i++;
+                }
+                out.add(query.substring(start, i).toLowerCase(Locale.ROOT));
+            } else {
+                i++;
+            }
+        }
+    }
+
+    static boolean isCjk(char c) {
+        return (c >= 0x4E00 && c <= 0x9FFF)     // CJK 统一汉字
+                || (c >= 0x3400 && c <= 0x4DBF) // 扩展 A
+                || (c >= 0xF900 && c <= 0xFAFF) // 兼容汉字
+                || (c >= 0x3040 && c <= 0x30FF) // 平假名, 片假名
+                || (c >= 0xAC00 && c <= 0xD7AF); // 韩文音节
+    }
+
+    private static int[] intersect(int[] a, int[] b) {
+        int[] result = new int[Math.min(a.length, b.length)];
+        int n = 0;
+        int i = 0;
+        int j = 0;
+        while (i < a.length && j < b.length) {
+            if (a[i] < b[j]) {
+                i++;
+            } else if (a[i] > b[j]) {
+                j++;
+            } else {
+                result[n++] = a[i];
+                i++;
+                j++;
+            }
+        }
+        return trim(result, n);
+    }
+
+    private static int[] trim(int[] array, int length) {
+        if (length == array.length) {
+            return array;
+        }
+        int[] result = new int[length];
+        System.arraycopy(array, 0, result, 0, length);
+        return result;
+    }
+
+    // 文档号列表, 按差值 varint 压缩
+    private static class Postings {
+
+        private byte[] mData = new byte[4];
+        private int mSize;
+        private int mCount;
+        private int mLastDoc = -1;
+
+        void add(int docId) {
+            if (docId <= mLastDoc) {
+                // 同一文档中重复的词只记录一次
+                return;
+            }
+            if (mSize + Varint.MAX_SIZE > mData.length) {
+                byte[] tmp = new byte[mData.length * 2];
+                System.arraycopy(mData, 0, tmp, 0, mSize);
+                mData = tmp;
+            }
+            mSize = Varint.write(mData, mSize, docId - mLastDoc);
+            mLastDoc = docId;
+            mCount++;
+        }
+
+        int[] toArray() {
+            int[] docs = new int[mCount];
+            copyTo(docs, 0);
+            return docs;
+        }
+
+        void writeTo(DataOutputStream out) throws IOException {
+            out.writeInt(mCount);
+            out.writeInt(mLastDoc);
+            out.writeInt(mSize);
+            out.write(mData, 0, mSize);
+        }
+
+        static Postings readFrom(DataInputStream in) throws IOException {
+            Postings postings = new Postings();
+            postings.mCount = in.readInt();
+            postings.mLastDoc = in.readInt();
+            postings.mSize = in.readInt();
+            postings.mData = new byte[Math.max(4, postings.mSize)];
+            in.readFully(postings.mData, 0, postings.mSize);
+            return postings;
+        }
+
+        int copyTo(int[] docs, int offset) {
+            int pos = 0;
+            int doc = -1;
+            for (int i = 0; i < mCount; i++) {
+                doc += (int) Varint.read(mData, pos);
+                pos += Varint.length(mData, pos, mSize);
+                docs[offset++] = doc;
+            }
+            return offset;
+        }
+    }
+}
@@ -0,0 +1,121 @@
+package com.curiosity.bluetoothchat;
+
+import android.content.Context;
+import android.content.res.TypedArray;
+import android.graphics.Canvas;
+import android.text.Layout;
+import android.text.TextUtils;
+import android.util.AttributeSet;
+import android.view.Gravity;
+import android.view.View;
+
+/**
+ * 消息气泡的文字, 直接绘制 {@link MessageLayoutCache} 中预先生成的排版, 测量时不再计算文字
+ * <p>
+ * 支持 android:gravity 的垂直方向, 气泡背景的最小高度大于文字时按它放置文字; 文字同时作为无障碍描述.
+ */
+public class MessageTextView extends View {
+
+    private static final int[] ATTRS = {android.R.attr.gravity};
+
+    private int mGravity = Gravity.TOP | Gravity.START;
+    private MessageLayoutCache mCache;
+    private long mSenderId;
+    private long mMessageId;
+    private CharSequence mText;
+    private Layout mLayout;
+
+    public MessageTextView(Context context) {
+        super(context);
+    }
+
+    public MessageTextView(Context context, AttributeSet attrs) {
+        super(context, attrs);
+        TypedArray a = context.obtainStyledAttributes(attrs, ATTRS);
+        mGravity = a.getInt(0, mGravity);
+        a.recycle();
+    }
+
+    /**
+     * 是否已绑定这条消息. 同一条消息的文字不变, 调用方可以据此跳过取文字和绑定
+     */
+    public boolean isBoundTo(long senderId, long messageId) {
+        return mText != null && mSenderId == senderId && mMessageId == messageId;
+    }
+
+    public void bind(MessageLayoutCache cache, long senderId, long messageId, CharSequence text) {
+        if (mLayout != null && mSenderId == senderId && mMessageId == messageId && TextUtils.equals(mText, text)) {
+            return;
+        }
+        mCache = cache;
+        mSenderId = senderId;
+        mMessageId = messageId;
+        mText = text;
+        mLayout = null;
+        setContentDescription(text);
+        requestLayout();
+        invalidate();
+    }
+
+    @Override
+    protected void onMeasure(int widthMeasureSpec, int heightMeasureSpec) {
+        int paddingH = getPaddingLeft() + getPaddingRight();
+        int paddingV = getPaddingTop() + getPaddingBottom();
+
+        if (mCache == null || mText == null) {
+            setMeasuredDimension(Math.max(paddingH, getSuggestedMinimumWidth()),
+                    Math.max(paddingV, getSuggestedMinimumHeight()));
+            return;
+        }
+
+        int widthMode = MeasureSpec.getMode(widthMeasureSpec);
+        int widthSize = MeasureSpec.getSize(widthMeasureSpec);
+        if (widthMode == MeasureSpec.UNSPECIFIED) {
+            // 宽度不受限时按单行排版, 不记入缓存
+            int textWidth = (int) Math.ceil(Layout.getDesiredWidth(mText, mCache.getPaint()));
+            if (mLayout == null || mLayout.getWidth() != textWidth) {
+                mLayout = mCache.build(mText, textWidth);
+            }
+        } else {
+            int textWidth = Math.max(1, widthSize - paddingH);
+            if (mLayout == null || mLayout.getWidth() != textWidth) {
+                mLayout = mCache.obtain(mSenderId, mMessageId, mText, textWidth);
+            }
+        }
+
+        // 气泡宽度按最长的一行收缩
+        float lineWidth = 0;
+        for (int i = 0; i < mLayout.getLineCount(); i++) {
+            lineWidth = Math.max(lineWidth, mLayout.getLineWidth(i));
+        }
+        int width = widthMode == MeasureSpec.EXACTLY ? widthSize : (int) Math.ceil(lineWidth) + paddingH;
+        int height = MeasureSpec.getMode(heightMeasureSpec) == MeasureSpec.EXACTLY
+                ? MeasureSpec.getSize(heightMeasureSpec) : mLayout.getHeight() + paddingV;
+
+        setMeasuredDimension(Math.max(width, getSuggestedMinimumWidth()),
+                Math.max(height, getSuggestedMinimumHeight()));
+    }
+
+    @Override
+    protected void onDraw(Canvas canvas) {
+        if (mLayout == null) {
+            return;
+        }
+        int top = getPaddingTop();
+        int space = getHeight() - top - getPaddingBottom() - mLayout.getHeight();
+        if (space > 0) {
+            switch (mGravity & Gravity.VERTICAL_GRAVITY_MASK) {
+                case Gravity.CENTER_VERTICAL:
+                    top += space / 2;
+                    break;
+                case Gravity.BOTTOM:
+                    top += space;
+                    break;
+            }
+        }
+        canvas.save();
+        canvas.translate(getPaddingLeft(), top);
+        mLayout.draw(canvas);
+        canvas.restore();
+    }
+}
@@ -0,0 +1,704 @@
+package com.curiosity.bluetoothchat;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+import android.util.LruCache;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayDeque;
+import java.util.HashSet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * 消息列表的数据, 内存中只保留最近的一段消息
+ * <p>
+ * 窗口内的消息按 UTF-8 连续存放在一块环形字节区中, 发送方 ID, 消息序号, 偏移和长度存放在定长数组里,
+ * 不为每条消息保留 ChatMessage 和 String. 条数或字节数超过上限时最旧的消息移出窗口.
+ * 每条添加的消息都把 (发送方 ID, 消息序号) 按位置写入索引文件, 内容本来就在 {@link MessageLog} 中;
+ * 索引文件跨启动保留, 打开时其中的消息恢复为列表开头的部分.
+ * <p>
+ * 列表滚动到窗口之前时按块在后台读回, 交给 {@link MessageLayoutCache} 预先排版, 再放入有上限的缓存并通知刷新;
+ * 恢复时同样先读回并排版最后一块. 区分自己和对方的消息只需要发送方 ID,
+ * 按页在后台从索引文件中读出, 缓存少量页, 读出前为 {@link #SENDER_UNKNOWN}. 内存占用与运行时长和消息总数无关.
+ * <p>
+ * 除读回的回调外, 所有方法都在主线程调用.
+ */
+public class MessageWindow {
+
+    private static final String TAG = "MessageWindow";
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    // 窗口内的最多消息数和文字字节数, 字节区至少能放下两条最大的消息
+    private static final int WINDOW_MESSAGES = 256;
+    private static final int ARENA_BYTES = 2 * FrameCodec.MAX_FRAME_SIZE + 128 * 1024;
+
+    // 每条消息在索引文件中占 16 字节: 发送方 ID, 消息序号
+    private static final int INDEX_ENTRY_SIZE = 16;
+    // 同一轮主线程消息中添加的消息合并写入, 攒满一批时立即写入
+    private static final int INDEX_BATCH = 64;
+    // 每次读回的消息数和读回缓存的条数
+    private static final int FETCH_BLOCK = 32;
+    private static final int FETCHED_CACHE_SIZE = 4 * FETCH_BLOCK;
+    // 发送方标志每页的消息数和缓存的页数
+    private static final int FLAG_PAGE = 256;
+    private static final int FLAG_CACHE_PAGES = 64;
+
+    /**
+     * 发送方标志尚未读出, 读出后回调 Listener
+     */
+    public static final int SENDER_UNKNOWN = -1;
+
+    public interface Listener {
+
+        /**
+         * 窗口之前的消息或发送方标志已读回, 或上次的列表已恢复, 在主线程回调
+         */
+        void onMessagesFetched();
+    }
+
+    public interface PositionCallback {
+
+        /**
+         * @param position 消息在列表中的位置, 不在列表中时为 -1. 在主线程回调
+         */
+        void onPositionFound(long senderId, long messageId, int position);
+    }
+
+    private final MessageLog mMessageLog;
+    private final MessageLayoutCache mLayoutCache;
+    private final long mLocalId;
+    private final Listener mListener;
+    private final File mIndexFile;
+    private final ExecutorService mExecutor;
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+
+    // 上次保留下来的消息数, 它们排在列表开头. 以下位置都从本次添加的第一条消息开始计算
+    private int mRestored;
+    // 恢复后之前提交的读回结果作废
+    private int mGeneration;
+
+    // 窗口, 环形, mFirst 为最旧一条的位置
+    private final byte[] mArena = new byte[ARENA_BYTES];
+    private final long[] mSenderIds = new long[WINDOW_MESSAGES];
+    private final long[] mMessageIds = new long[WINDOW_MESSAGES];
+    private final int[] mOffsets = new int[WINDOW_MESSAGES];
+    private final int[] mLengths = new int[WINDOW_MESSAGES];
+    private int mFirst;
+    private int mCount;
+
+    // 尚未交给后台的索引, 以及已交给后台但还没写入的索引; 写入前按它们判断发送方
+    private IndexBatch mPending = new IndexBatch(0);
+    private final ArrayDeque<IndexBatch> mUnwritten = new ArrayDeque<>();
+    private volatile int mWrittenEnd;
+    private final Runnable mFlushTask = new Runnable() {
+        @Override
+        public void run() {
+            mFlushScheduled = false;
+            flushIndex();
+        }
+    };
+    private boolean mFlushScheduled;
+
+    // 读回的窗口之前的消息(按列表位置), 以及正在读回的块
+    private final LruCache<Integer, ChatMessage> mFetched = new LruCache<>(FETCHED_CACHE_SIZE);
+    private final HashSet<Integer> mFetchingBlocks = new HashSet<>();
+    // 按页读出的发送方标志(按列表位置), 以及正在读出的页
+    private final LruCache<Integer, FlagPage> mFlagPages = new LruCache<>(FLAG_CACHE_PAGES);
+    private final HashSet<Integer> mLoadingPages = new HashSet<>();
+
+    // 后台线程使用: 索引文件和打开时其中已有的条数
+    private RandomAccessFile mIndex;
+    private int mFileBase;
+    private final byte[] mPageBuffer = new byte[FLAG_PAGE * INDEX_ENTRY_SIZE];
+
+    private long mFetchCount;
+    private long mPageReadCount;
+    private boolean mClosed;
+
+    /**
+     * @param indexFile 列表中消息的位置索引, 打开时恢复其中的消息, 关闭时保留
+     * @param layoutCache 读回的消息显示前在其中预先排版
+     * @param localId   本机 ID, 用于区分自己和对方的消息
+     */
+    public MessageWindow(File indexFile, MessageLog messageLog, MessageLayoutCache layoutCache, long localId,
+                         Listener listener) {
+        mIndexFile = indexFile;
+        mMessageLog = messageLog;
+        mLayoutCache = layoutCache;
+        mLocalId = localId;
+        mListener = listener;
+
+        mExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "MessageWindow");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                open();
+            }
+        });
+    }
+
+    public void close() {
+        if (mClosed) {
+            return;
+        }
+        mHandler.removeCallbacks(mFlushTask);
+        flushIndex();
+        mClosed = true;
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (mIndex != null) {
+                    try {
+                        mIndex.close();
+                    } catch (IOException e) {
+                        Log.e(TAG, "close index failed", e);
+                    }
+                    mIndex = null;
+                }
+            }
+        });
+        mExecutor.shutdown();
+    }
+
+    /**
+     * 在末尾添加一条消息, 返回它在列表中的位置
+     */
+    public int add(ChatMessage message) {
+        byte[] text = (message.messageContent != null ? message.messageContent : "").getBytes(UTF_8);
+        int length = Math.min(text.length, mArena.length);
+
+        int offset = allocate(length);
+        System.arraycopy(text, 0, mArena, offset, length);
+
+        int slot = (mFirst + mCount) % WINDOW_MESSAGES;
+        mSenderIds[slot] = message.senderId;
+        mMessageIds[slot] = message.messageId;
+        mOffsets[slot] = offset;
+        mLengths[slot] = length;
+        mCount++;
+
+        mPending.add(message.senderId, message.messageId);
+        if (mPending.mCount == INDEX_BATCH) {
+            flushIndex();
+        } else if (!mFlushScheduled && !mClosed) {
+            mFlushScheduled = true;
+            mHandler.post(mFlushTask);
+        }
+        return mRestored + mFirst + mCount - 1;
+    }
+
+    /**
+     * 列表中的总条数, 包括已移出窗口的和上次保留下来的
+     */
+    public int getCount() {
+        return mRestored + mFirst + mCount;
+    }
+
+    /**
+     * 窗口内第一条消息的位置, 之前的消息需要读回
+     */
+    public int getFirstPosition() {
+        return mRestored + mFirst;
+    }
+
+    /**
+     * 消息的发送方, {@link ChatMessage#MSG_SENDER_ME} 或 {@link ChatMessage#MSG_SENDER_OTHERS}.
+     * 窗口之前的消息按索引文件中记录的发送方判断, 不需要先读回; 所在页尚未读出时返回 {@link #SENDER_UNKNOWN},
+     * 同时在后台读出, 完成后回调 Listener
+     */
+    public int getSender(int position) {
+        int index = position - mRestored;
+        if (index >= mFirst) {
+            return sender(mSenderIds[index % WINDOW_MESSAGES]);
+        }
+        ChatMessage message = mFetched.get(position);
+        if (message != null) {
+            return sender(message.senderId);
+        }
+        IndexBatch batch = findUnwritten(index);
+        if (batch != null) {
+            return sender(batch.getSenderId(index));
+        }
+        return getStoredSender(position);
+    }
+
+    /**
+     * 取得消息的键放入 key: 发送方 ID, 消息序号. 已移出窗口且尚未读回时返回 false,
+     * 同时在后台读回, 完成后回调 Listener
+     */
+    public boolean getKey(int position, long[] key) {
+        int index = position - mRestored;
+        if (index >= mFirst) {
+            int slot = index % WINDOW_MESSAGES;
+            key[0] = mSenderIds[slot];
+            key[1] = mMessageIds[slot];
+            return true;
+        }
+
+        ChatMessage message = mFetched.get(position);
+        if (message == null) {
+            fetch(position / FETCH_BLOCK);
+            return false;
+        }
+        key[0] = message.senderId;
+        key[1] = message.messageId;
+        return true;
+    }
+
+    /**
+     * 消息的文字, 在 {@link #getKey} 返回 true 之后调用. 窗口内的消息每次解码得到新的字符串,
+     * 显示同一条消息时不要重复调用
+     */
+    public String getText(int position) {
+        int index = position - mRestored;
+        if (index >= mFirst) {
+            int slot = index % WINDOW_MESSAGES;
+            return new String(mArena, mOffsets[slot], mLengths[slot], UTF_8);
+        }
+        ChatMessage message = mFetched.get(position);
+        return message != null ? message.messageContent : "";
+    }
+
+    /**
+     * 取得一条消息. 已移出窗口且尚未读回时返回 null, 同时在后台读回, 完成后回调 Listener
+     */
+    public ChatMessage get(int position) {
+        long[] key = new long[2];
+        if (!getKey(position, key)) {
+            return null;
+        }
+        ChatMessage message = new ChatMessage();
+        message.messageType = ChatMessage.TYPE_TEXT;
+        message.senderId = key[0];
+        message.messageId = key[1];
+        message.messageContent = getText(position);
+        message.messageSender = message.senderId == mLocalId
+                ? ChatMessage.MSG_SENDER_ME : ChatMessage.MSG_SENDER_OTHERS;
+        return message;
+    }
+
+    /**
+     * 查找消息在列表中的位置, 先查窗口, 再在后台从新到旧扫描索引文件
+     */
+    public void findPosition(final long senderId, final long messageId, final PositionCallback callback) {
+        for (int index = mFirst + mCount - 1; index >= mFirst; index--) {
+            int slot = index % WINDOW_MESSAGES;
+            if (mSenderIds[slot] == senderId && mMessageIds[slot] == messageId) {
+                callback.onPositionFound(senderId, messageId, mRestored + index);
+                return;
+            }
+        }
+        if (mClosed) {
+            return;
+        }
+        flushIndex();
+
+        final int end = mFirst;
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                final int index = scanIndex(senderId, messageId, end);
+                mHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (!mClosed) {
+                            callback.onPositionFound(senderId, messageId, index != -1 ? mRestored + index : -1);
+                        }
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * 窗口占用的字节数(文字和定长数组)
+     */
+    public int getWindowBytes() {
+        return mArena.length + WINDOW_MESSAGES * (8 + 8 + 4 + 4);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s{count %d, restored %d, in window %d, fetched blocks %d, flag pages read %d}",
+                TAG, getCount(), mRestored, mCount, mFetchCount, mPageReadCount);
+    }
+
+    //==============================================================================================
+    // 在字节区中分配连续空间, 不够时移出最旧的消息, 返回偏移
+    private int allocate(int length) {
+        while (true) {
+            if (mCount == 0) {
+                return 0;
+            }
+            if (mCount == WINDOW_MESSAGES) {
+                evictOldest();
+                continue;
+            }
+
+            int oldest = mOffsets[mFirst % WINDOW_MESSAGES];
+            int newestSlot = (mFirst + mCount - 1) % WINDOW_MESSAGES;
+            int end = mOffsets[newestSlot] + mLengths[newestSlot];
+
+            if (mOffsets[newestSlot] >= oldest) {
+                // 未回绕: 先用尾部空间, 不够时回到开头
+                if (mArena.length - end >= length) {
+                    return end;
+                }
+                if (oldest >= length) {
+                    return 0;
+                }
+            } else if (oldest - end >= length) {
+                return end;
+            }
+            evictOldest();
+        }
+    }
+
+    // 键在添加时已记入索引, 移出时只需前移窗口
+    private void evictOldest() {
+        mFirst++;
+        mCount--;
+    }
+
+    // 把攒下的索引交给后台写入, 之后提交的读回任务能读到它们
+    private void flushIndex() {
+        if (mPending.mCount == 0) {
+            return;
+        }
+        final IndexBatch batch = mPending;
+        mPending = new IndexBatch(batch.mFirst + batch.mCount);
+        if (mClosed) {
+            return;
+        }
+        mUnwritten.add(batch);
+
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (mIndex != null) {
+                    ByteBuffer buffer = ByteBuffer.allocate(batch.mCount * INDEX_ENTRY_SIZE);
+                    for (int i = 0; i < 2 * batch.mCount; i++) {
+                        buffer.putLong(batch.mEntries[i]);
+                    }
+                    try {
+                        mIndex.seek((long) (mFileBase + batch.mFirst) * INDEX_ENTRY_SIZE);
+                        mIndex.write(buffer.array());
+                    } catch (IOException e) {
+                        Log.e(TAG, "write index failed", e);
+                    }
+                }
+                // 写入失败时这些位置显示为空白, 不再占用内存
+                mWrittenEnd = batch.mFirst + batch.mCount;
+            }
+        });
+    }
+
+    // 尚未写入索引文件的位置所在的批次
+    private IndexBatch findUnwritten(int index) {
+        while (!mUnwritten.isEmpty()) {
+            IndexBatch batch = mUnwritten.peek();
+            if (batch.mFirst + batch.mCount > mWrittenEnd) {
+                break;
+            }
+            mUnwritten.poll();
+        }
+        for (IndexBatch batch : mUnwritten) {
+            if (batch.contains(index)) {
+                return batch;
+            }
+        }
+        return mPending.contains(index) ? mPending : null;
+    }
+
+    private int sender(long senderId) {
+        return senderId == mLocalId ? ChatMessage.MSG_SENDER_ME : ChatMessage.MSG_SENDER_OTHERS;
+    }
+
+    // 按页读出的发送方, 所在页没有读出或读出后又写入了新的位置时在后台读出
+    private int getStoredSender(int position) {
+        int pageIndex = position / FLAG_PAGE;
+        FlagPage page = mFlagPages.get(pageIndex);
+        if (page == null || position >= page.mEnd) {
+            loadFlagPage(pageIndex);
+            return SENDER_UNKNOWN;
+        }
+        return page.isSet(position - pageIndex * FLAG_PAGE)
+                ? ChatMessage.MSG_SENDER_ME : ChatMessage.MSG_SENDER_OTHERS;
+    }
+
+    private void loadFlagPage(final int pageIndex) {
+        if (mClosed || !mLoadingPages.add(pageIndex)) {
+            return;
+        }
+        flushIndex();
+
+        final int generation = mGeneration;
+        final int restored = mRestored;
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                final FlagPage page = readFlagPage(pageIndex, restored);
+                mHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (mClosed || generation != mGeneration) {
+                            return;
+                        }
+                        mLoadingPages.remove(pageIndex);
+                        mFlagPages.put(pageIndex, page);
+                        mPageReadCount++;
+                        mListener.onMessagesFetched();
+                    }
+                });
+            }
+        });
+    }
+
+    // 后台线程中执行, 只读几 KB, 多数情况下命中系统缓存. 读不出的位置按对方的消息显示, 不再重试
+    private FlagPage readFlagPage(int pageIndex, int restored) {
+        int start = pageIndex * FLAG_PAGE;
+        int end = Math.min(start + FLAG_PAGE, restored + mWrittenEnd);
+        if (mIndex == null || end <= start) {
+            return new FlagPage(start + FLAG_PAGE);
+        }
+
+        FlagPage page = new FlagPage(end);
+        ByteBuffer buffer = ByteBuffer.wrap(mPageBuffer);
+        try {
+            mIndex.seek((long) (mFileBase + start - restored) * INDEX_ENTRY_SIZE);
+            mIndex.readFully(mPageBuffer, 0, (end - start) * INDEX_ENTRY_SIZE);
+        } catch (IOException e) {
+            Log.e(TAG, "read index page failed", e);
+            return page;
+        }
+        for (int i = 0; i < end - start; i++) {
+            if (buffer.getLong(i * INDEX_ENTRY_SIZE) == mLocalId) {
+                page.set(i);
+            }
+        }
+        return page;
+    }
+
+    private void fetch(final int block) {
+        if (mClosed || !mFetchingBlocks.add(block)) {
+            return;
+        }
+        flushIndex();
+
+        final int generation = mGeneration;
+        final int start = block * FETCH_BLOCK;
+        final int end = Math.min(start + FETCH_BLOCK, mRestored + mFirst);
+        final int restored = mRestored;
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                final ChatMessage[] messages = readBlock(start - restored, end - restored);
+                final Runnable deliver = new Runnable() {
+                    @Override
+                    public void run() {
+                        if (mClosed || generation != mGeneration) {
+                            return;
+                        }
+                        mFetchingBlocks.remove(block);
+                        if (messages == null) {
+                            return;
+                        }
+                        for (int i = 0; i < messages.length; i++) {
+                            mFetched.put(start + i, messages[i]);
+                        }
+                        mFetchCount++;
+                        mListener.onMessagesFetched();
+                    }
+                };
+                if (messages == null) {
+                    mHandler.post(deliver);
+                } else {
+                    prefetchLayouts(messages, deliver);
+                }
+            }
+        });
+    }
+
+    // 后台线程中执行, 排版完成后在主线程执行 deliver, 刷新时不再在主线程排版
+    private void prefetchLayouts(ChatMessage[] messages, final Runnable deliver) {
+        mLayoutCache.prefetch(messages, new Runnable() {
+            @Override
+            public void run() {
+                mHandler.post(deliver);
+            }
+        });
+    }
+
+    // 后台线程中执行, 恢复上次保留的索引, 丢弃写入中断留下的不完整条目
+    private void open() {
+        final int count;
+        try {
+            mIndex = new RandomAccessFile(mIndexFile, "rw");
+            long entries = mIndex.length() / INDEX_ENTRY_SIZE;
+            count = (int) Math.min(entries, Integer.MAX_VALUE / 2);
+            mIndex.setLength((long) count * INDEX_ENTRY_SIZE);
+        } catch (IOException e) {
+            Log.e(TAG, "open index failed, evicted messages cannot be shown", e);
+            if (mIndex != null) {
+                try {
+                    mIndex.close();
+                } catch (IOException ignored) {
+                    // 已经打开失败, 不影响后续
+                }
+                mIndex = null;
+            }
+            return;
+        }
+        mFileBase = count;
+
+        // 恢复后首先显示的是最后一块, 与读回相同, 先读出并排版
+        final int tailStart = count > 0 ? (count - 1) / FETCH_BLOCK * FETCH_BLOCK : 0;
+        final ChatMessage[] tail = readBlock(tailStart - count, 0);
+        Runnable restore = new Runnable() {
+            @Override
+            public void run() {
+                if (mClosed || count == 0) {
+                    return;
+                }
+                // 恢复前读回和读出的内容按旧的位置存放, 全部作废
+                mRestored = count;
+                mGeneration++;
+                mFetched.evictAll();
+                mFetchingBlocks.clear();
+                mFlagPages.evictAll();
+                mLoadingPages.clear();
+                if (tail != null) {
+                    for (int i = 0; i < tail.length; i++) {
+                        mFetched.put(tailStart + i, tail[i]);
+                    }
+                }
+                mListener.onMessagesFetched();
+            }
+        };
+        if (tail == null) {
+            mHandler.post(restore);
+        } else {
+            prefetchLayouts(tail, restore);
+        }
+    }
+
+    // 后台线程中执行, 在索引文件中 [0, end) 的范围内从后往前查找, 返回相对本次第一条消息的位置
+    private int scanIndex(long senderId, long messageId, int end) {
+        if (mIndex == null) {
+            return -1;
+        }
+        int fileEnd = mFileBase + end;
+        ByteBuffer buffer = ByteBuffer.allocate(FETCH_BLOCK * 32 * INDEX_ENTRY_SIZE);
+        try {
+            while (fileEnd > 0) {
+                int start = Math.max(0, fileEnd - buffer.capacity() / INDEX_ENTRY_SIZE);
+                mIndex.seek((long) start * INDEX_ENTRY_SIZE);
+                mIndex.readFully(buffer.array(), 0, (fileEnd - start) * INDEX_ENTRY_SIZE);
+                for (int position = fileEnd - 1; position >= start; position--) {
+                    int offset = (position - start) * INDEX_ENTRY_SIZE;
+                    if (buffer.getLong(offset) == senderId && buffer.getLong(offset + 8) == messageId) {
+                        return position - mFileBase;
+                    }
+                }
+                fileEnd = start;
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "read index failed", e);
+        }
+        return -1;
+    }
+
+    // 后台线程中执行, 按位置读出消息的键, 再从历史中读出内容; 已被保留策略删除的消息显示为空
+    private ChatMessage[] readBlock(int start, int end) {
+        if (mIndex == null || end <= start) {
+            return null;
+        }
+
+        byte[] keys = new byte[(end - start) * INDEX_ENTRY_SIZE];
+        try {
+            mIndex.seek((long) (mFileBase + start) * INDEX_ENTRY_SIZE);
+            mIndex.readFully(keys);
+        } catch (IOException e) {
+            Log.e(TAG, "read index failed", e);
+            return null;
+        }
+
+        ByteBuffer buffer = ByteBuffer.wrap(keys);
+        ChatMessage[] messages = new ChatMessage[end - start];
+        for (int i = 0; i < messages.length; i++) {
+            ChatMessage message = new ChatMessage();
+            message.senderId = buffer.getLong();
+            message.messageId = buffer.getLong();
+
+            byte[] data = mMessageLog.read(message.senderId, message.messageId);
+            if (data == null || !MessageCodec.decode(data, 0, data.length, message)) {
+                message.messageType = ChatMessage.TYPE_TEXT;
+                message.messageContent = "";
+            }
+            message.messageSender = message.senderId == mLocalId
+                    ? ChatMessage.MSG_SENDER_ME : ChatMessage.MSG_SENDER_OTHERS;
+            messages[i] = message;
+        }
+        return messages;
+    }
+
+    // 一批连续位置的键, 位置从本次添加的第一条消息开始计算
+    private static class IndexBatch {
+
+        final int mFirst;
+        final long[] mEntries = new long[2 * INDEX_BATCH];
+        int mCount;
+
+        IndexBatch(int first) {
+            mFirst = first;
+        }
+
+        void add(long senderId, long messageId) {
+            mEntries[2 * mCount] = senderId;
+            mEntries[2 * mCount + 1] = messageId;
+            mCount++;
+        }
+
+        boolean contains(int index) {
+            return index >= mFirst && index < mFirst + mCount;
+        }
+
+        long getSenderId(int index) {
+            return mEntries[2 * (index - mFirst)];
+        }
+    }
+
+    // 一页位置是否为本机发出的消息, mEnd 之后的位置读出时尚未写入
+    private static class FlagPage {
+
+        final int mEnd;
+        final long[] mBits = new long[FLAG_PAGE / 64];
+
+        FlagPage(int end) {
+            mEnd = end;
+        }
+
+        void set(int i) {
+            mBits[i >> 6] |= 1L << i;
+        }
+
+        boolean isSet(int i) {
+            return (mBits[i >> 6] & 1L << i) != 0;
+        }
+    }
+}
@@ -0,0 +1,418 @@
+package com.curiosity.bluetoothchat;
+
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 发件箱, 任何连接状态下都可以放入消息, 消息先持久化到磁盘, 连接建立后按顺序发出
+ * <p>
+ * outbox.log 只追加写入, 每条记录为 长度(int) + 数据; outbox.pos 保存已发送到的偏移.
+ * 全部发送完成后清空两个文件. 加载时截掉写入中断留下的不完整记录.
+ * 发送时每批读出多条消息一起排队, 整批写入链路后保存一次偏移. 超过当前连接帧长度上限的消息无法发送, 跳过并通知.
+ */
+public class Outbox {
+
+    private static final String TAG = "Outbox";
+
+    private static final String LOG_FILE = "outbox.log";
+    private static final String POS_FILE = "outbox.pos";
+
+    // 每批发送的最大消息数和字节数
+    private static final int DRAIN_BATCH_MESSAGES = 64;
+    private static final int DRAIN_BATCH_BYTES = 64 * 1024;
+
+    public interface OutboxListener {
+
+        /**
+         * 加载完成, 之后放入的消息才写入磁盘. 在发件箱线程中回调
+         *
+         * @param queued 上次未发出的消息, 按放入的顺序
+         */
+        void onOutboxLoaded(List<byte[]> queued);
+
+        /**
+         * 一条消息已写入磁盘, 等待发送. 在发件箱线程中回调
+         *
+         * @param queued 发件箱中的消息数
+         */
+        void onMessageQueued(byte[] data, int queued);
+
+        /**
+         * 一条消息发送成功. 在发件箱线程中回调
+         *
+         * @param remaining 发件箱中剩余的消息数
+         */
+        void onMessageSent(byte[] data, int remaining);
+
+        /**
+         * 一条消息无法发送而被丢弃: 超过对端的帧长度上限, 或写入磁盘失败. 在发件箱线程中回调
+         */
+        void onMessageDropped(byte[] data, int remaining);
+    }
+
+    private final File mLogFile;
+    private final File mPosFile;
+    private final ConnectionManager mConnectionManager;
+    private final OutboxListener mOutboxListener;
+
+    private final ExecutorService mExecutor;
+
+    // 尚未写入磁盘的消息, 由写线程整批写入
+    private final List<byte[]> mPending = new ArrayList<>();
+
+    // 以下只在 mExecutor 线程中访问
+    private long mSentOffset;
+    private long mLogLength;
+
+    private final AtomicInteger mQueuedCount = new AtomicInteger();
+
+    public Outbox(File dir, ConnectionManager connectionManager, OutboxListener listener) {
+        mLogFile = new File(dir, LOG_FILE);
+        mPosFile = new File(dir, POS_FILE);
+        mConnectionManager = connectionManager;
+        mOutboxListener = listener;
+
+        mExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                return new Thread(r, "Outbox");
+            }
+        });
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                load();
+            }
+        });
+    }
+
+    /**
+     * 放入一条待发送的消息, 立即返回
+     *
+     * @return 超过 {@link FrameCodec#MAX_FRAME_SIZE} 的消息无法发送, 返回 false
+     */
+    public boolean enqueue(byte[] data) {
+        if (data.length > FrameCodec.MAX_FRAME_SIZE) {
+            return false;
+        }
+        mQueuedCount.incrementAndGet();
+        synchronized (mPending) {
+            mPending.add(data);
+            if (mPending.size() > 1) {
+                // 已有写入任务在等待, 本条会随它一起写入
+                return true;
+            }
+        }
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                flush();
+                doDrain();
+            }
+        });
+        return true;
+    }
+
+    /**
+     * 连接建立后调用, 按顺序发出所有积压的消息
+     */
+    public void drain() {
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                doDrain();
+            }
+        });
+    }
+
+    public int getQueuedCount() {
+        return mQueuedCount.get();
+    }
+
+    /**
+     * 关闭发件箱, 已放入的消息仍会写入磁盘
+     */
+    public void close() {
+        mExecutor.shutdown();
+    }
+
+    //==============================================================================================
+    private void load() {
+        mLogLength = mLogFile.length();
+        mSentOffset = 0;
+
+        if (mPosFile.exists()) {
+            try {
+                RandomAccessFile pos = new RandomAccessFile(mPosFile, "r");
+                try {
+                    mSentOffset = Math.min(pos.readLong(), mLogLength);
+                } finally {
+                    pos.close();
+                }
+            } catch (IOException e) {
+                Log.e(TAG, "read outbox position failed", e);
+            }
+        }
+
+        // 读出积压的消息, 截掉末尾不完整的记录
+        List<byte[]> queued = scanQueued();
+        mQueuedCount.addAndGet(queued.size());
+
+        Log.d(TAG, "Outbox loaded, queued=" + queued.size());
+        if (mOutboxListener != null) {
+            mOutboxListener.onOutboxLoaded(queued);
+        }
+    }
+
+    private List<byte[]> scanQueued() {
+        List<byte[]> queued = new ArrayList<>();
+        if (mSentOffset >= mLogLength) {
+            return queued;
+        }
+
+        long offset = mSentOffset;
+        boolean torn = false;
+        try {
+            DataInputStream in = openLog(mSentOffset);
+            try {
+                while (offset < mLogLength) {
+                    if (mLogLength - offset < 4) {
+                        torn = true;
+                        break;
+                    }
+                    int length = in.readInt();
+                    if (length < 0 || mLogLength - offset - 4 < length) {
+                        torn = true;
+                        break;
+                    }
+                    byte[] data = new byte[length];
+                    in.readFully(data);
+                    offset += 4 + length;
+                    queued.add(data);
+                }
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "scan outbox failed", e);
+        }
+
+        if (torn) {
+            Log.w(TAG, "truncate torn outbox record at " + offset + ", length=" + mLogLength);
+            truncate(offset);
+        }
+        return queued;
+    }
+
+    // 将内存中的一批消息一次性追加到磁盘
+    private void flush() {
+        List<byte[]> batch;
+        synchronized (mPending) {
+            if (mPending.isEmpty()) {
+                return;
+            }
+            batch = new ArrayList<>(mPending);
+            mPending.clear();
+        }
+
+        int size = 0;
+        for (byte[] data : batch) {
+            size += 4 + data.length;
+        }
+        byte[] buf = new byte[size];
+        int pos = 0;
+        for (byte[] data : batch) {
+            buf[pos++] = (byte) (data.length >>> 24);
+            buf[pos++] = (byte) (data.length >>> 16);
+            buf[pos++] = (byte) (data.length >>> 8);
+            buf[pos++] = (byte) data.length;
+            System.arraycopy(data, 0, buf, pos, data.length);
+            pos += data.length;
+        }
+
+        try {
+            RandomAccessFile out = new RandomAccessFile(mLogFile, "rw");
+            try {
+                out.seek(mLogLength);
+                out.write(buf);
+                out.getFD().sync();
+            } finally {
+                out.close();
+            }
+            mLogLength += size;
+        } catch (IOException e) {
+            Log.e(TAG, "write outbox failed, lost " + batch.size() + " messages", e);
+            // 去掉可能写入了一部分的记录, 之后的追加仍从完整记录之后开始
+            truncate(mLogLength);
+            for (byte[] data : batch) {
+                int remaining = mQueuedCount.decrementAndGet();
+                if (mOutboxListener != null) {
+                    mOutboxListener.onMessageDropped(data, remaining);
+                }
+            }
+            return;
+        }
+
+        if (mOutboxListener != null) {
+            int queued = mQueuedCount.get();
+            for (byte[] data : batch) {
+                mOutboxListener.onMessageQueued(data, queued);
+            }
+        }
+    }
+
+    private void doDrain() {
+        if (mSentOffset >= mLogLength
+                || mConnectionManager.getCurrentConnectState() != ConnectionManager.CONNECT_STATE_CONNECTED) {
+            return;
+        }
+
+        List<byte[]> records = new ArrayList<>();
+        long[] ends = new long[DRAIN_BATCH_MESSAGES];
+        List<byte[]> batch = new ArrayList<>();
+        try {
+            while (mSentOffset < mLogLength) {
+                int maxFrameSize = mConnectionManager.getMaxFrameSize();
+                readBatch(records, ends);
+                batch.clear();
+                for (byte[] data : records) {
+                    if (data.length <= maxFrameSize) {
+                        batch.add(data);
+                    }
+                }
+                int sent = batch.isEmpty() ? 0 : mConnectionManager.sendData(batch);
+
+                // 已发送的消息, 以及夹在其中无法发送的消息
+                int done = 0;
+                for (int sendable = 0; done < records.size(); done++) {
+                    if (records.get(done).length <= maxFrameSize) {
+                        if (sendable == sent) {
+                            break;
+                        }
+                        sendable++;
+                    }
+                }
+                if (done > 0) {
+                    mSentOffset = ends[done - 1];
+                    savePosition();
+                    for (int i = 0; i < done; i++) {
+                        onDone(records.get(i), records.get(i).length <= maxFrameSize);
+                    }
+                }
+
+                // 对端握手后帧长度上限变小时按新的上限重新分批, 否则是连接断开
+                if (done < records.size() && mConnectionManager.getMaxFrameSize() == maxFrameSize) {
+                    Log.d(TAG, "Outbox drain paused, queued=" + mQueuedCount.get());
+                    break;
+                }
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "drain outbox failed", e);
+        }
+
+        if (mSentOffset >= mLogLength) {
+            reset();
+        }
+    }
+
+    private void onDone(byte[] data, boolean sent) {
+        int remaining = mQueuedCount.decrementAndGet();
+        if (!sent) {
+            Log.w(TAG, "drop outbox message larger than peer frame size, length=" + data.length);
+        }
+        if (mOutboxListener == null) {
+            return;
+        }
+        if (sent) {
+            mOutboxListener.onMessageSent(data, remaining);
+        } else {
+            mOutboxListener.onMessageDropped(data, remaining);
+        }
+    }
+
+    // 从 mSentOffset 起读出一批记录, ends 中为每条记录的结束偏移
+    private void readBatch(List<byte[]> records, long[] ends) throws IOException {
+        records.clear();
+        DataInputStream in = openLog(mSentOffset);
+        try {
+            long offset = mSentOffset;
+            int bytes = 0;
+            while (offset < mLogLength && records.size() < DRAIN_BATCH_MESSAGES && bytes < DRAIN_BATCH_BYTES) {
+                int length = in.readInt();
+                byte[] data = new byte[length];
+                in.readFully(data);
+                offset += 4 + length;
+                bytes += length;
+                ends[records.size()] = offset;
+                records.add(data);
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    // 全部发送后清空文件, 避免无限增长
+    private void reset() {
+        if (!mLogFile.delete() && mLogFile.exists()) {
+            Log.e(TAG, "delete outbox failed");
+            return;
+        }
+        mPosFile.delete();
+        mLogLength = 0;
+        mSentOffset = 0;
+    }
+
+    // 追加总是从 mLogLength 处写入, 截断失败时残留的数据会被覆盖或在下次加载时截掉
+    private void truncate(long length) {
+        mLogLength = length;
+        try {
+            RandomAccessFile file = new RandomAccessFile(mLogFile, "rw");
+            try {
+                file.setLength(length);
+            } finally {
+                file.close();
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "truncate outbox failed", e);
+        }
+    }
+
+    private void savePosition() throws IOException {
+        RandomAccessFile pos = new RandomAccessFile(mPosFile, "rw");
+        try {
+            pos.writeLong(mSentOffset);
+        } finally {
+            pos.close();
+        }
+    }
+
+    private DataInputStream openLog(long offset) throws IOException {
+        FileInputStream in = new FileInputStream(mLogFile);
+        skipFully(in, offset);
+        return new DataInputStream(new BufferedInputStream(in, 16 * 1024));
+    }
+
+    private static void skipFully(InputStream in, long count) throws IOException {
+        while (count > 0) {
+            long skipped = in.skip(count);
+            if (skipped <= 0) {
+                throw new EOFException();
+            }
+            count -= skipped;
+        }
+    }
+}
@@ -0,0 +1,617 @@
+package com.curiosity.bluetoothchat;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 一台设备同时连接多个对端时的连接管理, 每个对端一个 {@link ConnectionManager}
+ * <p>
+ * 出站: 每个对端一个发送队列, 调度线程按差额轮询(每轮补充 QUANTUM 字节的额度)在各队列间公平选取消息,
+ * 消息需同时通过对端的出站令牌桶和全部对端共用的出站令牌桶; 每个对端同一时间只有一条消息在发送,
+ * 一个链路变慢不会占住其它对端.
+ * <p>
+ * 入站: 收到的数据立即交给上层, 但按对端的入站令牌桶推迟 {@link ConnectionManager#consumeData(int)},
+ * 对端在接收窗口用完后因没有信用而停止发送, 从而把入站速率限制在设定值附近.
+ * <p>
+ * 连接: 既可以主动连接对端, 也可以 {@link #startListen()} 由一个共用的监听线程接受对端发起的连接,
+ * 按链路的对端地址交给对应的 ConnectionManager, 未知地址自动添加为新对端.
+ * <p>
+ * 限速可以在运行中修改, 速率为 0 表示不限速.
+ */
+public class PeerHub {
+
+    private static final String TAG = "PeerHub";
+
+    // 每个对端出站队列的字节上限, 超过时新消息被丢弃
+    public static final int MAX_QUEUED_BYTES = 256 * 1024;
+
+    // 差额轮询每轮补充的额度
+    private static final int QUANTUM = 4 * 1024;
+    // 令牌桶容量为 1/4 秒的流量, 且不小于一条聊天消息
+    private static final int MIN_BURST = 4 * 1024;
+
+    public interface Listener {
+
+        void onPeerStateChange(String address, int state);
+
+        /**
+         * 收到对端数据, 在该对端的事件线程中回调, 不同对端的回调可能并发
+         */
+        void onPeerData(String address, byte[] data);
+    }
+
+    /**
+     * 对端统计快照
+     */
+    public static class PeerStats {
+
+        public String address;
+        public int state;
+
+        public long sentMessages;
+        public long sentBytes;
+        public long failedMessages;
+        public long droppedMessages;
+        public int queuedMessages;
+        public long queuedBytes;
+        public long receivedMessages;
+        public long receivedBytes;
+
+        // 因本对端限速而等待的次数和总时长
+        public long outThrottledCount;
+        public long outThrottledNanos;
+        public long inThrottledCount;
+        public long inThrottledNanos;
+
+        @Override
+        public String toString() {
+            return String.format("%s: sent %d (%d B, failed %d, dropped %d), queued %d (%d B), received %d (%d B), "
+                            + "out throttled %d / %d ms, in throttled %d / %d ms",
+                    address, sentMessages, sentBytes, failedMessages, droppedMessages, queuedMessages, queuedBytes,
+                    receivedMessages, receivedBytes, outThrottledCount, outThrottledNanos / 1000000,
+                    inThrottledCount, inThrottledNanos / 1000000);
+        }
+    }
+
+    private final Link.Factory mLinkFactory;
+    private final Listener mListener;
+
+    // 调度线程, 执行出站调度和推迟的 consumeData
+    private final ScheduledExecutorService mScheduler;
+    // 执行阻塞的 sendData, 同一时间每个对端最多占用一个线程
+    private final ExecutorService mSendExecutor;
+
+    private final LinkedHashMap<String, Peer> mPeers = new LinkedHashMap<>();
+    private final List<Peer> mPeerList = new ArrayList<>();
+    private int mNextPeer;
+
+    private long mDefaultInboundRate;
+    private long mDefaultOutboundRate;
+    private final TokenBucket mTotalOutbound;
+
+    private Link.Server mServer;
+    private boolean mDispatchPending;
+    private long mWakeAt = Long.MAX_VALUE;
+    private boolean mClosed;
+
+    private final Runnable mDispatchTask = new Runnable() {
+        @Override
+        public void run() {
+            dispatch();
+        }
+    };
+
+    public PeerHub(Link.Factory linkFactory, Listener listener) {
+        mLinkFactory = linkFactory;
+        mListener = listener;
+        mTotalOutbound = new TokenBucket(0, MIN_BURST, System.nanoTime());
+
+        mScheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "PeerHub");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        mSendExecutor = Executors.newCachedThreadPool(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "PeerHubSend");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * 添加对端并发起连接, 已存在时重新连接
+     */
+    public void connect(String address) {
+        Peer peer = getOrAddPeer(address);
+        if (peer != null) {
+            peer.mManager.connect(address);
+        }
+    }
+
+    /**
+     * 开始接受对端发起的连接, 已在监听时直接返回
+     *
+     * @return 创建监听失败时返回 false
+     */
+    public boolean startListen() {
+        final Link.Server server;
+        synchronized (this) {
+            if (mClosed) {
+                return false;
+            }
+            if (mServer != null) {
+                return true;
+            }
+            try {
+                mServer = mLinkFactory.listen(ConnectionManager.BT_NAME, ConnectionManager.BT_UUID);
+            } catch (IOException e) {
+                Log.e(TAG, "listen failed", e);
+                return false;
+            }
+            server = mServer;
+        }
+
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                acceptLoop(server);
+            }
+        }, "PeerHubAccept");
+        thread.setDaemon(true);
+        thread.start();
+        return true;
+    }
+
+    public void stopListen() {
+        Link.Server server;
+        synchronized (this) {
+            server = mServer;
+            mServer = null;
+        }
+        closeServer(server);
+    }
+
+    public void disconnect(String address) {
+        Peer peer = getPeer(address);
+        if (peer != null) {
+            peer.mManager.disconnect();
+        }
+    }
+
+    /**
+     * 断开并移除对端, 未发送的消息丢弃
+     */
+    public void remove(String address) {
+        Peer peer;
+        synchronized (this) {
+            peer = mPeers.remove(address);
+            if (peer == null) {
+                return;
+            }
+            mPeerList.remove(peer);
+            peer.clearQueue();
+        }
+        peer.mManager.release();
+    }
+
+    public void close() {
+        List<Peer> peers;
+        synchronized (this) {
+            mClosed = true;
+            peers = new ArrayList<>(mPeerList);
+            mPeers.clear();
+            mPeerList.clear();
+        }
+        stopListen();
+        for (Peer peer : peers) {
+            peer.mManager.release();
+        }
+        mScheduler.shutdownNow();
+        mSendExecutor.shutdownNow();
+    }
+
+    /**
+     * 排队发送数据, 立即返回. 对端未连接, 数据过大或队列已满时返回 false;
+     * 发送结果在 {@link PeerStats} 中统计
+     */
+    public boolean send(String address, byte[] data) {
+        synchronized (this) {
+            Peer peer = mPeers.get(address);
+            if (peer == null || data.length > peer.mManager.getMaxFrameSize()
+                    || peer.mManager.getCurrentConnectState() != ConnectionManager.CONNECT_STATE_CONNECTED) {
+                return false;
+            }
+            if (peer.mQueuedBytes + data.length > MAX_QUEUED_BYTES) {
+                peer.mDroppedMessages++;
+                return false;
+            }
+            peer.mQueue.add(data);
+            peer.mQueuedBytes += data.length;
+        }
+        kick();
+        return true;
+    }
+
+    /**
+     * 设置未单独设置过的对端的入站和出站速率, 字节/秒, 0 为不限速
+     */
+    public void setDefaultLimits(long inboundRate, long outboundRate) {
+        long now = System.nanoTime();
+        synchronized (this) {
+            mDefaultInboundRate = inboundRate;
+            mDefaultOutboundRate = outboundRate;
+            for (Peer peer : mPeerList) {
+                if (!peer.mCustomLimits) {
+                    peer.setLimits(inboundRate, outboundRate, now);
+                }
+            }
+        }
+        kick();
+    }
+
+    /**
+     * 单独设置某个对端的入站和出站速率, 字节/秒, 0 为不限速
+     */
+    public void setPeerLimits(String address, long inboundRate, long outboundRate) {
+        synchronized (this) {
+            Peer peer = mPeers.get(address);
+            if (peer == null) {
+                return;
+            }
+            peer.mCustomLimits = true;
+            peer.setLimits(inboundRate, outboundRate, System.nanoTime());
+        }
+        kick();
+    }
+
+    /**
+     * 设置全部对端共用的出站速率, 字节/秒, 0 为不限速. 受限时各对端按轮询公平分配
+     */
+    public void setTotalOutboundLimit(long rate) {
+        mTotalOutbound.setRate(rate, burstFor(rate), System.nanoTime());
+        kick();
+    }
+
+    public synchronized List<PeerStats> getStats() {
+        List<PeerStats> stats = new ArrayList<>();
+        for (Peer peer : mPeerList) {
+            stats.add(peer.getStats());
+        }
+        return stats;
+    }
+
+    public synchronized PeerStats getStats(String address) {
+        Peer peer = mPeers.get(address);
+        return peer != null ? peer.getStats() : null;
+    }
+
+    //==============================================================================================
+    private synchronized Peer getPeer(String address) {
+        return mPeers.get(address);
+    }
+
+    // 已关闭时返回 null
+    private synchronized Peer getOrAddPeer(String address) {
+        if (mClosed) {
+            return null;
+        }
+        Peer peer = mPeers.get(address);
+        if (peer == null) {
+            peer = new Peer(address);
+            mPeers.put(address, peer);
+            mPeerList.add(peer);
+        }
+        return peer;
+    }
+
+    // 监听线程: 把对端发起的连接交给该对端的 ConnectionManager, 对端已有连接时拒绝
+    private void acceptLoop(Link.Server server) {
+        while (true) {
+            Link link;
+            try {
+                link = server.accept();
+            } catch (IOException e) {
+                Log.d(TAG, "accept end, " + e);
+                break;
+            }
+
+            String address = link.getAddress();
+            Peer peer = address != null ? getOrAddPeer(address) : null;
+            if (peer == null || !peer.mManager.attach(link)) {
+                Log.d(TAG, "reject connection from " + address);
+                try {
+                    link.close();
+                } catch (IOException e) {
+                    Log.e(TAG, "close rejected link failed", e);
+                }
+            }
+        }
+
+        synchronized (this) {
+            if (mServer == server) {
+                mServer = null;
+            }
+        }
+        closeServer(server);
+    }
+
+    private static void closeServer(Link.Server server) {
+        if (server == null) {
+            return;
+        }
+        try {
+            server.close();
+        } catch (IOException e) {
+            Log.e(TAG, "close server failed", e);
+        }
+    }
+
+    private static long burstFor(long rate) {
+        return Math.max(rate / 4, MIN_BURST);
+    }
+
+    private void kick() {
+        synchronized (this) {
+            if (mDispatchPending || mClosed) {
+                return;
+            }
+            mDispatchPending = true;
+        }
+        mScheduler.execute(mDispatchTask);
+    }
+
+    // 调度线程中执行, 按差额轮询各对端队列, 把通过限速的消息交给发送线程.
+    // 轮到的对端补充一次额度, 在额度内连续取出消息
+    private void dispatch() {
+        long now = System.nanoTime();
+        long wait = Long.MAX_VALUE;
+
+        synchronized (this) {
+            mDispatchPending = false;
+            if (now >= mWakeAt) {
+                mWakeAt = Long.MAX_VALUE;
+            }
+
+            // 连续 count 个对端都没有进展时结束本次调度
+            int idle = 0;
+            while (!mPeerList.isEmpty() && idle < mPeerList.size()) {
+                int count = mPeerList.size();
+                mNextPeer %= count;
+                Peer peer = mPeerList.get(mNextPeer);
+
+                if (peer.mQueue.isEmpty() || peer.mSending) {
+                    if (peer.mQueue.isEmpty()) {
+                        peer.mDeficit = 0;
+                    }
+                    endTurn(peer);
+                    idle++;
+                    continue;
+                }
+
+                boolean progress = false;
+                if (!peer.mInTurn) {
+                    // 额度最多积累到能发出队首消息, 被限速的对端不会攒下大量额度
+                    long deficit = Math.min(peer.mDeficit + QUANTUM,
+                            Math.max(peer.mDeficit, Math.max(QUANTUM, peer.mQueue.getFirst().length)));
+                    progress = deficit > peer.mDeficit;
+                    peer.mDeficit = deficit;
+                    peer.mInTurn = true;
+                }
+
+                List<byte[]> batch = new ArrayList<>();
+                boolean blocked = false;
+                while (!peer.mQueue.isEmpty() && peer.mQueue.getFirst().length <= peer.mDeficit) {
+                    byte[] data = peer.mQueue.getFirst();
+
+                    long peerDelay = peer.mOutbound.getDelay(data.length, now);
+                    if (peerDelay > 0) {
+                        if (peer.mThrottledSince == 0) {
+                            peer.mThrottledSince = now;
+                        }
+                        wait = Math.min(wait, peerDelay);
+                        break;
+                    }
+                    // 共用额度只在轮次开始时检查, 之后本轮额度内的消息可以透支, 由后面的对端等待偿还;
+                    // 不足时停在当前对端按轮询顺序等待, 否则小消息总能抢先用掉刚补充的额度
+                    long totalDelay = batch.isEmpty() ? mTotalOutbound.getDelay(data.length, now) : 0;
+                    if (totalDelay > 0) {
+                        wait = Math.min(wait, totalDelay);
+                        blocked = true;
+                        break;
+                    }
+
+                    if (peer.mThrottledSince != 0) {
+                        peer.mOutbound.onThrottled(now - peer.mThrottledSince);
+                        peer.mThrottledSince = 0;
+                    }
+                    peer.mOutbound.take(data.length, now);
+                    mTotalOutbound.take(data.length, now);
+                    peer.mDeficit -= data.length;
+                    peer.mQueue.removeFirst();
+                    peer.mQueuedBytes -= data.length;
+                    batch.add(data);
+                }
+
+                if (blocked) {
+                    break;
+                }
+                if (!batch.isEmpty()) {
+                    peer.mSending = true;
+                    mSendExecutor.execute(new SendTask(peer, batch));
+                    progress = true;
+                }
+                endTurn(peer);
+                idle = progress ? 0 : idle + 1;
+            }
+
+            if (wait == Long.MAX_VALUE || mClosed || now + wait >= mWakeAt) {
+                return;
+            }
+            mWakeAt = now + wait;
+        }
+        mScheduler.schedule(mDispatchTask, wait, TimeUnit.NANOSECONDS);
+    }
+
+    private void endTurn(Peer peer) {
+        peer.mInTurn = false;
+        mNextPeer = (mNextPeer + 1) % mPeerList.size();
+    }
+
+    // 按顺序发送一个对端的一批消息, 失败后其余消息也记为失败
+    private class SendTask implements Runnable {
+
+        private final Peer mPeer;
+        private final List<byte[]> mBatch;
+
+        SendTask(Peer peer, List<byte[]> batch) {
+            mPeer = peer;
+            mBatch = batch;
+        }
+
+        @Override
+        public void run() {
+            int sent = 0;
+            long bytes = 0;
+            for (byte[] data : mBatch) {
+                if (!mPeer.mManager.sendData(data)) {
+                    break;
+                }
+                sent++;
+                bytes += data.length;
+            }
+            synchronized (PeerHub.this) {
+                mPeer.mSending = false;
+                mPeer.mSentMessages += sent;
+                mPeer.mSentBytes += bytes;
+                mPeer.mFailedMessages += mBatch.size() - sent;
+            }
+            kick();
+        }
+    }
+
+    private class Peer implements ConnectionManager.ConnectionListener {
+
+        final String mAddress;
+        final ConnectionManager mManager;
+        final TokenBucket mInbound;
+        final TokenBucket mOutbound;
+        boolean mCustomLimits;
+
+        // 以下由 PeerHub 锁保护
+        final LinkedList<byte[]> mQueue = new LinkedList<>();
+        long mQueuedBytes;
+        long mDeficit;
+        boolean mInTurn;
+        boolean mSending;
+        long mThrottledSince;
+
+        long mSentMessages;
+        long mSentBytes;
+        long mFailedMessages;
+        long mDroppedMessages;
+        long mReceivedMessages;
+        long mReceivedBytes;
+
+        Peer(String address) {
+            long now = System.nanoTime();
+            mAddress = address;
+            mInbound = new TokenBucket(mDefaultInboundRate, burstFor(mDefaultInboundRate), now);
+            mOutbound = new TokenBucket(mDefaultOutboundRate, burstFor(mDefaultOutboundRate), now);
+            mManager = new ConnectionManager(this, mLinkFactory);
+        }
+
+        void setLimits(long inboundRate, long outboundRate, long now) {
+            mInbound.setRate(inboundRate, burstFor(inboundRate), now);
+            mOutbound.setRate(outboundRate, burstFor(outboundRate), now);
+        }
+
+        void clearQueue() {
+            mDroppedMessages += mQueue.size();
+            mQueue.clear();
+            mQueuedBytes = 0;
+            mDeficit = 0;
+            mInTurn = false;
+            mThrottledSince = 0;
+        }
+
+        PeerStats getStats() {
+            PeerStats stats = new PeerStats();
+            stats.address = mAddress;
+            stats.state = mManager.getCurrentConnectState();
+            stats.sentMessages = mSentMessages;
+            stats.sentBytes = mSentBytes;
+            stats.failedMessages = mFailedMessages;
+            stats.droppedMessages = mDroppedMessages;
+            stats.queuedMessages = mQueue.size();
+            stats.queuedBytes = mQueuedBytes;
+            stats.receivedMessages = mReceivedMessages;
+            stats.receivedBytes = mReceivedBytes;
+            stats.outThrottledCount = mOutbound.getThrottledCount();
+            stats.outThrottledNanos = mOutbound.getThrottledNanos();
+            stats.inThrottledCount = mInbound.getThrottledCount();
+            stats.inThrottledNanos = mInbound.getThrottledNanos();
+            return stats;
+        }
+
+        @Override
+        public void onConnectStateChange(int oldState, int State) {
+            if (State == ConnectionManager.CONNECT_STATE_IDLE) {
+                synchronized (PeerHub.this) {
+                    clearQueue();
+                }
+            }
+            mListener.onPeerStateChange(mAddress, State);
+        }
+
+        @Override
+        public void onListenStateChange(int oldState, int State) {
+        }
+
+        @Override
+        public void onSendData(boolean suc, byte[] data) {
+        }
+
+        @Override
+        public void onReadData(final byte[] data) {
+            synchronized (PeerHub.this) {
+                mReceivedMessages++;
+                mReceivedBytes += data.length;
+            }
+            mListener.onPeerData(mAddress, data);
+
+            // 按入站速率推迟归还接收窗口
+            long delay = mInbound.reserve(data.length, System.nanoTime());
+            if (delay == 0) {
+                mManager.consumeData(data.length);
+                return;
+            }
+            try {
+                mScheduler.schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        mManager.consumeData(data.length);
+                    }
+                }, delay, TimeUnit.NANOSECONDS);
+            } catch (RejectedExecutionException e) {
+                Log.d(TAG, "hub closed, drop consume of " + mAddress);
+            }
+        }
+    }
+}
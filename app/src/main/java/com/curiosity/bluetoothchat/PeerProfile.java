@@ -0,0 +1,127 @@
+package com.curiosity.bluetoothchat;
+
+import java.net.ProtocolException;
+
+/**
+ * 连接双方的能力: 协议版本, 支持的功能, 最大帧长度和接收窗口
+ * <p>
+ * 连接建立后双方各发送一个握手帧(TYPE_HELLO), 负载依次为上述四项(varint), 之后的字段留给新版本, 旧版本忽略.
+ * 双方不等待对方, 收到握手帧后再调整发送参数. 所有版本都保证至少接受
+ * {@link ConnectionManager#RECEIVE_WINDOW} 的接收窗口和 {@link FrameCodec#MAX_FRAME_SIZE} 的帧,
+ * 因此握手完成前按这个下限发送是安全的; 对端的能力按地址缓存后, 重连时可直接按缓存的功能和帧长度发送,
+ * 窗口可能已经变小, 仍在握手帧确认后再放大.
+ */
+public class PeerProfile {
+
+    public static final int PROTOCOL_VERSION = 1;
+    // 低于该版本的对端直接断开
+    public static final int MIN_PROTOCOL_VERSION = 1;
+
+    public static final int FEATURE_AUDIO = 1;
+    public static final int FEATURE_SYNC = 1 << 1;
+    public static final int FEATURE_STREAMS = 1 << 2;
+
+    public static final int LOCAL_FEATURES = FEATURE_AUDIO | FEATURE_SYNC | FEATURE_STREAMS;
+
+    /**
+     * 按对端地址保存对端发来的能力, 重连时使用
+     */
+    public interface Store {
+
+        /**
+         * @return 未保存过时返回 null
+         */
+        PeerProfile load(String address);
+
+        void save(String address, PeerProfile profile);
+    }
+
+    public final int version;
+    public final int features;
+    public final int maxFrameSize;
+    public final int receiveWindow;
+
+    public PeerProfile(int version, int features, int maxFrameSize, int receiveWindow) {
+        this.version = version;
+        this.features = features;
+        this.maxFrameSize = maxFrameSize;
+        this.receiveWindow = receiveWindow;
+    }
+
+    /**
+     * 本端的能力
+     */
+    public static PeerProfile local(int receiveWindow) {
+        return new PeerProfile(PROTOCOL_VERSION, LOCAL_FEATURES, FrameCodec.MAX_FRAME_SIZE, receiveWindow);
+    }
+
+    /**
+     * 协商结果: 版本, 功能和帧长度取双方的较小值或交集, 接收窗口为对端的窗口. 帧长度和窗口都不低于下限,
+     * 缓存中读出的能力不经过 {@link #decode} 检查, 在这里兜底
+     */
+    public static PeerProfile negotiate(PeerProfile local, PeerProfile remote) {
+        return new PeerProfile(Math.min(local.version, remote.version),
+                local.features & remote.features,
+                Math.max(FrameCodec.MAX_FRAME_SIZE, Math.min(local.maxFrameSize, remote.maxFrameSize)),
+                Math.max(ConnectionManager.RECEIVE_WINDOW, remote.receiveWindow));
+    }
+
+    public boolean hasFeature(int feature) {
+        return (features & feature) == feature;
+    }
+
+    public byte[] encode() {
+        byte[] payload = new byte[Varint.size(version) + Varint.size(features)
+                + Varint.size(maxFrameSize) + Varint.size(receiveWindow)];
+        int pos = Varint.write(payload, 0, version);
+        pos = Varint.write(payload, pos, features);
+        pos = Varint.write(payload, pos, maxFrameSize);
+        Varint.write(payload, pos, receiveWindow);
+        return payload;
+    }
+
+    /**
+     * @throws ProtocolException 负载不完整, 数值越界或帧长度低于所有版本都接受的下限
+     */
+    public static PeerProfile decode(byte[] buf, int offset, int length) throws ProtocolException {
+        int end = offset + length;
+        long[] fields = new long[4];
+        int pos = offset;
+        for (int i = 0; i < fields.length; i++) {
+            int size = Varint.length(buf, pos, end);
+            if (size < 0) {
+                throw new ProtocolException("malformed hello frame");
+            }
+            fields[i] = Varint.read(buf, pos);
+            if (fields[i] < 0 || fields[i] > Integer.MAX_VALUE) {
+                throw new ProtocolException("hello field out of range: " + fields[i]);
+            }
+            pos += size;
+        }
+        if (fields[2] < FrameCodec.MAX_FRAME_SIZE) {
+            throw new ProtocolException("hello max frame size below minimum: " + fields[2]);
+        }
+        return new PeerProfile((int) fields[0], (int) fields[1], (int) fields[2], (int) fields[3]);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (!(o instanceof PeerProfile)) {
+            return false;
+        }
+        PeerProfile other = (PeerProfile) o;
+        return version == other.version && features == other.features
+                && maxFrameSize == other.maxFrameSize && receiveWindow == other.receiveWindow;
+    }
+
+    @Override
+    public int hashCode() {
+        return ((version * 31 + features) * 31 + maxFrameSize) * 31 + receiveWindow;
+    }
+
+    @Override
+    public String toString() {
+        return "v" + version + " features=0x" + Integer.toHexString(features)
+                + " maxFrame=" + maxFrameSize + " window=" + receiveWindow;
+    }
+}
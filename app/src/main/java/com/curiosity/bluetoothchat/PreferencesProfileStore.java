@@ -0,0 +1,43 @@
+package com.curiosity.bluetoothchat;
+
+import android.content.SharedPreferences;
+
+/**
+ * 将对端能力保存在 SharedPreferences 中, 每个地址一项, 值为 "版本,功能,最大帧长度,接收窗口"
+ */
+public class PreferencesProfileStore implements PeerProfile.Store {
+
+    private static final String KEY_PREFIX = "peer_profile_";
+
+    private final SharedPreferences mPreferences;
+
+    public PreferencesProfileStore(SharedPreferences preferences) {
+        mPreferences = preferences;
+    }
+
+    @Override
+    public PeerProfile load(String address) {
+        String value = mPreferences.getString(KEY_PREFIX + address, null);
+        if (value == null) {
+            return null;
+        }
+        String[] fields = value.split(",");
+        if (fields.length < 4) {
+            return null;
+        }
+        try {
+            return new PeerProfile(Integer.parseInt(fields[0]), Integer.parseInt(fields[1]),
+                    Integer.parseInt(fields[2]), Integer.parseInt(fields[3]));
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    @Override
+    public void save(String address, PeerProfile profile) {
+        mPreferences.edit()
+                .putString(KEY_PREFIX + address, profile.version + "," + profile.features + ","
+                        + profile.maxFrameSize + "," + profile.receiveWindow)
+                .apply();
+    }
+}
@@ -0,0 +1,423 @@
+package com.curiosity.bluetoothchat;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.UUID;
+
+/**
+ * 模拟 RFCOMM 链路网络, 用于在没有真机的情况下测试 ConnectionManager
+ * <p>
+ * 每个节点通过 {@link #node(String)} 获得一个 {@link Link.Factory}, 传给 ConnectionManager
+ * 即可替换 BluetoothSocket. 带宽, 延迟, 抖动, 重传, 卡顿和断线均由种子随机数和
+ * {@link LinkClock} 驱动. 每个方向的管道有独立的随机数, 种子由网络种子, 两端地址和这对地址的连接次数决定,
+ * 与各线程的执行顺序无关; 配合 {@link LinkClock.Virtual}, 相同的种子得到相同的结果.
+ */
+public class SimulatedNetwork {
+
+    /**
+     * 链路参数
+     */
+    public static class Config {
+
+        // 带宽上限, 字节/秒
+        public long bandwidthBytesPerSecond = 100 * 1024;
+        // 单次写入的固定延迟
+        public long latencyNanos = 20 * 1000000L;
+        // 延迟抖动上限, 在 [0, jitterNanos) 内均匀分布
+        public long jitterNanos = 10 * 1000000L;
+        // 单次写入丢包的概率, RFCOMM 为可靠传输, 丢包表现为重传延迟
+        public double lossProbability = 0.01;
+        public long retransmitNanos = 60 * 1000000L;
+        // 单次写入遇到卡顿的概率及卡顿时长
+        public double stallProbability = 0.001;
+        public long stallNanos = 500 * 1000000L;
+        // 单次写入后链路突然断开的概率
+        public double disconnectProbability = 0;
+        // 建立连接所需时间
+        public long connectNanos = 1000 * 1000000L;
+    }
+
+    private final Config mConfig;
+    private final LinkClock mClock;
+    private final long mSeed;
+    // 每个方向已建立的管道数
+    private final Map<String, Integer> mPipeCounts = new HashMap<>();
+
+    private final Map<String, SimulatedServer> mServers = new HashMap<>();
+    private final List<SimulatedLink> mLinks = new ArrayList<>();
+
+    public SimulatedNetwork(Config config, long seed, LinkClock clock) {
+        mConfig = config;
+        mClock = clock;
+        mSeed = seed;
+    }
+
+    /**
+     * 获取指定地址节点的链路工厂
+     */
+    public Link.Factory node(final String address) {
+        return new Link.Factory() {
+            @Override
+            public Link.Server listen(String name, UUID uuid) throws IOException {
+                SimulatedServer server = new SimulatedServer(address);
+                synchronized (SimulatedNetwork.this) {
+                    mServers.put(address, server);
+                }
+                return server;
+            }
+
+            @Override
+            public Link create(String remoteAddress, UUID uuid) throws IOException {
+                return new SimulatedLink(address, remoteAddress);
+            }
+        };
+    }
+
+    /**
+     * 断开网络中所有已建立的链路, 模拟信号突然丢失
+     */
+    public void breakAll() {
+        List<SimulatedLink> links;
+        synchronized (this) {
+            links = new ArrayList<>(mLinks);
+        }
+        for (SimulatedLink link : links) {
+            link.breakLink();
+        }
+    }
+
+    public synchronized int getActiveLinkCount() {
+        return mLinks.size();
+    }
+
+    private synchronized Random newRandom(String from, String to) {
+        String key = from + ">" + to;
+        Integer count = mPipeCounts.get(key);
+        count = count != null ? count + 1 : 1;
+        mPipeCounts.put(key, count);
+        return new Random((mSeed * 31 + key.hashCode()) * 31 + count);
+    }
+
+    //==============================================================================================
+    private class SimulatedServer implements Link.Server {
+
+        private final String mAddress;
+        private final LinkedList<Link> mPending = new LinkedList<>();
+        private boolean mClosed;
+
+        SimulatedServer(String address) {
+            mAddress = address;
+        }
+
+        synchronized void offer(Link link) {
+            mPending.add(link);
+            notifyAll();
+        }
+
+        @Override
+        public synchronized Link accept() throws IOException {
+            while (mPending.isEmpty() && !mClosed) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    throw new InterruptedIOException();
+                }
+            }
+            if (mClosed) {
+                throw new IOException("socket closed");
+            }
+            return mPending.removeFirst();
+        }
+
+        @Override
+        public void close() {
+            synchronized (SimulatedNetwork.this) {
+                if (mServers.get(mAddress) == this) {
+                    mServers.remove(mAddress);
+                }
+            }
+            synchronized (this) {
+                mClosed = true;
+                notifyAll();
+            }
+        }
+    }
+
+    // 单向数据管道, 按配置计算每段数据的送达时间
+    private class Pipe {
+
+        private final Random mPipeRandom;
+        private final LinkedList<Segment> mQueue = new LinkedList<>();
+
+        private long mSendDoneAt;
+        private long mLastDeliverAt;
+        private boolean mClosed;
+        private boolean mBroken;
+
+        private SimulatedLink mOwner;
+
+        Pipe(Random random) {
+            mPipeRandom = random;
+        }
+
+        void write(byte[] b, int off, int len) throws IOException {
+            long sendDoneAt;
+            boolean disconnect = false;
+
+            synchronized (this) {
+                if (mClosed || mBroken) {
+                    throw new IOException("Broken pipe");
+                }
+
+                long now = mClock.nanoTime();
+                long start = Math.max(now, mSendDoneAt);
+                long deliverAt = start + len * 1000000000L / mConfig.bandwidthBytesPerSecond;
+
+                if (mPipeRandom.nextDouble() < mConfig.stallProbability) {
+                    deliverAt += mConfig.stallNanos;
+                }
+                mSendDoneAt = deliverAt;
+
+                deliverAt += mConfig.latencyNanos;
+                if (mConfig.jitterNanos > 0) {
+                    deliverAt += (long) (mPipeRandom.nextDouble() * mConfig.jitterNanos);
+                }
+                if (mPipeRandom.nextDouble() < mConfig.lossProbability) {
+                    deliverAt += mConfig.retransmitNanos;
+                }
+                // 保证按顺序送达
+                deliverAt = Math.max(deliverAt, mLastDeliverAt);
+                mLastDeliverAt = deliverAt;
+
+                byte[] data = new byte[len];
+                System.arraycopy(b, off, data, 0, len);
+                mQueue.add(new Segment(data, deliverAt));
+                notifyAll();
+
+                sendDoneAt = mSendDoneAt;
+                disconnect = mPipeRandom.nextDouble() < mConfig.disconnectProbability;
+            }
+
+            if (disconnect) {
+                mOwner.breakLink();
+                throw new IOException("Broken pipe");
+            }
+
+            // 数据按带宽发送完成前写入方阻塞
+            sleepUntil(sendDoneAt);
+        }
+
+        int read(byte[] b, int off, int len) throws IOException {
+            Segment segment;
+            synchronized (this) {
+                while (mQueue.isEmpty() && !mClosed && !mBroken) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        throw new InterruptedIOException();
+                    }
+                }
+                if (mBroken || mQueue.isEmpty()) {
+                    throw new IOException("bt socket closed, read return: -1");
+                }
+                segment = mQueue.getFirst();
+            }
+
+            sleepUntil(segment.mDeliverAt);
+
+            synchronized (this) {
+                if (mBroken) {
+                    throw new IOException("bt socket closed, read return: -1");
+                }
+                int count = Math.min(len, segment.mData.length - segment.mOffset);
+                System.arraycopy(segment.mData, segment.mOffset, b, off, count);
+                segment.mOffset += count;
+                if (segment.mOffset == segment.mData.length) {
+                    mQueue.removeFirst();
+                }
+                return count;
+            }
+        }
+
+        // 对端关闭, 已送出的数据仍可读完
+        synchronized void close() {
+            mClosed = true;
+            notifyAll();
+        }
+
+        // 本端关闭或链路断开, 读写立即失败
+        synchronized void breakPipe() {
+            mBroken = true;
+            mQueue.clear();
+            notifyAll();
+        }
+
+        private void sleepUntil(long time) throws IOException {
+            try {
+                mClock.sleepUntil(time);
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException();
+            }
+        }
+    }
+
+    private static class Segment {
+
+        final byte[] mData;
+        final long mDeliverAt;
+        int mOffset;
+
+        Segment(byte[] data, long deliverAt) {
+            mData = data;
+            mDeliverAt = deliverAt;
+        }
+    }
+
+    private class SimulatedLink implements Link {
+
+        private final String mLocalAddress;
+        private final String mRemoteAddress;
+
+        private Pipe mIn;
+        private Pipe mOut;
+        private SimulatedLink mPeer;
+        private boolean mClosed;
+
+        SimulatedLink(String localAddress, String remoteAddress) {
+            mLocalAddress = localAddress;
+            mRemoteAddress = remoteAddress;
+        }
+
+        @Override
+        public void connect() throws IOException {
+            try {
+                mClock.sleepUntil(mClock.nanoTime() + mConfig.connectNanos);
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException();
+            }
+
+            SimulatedServer server;
+            synchronized (SimulatedNetwork.this) {
+                server = mServers.get(mRemoteAddress);
+            }
+            synchronized (this) {
+                if (mClosed || server == null) {
+                    throw new IOException("read failed, socket might closed or timeout");
+                }
+
+                Pipe up = new Pipe(newRandom(mLocalAddress, mRemoteAddress));
+                Pipe down = new Pipe(newRandom(mRemoteAddress, mLocalAddress));
+                SimulatedLink peer = new SimulatedLink(mRemoteAddress, mLocalAddress);
+                attach(down, up, peer);
+                peer.attach(up, down, this);
+
+                synchronized (SimulatedNetwork.this) {
+                    mLinks.add(this);
+                    mLinks.add(peer);
+                }
+                server.offer(peer);
+            }
+        }
+
+        private synchronized void attach(Pipe in, Pipe out, SimulatedLink peer) {
+            mIn = in;
+            mOut = out;
+            mPeer = peer;
+            out.mOwner = this;
+        }
+
+        @Override
+        public synchronized InputStream getInputStream() throws IOException {
+            if (mIn == null) {
+                throw new IOException("not connected");
+            }
+            final Pipe pipe = mIn;
+            return new InputStream() {
+                @Override
+                public int read() throws IOException {
+                    byte[] b = new byte[1];
+                    return read(b, 0, 1) < 0 ? -1 : b[0] & 0xff;
+                }
+
+                @Override
+                public int read(byte[] b, int off, int len) throws IOException {
+                    return pipe.read(b, off, len);
+                }
+            };
+        }
+
+        @Override
+        public synchronized OutputStream getOutputStream() throws IOException {
+            if (mOut == null) {
+                throw new IOException("not connected");
+            }
+            final Pipe pipe = mOut;
+            return new OutputStream() {
+                @Override
+                public void write(int b) throws IOException {
+                    write(new byte[]{(byte) b}, 0, 1);
+                }
+
+                @Override
+                public void write(byte[] b, int off, int len) throws IOException {
+                    pipe.write(b, off, len);
+                }
+            };
+        }
+
+        @Override
+        public String getAddress() {
+            return mRemoteAddress;
+        }
+
+        @Override
+        public void close() {
+            SimulatedLink peer;
+            synchronized (this) {
+                if (mClosed) {
+                    return;
+                }
+                mClosed = true;
+                if (mIn != null) {
+                    mIn.breakPipe();
+                    mOut.close();
+                }
+                peer = mPeer;
+            }
+            synchronized (SimulatedNetwork.this) {
+                mLinks.remove(this);
+            }
+            if (peer != null) {
+                peer.onPeerClosed();
+            }
+        }
+
+        // 对端关闭后, 读完剩余数据即失败, 写立即失败
+        private void onPeerClosed() {
+            synchronized (this) {
+                if (mOut != null) {
+                    mOut.breakPipe();
+                }
+            }
+        }
+
+        void breakLink() {
+            SimulatedLink peer;
+            synchronized (this) {
+                peer = mPeer;
+            }
+            close();
+            if (peer != null) {
+                peer.close();
+            }
+        }
+    }
+}
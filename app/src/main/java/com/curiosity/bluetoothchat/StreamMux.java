@@ -0,0 +1,492 @@
+package com.curiosity.bluetoothchat;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.ProtocolException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * 在一个连接上复用多条逻辑流, 每条流有独立的 InputStream/OutputStream
+ * <p>
+ * 流帧(TYPE_STREAM)负载: 流 ID(varint) 操作(byte) 数据. 操作为 OPEN 打开, DATA 数据, FIN 本端写结束,
+ * RESET 中止, CREDIT 授予对端的流信用(varint). 发起连接的一端使用奇数 ID, 接受连接的一端使用偶数 ID.
+ * <p>
+ * 每条流有独立的接收缓冲和流量控制窗口, 一条流的读方处理慢只会阻塞该流的写方.
+ * OPEN, DATA, FIN 按写入顺序由写线程发出, 不占用连接级信用; CREDIT 和 RESET 作为控制帧优先发送.
+ */
+public class StreamMux {
+
+    // 每条流的接收窗口
+    public static final int STREAM_WINDOW = 64 * 1024;
+    // 同时打开的流数上限, 超过时对端打开的流被中止
+    public static final int MAX_STREAMS = 32;
+
+    private static final int MAX_CHUNK = 8 * 1024;
+    private static final int CREDIT_GRANT_THRESHOLD = STREAM_WINDOW / 4;
+    private static final int INITIAL_BUFFER_SIZE = 4 * 1024;
+
+    private static final int OP_OPEN = 0;
+    private static final int OP_DATA = 1;
+    private static final int OP_FIN = 2;
+    private static final int OP_RESET = 3;
+    private static final int OP_CREDIT = 4;
+
+    public interface Listener {
+
+        /**
+         * 对端打开了一条流, 在读线程中回调, 不能阻塞, 读写应在其它线程中进行
+         */
+        void onStreamOpened(Stream stream);
+    }
+
+    private final FrameWriter mWriter;
+    private final Listener mListener;
+
+    private final HashMap<Long, Stream> mStreams = new HashMap<>();
+    private long mNextId;
+    private boolean mClosed;
+
+    /**
+     * @param initiator 是否为发起连接的一端, 决定本端使用的流 ID 奇偶
+     */
+    public StreamMux(FrameWriter writer, boolean initiator, Listener listener) {
+        mWriter = writer;
+        mListener = listener;
+        mNextId = initiator ? 1 : 2;
+    }
+
+    /**
+     * 打开一条新流, 阻塞直到 OPEN 帧写入链路
+     */
+    public Stream open() throws IOException {
+        Stream stream;
+        synchronized (this) {
+            if (mClosed) {
+                throw new IOException("connection closed");
+            }
+            if (mStreams.size() >= MAX_STREAMS) {
+                throw new IOException("too many streams");
+            }
+            stream = new Stream(mNextId);
+            mNextId += 2;
+            mStreams.put(stream.mId, stream);
+        }
+
+        if (!mWriter.sendStream(encode(stream.mId, OP_OPEN, null, 0, 0))) {
+            stream.onError(new IOException("connection closed"));
+            throw new IOException("connection closed");
+        }
+        return stream;
+    }
+
+    public synchronized int getStreamCount() {
+        return mStreams.size();
+    }
+
+    /**
+     * 连接断开, 所有流的读写都以异常结束
+     */
+    public void close() {
+        List<Stream> streams;
+        synchronized (this) {
+            mClosed = true;
+            streams = new ArrayList<>(mStreams.values());
+            mStreams.clear();
+        }
+        for (Stream stream : streams) {
+            stream.onError(new IOException("connection closed"));
+        }
+    }
+
+    /**
+     * 收到流帧, 在读线程中调用
+     *
+     * @throws ProtocolException 对端违反协议, 连接应当断开
+     */
+    public void onFrame(byte[] buf, int offset, int length) throws ProtocolException {
+        int end = offset + length;
+        int n = Varint.length(buf, offset, end);
+        if (n < 0 || offset + n >= end) {
+            throw new ProtocolException("malformed stream frame");
+        }
+        long id = Varint.read(buf, offset);
+        int op = buf[offset + n] & 0xFF;
+        int pos = offset + n + 1;
+
+        if (op == OP_OPEN) {
+            onOpen(id);
+            return;
+        }
+
+        Stream stream;
+        synchronized (this) {
+            stream = mStreams.get(id);
+        }
+        // 本端已中止或已结束的流, 之后到达的帧直接忽略
+        if (stream == null) {
+            return;
+        }
+
+        switch (op) {
+            case OP_DATA:
+                stream.onData(buf, pos, end - pos);
+                break;
+
+            case OP_FIN:
+                stream.onFin();
+                break;
+
+            case OP_RESET:
+                stream.onError(new IOException("stream reset by peer"));
+                break;
+
+            case OP_CREDIT:
+                if (Varint.length(buf, pos, end) < 0) {
+                    throw new ProtocolException("malformed stream credit");
+                }
+                stream.onCredit(Varint.read(buf, pos));
+                break;
+        }
+    }
+
+    //==============================================================================================
+    private void onOpen(long id) throws ProtocolException {
+        Stream stream;
+        synchronized (this) {
+            if ((id & 1) == (mNextId & 1) || mStreams.containsKey(id)) {
+                throw new ProtocolException("bad stream id: " + id);
+            }
+            if (mClosed) {
+                return;
+            }
+            if (mListener == null || mStreams.size() >= MAX_STREAMS) {
+                stream = null;
+            } else {
+                stream = new Stream(id);
+                mStreams.put(id, stream);
+            }
+        }
+
+        if (stream == null) {
+            mWriter.sendControl(FrameCodec.TYPE_STREAM, encode(id, OP_RESET, null, 0, 0));
+            return;
+        }
+        mListener.onStreamOpened(stream);
+    }
+
+    private synchronized void remove(Stream stream) {
+        if (mStreams.get(stream.mId) == stream) {
+            mStreams.remove(stream.mId);
+        }
+    }
+
+    private static byte[] encode(long id, int op, byte[] data, int offset, int length) {
+        byte[] payload = new byte[Varint.size(id) + 1 + length];
+        int pos = Varint.write(payload, 0, id);
+        payload[pos++] = (byte) op;
+        if (length > 0) {
+            System.arraycopy(data, offset, payload, pos, length);
+        }
+        return payload;
+    }
+
+    private void sendCredit(long id, long credit) {
+        byte[] value = new byte[Varint.size(credit)];
+        Varint.write(value, 0, credit);
+        mWriter.sendControl(FrameCodec.TYPE_STREAM, encode(id, OP_CREDIT, value, 0, value.length));
+    }
+
+    /**
+     * 一条逻辑流. 读和写可以在不同线程中进行, 但同一方向不应有多个线程同时使用
+     */
+    public class Stream {
+
+        private final long mId;
+
+        // 接收缓冲, 环形, 按需增长到 STREAM_WINDOW
+        private byte[] mBuffer = new byte[INITIAL_BUFFER_SIZE];
+        private int mHead;
+        private int mCount;
+        private long mPendingGrant;
+        private boolean mRemoteFin;
+        private boolean mInputClosed;
+
+        private long mSendCredit = STREAM_WINDOW;
+        private boolean mLocalFin;
+
+        // 中止原因, 不为 null 时读写均失败
+        private IOException mError;
+
+        private final InputStream mInputStream = new InputStream() {
+            @Override
+            public int read() throws IOException {
+                byte[] b = new byte[1];
+                return Stream.this.read(b, 0, 1) < 0 ? -1 : b[0] & 0xff;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                return Stream.this.read(b, off, len);
+            }
+
+            @Override
+            public int available() {
+                synchronized (Stream.this) {
+                    return mCount;
+                }
+            }
+
+            @Override
+            public void close() {
+                closeInput();
+            }
+        };
+
+        private final OutputStream mOutputStream = new OutputStream() {
+            @Override
+            public void write(int b) throws IOException {
+                Stream.this.write(new byte[]{(byte) b}, 0, 1);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                Stream.this.write(b, off, len);
+            }
+
+            @Override
+            public void close() throws IOException {
+                closeOutput();
+            }
+        };
+
+        Stream(long id) {
+            mId = id;
+        }
+
+        public long getId() {
+            return mId;
+        }
+
+        public InputStream getInputStream() {
+            return mInputStream;
+        }
+
+        /**
+         * 写入在数据交给链路后返回, 不需要 flush
+         */
+        public OutputStream getOutputStream() {
+            return mOutputStream;
+        }
+
+        /**
+         * 结束写(发送 FIN)并不再读取. 已写入的数据对端仍可全部读完; 对端之后写入的数据丢弃,
+         * 但仍归还信用使它能写完. 需要立即中止时使用 {@link #reset()}
+         */
+        public void close() throws IOException {
+            closeInput();
+            closeOutput();
+        }
+
+        /**
+         * 中止流, 双方未读和未发送的数据丢弃, 对端的读写随之失败
+         */
+        public void reset() {
+            if (onError(new IOException("stream reset"))) {
+                mWriter.sendControl(FrameCodec.TYPE_STREAM, encode(mId, OP_RESET, null, 0, 0));
+            }
+        }
+
+        //==========================================================================================
+        private int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+
+            int count;
+            long grant = 0;
+            synchronized (this) {
+                while (mCount == 0 && !mRemoteFin && mError == null && !mInputClosed) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new InterruptedIOException();
+                    }
+                }
+                if (mInputClosed) {
+                    throw new IOException("stream closed");
+                }
+                if (mError != null) {
+                    throw mError;
+                }
+                if (mCount == 0) {
+                    return -1;
+                }
+
+                count = Math.min(len, mCount);
+                int first = Math.min(count, mBuffer.length - mHead);
+                System.arraycopy(mBuffer, mHead, b, off, first);
+                System.arraycopy(mBuffer, 0, b, off + first, count - first);
+                mHead = (mHead + count) % mBuffer.length;
+                mCount -= count;
+
+                grant = takeGrant(count);
+            }
+
+            if (grant > 0) {
+                sendCredit(mId, grant);
+            }
+            return count;
+        }
+
+        private void write(byte[] b, int off, int len) throws IOException {
+            while (len > 0) {
+                int count;
+                synchronized (this) {
+                    while (mSendCredit <= 0 && mError == null && !mLocalFin) {
+                        try {
+                            wait();
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                            throw new InterruptedIOException();
+                        }
+                    }
+                    if (mError != null) {
+                        throw mError;
+                    }
+                    if (mLocalFin) {
+                        throw new IOException("stream closed");
+                    }
+                    count = (int) Math.min(Math.min(len, MAX_CHUNK), mSendCredit);
+                    mSendCredit -= count;
+                }
+
+                if (!mWriter.sendStream(encode(mId, OP_DATA, b, off, count))) {
+                    onError(new IOException("connection closed"));
+                    throw new IOException("connection closed");
+                }
+                off += count;
+                len -= count;
+            }
+        }
+
+        private void closeOutput() throws IOException {
+            synchronized (this) {
+                if (mLocalFin || mError != null) {
+                    return;
+                }
+                mLocalFin = true;
+                notifyAll();
+            }
+            if (!mWriter.sendStream(encode(mId, OP_FIN, null, 0, 0))) {
+                onError(new IOException("connection closed"));
+                throw new IOException("connection closed");
+            }
+            removeIfDone();
+        }
+
+        // 不再读取, 已缓冲和之后到达的数据丢弃, 但仍归还信用, 使对端可以写完
+        private void closeInput() {
+            long grant;
+            synchronized (this) {
+                if (mInputClosed) {
+                    return;
+                }
+                mInputClosed = true;
+                grant = takeGrant(mCount);
+                mCount = 0;
+                notifyAll();
+            }
+            if (grant > 0 && mError == null) {
+                sendCredit(mId, grant);
+            }
+        }
+
+        private void onData(byte[] buf, int offset, int length) throws ProtocolException {
+            long grant = 0;
+            synchronized (this) {
+                if (mCount + length > STREAM_WINDOW) {
+                    throw new ProtocolException("peer exceeded stream window, id=" + mId);
+                }
+                if (mInputClosed || mError != null) {
+                    grant = takeGrant(length);
+                } else {
+                    ensureCapacity(mCount + length);
+                    int tail = (mHead + mCount) % mBuffer.length;
+                    int first = Math.min(length, mBuffer.length - tail);
+                    System.arraycopy(buf, offset, mBuffer, tail, first);
+                    System.arraycopy(buf, offset + first, mBuffer, 0, length - first);
+                    mCount += length;
+                    notifyAll();
+                }
+            }
+            if (grant > 0) {
+                sendCredit(mId, grant);
+            }
+        }
+
+        private void onFin() {
+            synchronized (this) {
+                mRemoteFin = true;
+                notifyAll();
+            }
+            removeIfDone();
+        }
+
+        private synchronized void onCredit(long credit) {
+            mSendCredit += credit;
+            notifyAll();
+        }
+
+        // 进入中止状态, 已经中止过时返回 false
+        private boolean onError(IOException error) {
+            synchronized (this) {
+                if (mError != null) {
+                    return false;
+                }
+                mError = error;
+                mCount = 0;
+                notifyAll();
+            }
+            remove(this);
+            return true;
+        }
+
+        // 双方都结束写后不再接收该流的帧
+        private void removeIfDone() {
+            synchronized (this) {
+                if (!mLocalFin || !mRemoteFin) {
+                    return;
+                }
+            }
+            remove(this);
+        }
+
+        // 已处理的字节累计到阈值后授予对端, 返回本次应授予的信用
+        private long takeGrant(int bytes) {
+            mPendingGrant += bytes;
+            if (mPendingGrant < CREDIT_GRANT_THRESHOLD) {
+                return 0;
+            }
+            long grant = mPendingGrant;
+            mPendingGrant = 0;
+            return grant;
+        }
+
+        private void ensureCapacity(int capacity) {
+            if (capacity <= mBuffer.length) {
+                return;
+            }
+            byte[] tmp = new byte[Math.min(STREAM_WINDOW, Math.max(capacity, mBuffer.length * 2))];
+            int first = Math.min(mCount, mBuffer.length - mHead);
+            System.arraycopy(mBuffer, mHead, tmp, 0, first);
+            System.arraycopy(mBuffer, 0, tmp, first, mCount - first);
+            mBuffer = tmp;
+            mHead = 0;
+        }
+    }
+}
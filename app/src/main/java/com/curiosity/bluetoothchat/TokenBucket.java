@@ -0,0 +1,109 @@
+package com.curiosity.bluetoothchat;
+
+/**
+ * 令牌桶限速, 单位为字节
+ * <p>
+ * 令牌按速率持续补充, 最多积累 burst 个. 速率为 0 时不限速. 速率和容量可以随时修改.
+ * 时间均由调用方传入(纳秒), 与具体时钟无关, 便于在 JVM 上测试.
+ */
+public class TokenBucket {
+
+    private long mRate;
+    private long mBurst;
+    private double mTokens;
+    private long mLastRefill;
+
+    private long mThrottledCount;
+    private long mThrottledNanos;
+
+    /**
+     * @param rate  每秒补充的令牌数, 0 为不限速
+     * @param burst 最多积累的令牌数
+     */
+    public TokenBucket(long rate, long burst, long now) {
+        mRate = rate;
+        mBurst = burst;
+        mTokens = burst;
+        mLastRefill = now;
+    }
+
+    public synchronized void setRate(long rate, long burst, long now) {
+        refill(now);
+        mRate = rate;
+        mBurst = burst;
+        mTokens = Math.min(mTokens, burst);
+    }
+
+    public synchronized long getRate() {
+        return mRate;
+    }
+
+    public synchronized long getBurst() {
+        return mBurst;
+    }
+
+    /**
+     * 取走 bytes 个令牌所需等待的纳秒数, 不取走令牌. 超过容量的请求在桶满时即可取走
+     */
+    public synchronized long getDelay(long bytes, long now) {
+        if (mRate <= 0) {
+            return 0;
+        }
+        refill(now);
+        double need = Math.min(bytes, mBurst) - mTokens;
+        return need > 0 ? (long) Math.ceil(need * 1e9 / mRate) : 0;
+    }
+
+    /**
+     * 取走 bytes 个令牌, 令牌可以透支, 透支部分由之后补充的令牌偿还
+     */
+    public synchronized void take(long bytes, long now) {
+        if (mRate <= 0) {
+            return;
+        }
+        refill(now);
+        mTokens -= bytes;
+    }
+
+    /**
+     * 取走 bytes 个令牌, 返回调用方需要等待的纳秒数, 不需等待时为 0
+     */
+    public synchronized long reserve(long bytes, long now) {
+        if (mRate <= 0) {
+            return 0;
+        }
+        refill(now);
+        mTokens -= bytes;
+        if (mTokens >= 0) {
+            return 0;
+        }
+        long delay = (long) Math.ceil(-mTokens * 1e9 / mRate);
+        // 连续透支时各次的等待相互重叠, 只记本次新增的部分
+        onThrottled(Math.min(delay, (long) Math.ceil(bytes * 1e9 / mRate)));
+        return delay;
+    }
+
+    /**
+     * 记录一次因限速产生的等待
+     */
+    public synchronized void onThrottled(long nanos) {
+        mThrottledCount++;
+        mThrottledNanos += nanos;
+    }
+
+    public synchronized long getThrottledCount() {
+        return mThrottledCount;
+    }
+
+    public synchronized long getThrottledNanos() {
+        return mThrottledNanos;
+    }
+
+    //==============================================================================================
+    private void refill(long now) {
+        if (now > mLastRefill) {
+            mTokens = Math.min(mBurst, mTokens + (now - mLastRefill) * (double) mRate / 1e9);
+            mLastRefill = now;
+        }
+    }
+}
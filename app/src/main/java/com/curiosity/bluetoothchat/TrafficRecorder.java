@@ -0,0 +1,122 @@
+package com.curiosity.bluetoothchat;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * 链路流量抓取, 将每次读写以二进制格式写入内存映射文件
+ * <p>
+ * 文件格式: 头部 MAGIC(int) VERSION(int) 起始时间(long, 毫秒),
+ * 之后每条记录为 相对时间(long, 纳秒) 方向(byte) 长度(int) 数据.
+ * 方向为 0 表示数据结束 (预分配区域未写入部分全为 0).
+ */
+public class TrafficRecorder {
+
+    public static final int MAGIC = 0x42544350; // "BTCP"
+    public static final int VERSION = 1;
+
+    public static final byte DIRECTION_END = 0;
+    public static final byte DIRECTION_IN = 1;
+    public static final byte DIRECTION_OUT = 2;
+
+    static final int HEADER_SIZE = 16;
+    static final int RECORD_HEADER_SIZE = 13;
+
+    // 每次映射的区域大小, 写满后映射下一段
+    private static final int REGION_SIZE = 4 * 1024 * 1024;
+
+    private final RandomAccessFile mFile;
+    private final FileChannel mChannel;
+    private final long mStartNanos;
+
+    private MappedByteBuffer mBuffer;
+    private long mRegionStart;
+    private boolean mClosed;
+
+    private long mRecordCount;
+    private long mByteCount;
+
+    public TrafficRecorder(File file) throws IOException {
+        mFile = new RandomAccessFile(file, "rw");
+        try {
+            mFile.setLength(0);
+            mChannel = mFile.getChannel();
+            mapRegion(0, REGION_SIZE);
+        } catch (IOException e) {
+            mFile.close();
+            throw e;
+        }
+        mStartNanos = System.nanoTime();
+        mBuffer.putInt(MAGIC);
+        mBuffer.putInt(VERSION);
+        mBuffer.putLong(System.currentTimeMillis());
+    }
+
+    /**
+     * 记录一次读写, 只做内存拷贝, 仅在映射区域写满时才会触发一次重新映射, 不等待写入磁盘
+     */
+    public synchronized void record(byte direction, byte[] data, int offset, int length) {
+        if (mClosed) {
+            return;
+        }
+
+        long time = System.nanoTime() - mStartNanos;
+        int required = RECORD_HEADER_SIZE + length;
+
+        try {
+            if (mBuffer.remaining() < required) {
+                long position = mRegionStart + mBuffer.position();
+                mapRegion(position, Math.max(REGION_SIZE, required));
+            }
+        } catch (IOException e) {
+            // 映射失败则放弃本次抓取, 不影响正常收发
+            mClosed = true;
+            return;
+        }
+
+        mBuffer.putLong(time);
+        mBuffer.put(direction);
+        mBuffer.putInt(length);
+        mBuffer.put(data, offset, length);
+
+        mRecordCount++;
+        mByteCount += length;
+    }
+
+    public synchronized long getRecordCount() {
+        return mRecordCount;
+    }
+
+    public synchronized long getByteCount() {
+        return mByteCount;
+    }
+
+    /**
+     * 结束抓取, 将文件截断到实际写入的长度, 并把所有区域写入磁盘
+     */
+    public synchronized void close() throws IOException {
+        if (mClosed && mBuffer == null) {
+            return;
+        }
+        mClosed = true;
+
+        long length = mRegionStart + mBuffer.position();
+        mBuffer = null;
+
+        try {
+            mChannel.truncate(length);
+            mChannel.force(false);
+        } finally {
+            mFile.close();
+        }
+    }
+
+    // 写满的区域由系统在后台写回, 在收发线程中等待写回会阻塞连接, 关闭时统一写入
+    private void mapRegion(long start, int size) throws IOException {
+        mRegionStart = start;
+        mBuffer = mChannel.map(FileChannel.MapMode.READ_WRITE, start, size);
+    }
+}
@@ -0,0 +1,64 @@
+package com.curiosity.bluetoothchat;
+
+/**
+ * 无符号 varint 编解码, 每字节低 7 位为数据, 最高位表示后面还有字节
+ */
+public final class Varint {
+
+    public static final int MAX_SIZE = 10;
+
+    private Varint() {
+    }
+
+    /**
+     * 编码后占用的字节数
+     */
+    public static int size(long value) {
+        int size = 1;
+        while ((value & ~0x7FL) != 0) {
+            value >>>= 7;
+            size++;
+        }
+        return size;
+    }
+
+    /**
+     * 写入 buf 的 pos 处, 返回写入后的位置
+     */
+    public static int write(byte[] buf, int pos, long value) {
+        while ((value & ~0x7FL) != 0) {
+            buf[pos++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        buf[pos++] = (byte) value;
+        return pos;
+    }
+
+    /**
+     * pos 处 varint 的字节数, 数据不完整或格式错误返回 -1
+     */
+    public static int length(byte[] buf, int pos, int limit) {
+        int end = Math.min(limit, pos + MAX_SIZE);
+        for (int i = pos; i < end; i++) {
+            if ((buf[i] & 0x80) == 0) {
+                return i - pos + 1;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * 读取 pos 处的 varint, 调用前应先用 {@link #length} 确认数据完整
+     */
+    public static long read(byte[] buf, int pos) {
+        long value = 0;
+        int shift = 0;
+        byte b;
+        do {
+            b = buf[pos++];
+            value |= (long) (b & 0x7F) << shift;
+            shift += 7;
+        } while ((b & 0x80) != 0);
+        return value;
+    }
+}
@@ -0,0 +1,79 @@
+package com.curiosity.bluetoothchat;
+
+/**
+ * 语音帧编解码
+ * <p>
+ * 8kHz 单声道 16 位 PCM, 每帧 20ms (160 个采样), 以 IMA ADPCM 压缩为 80 字节.
+ * 负载格式: 序号(varint) 时间戳(varint, 毫秒) 标志(byte) 预测值(short) 步长索引(byte) ADPCM 数据.
+ * 每帧携带编码器状态, 丢帧不影响后续帧的解码.
+ */
+public class VoiceCodec {
+
+    public static final int SAMPLE_RATE = 8000;
+    public static final int FRAME_MILLIS = 20;
+    public static final int FRAME_SAMPLES = SAMPLE_RATE * FRAME_MILLIS / 1000;
+
+    // 一段讲话的最后一帧
+    public static final int FLAG_END = 1;
+
+    private static final int STATE_SIZE = 3;
+    private static final int DATA_SIZE = FRAME_SAMPLES / 2;
+
+    private final AdpcmCodec mEncoder = new AdpcmCodec();
+    private final AdpcmCodec mDecoder = new AdpcmCodec();
+
+    /**
+     * 编码一帧, pcm 从 offset 起须有 FRAME_SAMPLES 个采样
+     */
+    public byte[] encode(int sequence, long timestamp, int flags, short[] pcm, int offset) {
+        byte[] payload = new byte[Varint.size(sequence) + Varint.size(timestamp) + 1 + STATE_SIZE + DATA_SIZE];
+
+        int pos = Varint.write(payload, 0, sequence);
+        pos = Varint.write(payload, pos, timestamp);
+        payload[pos++] = (byte) flags;
+
+        int predictor = mEncoder.getPredictor();
+        payload[pos++] = (byte) (predictor >> 8);
+        payload[pos++] = (byte) predictor;
+        payload[pos++] = (byte) mEncoder.getIndex();
+
+        mEncoder.encode(pcm, offset, FRAME_SAMPLES, payload, pos);
+        return payload;
+    }
+
+    /**
+     * 解码一帧到 out
+     *
+     * @return 数据格式错误时返回 false
+     */
+    public boolean decode(byte[] buf, int offset, int length, VoicePacket out) {
+        int end = offset + length;
+        int pos = offset;
+
+        int n = Varint.length(buf, pos, end);
+        if (n < 0) {
+            return false;
+        }
+        out.sequence = (int) Varint.read(buf, pos);
+        pos += n;
+
+        n = Varint.length(buf, pos, end);
+        if (n < 0) {
+            return false;
+        }
+        out.timestamp = Varint.read(buf, pos);
+        pos += n;
+
+        if (end - pos < 1 + STATE_SIZE + DATA_SIZE) {
+            return false;
+        }
+        out.flags = buf[pos++] & 0xFF;
+
+        int predictor = (short) ((buf[pos] & 0xFF) << 8 | (buf[pos + 1] & 0xFF));
+        mDecoder.setState(predictor, buf[pos + 2] & 0xFF);
+        pos += STATE_SIZE;
+
+        mDecoder.decode(buf, pos, FRAME_SAMPLES, out.pcm, 0);
+        return true;
+    }
+}
@@ -0,0 +1,16 @@
+package com.curiosity.bluetoothchat;
+
+/**
+ * 一帧语音, 由 {@link VoiceCodec} 解码得到
+ */
+public class VoicePacket {
+
+    public int sequence;       // 帧序号, 每帧加一
+    public long timestamp;     // 发送方采集时间, 毫秒
+    public int flags;
+    public final short[] pcm = new short[VoiceCodec.FRAME_SAMPLES];
+
+    public boolean isEnd() {
+        return (flags & VoiceCodec.FLAG_END) != 0;
+    }
+}
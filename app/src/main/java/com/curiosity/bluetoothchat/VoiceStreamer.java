@@ -0,0 +1,248 @@
+package com.curiosity.bluetoothchat;
+
+import android.media.AudioFormat;
+import android.media.AudioManager;
+import android.media.AudioRecord;
+import android.media.AudioTrack;
+import android.media.MediaRecorder;
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 按住说话
+ * <p>
+ * 录音线程每 20ms 采集一帧, 编码后通过 {@link ConnectionManager#sendAudio(byte[])} 发出;
+ * 收到的语音帧在读线程中解码放入 {@link JitterBuffer}, 播放线程按帧取出写入 AudioTrack.
+ * 播放线程在收到第一帧时启动, 播放完结束帧或长时间没有声音后释放 AudioTrack 并退出, 没人讲话时不占用音频通路.
+ * 录音和播放线程均以 THREAD_PRIORITY_URGENT_AUDIO 运行. 同一时刻只有一个录音线程, 每个录音线程使用自己的编码器.
+ */
+public class VoiceStreamer implements ConnectionManager.AudioListener {
+
+    private static final String TAG = "VoiceStreamer";
+
+    // 松开后录音线程最多再采集一帧, 重新按下时等它退出
+    private static final long RECORD_STOP_TIMEOUT_MS = 200;
+    // 结束帧丢失时, 连续这么久只有静音就停止播放
+    private static final long PLAY_IDLE_TIMEOUT_MS = 2000;
+
+    private final ConnectionManager mConnectionManager;
+    // 只用于解码, 编码器属于录音线程
+    private final VoiceCodec mCodec = new VoiceCodec();
+    private final JitterBuffer mJitterBuffer = new JitterBuffer();
+
+    private RecordThread mRecordThread;
+    private PlayThread mPlayThread;
+    private boolean mStarted;
+    // 录音线程可能在 startTalking 持有锁等待时取序号, 不能用锁保护
+    private final AtomicInteger mSequence = new AtomicInteger();
+
+    public VoiceStreamer(ConnectionManager connectionManager) {
+        mConnectionManager = connectionManager;
+    }
+
+    /**
+     * 开始接收对端语音, 收到语音时才开始播放
+     */
+    public synchronized void start() {
+        if (mStarted) {
+            return;
+        }
+        mStarted = true;
+        mConnectionManager.setAudioListener(this);
+    }
+
+    public synchronized void release() {
+        stopTalking();
+        mStarted = false;
+        mConnectionManager.setAudioListener(null);
+        if (mPlayThread != null) {
+            mPlayThread.cancel();
+            mPlayThread = null;
+        }
+    }
+
+    public synchronized void startTalking() {
+        if (mRecordThread != null) {
+            if (mRecordThread.isRunning()) {
+                return;
+            }
+            // 上一次的录音线程还在发结束帧, 等它释放 AudioRecord, 不能同时有两个录音线程
+            try {
+                mRecordThread.join(RECORD_STOP_TIMEOUT_MS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+            if (mRecordThread.isAlive()) {
+                Log.w(TAG, "previous record thread still running");
+                return;
+            }
+        }
+        mRecordThread = new RecordThread();
+        mRecordThread.start();
+    }
+
+    /**
+     * 松开按钮, 录音线程发出结束帧后退出
+     */
+    public synchronized void stopTalking() {
+        if (mRecordThread != null) {
+            mRecordThread.cancel();
+        }
+    }
+
+    public JitterBuffer getJitterBuffer() {
+        return mJitterBuffer;
+    }
+
+    // 读线程中回调, 只做解码和入队
+    @Override
+    public void onAudioFrame(byte[] buf, int offset, int length) {
+        VoicePacket packet = new VoicePacket();
+        if (!mCodec.decode(buf, offset, length, packet)) {
+            Log.w(TAG, "drop malformed audio frame, length=" + length);
+            return;
+        }
+        mJitterBuffer.put(packet, SystemClock.elapsedRealtime());
+
+        // 放入后再检查, 播放线程在锁内判断空闲后退出, 不会漏掉这一帧
+        synchronized (this) {
+            if (mStarted && mPlayThread == null) {
+                mPlayThread = new PlayThread();
+                mPlayThread.start();
+            }
+        }
+    }
+
+    // 播放线程判断是否可以退出, 可以时清除 mPlayThread, 之后到达的帧会启动新的播放线程
+    private synchronized boolean finishPlayback(PlayThread thread, boolean timedOut) {
+        if (mPlayThread != thread) {
+            return true;
+        }
+        if (!timedOut && !mJitterBuffer.isIdle()) {
+            return false;
+        }
+        if (timedOut) {
+            mJitterBuffer.clear();
+        }
+        mPlayThread = null;
+        return true;
+    }
+
+    private class RecordThread extends Thread {
+
+        private final VoiceCodec mEncoder = new VoiceCodec();
+        private volatile boolean mRunning = true;
+
+        RecordThread() {
+            setName("VoiceRecord");
+        }
+
+        @Override
+        public void run() {
+            Process.setThreadPriority(Process.THREAD_PRIORITY_URGENT_AUDIO);
+
+            int minSize = AudioRecord.getMinBufferSize(VoiceCodec.SAMPLE_RATE,
+                    AudioFormat.CHANNEL_IN_MONO, AudioFormat.ENCODING_PCM_16BIT);
+            AudioRecord record = new AudioRecord(MediaRecorder.AudioSource.MIC, VoiceCodec.SAMPLE_RATE,
+                    AudioFormat.CHANNEL_IN_MONO, AudioFormat.ENCODING_PCM_16BIT,
+                    Math.max(minSize, VoiceCodec.FRAME_SAMPLES * 2 * 4));
+            if (record.getState() != AudioRecord.STATE_INITIALIZED) {
+                Log.e(TAG, "AudioRecord init failed");
+                record.release();
+                return;
+            }
+
+            short[] pcm = new short[VoiceCodec.FRAME_SAMPLES];
+            record.startRecording();
+            try {
+                boolean end = false;
+                while (!end) {
+                    int read = 0;
+                    while (read < pcm.length) {
+                        int n = record.read(pcm, read, pcm.length - read);
+                        if (n <= 0) {
+                            Log.e(TAG, "AudioRecord read failed: " + n);
+                            return;
+                        }
+                        read += n;
+                    }
+
+                    // 松开后补发最后一帧并带上结束标志
+                    end = !mRunning;
+                    byte[] payload = mEncoder.encode(mSequence.getAndIncrement(), SystemClock.elapsedRealtime(),
+                            end ? VoiceCodec.FLAG_END : 0, pcm, 0);
+                    mConnectionManager.sendAudio(payload);
+                }
+            } finally {
+                record.stop();
+                record.release();
+            }
+        }
+
+        void cancel() {
+            mRunning = false;
+        }
+
+        boolean isRunning() {
+            return mRunning && isAlive();
+        }
+    }
+
+    private class PlayThread extends Thread {
+
+        private volatile boolean mRunning = true;
+
+        PlayThread() {
+            setName("VoicePlay");
+        }
+
+        @Override
+        public void run() {
+            Process.setThreadPriority(Process.THREAD_PRIORITY_URGENT_AUDIO);
+
+            int minSize = AudioTrack.getMinBufferSize(VoiceCodec.SAMPLE_RATE,
+                    AudioFormat.CHANNEL_OUT_MONO, AudioFormat.ENCODING_PCM_16BIT);
+            AudioTrack track = new AudioTrack(AudioManager.STREAM_VOICE_CALL, VoiceCodec.SAMPLE_RATE,
+                    AudioFormat.CHANNEL_OUT_MONO, AudioFormat.ENCODING_PCM_16BIT,
+                    Math.max(minSize, VoiceCodec.FRAME_SAMPLES * 2 * 2), AudioTrack.MODE_STREAM);
+            if (track.getState() != AudioTrack.STATE_INITIALIZED) {
+                Log.e(TAG, "AudioTrack init failed");
+                track.release();
+                return;
+            }
+
+            short[] pcm = new short[VoiceCodec.FRAME_SAMPLES];
+            track.play();
+            try {
+                // write 在播放缓冲满时阻塞, 以此按帧时长取数据
+                long lastSound = SystemClock.elapsedRealtime();
+                while (mRunning) {
+                    long now = SystemClock.elapsedRealtime();
+                    if (mJitterBuffer.poll(now, pcm) != JitterBuffer.RESULT_SILENCE) {
+                        lastSound = now;
+                    }
+                    if (track.write(pcm, 0, pcm.length) < 0) {
+                        Log.e(TAG, "AudioTrack write failed");
+                        break;
+                    }
+                    if (finishPlayback(this, now - lastSound > PLAY_IDLE_TIMEOUT_MS)) {
+                        break;
+                    }
+                }
+            } finally {
+                // 流模式下 stop 会先播完已写入的数据
+                track.stop();
+                track.release();
+                finishPlayback(this, true);
+            }
+        }
+
+        void cancel() {
+            mRunning = false;
+        }
+    }
+}
@@ -0,0 +1,148 @@
+package com.curiosity.bluetoothchat;
+
+/**
+ * 自适应写入大小
+ * <p>
+ * 根据实际测得的写入吞吐量和单次写入耗时, 在给定范围内调整单次写入的块大小和
+ * 合并发送的批大小. 每个统计窗口调整一个参数(交替进行), 吞吐量下降则反向调整;
+ * 单次写入耗时超过目标时优先减小块大小, 避免控制帧被长时间阻塞.
+ */
+public class WriteSizeController {
+
+    // 统计窗口, 按写入耗时累计
+    private static final long WINDOW_NANOS = 200 * 1000000L;
+    // 单次写入的目标耗时上限
+    private static final long TARGET_LATENCY_NANOS = 100 * 1000000L;
+    // 吞吐量波动在该比例内视为没有变化
+    private static final double TOLERANCE = 0.05;
+
+    private final int mMinChunkSize;
+    private final int mMaxChunkSize;
+    private final int mMinBatchSize;
+    private final int mMaxBatchSize;
+
+    private int mChunkSize;
+    private int mBatchSize;
+
+    private boolean mTuningChunk = true;
+    private int mChunkDirection = 1;
+    private int mBatchDirection = 1;
+
+    private long mWindowBytes;
+    private long mWindowNanos;
+    private long mWindowMaxLatency;
+
+    private double mLastThroughput;
+    private double mThroughput;
+    private double mAverageLatency;
+    private int mAdjustCount;
+
+    public WriteSizeController(int minChunkSize, int maxChunkSize, int minBatchSize, int maxBatchSize) {
+        mMinChunkSize = minChunkSize;
+        mMaxChunkSize = maxChunkSize;
+        mMinBatchSize = minBatchSize;
+        mMaxBatchSize = maxBatchSize;
+
+        mChunkSize = clamp(1024, minChunkSize, maxChunkSize);
+        mBatchSize = clamp(4096, minBatchSize, maxBatchSize);
+    }
+
+    public synchronized int getChunkSize() {
+        return mChunkSize;
+    }
+
+    public synchronized int getBatchSize() {
+        return mBatchSize;
+    }
+
+    /**
+     * 最近一个统计窗口的吞吐量, 字节/秒
+     */
+    public synchronized double getThroughput() {
+        return mThroughput;
+    }
+
+    /**
+     * 单次写入耗时的滑动平均, 纳秒
+     */
+    public synchronized double getAverageLatency() {
+        return mAverageLatency;
+    }
+
+    public synchronized int getAdjustCount() {
+        return mAdjustCount;
+    }
+
+    /**
+     * 记录一次写入
+     *
+     * @param nanos 本次 write 调用的耗时
+     */
+    public synchronized void onWrite(int bytes, long nanos) {
+        mWindowBytes += bytes;
+        mWindowNanos += nanos;
+        mWindowMaxLatency = Math.max(mWindowMaxLatency, nanos);
+        mAverageLatency = mAverageLatency == 0 ? nanos : mAverageLatency * 0.9 + nanos * 0.1;
+
+        if (mWindowNanos >= WINDOW_NANOS) {
+            evaluate();
+        }
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "chunk=" + mChunkSize + " batch=" + mBatchSize
+                + " throughput=" + (long) mThroughput + "B/s"
+                + " latency=" + (long) (mAverageLatency / 1000) + "us";
+    }
+
+    //==============================================================================================
+    private void evaluate() {
+        mThroughput = mWindowBytes * 1e9 / mWindowNanos;
+
+        if (mWindowMaxLatency > TARGET_LATENCY_NANOS && mChunkSize > mMinChunkSize) {
+            // 单次写入过慢, 先减小块大小
+            mChunkSize = clamp(mChunkSize / 2, mMinChunkSize, mMaxChunkSize);
+            mChunkDirection = -1;
+            mAdjustCount++;
+        } else {
+            if (mLastThroughput > 0 && mThroughput < mLastThroughput * (1 - TOLERANCE)) {
+                // 上次调整使吞吐量下降, 反向调整
+                if (mTuningChunk) {
+                    mBatchDirection = -mBatchDirection;
+                } else {
+                    mChunkDirection = -mChunkDirection;
+                }
+            }
+
+            if (mTuningChunk) {
+                int size = step(mChunkSize, mChunkDirection, mMinChunkSize, mMaxChunkSize);
+                if (size == mChunkSize) {
+                    mChunkDirection = -mChunkDirection;
+                }
+                mChunkSize = size;
+            } else {
+                int size = step(mBatchSize, mBatchDirection, mMinBatchSize, mMaxBatchSize);
+                if (size == mBatchSize) {
+                    mBatchDirection = -mBatchDirection;
+                }
+                mBatchSize = size;
+            }
+            mTuningChunk = !mTuningChunk;
+            mAdjustCount++;
+        }
+
+        mLastThroughput = mThroughput;
+        mWindowBytes = 0;
+        mWindowNanos = 0;
+        mWindowMaxLatency = 0;
+    }
+
+    private static int step(int size, int direction, int min, int max) {
+        return clamp(direction > 0 ? size * 2 : size / 2, min, max);
+    }
+
+    private static int clamp(int value, int min, int max) {
+        return Math.max(min, Math.min(max, value));
+    }
+}
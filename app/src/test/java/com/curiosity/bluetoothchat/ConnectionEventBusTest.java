@@ -0,0 +1,52 @@
+package com.curiosity.bluetoothchat;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+import static org.junit.Assert.*;
+
+public class ConnectionEventBusTest {
+
+    @Test
+    public void stateEventsAreNotDroppedWhenQueueIsFull() {
+        // 投递任务先攒着, 模拟订阅者线程正忙
+        final List<Runnable> pending = new ArrayList<>();
+        Executor executor = new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                pending.add(command);
+            }
+        };
+        final List<Integer> states = new ArrayList<>();
+        final int[] reads = new int[1];
+        ConnectionEventBus bus = new ConnectionEventBus();
+        ConnectionEventBus.Subscription subscription = bus.subscribe(new TestListener() {
+            @Override
+            public void onConnectStateChange(int oldState, int state) {
+                states.add(state);
+            }
+
+            @Override
+            public void onReadData(byte[] data) {
+                reads[0]++;
+            }
+        }, executor, 2);
+
+        for (int i = 0; i < 5; i++) {
+            bus.publishReadData(new byte[]{(byte) i});
+        }
+        bus.publishConnectState(ConnectionManager.CONNECT_STATE_CONNECTING, ConnectionManager.CONNECT_STATE_CONNECTED);
+        bus.publishReadData(new byte[1]);
+
+        while (!pending.isEmpty()) {
+            pending.remove(0).run();
+        }
+        assertEquals(4, subscription.getDropCount());
+        assertEquals(2, reads[0]);
+        assertEquals(1, states.size());
+        assertEquals(ConnectionManager.CONNECT_STATE_CONNECTED, (int) states.get(0));
+    }
+}
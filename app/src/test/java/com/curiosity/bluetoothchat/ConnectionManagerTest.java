@@ -0,0 +1,374 @@
+package com.curiosity.bluetoothchat;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * ConnectionManager 在 SimulatedNetwork 上的监听, 连接, 重连和收发
+ */
+public class ConnectionManagerTest {
+
+    private SimulatedNetwork mNetwork;
+    private ConnectionManager mServer;
+    private ConnectionManager mClient;
+    private final LinkedBlockingQueue<byte[]> mServerReceived = new LinkedBlockingQueue<>();
+    private final LinkedBlockingQueue<byte[]> mClientReceived = new LinkedBlockingQueue<>();
+
+    @Before
+    public void setUp() {
+        SimulatedNetwork.Config config = new SimulatedNetwork.Config();
+        config.bandwidthBytesPerSecond = 1024 * 1024;
+        config.latencyNanos = 2 * 1000000L;
+        config.jitterNanos = 1000000L;
+        config.stallProbability = 0;
+        config.connectNanos = 10 * 1000000L;
+        mNetwork = new SimulatedNetwork(config, 42, LinkClock.SYSTEM);
+
+        mServer = TestListener.create(mNetwork.node("server"), new QueueListener(mServerReceived));
+        mClient = TestListener.create(mNetwork.node("client"), new QueueListener(mClientReceived));
+    }
+
+    @After
+    public void tearDown() {
+        mClient.release();
+        mServer.release();
+    }
+
+    @Test
+    public void acceptConnectAndSendBothWays() throws Exception {
+        connect();
+
+        for (int i = 0; i < 50; i++) {
+            assertTrue(mClient.sendData(new byte[]{(byte) i, 1}));
+            assertTrue(mServer.sendData(new byte[]{(byte) i, 2}));
+        }
+        for (int i = 0; i < 50; i++) {
+            assertArrayEquals(new byte[]{(byte) i, 1}, poll(mServerReceived));
+            assertArrayEquals(new byte[]{(byte) i, 2}, poll(mClientReceived));
+        }
+    }
+
+    @Test
+    public void largeTransferIsFlowControlled() throws Exception {
+        connect();
+
+        // 超过接收窗口数倍的数据, 依赖监听者归还窗口才能发完
+        byte[] data = new byte[32 * 1024];
+        int count = 4 * ConnectionManager.RECEIVE_WINDOW / data.length;
+        for (int i = 0; i < count; i++) {
+            data[0] = (byte) i;
+            assertTrue(mClient.sendData(data));
+        }
+        for (int i = 0; i < count; i++) {
+            assertEquals((byte) i, poll(mServerReceived)[0]);
+        }
+        assertTrue(mServer.getReceiveBufferPeak() <= ConnectionManager.RECEIVE_WINDOW);
+    }
+
+    @Test
+    public void slowListenerLosesNoSmallMessages() throws Exception {
+        // 接收窗口只限制字节数, 小消息积压的条数可以很多
+        final CountDownLatch gate = new CountDownLatch(1);
+        final LinkedBlockingQueue<byte[]> received = new LinkedBlockingQueue<>();
+        ConnectionManager slow = TestListener.create(mNetwork.node("slow"), new QueueListener(received) {
+            @Override
+            public void onReadData(byte[] data) {
+                try {
+                    gate.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                super.onReadData(data);
+            }
+        });
+        try {
+            slow.startListen();
+            TestListener.awaitListening(slow);
+            mClient.connect("slow");
+            TestListener.awaitConnected(mClient);
+
+            int count = 5000;
+            for (int i = 0; i < count; i++) {
+                assertTrue(mClient.sendData(new byte[]{(byte) i, (byte) (i >> 8)}));
+            }
+            long deadline = System.currentTimeMillis() + 10000;
+            while (slow.getPrimarySubscription().getLag() < count - 1) {
+                assertTrue("timed out waiting for backlog", System.currentTimeMillis() < deadline);
+                Thread.sleep(5);
+            }
+            gate.countDown();
+
+            for (int i = 0; i < count; i++) {
+                assertArrayEquals(new byte[]{(byte) i, (byte) (i >> 8)}, poll(received));
+            }
+            assertEquals(0, slow.getPrimarySubscription().getDropCount());
+        } finally {
+            gate.countDown();
+            slow.release();
+        }
+    }
+
+    @Test
+    public void reconnectAfterDisconnect() throws Exception {
+        connect();
+        mClient.disconnect();
+        TestListener.awaitState(mClient, ConnectionManager.CONNECT_STATE_IDLE);
+        TestListener.awaitState(mServer, ConnectionManager.CONNECT_STATE_IDLE);
+        assertFalse(mClient.sendData(new byte[1]));
+        assertEquals(ConnectionManager.LISTEN_STATE_LISTENING, mServer.getCurrentListenState());
+
+        connect();
+        assertTrue(mClient.sendData(new byte[]{9}));
+        assertArrayEquals(new byte[]{9}, poll(mServerReceived));
+    }
+
+    @Test
+    public void reconnectAfterLinkBreaks() throws Exception {
+        connect();
+        mNetwork.breakAll();
+        TestListener.awaitState(mClient, ConnectionManager.CONNECT_STATE_IDLE);
+        TestListener.awaitState(mServer, ConnectionManager.CONNECT_STATE_IDLE);
+        assertEquals(0, mNetwork.getActiveLinkCount());
+
+        connect();
+        assertTrue(mServer.sendData(new byte[]{7}));
+        assertArrayEquals(new byte[]{7}, poll(mClientReceived));
+        assertEquals(2, mNetwork.getActiveLinkCount());
+    }
+
+    @Test
+    public void connectToAbsentPeerReturnsToIdle() throws Exception {
+        mClient.connect("nobody");
+        TestListener.awaitState(mClient, ConnectionManager.CONNECT_STATE_IDLE);
+        assertEquals(0, mNetwork.getActiveLinkCount());
+    }
+
+    @Test
+    public void newConnectReplacesPendingOne() throws Exception {
+        mServer.startListen();
+        TestListener.awaitListening(mServer);
+        // 第一个连接尚未建立就被替换, 它的失败不能把新连接的状态改回空闲
+        mClient.connect("nobody");
+        mClient.connect("server");
+        TestListener.awaitConnected(mClient);
+        TestListener.awaitConnected(mServer);
+        Thread.sleep(100);
+        assertEquals(ConnectionManager.CONNECT_STATE_CONNECTED, mClient.getCurrentConnectState());
+        assertTrue(mClient.sendData(new byte[]{5}));
+        assertArrayEquals(new byte[]{5}, poll(mServerReceived));
+        assertEquals(2, mNetwork.getActiveLinkCount());
+    }
+
+    @Test
+    public void secondIncomingConnectionIsRejected() throws Exception {
+        connect();
+        ConnectionManager other = TestListener.create(mNetwork.node("other"), new TestListener());
+        try {
+            other.connect("server");
+            TestListener.awaitState(other, ConnectionManager.CONNECT_STATE_IDLE);
+            assertEquals(ConnectionManager.CONNECT_STATE_CONNECTED, mServer.getCurrentConnectState());
+            assertTrue(mClient.sendData(new byte[]{6}));
+            assertArrayEquals(new byte[]{6}, poll(mServerReceived));
+        } finally {
+            other.release();
+        }
+    }
+
+    @Test
+    public void staleCachedWindowIsNotOverrun() throws Exception {
+        // 延迟较大, 对端的握手帧到达前已开始发送
+        SimulatedNetwork.Config config = new SimulatedNetwork.Config();
+        config.bandwidthBytesPerSecond = 16 * 1024 * 1024;
+        config.latencyNanos = 200 * 1000000L;
+        config.jitterNanos = 0;
+        config.lossProbability = 0;
+        config.stallProbability = 0;
+        config.connectNanos = 10 * 1000000L;
+        SimulatedNetwork network = new SimulatedNetwork(config, 5, LinkClock.SYSTEM);
+        final ConnectionManager client = TestListener.create(network.node("client"), new TestListener());
+
+        // 缓存的对端窗口比实际大得多, 握手前只能按默认窗口发送
+        client.setProfileStore(new PeerProfile.Store() {
+            @Override
+            public PeerProfile load(String address) {
+                return new PeerProfile(PeerProfile.PROTOCOL_VERSION, PeerProfile.LOCAL_FEATURES,
+                        FrameCodec.MAX_FRAME_SIZE, 16 * ConnectionManager.RECEIVE_WINDOW);
+            }
+
+            @Override
+            public void save(String address, PeerProfile profile) {
+            }
+        });
+        final CountDownLatch gate = new CountDownLatch(1);
+        final LinkedBlockingQueue<byte[]> received = new LinkedBlockingQueue<>();
+        ConnectionManager slow = TestListener.create(network.node("slow"), new QueueListener(received) {
+            @Override
+            public void onReadData(byte[] data) {
+                try {
+                    gate.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                super.onReadData(data);
+            }
+        });
+        try {
+            slow.startListen();
+            TestListener.awaitListening(slow);
+            client.connect("slow");
+            TestListener.awaitConnected(client);
+
+            // 发送方没有信用时阻塞, 在单独的线程中发送
+            final int count = 8 * ConnectionManager.RECEIVE_WINDOW / FrameCodec.MAX_FRAME_SIZE;
+            final boolean[] sent = new boolean[count];
+            Thread sender = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    byte[] data = new byte[FrameCodec.MAX_FRAME_SIZE];
+                    for (int i = 0; i < count; i++) {
+                        data[0] = (byte) i;
+                        sent[i] = client.sendData(data);
+                    }
+                }
+            });
+            sender.start();
+            Thread.sleep(1000);
+            assertEquals(ConnectionManager.CONNECT_STATE_CONNECTED, slow.getCurrentConnectState());
+            gate.countDown();
+
+            for (int i = 0; i < count; i++) {
+                assertEquals((byte) i, poll(received)[0]);
+            }
+            sender.join(10000);
+            for (boolean ok : sent) {
+                assertTrue(ok);
+            }
+            assertTrue(slow.getReceiveBufferPeak() <= ConnectionManager.RECEIVE_WINDOW);
+        } finally {
+            gate.countDown();
+            client.release();
+            slow.release();
+        }
+    }
+
+    @Test
+    public void sameSeedGivesSameTrace() throws Exception {
+        List<Long> first = runVirtual(7);
+        List<Long> second = runVirtual(7);
+        assertEquals(first, second);
+        assertNotEquals(first, runVirtual(8));
+    }
+
+    //==============================================================================================
+    private void connect() throws InterruptedException {
+        mServer.startListen();
+        TestListener.awaitListening(mServer);
+        mClient.connect("server");
+        TestListener.awaitConnected(mClient);
+        TestListener.awaitConnected(mServer);
+    }
+
+    private static byte[] poll(LinkedBlockingQueue<byte[]> queue) throws InterruptedException {
+        byte[] data = queue.poll(10, TimeUnit.SECONDS);
+        assertNotNull("timed out waiting for data", data);
+        return data;
+    }
+
+    private static class QueueListener extends TestListener {
+
+        private final LinkedBlockingQueue<byte[]> mQueue;
+
+        QueueListener(LinkedBlockingQueue<byte[]> queue) {
+            mQueue = queue;
+        }
+
+        @Override
+        public void onReadData(byte[] data) {
+            mQueue.add(data);
+            super.onReadData(data);
+        }
+    }
+
+    // 在虚拟时钟上收发一组消息, 返回服务端收到每条消息时的虚拟时间
+    private static List<Long> runVirtual(final long seed) throws Exception {
+        final List<Long> arrivals = Collections.synchronizedList(new ArrayList<Long>());
+        final Throwable[] error = new Throwable[1];
+        ThreadGroup group = new ThreadGroup("virtual-" + seed);
+        final LinkClock.Virtual clock = new LinkClock.Virtual(group);
+
+        Thread scenario = new Thread(group, new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    SimulatedNetwork.Config config = new SimulatedNetwork.Config();
+                    config.lossProbability = 0.1;
+                    config.stallProbability = 0.02;
+                    SimulatedNetwork network = new SimulatedNetwork(config, seed, clock);
+
+                    final int messages = 40;
+                    final CountDownLatch connected = new CountDownLatch(2);
+                    final Semaphore received = new Semaphore(0);
+                    ConnectionManager server = TestListener.create(network.node("server"), new TestListener() {
+                        @Override
+                        public void onConnectStateChange(int oldState, int state) {
+                            if (state == ConnectionManager.CONNECT_STATE_CONNECTED) {
+                                connected.countDown();
+                            }
+                        }
+
+                        @Override
+                        public void onReadData(byte[] data) {
+                            arrivals.add(clock.nanoTime());
+                            received.release();
+                            super.onReadData(data);
+                        }
+                    });
+                    ConnectionManager client = TestListener.create(network.node("client"), new TestListener() {
+                        @Override
+                        public void onConnectStateChange(int oldState, int state) {
+                            if (state == ConnectionManager.CONNECT_STATE_CONNECTED) {
+                                connected.countDown();
+                            }
+                        }
+                    });
+
+                    server.startListen();
+                    server.setClock(clock);
+                    client.setClock(clock);
+                    client.connect("server");
+                    connected.await();
+                    // 握手完成后再发送, 每次只有一条消息在途, 链路上每次写入的内容只由虚拟时间决定
+                    while (client.getPeerProfile() == null || server.getPeerProfile() == null) {
+                        clock.sleepUntil(clock.nanoTime() + 1000000L);
+                    }
+                    for (int i = 0; i < messages; i++) {
+                        client.sendData(new byte[200 + 50 * i]);
+                        received.acquire();
+                    }
+                    client.release();
+                    server.release();
+                } catch (Throwable t) {
+                    error[0] = t;
+                }
+            }
+        });
+        scenario.start();
+        scenario.join(60000);
+        assertFalse("virtual scenario did not finish", scenario.isAlive());
+        if (error[0] != null) {
+            throw new AssertionError(error[0]);
+        }
+        return new ArrayList<>(arrivals);
+    }
+}
@@ -0,0 +1,97 @@
+package com.curiosity.bluetoothchat;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.net.ProtocolException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class FrameCodecTest {
+
+    private final List<Integer> mTypes = new ArrayList<>();
+    private final List<byte[]> mPayloads = new ArrayList<>();
+    private FrameCodec mCodec;
+
+    @Before
+    public void setUp() {
+        mCodec = new FrameCodec(new FrameCodec.FrameListener() {
+            @Override
+            public void onFrame(int type, byte[] buf, int offset, int length) {
+                mTypes.add(type);
+                mPayloads.add(Arrays.copyOfRange(buf, offset, offset + length));
+            }
+        });
+    }
+
+    @Test
+    public void framesSurviveAnySplit() throws Exception {
+        byte[][] payloads = {new byte[0], {1, 2, 3}, new byte[300], new byte[FrameCodec.MAX_FRAME_SIZE]};
+        payloads[3][FrameCodec.MAX_FRAME_SIZE - 1] = 9;
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        for (int i = 0; i < payloads.length; i++) {
+            byte[] frame = FrameCodec.encode(i, payloads[i]);
+            assertEquals(FrameCodec.encodedSize(payloads[i].length), frame.length);
+            stream.write(frame, 0, frame.length);
+        }
+        byte[] data = stream.toByteArray();
+
+        for (int split : new int[]{1, 2, 7, 1000, data.length}) {
+            mTypes.clear();
+            mPayloads.clear();
+            for (int pos = 0; pos < data.length; pos += split) {
+                mCodec.feed(data, pos, Math.min(split, data.length - pos));
+            }
+            assertEquals(payloads.length, mPayloads.size());
+            for (int i = 0; i < payloads.length; i++) {
+                assertEquals(i, (int) mTypes.get(i));
+                assertArrayEquals(payloads[i], mPayloads.get(i));
+            }
+        }
+    }
+
+    @Test
+    public void encodeAtOffset() throws Exception {
+        byte[] payload = {5, 6, 7, 8};
+        byte[] buf = new byte[10 + FrameCodec.encodedSize(2)];
+        int end = FrameCodec.encode(FrameCodec.TYPE_SYNC, payload, 1, 2, buf, 10);
+        assertEquals(buf.length, end);
+
+        mCodec.feed(buf, 10, end - 10);
+        assertEquals(FrameCodec.TYPE_SYNC, (int) mTypes.get(0));
+        assertArrayEquals(new byte[]{6, 7}, mPayloads.get(0));
+    }
+
+    @Test(expected = ProtocolException.class)
+    public void oversizeFrameIsRejected() throws Exception {
+        byte[] header = new byte[Varint.MAX_SIZE];
+        int length = Varint.write(header, 0, FrameCodec.MAX_FRAME_SIZE + 2);
+        mCodec.feed(header, 0, length);
+    }
+
+    @Test(expected = ProtocolException.class)
+    public void emptyFrameIsRejected() throws Exception {
+        mCodec.feed(new byte[]{0}, 0, 1);
+    }
+
+    @Test(expected = ProtocolException.class)
+    public void malformedLengthIsRejected() throws Exception {
+        byte[] header = new byte[Varint.MAX_SIZE];
+        Arrays.fill(header, (byte) 0x80);
+        mCodec.feed(header, 0, header.length);
+    }
+
+    @Test
+    public void resetDropsPartialFrame() throws Exception {
+        byte[] frame = FrameCodec.encode(FrameCodec.TYPE_DATA, new byte[]{1, 2, 3});
+        mCodec.feed(frame, 0, 2);
+        mCodec.reset();
+        mCodec.feed(frame, 0, frame.length);
+        assertEquals(1, mPayloads.size());
+        assertArrayEquals(new byte[]{1, 2, 3}, mPayloads.get(0));
+    }
+}
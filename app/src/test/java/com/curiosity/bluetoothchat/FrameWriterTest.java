@@ -0,0 +1,123 @@
+package com.curiosity.bluetoothchat;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class FrameWriterTest {
+
+    @Test
+    public void audioIsInsertedAtNextFrameBoundary() throws Exception {
+        // 块小于帧, 语音在第一个数据帧之后写入, 不等整批写完
+        List<byte[]> payloads = sendBatchWithAudio(4, 128);
+        assertTypes(payloads, 1, 4);
+    }
+
+    @Test
+    public void audioAfterChunkSpanningFrames() throws Exception {
+        // 第一块跨过了前四帧, 语音在第五帧末尾写入
+        List<byte[]> payloads = sendBatchWithAudio(10, 4096);
+        assertTypes(payloads, 5, 10);
+    }
+
+    //==============================================================================================
+    // 链路忙于写第一块时插入一个语音帧, 返回链路上依次出现的帧, 语音帧为 null
+    private static List<byte[]> sendBatchWithAudio(int frames, int chunkSize) throws Exception {
+        final CountDownLatch writing = new CountDownLatch(1);
+        final CountDownLatch gate = new CountDownLatch(1);
+        final ByteArrayOutputStream wire = new ByteArrayOutputStream();
+        OutputStream out = new OutputStream() {
+            @Override
+            public void write(int b) {
+                throw new UnsupportedOperationException();
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                // 第一次写入时停住, 模拟链路正忙
+                writing.countDown();
+                try {
+                    gate.await();
+                } catch (InterruptedException e) {
+                    throw new IOException(e);
+                }
+                synchronized (wire) {
+                    wire.write(b, off, len);
+                }
+            }
+        };
+
+        final FrameWriter writer = new FrameWriter(out, 1 << 20, new WriteSizeController(chunkSize, chunkSize, 64 * 1024, 64 * 1024),
+                LinkClock.SYSTEM, new FrameWriter.Callback() {
+            @Override
+            public void onBytesWritten(byte[] buf, int offset, int length) {
+            }
+
+            @Override
+            public void onDataSent(boolean suc, byte[] data) {
+            }
+        });
+        writer.start();
+
+        // 数据帧合并为一批
+        final List<byte[]> batch = new ArrayList<>();
+        for (int i = 0; i < frames; i++) {
+            byte[] data = new byte[1000];
+            data[0] = (byte) i;
+            batch.add(data);
+        }
+        final int[] sent = new int[1];
+        Thread sender = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                sent[0] = writer.sendData(batch);
+            }
+        });
+        sender.start();
+
+        assertTrue(writing.await(10, TimeUnit.SECONDS));
+        writer.sendPriority(FrameCodec.TYPE_AUDIO, new byte[]{42});
+        gate.countDown();
+        sender.join(10000);
+        writer.close();
+        assertEquals(frames, sent[0]);
+
+        final List<byte[]> payloads = new ArrayList<>();
+        FrameCodec codec = new FrameCodec(new FrameCodec.FrameListener() {
+            @Override
+            public void onFrame(int type, byte[] buf, int offset, int length) {
+                if (type == FrameCodec.TYPE_AUDIO) {
+                    assertArrayEquals(new byte[]{42}, Arrays.copyOfRange(buf, offset, offset + length));
+                    payloads.add(null);
+                } else {
+                    assertEquals(FrameCodec.TYPE_DATA, type);
+                    payloads.add(Arrays.copyOfRange(buf, offset, offset + length));
+                }
+            }
+        });
+        byte[] bytes;
+        synchronized (wire) {
+            bytes = wire.toByteArray();
+        }
+        codec.feed(bytes, 0, bytes.length);
+        return payloads;
+    }
+
+    // 语音帧位于 audioIndex, 数据帧保持原顺序
+    private static void assertTypes(List<byte[]> payloads, int audioIndex, int frames) {
+        assertEquals(frames + 1, payloads.size());
+        assertNull(payloads.get(audioIndex));
+        for (int i = 0; i < frames; i++) {
+            assertEquals(i, payloads.get(i < audioIndex ? i : i + 1)[0]);
+        }
+    }
+}
@@ -0,0 +1,158 @@
+package com.curiosity.bluetoothchat;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * 重连后的历史同步: 摘要分帧, 分批推送
+ */
+public class HistorySyncTest {
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private MessageLog mServerLog;
+    private MessageLog mClientLog;
+    private ConnectionManager mServer;
+    private ConnectionManager mClient;
+    private HistorySync mServerSync;
+    private HistorySync mClientSync;
+
+    @Before
+    public void setUp() throws Exception {
+        mServerLog = new MessageLog(mFolder.newFolder());
+        mClientLog = new MessageLog(mFolder.newFolder());
+
+        SimulatedNetwork.Config config = new SimulatedNetwork.Config();
+        config.bandwidthBytesPerSecond = 16 * 1024 * 1024;
+        config.latencyNanos = 1000000L;
+        config.jitterNanos = 0;
+        config.lossProbability = 0;
+        config.stallProbability = 0;
+        config.connectNanos = 5 * 1000000L;
+        SimulatedNetwork network = new SimulatedNetwork(config, 7, LinkClock.SYSTEM);
+
+        mServer = TestListener.create(network.node("server"), new StoringListener(mServerLog));
+        mClient = TestListener.create(network.node("client"), new StoringListener(mClientLog));
+    }
+
+    @After
+    public void tearDown() {
+        if (mServerSync != null) {
+            mServerSync.close();
+        }
+        if (mClientSync != null) {
+            mClientSync.close();
+        }
+        mClient.release();
+        mServer.release();
+        mServerLog.close();
+        mClientLog.close();
+    }
+
+    @Test
+    public void fragmentedHistoryIsExchanged() throws Exception {
+        // 双方各持有同一发送方的奇数和偶数序号, 每条消息都是一个单独的区间, 摘要需要分成多帧
+        int count = 10000;
+        for (int i = 1; i <= count; i++) {
+            assertTrue(mServerLog.append(TestListener.textMessage(1, 2 * i - 1, "s" + i)));
+            assertTrue(mClientLog.append(TestListener.textMessage(1, 2 * i, "c" + i)));
+        }
+        assertTrue(mServerLog.append(TestListener.textMessage(2, 1, "server only")));
+
+        connect();
+        awaitCount(mServerLog, 2 * count + 1);
+        awaitCount(mClientLog, 2 * count + 1);
+
+        assertTrue(mServerSync.getLastSummaryParts() > 1);
+        assertTrue(mClientSync.getLastSummaryParts() > 1);
+        assertEquals(count + 1, mServerSync.getLastPushedCount());
+        assertEquals(count, mClientSync.getLastPushedCount());
+        assertArrayEquals(mServerLog.read(2, 1), mClientLog.read(2, 1));
+        assertArrayEquals(mClientLog.read(1, 2 * count), mServerLog.read(1, 2 * count));
+    }
+
+    @Test
+    public void identicalHistoryPushesNothing() throws Exception {
+        for (int i = 1; i <= 100; i++) {
+            assertTrue(mServerLog.append(TestListener.textMessage(1, i, "m" + i)));
+            assertTrue(mClientLog.append(TestListener.textMessage(1, i, "m" + i)));
+        }
+
+        connect();
+        awaitSummary(mServerSync);
+        awaitSummary(mClientSync);
+        Thread.sleep(200);
+        assertEquals(1, mServerSync.getLastSummaryParts());
+        assertEquals(0, mServerSync.getLastPushedCount());
+        assertEquals(0, mClientSync.getLastPushedCount());
+        assertEquals(100, mClientLog.getCount());
+    }
+
+    @Test
+    public void smallestPartsStillMakeProgress() throws Exception {
+        // 发送方 ID 的 varint 最长, 每个序号单独成一个区间, 每帧只能放下少数几个区间
+        for (int i = 1; i <= 50; i++) {
+            assertTrue(mServerLog.append(TestListener.textMessage(Long.MAX_VALUE, 1000000L * i, "m" + i)));
+        }
+        mServerSync = new HistorySync(mServerLog, mServer);
+        List<byte[]> parts = mServerSync.encodeSummary(HistorySync.MIN_PART_SIZE);
+        assertTrue(parts.size() > 1);
+        for (byte[] part : parts) {
+            assertTrue(part.length <= HistorySync.MIN_PART_SIZE);
+        }
+    }
+
+    //==============================================================================================
+    // 收到的消息存入历史后归还接收窗口
+    private static class StoringListener extends TestListener {
+
+        private final MessageLog mLog;
+
+        StoringListener(MessageLog log) {
+            mLog = log;
+        }
+
+        @Override
+        public void onReadData(byte[] data) {
+            ChatMessage message = new ChatMessage();
+            if (MessageCodec.decode(data, 0, data.length, message)) {
+                mLog.append(message);
+            }
+            super.onReadData(data);
+        }
+    }
+
+    private void connect() throws InterruptedException {
+        mServerSync = new HistorySync(mServerLog, mServer);
+        mClientSync = new HistorySync(mClientLog, mClient);
+        mServer.startListen();
+        TestListener.awaitListening(mServer);
+        mClient.connect("server");
+        TestListener.awaitConnected(mClient);
+        TestListener.awaitConnected(mServer);
+    }
+
+    private static void awaitCount(MessageLog log, int count) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 30000;
+        while (log.getCount() != count) {
+            assertTrue("timed out waiting for sync, count=" + log.getCount(), System.currentTimeMillis() < deadline);
+            Thread.sleep(10);
+        }
+    }
+
+    private static void awaitSummary(HistorySync sync) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10000;
+        while (sync.getLastSummaryParts() == 0) {
+            assertTrue("timed out waiting for summary", System.currentTimeMillis() < deadline);
+            Thread.sleep(5);
+        }
+    }
+}
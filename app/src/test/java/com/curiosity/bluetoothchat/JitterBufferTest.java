@@ -0,0 +1,129 @@
+package com.curiosity.bluetoothchat;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class JitterBufferTest {
+
+    private static final int FRAME = VoiceCodec.FRAME_MILLIS;
+    private static final int TRANSIT = 10;
+
+    private final JitterBuffer mBuffer = new JitterBuffer();
+    private final short[] mOut = new short[VoiceCodec.FRAME_SAMPLES];
+
+    @Test
+    public void buffersToTargetDelayThenPlaysInOrder() {
+        put(0, 0);
+        assertEquals(JitterBuffer.RESULT_SILENCE, mBuffer.poll(FRAME + TRANSIT, mOut));
+        put(1, 0);
+        put(2, 0);
+
+        int start = TRANSIT + mBuffer.getTargetDelay();
+        for (int sequence = 0; sequence < 3; sequence++) {
+            assertEquals(JitterBuffer.RESULT_PLAY, mBuffer.poll(start + sequence * FRAME, mOut));
+            assertEquals(sequence, mOut[0]);
+            put(sequence + 3, 0);
+        }
+        assertEquals(3, mBuffer.getPlayedCount());
+        assertEquals(0, mBuffer.getUnderrunCount());
+    }
+
+    @Test
+    public void missingFrameIsConcealed() {
+        List<Integer> played = new ArrayList<>();
+        int start = TRANSIT + mBuffer.getTargetDelay();
+        int next = 0;
+        for (int i = 0; i < 15; i++) {
+            int now = start + i * FRAME;
+            // 放入此时已到达的帧, 第 5 帧丢失
+            for (; next * FRAME + TRANSIT <= now; next++) {
+                if (next != 5) {
+                    put(next, 0);
+                }
+            }
+            int result = mBuffer.poll(now, mOut);
+            if (result == JitterBuffer.RESULT_PLAY) {
+                played.add((int) mOut[0]);
+            } else {
+                assertEquals(JitterBuffer.RESULT_CONCEALED, result);
+            }
+        }
+        assertEquals(Arrays.asList(0, 1, 2, 3, 4, 6, 7, 8, 9, 10, 11, 12, 13, 14), played);
+        assertEquals(1, mBuffer.getConcealedCount());
+        assertEquals(0, mBuffer.getUnderrunCount());
+        assertEquals(0, mBuffer.getLateCount());
+    }
+
+    @Test
+    public void lateFrameIsDropped() {
+        for (int sequence = 0; sequence < 6; sequence++) {
+            put(sequence, 0);
+        }
+        int start = TRANSIT + mBuffer.getTargetDelay();
+        mBuffer.poll(start, mOut);
+        mBuffer.poll(start + FRAME, mOut);
+
+        put(0, 200);
+        assertEquals(1, mBuffer.getLateCount());
+        assertEquals(JitterBuffer.RESULT_PLAY, mBuffer.poll(start + 2 * FRAME, mOut));
+        assertEquals(2, mOut[0]);
+    }
+
+    @Test
+    public void endOfTalkRebuffers() {
+        put(0, 0);
+        VoicePacket last = packet(1);
+        last.flags = VoiceCodec.FLAG_END;
+        mBuffer.put(last, FRAME + TRANSIT);
+
+        int start = TRANSIT + mBuffer.getTargetDelay();
+        assertEquals(JitterBuffer.RESULT_PLAY, mBuffer.poll(start, mOut));
+        assertFalse(mBuffer.isIdle());
+        assertEquals(JitterBuffer.RESULT_PLAY, mBuffer.poll(start + FRAME, mOut));
+        assertTrue(mBuffer.isIdle());
+        assertEquals(JitterBuffer.RESULT_SILENCE, mBuffer.poll(start + 2 * FRAME, mOut));
+        assertEquals(0, mBuffer.getUnderrunCount());
+    }
+
+    @Test
+    public void underrunRebuffers() {
+        put(0, 0);
+        put(1, 0);
+        int start = TRANSIT + mBuffer.getTargetDelay();
+        mBuffer.poll(start, mOut);
+        mBuffer.poll(start + FRAME, mOut);
+        assertEquals(JitterBuffer.RESULT_SILENCE, mBuffer.poll(start + 2 * FRAME, mOut));
+        assertEquals(1, mBuffer.getUnderrunCount());
+        // 断流不是讲话结束, 播放线程继续等待
+        assertFalse(mBuffer.isIdle());
+    }
+
+    @Test
+    public void targetDelayFollowsJitter() {
+        int initial = mBuffer.getTargetDelay();
+        for (int sequence = 0; sequence < 50; sequence++) {
+            put(sequence, sequence % 2 == 0 ? 0 : 40);
+        }
+        assertTrue(mBuffer.getJitter() > 10);
+        assertTrue(mBuffer.getTargetDelay() > initial);
+    }
+
+    //==============================================================================================
+    private static VoicePacket packet(int sequence) {
+        VoicePacket packet = new VoicePacket();
+        packet.sequence = sequence;
+        packet.timestamp = sequence * FRAME;
+        packet.pcm[0] = (short) sequence;
+        return packet;
+    }
+
+    // 按发送时间 + 固定传输时间 + extraDelay 到达
+    private void put(int sequence, int extraDelay) {
+        mBuffer.put(packet(sequence), sequence * FRAME + TRANSIT + extraDelay);
+    }
+}
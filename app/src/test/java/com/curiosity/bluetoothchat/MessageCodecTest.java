@@ -0,0 +1,71 @@
+package com.curiosity.bluetoothchat;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class MessageCodecTest {
+
+    @Test
+    public void roundTrip() {
+        ChatMessage message = TestListener.textMessage(Long.MAX_VALUE, 1L << 35, "hello \u4e2d\u6587 \ud83d\ude00");
+        message.messageType = ChatMessage.TYPE_RECEIPT;
+        message.timestamp = 1500000000000L;
+
+        byte[] buf = MessageCodec.encode(message);
+        assertEquals(MessageCodec.encodedSize(message), buf.length);
+
+        ChatMessage decoded = new ChatMessage();
+        assertTrue(MessageCodec.decode(buf, 0, buf.length, decoded));
+        assertEquals(message.messageType, decoded.messageType);
+        assertEquals(message.senderId, decoded.senderId);
+        assertEquals(message.messageId, decoded.messageId);
+        assertEquals(message.timestamp, decoded.timestamp);
+        assertEquals(message.messageContent, decoded.messageContent);
+    }
+
+    @Test
+    public void encodeAtOffset() {
+        ChatMessage message = TestListener.textMessage(3, 4, "");
+        byte[] buf = new byte[5 + MessageCodec.encodedSize(message)];
+        assertEquals(buf.length, MessageCodec.encode(message, buf, 5));
+
+        ChatMessage decoded = new ChatMessage();
+        assertTrue(MessageCodec.decode(buf, 5, buf.length - 5, decoded));
+        assertEquals(4, decoded.messageId);
+        assertEquals("", decoded.messageContent);
+    }
+
+    @Test
+    public void truncatedIsRejected() {
+        byte[] buf = MessageCodec.encode(TestListener.textMessage(1, 2, "some text"));
+        ChatMessage decoded = new ChatMessage();
+        // 截断在内容中间或字段头中间
+        assertFalse(MessageCodec.decode(buf, 0, buf.length - 1, decoded));
+        assertFalse(MessageCodec.decode(buf, 0, 0, decoded));
+    }
+
+    @Test
+    public void unknownVarintFieldIsSkipped() {
+        byte[] encoded = MessageCodec.encode(TestListener.textMessage(1, 2, "abc"));
+        // 追加字段 15, 旧版本应忽略
+        byte[] buf = new byte[encoded.length + 2];
+        System.arraycopy(encoded, 0, buf, 0, encoded.length);
+        buf[encoded.length] = (byte) (15 << 3);
+        buf[encoded.length + 1] = 42;
+
+        ChatMessage decoded = new ChatMessage();
+        assertTrue(MessageCodec.decode(buf, 0, buf.length, decoded));
+        assertEquals("abc", decoded.messageContent);
+    }
+
+    @Test
+    public void unknownWireTypeIsRejected() {
+        byte[] encoded = MessageCodec.encode(TestListener.textMessage(1, 2, "abc"));
+        byte[] buf = new byte[encoded.length + 1];
+        System.arraycopy(encoded, 0, buf, 0, encoded.length);
+        buf[encoded.length] = (byte) (6 << 3 | 5);
+
+        assertFalse(MessageCodec.decode(buf, 0, buf.length, new ChatMessage()));
+    }
+}
@@ -0,0 +1,205 @@
+package com.curiosity.bluetoothchat;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+/**
+ * 消息历史的加载和恢复
+ */
+public class MessageLogTest {
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private File mDir;
+    private MessageLog mLog;
+
+    @Before
+    public void setUp() throws Exception {
+        mDir = mFolder.newFolder();
+        mLog = new MessageLog(mDir);
+    }
+
+    @After
+    public void tearDown() {
+        mLog.close();
+    }
+
+    @Test
+    public void tornTailIsTruncatedOnLoad() throws Exception {
+        for (int i = 1; i <= 3; i++) {
+            append(1, i, "message " + i);
+        }
+        mLog.close();
+        File segment = new File(mDir, "messages/1.log");
+        long length = segment.length();
+
+        // 写入中断: 长度已写入, 数据只写了一部分
+        DataOutputStream out = new DataOutputStream(new FileOutputStream(segment, true));
+        out.writeInt(100);
+        out.write(new byte[10]);
+        out.close();
+
+        mLog = new MessageLog(mDir);
+        assertEquals(3, mLog.getCount());
+        assertEquals(length, segment.length());
+
+        // 之后追加的消息接在完整记录后面, 重新加载后仍可读取
+        append(1, 4, "message 4");
+        mLog.close();
+        mLog = new MessageLog(mDir);
+        assertEquals(4, mLog.getCount());
+        assertMessage(1, 4, "message 4");
+    }
+
+    @Test
+    public void sealedSegmentIsRescannedWithoutIndex() throws Exception {
+        int count = fillSegments(2);
+        awaitIndex(new File(mDir, "messages/1.idx"));
+        mLog.close();
+
+        assertTrue(new File(mDir, "messages/1.idx").delete());
+        mLog = new MessageLog(mDir);
+        assertEquals(count, mLog.getCount());
+        assertMessage(7, 1, content(1));
+        assertMessage(7, count, content(count));
+    }
+
+    @Test
+    public void damagedIndexIsRescanned() throws Exception {
+        int count = fillSegments(2);
+        File index = new File(mDir, "messages/1.idx");
+        awaitIndex(index);
+        mLog.close();
+
+        // 长度不是索引项的整数倍
+        RandomAccessFile raf = new RandomAccessFile(index, "rw");
+        raf.setLength(raf.length() - 1);
+        raf.close();
+        mLog = new MessageLog(mDir);
+        assertEquals(count, mLog.getCount());
+        assertMessage(7, 2, content(2));
+        mLog.close();
+
+        // 索引项指向段文件之外
+        assertTrue(index.delete());
+        mLog = new MessageLog(mDir);
+        assertEquals(count, mLog.getCount());
+        awaitIndex(index);
+        mLog.close();
+        raf = new RandomAccessFile(index, "rw");
+        raf.seek(16);
+        raf.writeInt(Integer.MAX_VALUE);
+        raf.close();
+        mLog = new MessageLog(mDir);
+        assertEquals(count, mLog.getCount());
+        assertMessage(7, 1, content(1));
+    }
+
+    @Test
+    public void floorsSurviveReload() throws Exception {
+        mLog.close();
+        MessageLog.Retention retention = new MessageLog.Retention();
+        retention.maxMessagesPerSender = 5;
+        mLog = new MessageLog(mDir, retention);
+        for (int i = 1; i <= 10; i++) {
+            append(3, i, "message " + i);
+        }
+        mLog.maintain();
+        awaitFloors();
+        mLog.close();
+
+        // 删除过的序号不会被同步重新写入
+        mLog = new MessageLog(mDir, retention);
+        assertEquals(5, mLog.getFloor(3));
+        assertFalse(mLog.append(TestListener.textMessage(3, 2, "message 2")));
+        assertTrue(Arrays.equals(new long[]{6, 7, 8, 9, 10}, mLog.getMessageIds(3)));
+    }
+
+    @Test
+    public void droppedSegmentRemovesOlderSyncedMessages() throws Exception {
+        mLog.close();
+        MessageLog.Retention retention = new MessageLog.Retention();
+        retention.maxBytes = 0;
+        mLog = new MessageLog(mDir, retention);
+        int id = 1000;
+        while (mLog.getSegmentCount() < 2) {
+            id++;
+            append(7, id, content(id));
+        }
+        // 同步得到的更早的消息写在后面的段中
+        append(7, 5, "synced");
+        append(7, id + 1, "latest");
+
+        retention.maxBytes = 1;
+        mLog.maintain();
+        awaitFloors();
+        assertFalse(mLog.contains(7, 5));
+        assertTrue(mLog.contains(7, id + 1));
+        int count = mLog.getCount();
+        mLog.close();
+
+        // 与重新加载后的结果一致
+        mLog = new MessageLog(mDir, retention);
+        assertEquals(count, mLog.getCount());
+        assertFalse(mLog.contains(7, 5));
+        assertMessage(7, id + 1, "latest");
+    }
+
+    //==============================================================================================
+    private void append(long senderId, long messageId, String content) {
+        assertTrue(mLog.append(TestListener.textMessage(senderId, messageId, content)));
+    }
+
+    private void assertMessage(long senderId, long messageId, String content) {
+        byte[] data = mLog.read(senderId, messageId);
+        assertNotNull(data);
+        ChatMessage message = new ChatMessage();
+        assertTrue(MessageCodec.decode(data, 0, data.length, message));
+        assertEquals(content, message.messageContent);
+    }
+
+    private static String content(int i) {
+        char[] text = new char[1000];
+        Arrays.fill(text, (char) ('a' + i % 26));
+        return i + new String(text);
+    }
+
+    // 追加消息直到写满 segments 个段, 返回消息数
+    private int fillSegments(int segments) {
+        int count = 0;
+        while (mLog.getSegmentCount() <= segments) {
+            count++;
+            append(7, count, content(count));
+        }
+        return count;
+    }
+
+    private static void awaitIndex(File index) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10000;
+        while (!index.exists()) {
+            assertTrue("timed out waiting for index", System.currentTimeMillis() < deadline);
+            Thread.sleep(5);
+        }
+    }
+
+    private void awaitFloors() throws InterruptedException {
+        File floors = new File(mDir, "messages/floors");
+        long deadline = System.currentTimeMillis() + 10000;
+        while (!floors.exists()) {
+            assertTrue("timed out waiting for retention", System.currentTimeMillis() < deadline);
+            Thread.sleep(5);
+        }
+    }
+}
@@ -0,0 +1,126 @@
+package com.curiosity.bluetoothchat;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * 全文索引的增量建立, 持久化和查询
+ */
+public class MessageSearchIndexTest {
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private File mDir;
+    private MessageLog mLog;
+    private MessageSearchIndex mIndex;
+
+    @Before
+    public void setUp() throws Exception {
+        mDir = mFolder.newFolder();
+        mLog = new MessageLog(mDir);
+    }
+
+    @After
+    public void tearDown() {
+        if (mIndex != null) {
+            mIndex.close();
+        }
+        mLog.close();
+    }
+
+    @Test
+    public void indexesAppendedMessages() throws Exception {
+        mIndex = new MessageSearchIndex(mDir, mLog);
+        append(1, 1, "hello world");
+        append(2, 1, "\u4e2d\u6587\u641c\u7d22");
+        append(1, 2, "Hello again");
+        awaitDocs(3);
+
+        assertKeys(search("hel", 0, 10), 1, 2, 1, 1);
+        assertKeys(search("hello", 1, 10), 1, 1);
+        assertKeys(search("\u6587\u641c", 0, 10), 2, 1);
+        assertKeys(search("missing", 0, 10));
+    }
+
+    @Test
+    public void restartCatchesUpFromHistory() throws Exception {
+        append(1, 1, "before index");
+        mIndex = new MessageSearchIndex(mDir, mLog);
+        append(1, 2, "while indexing");
+        awaitDocs(2);
+        mIndex.close();
+
+        // 关闭期间追加的消息在重新打开时补上, 文档号不变
+        append(2, 7, "while closed");
+        mIndex = new MessageSearchIndex(mDir, mLog);
+        awaitDocs(3);
+        assertEquals(3, mIndex.getDocCount());
+        assertKeys(search("while", 0, 10), 2, 7, 1, 2);
+        assertKeys(search("before", 0, 10), 1, 1);
+    }
+
+    @Test
+    public void damagedDocTableIsRebuilt() throws Exception {
+        mIndex = new MessageSearchIndex(mDir, mLog);
+        for (int i = 1; i <= 10; i++) {
+            append(1, i, "message " + i);
+        }
+        awaitDocs(10);
+        mIndex.close();
+        mIndex = null;
+
+        RandomAccessFile docs = new RandomAccessFile(new File(mDir, "search/docs"), "rw");
+        docs.setLength(5 * 16);
+        docs.close();
+
+        mIndex = new MessageSearchIndex(mDir, mLog);
+        awaitDocs(10);
+        assertKeys(search("message", 0, 2), 1, 10, 1, 9);
+    }
+
+    //==============================================================================================
+    private void append(long senderId, long messageId, String content) {
+        assertTrue(mLog.append(TestListener.textMessage(senderId, messageId, content)));
+    }
+
+    private void awaitDocs(int count) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10000;
+        while (mIndex.getDocCount() != count) {
+            assertTrue("timed out waiting for index", System.currentTimeMillis() < deadline);
+            Thread.sleep(5);
+        }
+    }
+
+    private long[][] search(String query, int offset, int limit) throws InterruptedException {
+        final LinkedBlockingQueue<long[][]> result = new LinkedBlockingQueue<>();
+        mIndex.searchAsync(query, offset, limit, new MessageSearchIndex.SearchCallback() {
+            @Override
+            public void onSearchResult(String query, long[] senderIds, long[] messageIds) {
+                result.add(new long[][]{senderIds, messageIds});
+            }
+        });
+        long[][] keys = result.poll(10, TimeUnit.SECONDS);
+        assertNotNull("timed out waiting for search", keys);
+        return keys;
+    }
+
+    // expected 为 发送方 ID, 消息序号 交替排列, 从新到旧
+    private static void assertKeys(long[][] keys, long... expected) {
+        assertEquals(expected.length / 2, keys[0].length);
+        for (int i = 0; i < keys[0].length; i++) {
+            assertEquals(expected[2 * i], keys[0][i]);
+            assertEquals(expected[2 * i + 1], keys[1][i]);
+        }
+    }
+}
@@ -0,0 +1,236 @@
+package com.curiosity.bluetoothchat;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.List;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * 发件箱的持久化恢复和发送
+ */
+public class OutboxTest {
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private File mDir;
+    private ConnectionManager mServer;
+    private ConnectionManager mClient;
+    private Outbox mOutbox;
+    private final LinkedBlockingQueue<byte[]> mReceived = new LinkedBlockingQueue<>();
+    private final RecordingListener mListener = new RecordingListener();
+
+    @Before
+    public void setUp() throws Exception {
+        mDir = mFolder.newFolder();
+
+        SimulatedNetwork.Config config = new SimulatedNetwork.Config();
+        config.bandwidthBytesPerSecond = 4 * 1024 * 1024;
+        config.latencyNanos = 1000000L;
+        config.jitterNanos = 0;
+        config.lossProbability = 0;
+        config.stallProbability = 0;
+        config.connectNanos = 5 * 1000000L;
+        SimulatedNetwork network = new SimulatedNetwork(config, 3, LinkClock.SYSTEM);
+
+        mServer = TestListener.create(network.node("server"), new TestListener() {
+            @Override
+            public void onReadData(byte[] data) {
+                mReceived.add(data);
+                super.onReadData(data);
+            }
+        });
+        mClient = TestListener.create(network.node("client"), new TestListener());
+    }
+
+    @After
+    public void tearDown() {
+        if (mOutbox != null) {
+            mOutbox.close();
+        }
+        mClient.release();
+        mServer.release();
+    }
+
+    @Test
+    public void tornTailIsTruncatedOnLoad() throws Exception {
+        byte[] first = record(1, 10);
+        byte[] second = record(2, 20);
+        writeLog(first, second);
+        // 写入中断: 长度已写入, 数据只写了一部分
+        DataOutputStream out = new DataOutputStream(new FileOutputStream(logFile(), true));
+        out.writeInt(100);
+        out.write(new byte[10]);
+        out.close();
+
+        mOutbox = new Outbox(mDir, mClient, mListener);
+        awaitQueued(2);
+        assertEquals(4 + first.length + 4 + second.length, logFile().length());
+        List<byte[]> recovered = mListener.mLoaded.poll(5, TimeUnit.SECONDS);
+        assertEquals(2, recovered.size());
+        assertArrayEquals(first, recovered.get(0));
+        assertArrayEquals(second, recovered.get(1));
+
+        connect();
+        mOutbox.drain();
+        assertArrayEquals(first, poll(mReceived));
+        assertArrayEquals(second, poll(mReceived));
+
+        // 之后追加的消息接在完整记录后面
+        byte[] third = record(3, 30);
+        assertTrue(mOutbox.enqueue(third));
+        assertArrayEquals(third, poll(mReceived));
+    }
+
+    @Test
+    public void resumesFromSavedPosition() throws Exception {
+        byte[] first = record(1, 10);
+        byte[] second = record(2, 20);
+        byte[] third = record(3, 30);
+        writeLog(first, second, third);
+        RandomAccessFile pos = new RandomAccessFile(new File(mDir, "outbox.pos"), "rw");
+        pos.writeLong(4 + first.length);
+        pos.close();
+
+        connect();
+        mOutbox = new Outbox(mDir, mClient, mListener);
+        mOutbox.drain();
+        assertArrayEquals(second, poll(mReceived));
+        assertArrayEquals(third, poll(mReceived));
+        assertArrayEquals(second, poll(mListener.mSent));
+        assertArrayEquals(third, poll(mListener.mSent));
+        assertEquals(0, mOutbox.getQueuedCount());
+        assertNull(mReceived.poll(100, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void oversizeMessageIsRejected() {
+        mOutbox = new Outbox(mDir, mClient, mListener);
+        assertFalse(mOutbox.enqueue(new byte[FrameCodec.MAX_FRAME_SIZE + 1]));
+        assertEquals(0, mOutbox.getQueuedCount());
+    }
+
+    @Test
+    public void unsendableRecordIsSkipped() throws Exception {
+        byte[] first = record(1, 10);
+        byte[] big = new byte[FrameCodec.MAX_FRAME_SIZE + 1];
+        byte[] last = record(3, 30);
+        writeLog(first, big, last);
+
+        connect();
+        mOutbox = new Outbox(mDir, mClient, mListener);
+        mOutbox.drain();
+        assertArrayEquals(first, poll(mReceived));
+        assertArrayEquals(last, poll(mReceived));
+        assertEquals(big.length, poll(mListener.mDropped).length);
+        assertArrayEquals(first, poll(mListener.mSent));
+        assertArrayEquals(last, poll(mListener.mSent));
+    }
+
+    @Test
+    public void queuedWhileDisconnectedIsSentInOrder() throws Exception {
+        mOutbox = new Outbox(mDir, mClient, mListener);
+        int count = 200;
+        for (int i = 0; i < count; i++) {
+            assertTrue(mOutbox.enqueue(record(i, 100 + i)));
+        }
+        for (int i = 0; i < count; i++) {
+            assertArrayEquals(record(i, 100 + i), poll(mListener.mQueued));
+        }
+        assertTrue(mReceived.isEmpty());
+
+        connect();
+        mOutbox.drain();
+        for (int i = 0; i < count; i++) {
+            assertArrayEquals(record(i, 100 + i), poll(mReceived));
+        }
+        for (int i = 0; i < count; i++) {
+            poll(mListener.mSent);
+        }
+        assertEquals(0, mOutbox.getQueuedCount());
+    }
+
+    //==============================================================================================
+    private static class RecordingListener implements Outbox.OutboxListener {
+
+        final LinkedBlockingQueue<List<byte[]>> mLoaded = new LinkedBlockingQueue<>();
+        final LinkedBlockingQueue<byte[]> mQueued = new LinkedBlockingQueue<>();
+        final LinkedBlockingQueue<byte[]> mSent = new LinkedBlockingQueue<>();
+        final LinkedBlockingQueue<byte[]> mDropped = new LinkedBlockingQueue<>();
+
+        @Override
+        public void onOutboxLoaded(List<byte[]> queued) {
+            mLoaded.add(queued);
+        }
+
+        @Override
+        public void onMessageQueued(byte[] data, int queued) {
+            mQueued.add(data);
+        }
+
+        @Override
+        public void onMessageSent(byte[] data, int remaining) {
+            mSent.add(data);
+        }
+
+        @Override
+        public void onMessageDropped(byte[] data, int remaining) {
+            mDropped.add(data);
+        }
+    }
+
+    private File logFile() {
+        return new File(mDir, "outbox.log");
+    }
+
+    private static byte[] record(int tag, int length) {
+        byte[] data = new byte[length];
+        for (int i = 0; i < length; i++) {
+            data[i] = (byte) (tag + i);
+        }
+        return data;
+    }
+
+    private void writeLog(byte[]... records) throws IOException {
+        DataOutputStream out = new DataOutputStream(new FileOutputStream(logFile()));
+        for (byte[] data : records) {
+            out.writeInt(data.length);
+            out.write(data);
+        }
+        out.close();
+    }
+
+    private void connect() throws InterruptedException {
+        mServer.startListen();
+        TestListener.awaitListening(mServer);
+        mClient.connect("server");
+        TestListener.awaitConnected(mClient);
+        TestListener.awaitConnected(mServer);
+    }
+
+    private void awaitQueued(int count) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10000;
+        while (mOutbox.getQueuedCount() != count) {
+            assertTrue("timed out waiting for outbox load", System.currentTimeMillis() < deadline);
+            Thread.sleep(5);
+        }
+    }
+
+    private static byte[] poll(LinkedBlockingQueue<byte[]> queue) throws InterruptedException {
+        byte[] data = queue.poll(10, TimeUnit.SECONDS);
+        assertNotNull("timed out waiting for data", data);
+        return data;
+    }
+}
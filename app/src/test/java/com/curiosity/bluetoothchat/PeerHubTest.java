@@ -0,0 +1,113 @@
+package com.curiosity.bluetoothchat;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * 多对端连接: 主动连接和共用监听线程接受的连接
+ */
+public class PeerHubTest {
+
+    private SimulatedNetwork mNetwork;
+    private PeerHub mHub;
+    private final LinkedBlockingQueue<String> mReceived = new LinkedBlockingQueue<>();
+
+    @Before
+    public void setUp() {
+        SimulatedNetwork.Config config = new SimulatedNetwork.Config();
+        config.bandwidthBytesPerSecond = 1024 * 1024;
+        config.latencyNanos = 1000000L;
+        config.jitterNanos = 0;
+        config.lossProbability = 0;
+        config.stallProbability = 0;
+        config.connectNanos = 5 * 1000000L;
+        mNetwork = new SimulatedNetwork(config, 11, LinkClock.SYSTEM);
+
+        mHub = new PeerHub(mNetwork.node("hub"), new PeerHub.Listener() {
+            @Override
+            public void onPeerStateChange(String address, int state) {
+            }
+
+            @Override
+            public void onPeerData(String address, byte[] data) {
+                mReceived.add(address + ":" + data[0]);
+            }
+        });
+    }
+
+    @After
+    public void tearDown() {
+        mHub.close();
+    }
+
+    @Test
+    public void acceptsIncomingPeers() throws Exception {
+        assertTrue(mHub.startListen());
+        ConnectionManager first = TestListener.create(mNetwork.node("a"), new TestListener());
+        ConnectionManager second = TestListener.create(mNetwork.node("b"), new TestListener());
+        try {
+            first.connect("hub");
+            second.connect("hub");
+            TestListener.awaitConnected(first);
+            TestListener.awaitConnected(second);
+            awaitPeerConnected("a");
+            awaitPeerConnected("b");
+
+            assertTrue(first.sendData(new byte[]{1}));
+            assertTrue(second.sendData(new byte[]{2}));
+            String one = poll();
+            String two = poll();
+            assertTrue(one.equals("a:1") ? two.equals("b:2") : one.equals("b:2") && two.equals("a:1"));
+            assertTrue(mHub.send("a", new byte[]{3}));
+
+            // 同一对端已有连接时, 新的连接被拒绝
+            ConnectionManager duplicate = TestListener.create(mNetwork.node("a"), new TestListener());
+            try {
+                duplicate.connect("hub");
+                TestListener.awaitState(duplicate, ConnectionManager.CONNECT_STATE_IDLE);
+                assertEquals(ConnectionManager.CONNECT_STATE_CONNECTED, mHub.getStats("a").state);
+            } finally {
+                duplicate.release();
+            }
+        } finally {
+            first.release();
+            second.release();
+        }
+    }
+
+    @Test
+    public void oversizeMessageIsRefused() throws Exception {
+        assertTrue(mHub.startListen());
+        ConnectionManager peer = TestListener.create(mNetwork.node("a"), new TestListener());
+        try {
+            peer.connect("hub");
+            awaitPeerConnected("a");
+            assertFalse(mHub.send("a", new byte[FrameCodec.MAX_FRAME_SIZE + 1]));
+            assertTrue(mHub.send("a", new byte[FrameCodec.MAX_FRAME_SIZE]));
+        } finally {
+            peer.release();
+        }
+    }
+
+    //==============================================================================================
+    private void awaitPeerConnected(String address) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10000;
+        while (mHub.getStats(address) == null
+                || mHub.getStats(address).state != ConnectionManager.CONNECT_STATE_CONNECTED) {
+            assertTrue("timed out waiting for " + address, System.currentTimeMillis() < deadline);
+            Thread.sleep(5);
+        }
+    }
+
+    private String poll() throws InterruptedException {
+        String data = mReceived.poll(10, TimeUnit.SECONDS);
+        assertNotNull("timed out waiting for data", data);
+        return data;
+    }
+}
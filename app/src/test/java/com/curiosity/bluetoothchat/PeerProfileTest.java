@@ -0,0 +1,33 @@
+package com.curiosity.bluetoothchat;
+
+import org.junit.Test;
+
+import java.net.ProtocolException;
+
+import static org.junit.Assert.*;
+
+public class PeerProfileTest {
+
+    @Test
+    public void roundTrip() throws Exception {
+        PeerProfile profile = PeerProfile.local(2 * ConnectionManager.RECEIVE_WINDOW);
+        byte[] payload = profile.encode();
+        assertEquals(profile, PeerProfile.decode(payload, 0, payload.length));
+    }
+
+    @Test(expected = ProtocolException.class)
+    public void tinyFrameSizeIsRejected() throws Exception {
+        byte[] payload = new PeerProfile(PeerProfile.PROTOCOL_VERSION, PeerProfile.LOCAL_FEATURES,
+                6, ConnectionManager.RECEIVE_WINDOW).encode();
+        PeerProfile.decode(payload, 0, payload.length);
+    }
+
+    @Test
+    public void cachedTinyFrameSizeIsClamped() {
+        // 缓存中的能力不经过解码检查
+        PeerProfile cached = new PeerProfile(PeerProfile.PROTOCOL_VERSION, PeerProfile.LOCAL_FEATURES, 1, 1);
+        PeerProfile profile = PeerProfile.negotiate(PeerProfile.local(ConnectionManager.RECEIVE_WINDOW), cached);
+        assertEquals(FrameCodec.MAX_FRAME_SIZE, profile.maxFrameSize);
+        assertEquals(ConnectionManager.RECEIVE_WINDOW, profile.receiveWindow);
+    }
+}
@@ -0,0 +1,459 @@
+package com.curiosity.bluetoothchat;
+
+import org.junit.Test;
+
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import static org.junit.Assert.*;
+
+/**
+ * 长时间压力测试, 在 {@link SimulatedNetwork} 上运行 N 对 ConnectionManager(hub-i 监听, peer-i 连接),
+ * 双方按配置的比例发送聊天, 突发和大消息, peer 定期断开重连.
+ * <p>
+ * 按采样间隔输出吞吐, 延迟分位数, 堆内存, 线程数和未关闭的链路数; 结束后释放全部连接,
+ * 检查连接相关线程和链路是否都已退出. 任一指标超过阈值时测试失败.
+ * <p>
+ * 默认只运行几秒. 指定 -Dsoak.seconds=时长 时额外按该时长运行一次, 其它参数以 soak. 加 {@link Config} 的字段名指定,
+ * 如 -Dsoak.seconds=3600 -Dsoak.peers=8 -Dsoak.reconnectMillis=0
+ */
+public class SoakTest {
+
+    /**
+     * 测试参数和阈值, 时间单位为毫秒
+     */
+    public static class Config {
+
+        public int peers = 4;
+        public int seconds = 60;
+        public long seed = 1;
+        public int sampleMillis = 5000;
+
+        // 聊天消息的平均间隔和长度
+        public int chatMillis = 200;
+        public int chatLength = 40;
+        // 突发: 平均间隔和每次连续发送的条数
+        public int burstMillis = 5000;
+        public int burstCount = 50;
+        // 大消息: 平均间隔和长度
+        public int bulkMillis = 10000;
+        public int bulkLength = 32 * 1024;
+        // peer 断开重连的平均间隔, 0 为不重连
+        public int reconnectMillis = 15000;
+
+        // 阈值
+        public int maxP99Millis = 3000;
+        public int maxHeapGrowthMb = 32;
+        public int maxThreadGrowth = 4;
+        public double maxLossPercent = 5;
+    }
+
+    private static final String[] CONNECTION_THREADS = {
+            "ConnectionEvents", "AcceptThread", "ConnectedThread", "FrameWriter"
+    };
+
+    // 延迟直方图, 每格 1ms, 最后一格为溢出
+    private static final int HISTOGRAM_SIZE = 60 * 1000 + 1;
+
+    private final Config mConfig;
+    private final SimulatedNetwork mNetwork;
+    private final List<Endpoint> mEndpoints = new ArrayList<>();
+
+    private final AtomicLongArray mHistogram = new AtomicLongArray(HISTOGRAM_SIZE);
+    private final AtomicLong mSentCount = new AtomicLong();
+    private final AtomicLong mReceivedCount = new AtomicLong();
+    private final AtomicLong mReceivedBytes = new AtomicLong();
+    private final AtomicLong mConnectCount = new AtomicLong();
+    private final AtomicLong mMalformedCount = new AtomicLong();
+
+    private volatile boolean mRunning = true;
+
+    public SoakTest() {
+        this(shortConfig());
+    }
+
+    private SoakTest(Config config) {
+        mConfig = config;
+        SimulatedNetwork.Config linkConfig = new SimulatedNetwork.Config();
+        linkConfig.connectNanos = 200 * 1000000L;
+        mNetwork = new SimulatedNetwork(linkConfig, config.seed, LinkClock.SYSTEM);
+    }
+
+    @Test
+    public void shortRun() throws Exception {
+        assertEquals(Collections.<String>emptyList(), run());
+    }
+
+    @Test
+    public void longRun() throws Exception {
+        if (System.getProperty("soak.seconds") == null) {
+            return;
+        }
+        Config config = new Config();
+        for (Field field : Config.class.getFields()) {
+            String value = System.getProperty("soak." + field.getName());
+            if (value == null) {
+                continue;
+            }
+            if (field.getType() == int.class) {
+                field.setInt(config, Integer.parseInt(value));
+            } else if (field.getType() == long.class) {
+                field.setLong(config, Long.parseLong(value));
+            } else {
+                field.setDouble(config, Double.parseDouble(value));
+            }
+        }
+        assertEquals(Collections.<String>emptyList(), new SoakTest(config).run());
+    }
+
+    // 单元测试默认的短时运行, 缩短各间隔使断开重连和突发都能出现几次
+    private static Config shortConfig() {
+        Config config = new Config();
+        config.peers = 2;
+        config.seconds = 6;
+        config.sampleMillis = 2000;
+        config.burstMillis = 1000;
+        config.bulkMillis = 2000;
+        config.reconnectMillis = 2000;
+        return config;
+    }
+
+    /**
+     * 运行测试, 返回超过阈值的项, 全部通过时为空
+     */
+    private List<String> run() throws InterruptedException {
+        List<String> failures = new ArrayList<>();
+        int baseThreads = countConnectionThreads();
+
+        Random random = new Random(mConfig.seed);
+        for (int i = 0; i < mConfig.peers; i++) {
+            Endpoint hub = new Endpoint("hub-" + i, null, random.nextLong());
+            Endpoint peer = new Endpoint("peer-" + i, "hub-" + i, random.nextLong());
+            mEndpoints.add(hub);
+            mEndpoints.add(peer);
+            hub.mManager.startListen();
+        }
+        for (Endpoint endpoint : mEndpoints) {
+            endpoint.start();
+        }
+
+        long start = System.nanoTime();
+        long end = start + mConfig.seconds * 1000000000L;
+        long lastReceived = 0;
+        long lastBytes = 0;
+        long[] lastHistogram = new long[HISTOGRAM_SIZE];
+        long firstHeap = -1;
+        int firstThreads = -1;
+        long maxHeap = 0;
+        int maxThreads = 0;
+        long lastSample = start;
+
+        System.out.println(String.format("soak: %d peers, %d s, seed %d", mConfig.peers, mConfig.seconds, mConfig.seed));
+        System.out.println("  time   msg/s     KB/s   p50ms   p95ms   p99ms  heapMB threads links connects");
+
+        while (System.nanoTime() < end) {
+            Thread.sleep(Math.min(mConfig.sampleMillis, Math.max(1, (end - System.nanoTime()) / 1000000)));
+            long now = System.nanoTime();
+            double elapsed = (now - lastSample) / 1e9;
+            lastSample = now;
+
+            long received = mReceivedCount.get();
+            long bytes = mReceivedBytes.get();
+            long[] histogram = snapshot();
+            long[] interval = new long[HISTOGRAM_SIZE];
+            for (int i = 0; i < HISTOGRAM_SIZE; i++) {
+                interval[i] = histogram[i] - lastHistogram[i];
+            }
+            lastHistogram = histogram;
+
+            long heap = usedHeap();
+            int threads = Thread.activeCount();
+            int links = mNetwork.getActiveLinkCount();
+            // 首次采样时连接和缓冲刚建立, 作为后续增长的基准
+            if (firstHeap < 0) {
+                firstHeap = heap;
+                firstThreads = threads;
+            }
+            maxHeap = Math.max(maxHeap, heap);
+            maxThreads = Math.max(maxThreads, threads);
+
+            System.out.println(String.format("%6d %7.0f %8.1f %7d %7d %7d %7.1f %7d %5d %8d",
+                    (now - start) / 1000000000L, (received - lastReceived) / elapsed,
+                    (bytes - lastBytes) / 1024.0 / elapsed,
+                    percentile(interval, 0.50), percentile(interval, 0.95), percentile(interval, 0.99),
+                    heap / 1048576.0, threads, links, mConnectCount.get()));
+            lastReceived = received;
+            lastBytes = bytes;
+
+            // 每对连接最多两条链路
+            if (links > 2 * mConfig.peers) {
+                failures.add("links " + links + " > " + 2 * mConfig.peers + " at " + (now - start) / 1000000000L + "s");
+            }
+        }
+
+        mRunning = false;
+        for (Endpoint endpoint : mEndpoints) {
+            endpoint.stop();
+        }
+        // 等待在途数据送达
+        Thread.sleep(2000);
+        for (Endpoint endpoint : mEndpoints) {
+            endpoint.mManager.release();
+        }
+
+        long sent = mSentCount.get();
+        long received = mReceivedCount.get();
+        long[] histogram = snapshot();
+        double loss = sent > 0 ? 100.0 * (sent - received) / sent : 0;
+        long p99 = percentile(histogram, 0.99);
+        double seconds = (System.nanoTime() - start) / 1e9;
+
+        System.out.println(String.format("total: sent %d, received %d (%.2f%% lost), %.0f msg/s, %.1f KB/s, connects %d, malformed %d",
+                sent, received, loss, received / seconds, mReceivedBytes.get() / 1024.0 / seconds,
+                mConnectCount.get(), mMalformedCount.get()));
+        System.out.println(String.format("latency: p50 %d ms, p95 %d ms, p99 %d ms, max %d ms",
+                percentile(histogram, 0.50), percentile(histogram, 0.95), p99, percentile(histogram, 1.0)));
+        System.out.println(String.format("heap: first %.1f MB, max %.1f MB; threads: first %d, max %d",
+                firstHeap / 1048576.0, maxHeap / 1048576.0, firstThreads, maxThreads));
+
+        if (p99 > mConfig.maxP99Millis) {
+            failures.add("p99 latency " + p99 + " ms > " + mConfig.maxP99Millis + " ms");
+        }
+        if (loss > mConfig.maxLossPercent) {
+            failures.add(String.format("lost %.2f%% > %.2f%%", loss, mConfig.maxLossPercent));
+        }
+        if (mMalformedCount.get() > 0) {
+            failures.add("malformed messages " + mMalformedCount.get());
+        }
+        if (firstHeap >= 0 && maxHeap - firstHeap > mConfig.maxHeapGrowthMb * 1048576L) {
+            failures.add(String.format("heap grew %.1f MB > %d MB",
+                    (maxHeap - firstHeap) / 1048576.0, mConfig.maxHeapGrowthMb));
+        }
+        if (firstThreads >= 0 && maxThreads - firstThreads > mConfig.maxThreadGrowth) {
+            failures.add("threads grew " + (maxThreads - firstThreads) + " > " + mConfig.maxThreadGrowth);
+        }
+
+        // 释放后连接相关线程应全部退出, 链路应全部关闭
+        long deadline = System.nanoTime() + 5000 * 1000000L;
+        while ((countConnectionThreads() > baseThreads || mNetwork.getActiveLinkCount() > 0)
+                && System.nanoTime() < deadline) {
+            Thread.sleep(100);
+        }
+        int leakedThreads = countConnectionThreads() - baseThreads;
+        if (leakedThreads > 0) {
+            failures.add("leaked threads " + leakedThreads + ": " + connectionThreadNames());
+        }
+        if (mNetwork.getActiveLinkCount() > 0) {
+            failures.add("leaked links " + mNetwork.getActiveLinkCount());
+        }
+        return failures;
+    }
+
+    //==============================================================================================
+    private static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        System.gc();
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    private static boolean isConnectionThread(Thread thread) {
+        for (String name : CONNECTION_THREADS) {
+            if (name.equals(thread.getName())) {
+                return thread.isAlive();
+            }
+        }
+        return false;
+    }
+
+    private static int countConnectionThreads() {
+        int count = 0;
+        for (Thread thread : Thread.getAllStackTraces().keySet()) {
+            if (isConnectionThread(thread)) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private static String connectionThreadNames() {
+        List<String> names = new ArrayList<>();
+        for (Thread thread : Thread.getAllStackTraces().keySet()) {
+            if (isConnectionThread(thread)) {
+                names.add(thread.getName());
+            }
+        }
+        return names.toString();
+    }
+
+    private long[] snapshot() {
+        long[] histogram = new long[HISTOGRAM_SIZE];
+        for (int i = 0; i < HISTOGRAM_SIZE; i++) {
+            histogram[i] = mHistogram.get(i);
+        }
+        return histogram;
+    }
+
+    // 直方图中不小于 fraction 比例的样本所在的格, 即延迟毫秒数
+    private static long percentile(long[] histogram, double fraction) {
+        long total = 0;
+        for (long count : histogram) {
+            total += count;
+        }
+        if (total == 0) {
+            return 0;
+        }
+        long target = (long) Math.ceil(total * fraction);
+        long seen = 0;
+        for (int i = 0; i < histogram.length; i++) {
+            seen += histogram[i];
+            if (seen >= target && histogram[i] > 0) {
+                return i;
+            }
+        }
+        return histogram.length - 1;
+    }
+
+    // 压测消息的 timestamp 字段存放发送时的 System.nanoTime(), 收发在同一进程中, 接收端据此计算延迟
+    private void onMessage(byte[] data) {
+        ChatMessage message = new ChatMessage();
+        if (!MessageCodec.decode(data, 0, data.length, message)) {
+            mMalformedCount.incrementAndGet();
+            return;
+        }
+        long latency = (System.nanoTime() - message.timestamp) / 1000000;
+        mHistogram.incrementAndGet((int) Math.max(0, Math.min(HISTOGRAM_SIZE - 1, latency)));
+        mReceivedCount.incrementAndGet();
+        mReceivedBytes.addAndGet(data.length);
+    }
+
+    /**
+     * 一端: 一个 ConnectionManager 及其发送线程. remoteAddress 为 null 时只监听
+     */
+    private class Endpoint implements ConnectionManager.ConnectionListener, Runnable {
+
+        private final String mAddress;
+        private final String mRemoteAddress;
+        private final ConnectionManager mManager;
+        private final Random mRandom;
+        private final Thread mThread;
+        private long mMessageId;
+
+        Endpoint(String address, String remoteAddress, long seed) {
+            mAddress = address;
+            mRemoteAddress = remoteAddress;
+            mManager = new ConnectionManager(this, mNetwork.node(address));
+            mRandom = new Random(seed);
+            mThread = new Thread(this, "Soak-" + address);
+        }
+
+        void start() {
+            mThread.start();
+        }
+
+        void stop() throws InterruptedException {
+            mThread.interrupt();
+            mThread.join(5000);
+        }
+
+        @Override
+        public void run() {
+            long now = System.currentTimeMillis();
+            long nextChat = now + interval(mConfig.chatMillis);
+            long nextBurst = now + interval(mConfig.burstMillis);
+            long nextBulk = now + interval(mConfig.bulkMillis);
+            long nextReconnect = now + interval(mConfig.reconnectMillis);
+            long nextConnect = now;
+
+            try {
+                while (mRunning) {
+                    now = System.currentTimeMillis();
+                    int state = mManager.getCurrentConnectState();
+
+                    if (mRemoteAddress != null) {
+                        if (state == ConnectionManager.CONNECT_STATE_IDLE && now >= nextConnect) {
+                            mManager.connect(mRemoteAddress);
+                            // 对端上一个连接尚未退出时新连接会被拒绝, 稍后重试
+                            nextConnect = now + 500;
+                        } else if (state == ConnectionManager.CONNECT_STATE_CONNECTED
+                                && mConfig.reconnectMillis > 0 && now >= nextReconnect) {
+                            mManager.disconnect();
+                            nextReconnect = now + interval(mConfig.reconnectMillis);
+                        }
+                    }
+
+                    if (state == ConnectionManager.CONNECT_STATE_CONNECTED) {
+                        if (now >= nextChat) {
+                            send(mConfig.chatLength);
+                            nextChat = now + interval(mConfig.chatMillis);
+                        }
+                        if (now >= nextBurst) {
+                            for (int i = 0; i < mConfig.burstCount && mRunning; i++) {
+                                send(mConfig.chatLength);
+                            }
+                            nextBurst = now + interval(mConfig.burstMillis);
+                        }
+                        if (now >= nextBulk) {
+                            send(mConfig.bulkLength);
+                            nextBulk = now + interval(mConfig.bulkMillis);
+                        }
+                    }
+
+                    Thread.sleep(5);
+                }
+            } catch (InterruptedException e) {
+                // 测试结束
+            }
+        }
+
+        private void send(int length) {
+            char[] content = new char[length];
+            Arrays.fill(content, (char) ('a' + mRandom.nextInt(26)));
+
+            ChatMessage message = new ChatMessage();
+            message.messageType = ChatMessage.TYPE_TEXT;
+            message.messageContent = new String(content);
+            message.senderId = mAddress.hashCode();
+            message.messageId = ++mMessageId;
+            message.timestamp = System.nanoTime();
+            // 发送失败(连接已断开)的消息不计入
+            if (mManager.sendData(MessageCodec.encode(message))) {
+                mSentCount.incrementAndGet();
+            }
+        }
+
+        // 指数分布的间隔, 平均为 mean 毫秒
+        private long interval(int mean) {
+            if (mean <= 0) {
+                return Long.MAX_VALUE / 2;
+            }
+            return (long) (-Math.log(1 - mRandom.nextDouble()) * mean);
+        }
+
+        @Override
+        public void onConnectStateChange(int oldState, int State) {
+            if (State == ConnectionManager.CONNECT_STATE_CONNECTED) {
+                mConnectCount.incrementAndGet();
+            }
+        }
+
+        @Override
+        public void onListenStateChange(int oldState, int State) {
+        }
+
+        @Override
+        public void onSendData(boolean suc, byte[] data) {
+        }
+
+        @Override
+        public void onReadData(byte[] data) {
+            onMessage(data);
+            mManager.consumeData(data.length);
+        }
+    }
+}
@@ -0,0 +1,126 @@
+package com.curiosity.bluetoothchat;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * 连接上的逻辑流: 单向传输和中止
+ */
+public class StreamMuxTest {
+
+    private ConnectionManager mServer;
+    private ConnectionManager mClient;
+    private final LinkedBlockingQueue<StreamMux.Stream> mAccepted = new LinkedBlockingQueue<>();
+
+    @Before
+    public void setUp() throws Exception {
+        SimulatedNetwork.Config config = new SimulatedNetwork.Config();
+        config.bandwidthBytesPerSecond = 4 * 1024 * 1024;
+        config.latencyNanos = 1000000L;
+        config.jitterNanos = 0;
+        config.lossProbability = 0;
+        config.stallProbability = 0;
+        config.connectNanos = 5 * 1000000L;
+        SimulatedNetwork network = new SimulatedNetwork(config, 3, LinkClock.SYSTEM);
+
+        mServer = TestListener.create(network.node("server"), new TestListener());
+        mClient = TestListener.create(network.node("client"), new TestListener());
+        mServer.setStreamListener(new ConnectionManager.StreamListener() {
+            @Override
+            public void onStreamOpened(StreamMux.Stream stream) {
+                mAccepted.add(stream);
+            }
+        });
+        mServer.startListen();
+        TestListener.awaitListening(mServer);
+        mClient.connect("server");
+        TestListener.awaitConnected(mClient);
+        TestListener.awaitConnected(mServer);
+    }
+
+    @After
+    public void tearDown() {
+        mClient.release();
+        mServer.release();
+    }
+
+    @Test
+    public void closeAfterWriteDeliversEverything() throws Exception {
+        // 写完立即关闭, 读方此时还有大量数据没有读
+        final int length = 3 * StreamMux.STREAM_WINDOW + 123;
+        final StreamMux.Stream stream = mClient.openStream();
+        final IOException[] error = new IOException[1];
+        Thread writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    OutputStream out = stream.getOutputStream();
+                    byte[] data = new byte[1000];
+                    for (int written = 0; written < length; written += data.length) {
+                        int count = Math.min(data.length, length - written);
+                        for (int i = 0; i < count; i++) {
+                            data[i] = (byte) (written + i);
+                        }
+                        out.write(data, 0, count);
+                    }
+                    stream.close();
+                } catch (IOException e) {
+                    error[0] = e;
+                }
+            }
+        });
+        writer.start();
+
+        StreamMux.Stream accepted = mAccepted.poll(10, TimeUnit.SECONDS);
+        assertNotNull(accepted);
+        Thread.sleep(200);
+        InputStream in = accepted.getInputStream();
+        byte[] buf = new byte[4096];
+        int total = 0;
+        int n;
+        while ((n = in.read(buf)) >= 0) {
+            for (int i = 0; i < n; i++) {
+                assertEquals((byte) (total + i), buf[i]);
+            }
+            total += n;
+            if (total % (16 * 1024) < n) {
+                // 读得比写慢, 关闭时接收缓冲中仍有数据
+                Thread.sleep(20);
+            }
+        }
+        writer.join(10000);
+        assertNull(error[0]);
+        assertEquals(length, total);
+        accepted.close();
+    }
+
+    @Test
+    public void resetDiscardsUnreadData() throws Exception {
+        StreamMux.Stream stream = mClient.openStream();
+        StreamMux.Stream accepted = mAccepted.poll(10, TimeUnit.SECONDS);
+        assertNotNull(accepted);
+        stream.getOutputStream().write(new byte[100]);
+        stream.reset();
+
+        long deadline = System.currentTimeMillis() + 10000;
+        while (true) {
+            try {
+                if (accepted.getInputStream().read(new byte[100]) < 0) {
+                    fail("reset stream ended normally");
+                }
+            } catch (IOException e) {
+                break;
+            }
+            assertTrue("timed out waiting for reset", System.currentTimeMillis() < deadline);
+        }
+    }
+}
@@ -0,0 +1,63 @@
+package com.curiosity.bluetoothchat;
+
+import static org.junit.Assert.fail;
+
+/**
+ * 测试用连接监听者, 收到数据后立即归还接收窗口
+ */
+class TestListener implements ConnectionManager.ConnectionListener {
+
+    protected ConnectionManager mManager;
+
+    static ConnectionManager create(Link.Factory factory, TestListener listener) {
+        ConnectionManager manager = new ConnectionManager(listener, factory);
+        listener.mManager = manager;
+        return manager;
+    }
+
+    static void awaitConnected(ConnectionManager manager) throws InterruptedException {
+        awaitState(manager, ConnectionManager.CONNECT_STATE_CONNECTED);
+    }
+
+    static void awaitListening(ConnectionManager manager) throws InterruptedException {
+        awaitState(manager, ConnectionManager.LISTEN_STATE_LISTENING);
+    }
+
+    static void awaitState(ConnectionManager manager, int state) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10000;
+        boolean listen = state == ConnectionManager.LISTEN_STATE_IDLE || state == ConnectionManager.LISTEN_STATE_LISTENING;
+        while ((listen ? manager.getCurrentListenState() : manager.getCurrentConnectState()) != state) {
+            if (System.currentTimeMillis() > deadline) {
+                fail("timed out waiting for state " + manager.getState(state));
+            }
+            Thread.sleep(5);
+        }
+    }
+
+    static ChatMessage textMessage(long senderId, long messageId, String content) {
+        ChatMessage message = new ChatMessage();
+        message.messageType = ChatMessage.TYPE_TEXT;
+        message.senderId = senderId;
+        message.messageId = messageId;
+        message.timestamp = 1000 * messageId;
+        message.messageContent = content;
+        return message;
+    }
+
+    @Override
+    public void onConnectStateChange(int oldState, int state) {
+    }
+
+    @Override
+    public void onListenStateChange(int oldState, int state) {
+    }
+
+    @Override
+    public void onSendData(boolean suc, byte[] data) {
+    }
+
+    @Override
+    public void onReadData(byte[] data) {
+        mManager.consumeData(data.length);
+    }
+}
@@ -0,0 +1,59 @@
+package com.curiosity.bluetoothchat;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class TokenBucketTest {
+
+    private static final long MS = 1000000L;
+
+    @Test
+    public void burstThenRate() {
+        TokenBucket bucket = new TokenBucket(1000, 100, 0);
+        assertEquals(0, bucket.getDelay(100, 0));
+        bucket.take(100, 0);
+        assertEquals(50 * MS, bucket.getDelay(50, 0));
+        assertEquals(0, bucket.getDelay(50, 50 * MS));
+    }
+
+    @Test
+    public void refillIsCappedAtBurst() {
+        TokenBucket bucket = new TokenBucket(1000, 100, 0);
+        bucket.take(100, 0);
+        // 很久之后也只积累 burst 个, 超过容量的请求在桶满时可以取走
+        assertEquals(0, bucket.getDelay(1000, 10000 * MS));
+        bucket.take(1000, 10000 * MS);
+        assertEquals(1000 * MS, bucket.getDelay(100, 10000 * MS));
+    }
+
+    @Test
+    public void reserveOverdraftsAndCountsThrottling() {
+        TokenBucket bucket = new TokenBucket(1000, 100, 0);
+        assertEquals(0, bucket.reserve(100, 0));
+        assertEquals(100 * MS, bucket.reserve(100, 0));
+        assertEquals(200 * MS, bucket.reserve(100, 0));
+        // 重叠的等待只计新增部分
+        assertEquals(2, bucket.getThrottledCount());
+        assertEquals(200 * MS, bucket.getThrottledNanos());
+        assertEquals(0, bucket.reserve(0, 200 * MS));
+    }
+
+    @Test
+    public void zeroRateIsUnlimited() {
+        TokenBucket bucket = new TokenBucket(0, 0, 0);
+        assertEquals(0, bucket.reserve(1 << 20, 0));
+        assertEquals(0, bucket.getDelay(1 << 20, 0));
+        assertEquals(0, bucket.getThrottledCount());
+    }
+
+    @Test
+    public void setRateTrimsTokens() {
+        TokenBucket bucket = new TokenBucket(1000, 100, 0);
+        bucket.setRate(2000, 10, 0);
+        assertEquals(2000, bucket.getRate());
+        assertEquals(10, bucket.getBurst());
+        bucket.take(10, 0);
+        assertEquals(5 * MS, bucket.getDelay(10, 0));
+    }
+}
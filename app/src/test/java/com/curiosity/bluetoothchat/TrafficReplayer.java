@@ -0,0 +1,292 @@
+package com.curiosity.bluetoothchat;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * 抓取文件回放, 将 {@link TrafficRecorder} 记录的收到的数据经一条回放链路重新送入 ConnectionManager,
+ * 与真实连接一样经过读线程分帧, 事件总线和监听者. 本端回放时发出的数据直接丢弃, 抓取中发出的数据只计数.
+ * <p>
+ * 用法: 以 {@link #getLinkFactory()} 创建 ConnectionManager, 再调用 {@link #replay(ConnectionManager)},
+ * 返回时抓取的数据已全部读完, 连接随之断开. 抓取文件按窗口分段映射, 大小不受 2GB 限制.
+ */
+public class TrafficReplayer {
+
+    public static final String ADDRESS = "replay";
+
+    // 每次映射的窗口大小
+    private static final long MAP_WINDOW = 64 * 1024 * 1024;
+
+    private final File mFile;
+    private final boolean mRealTime;
+
+    private volatile ConnectionManager mManager;
+    private final CountDownLatch mClosed = new CountDownLatch(1);
+
+    private long mRecordCount;
+    private long mByteCount;
+    private long mOutByteCount;
+    private long mElapsedNanos;
+
+    /**
+     * @param realTime true 按原始时间间隔回放, false 尽可能快地回放(仍受接收窗口限制)
+     */
+    public TrafficReplayer(File file, boolean realTime) {
+        mFile = file;
+        mRealTime = realTime;
+    }
+
+    /**
+     * 回放用的链路工厂, 只能连接一次
+     */
+    public Link.Factory getLinkFactory() {
+        return new Link.Factory() {
+            @Override
+            public Link.Server listen(String name, UUID uuid) throws IOException {
+                throw new IOException("replay link cannot listen");
+            }
+
+            @Override
+            public Link create(String address, UUID uuid) throws IOException {
+                return new ReplayLink();
+            }
+        };
+    }
+
+    /**
+     * 连接回放链路并等待抓取的数据全部送入 manager. 断开连接的事件在返回后投递
+     */
+    public void replay(ConnectionManager manager) throws InterruptedException {
+        mManager = manager;
+        long start = System.nanoTime();
+        manager.connect(ADDRESS);
+        mClosed.await();
+        mElapsedNanos = System.nanoTime() - start;
+    }
+
+    public synchronized long getRecordCount() {
+        return mRecordCount;
+    }
+
+    /**
+     * 送入的收到数据字节数
+     */
+    public synchronized long getByteCount() {
+        return mByteCount;
+    }
+
+    /**
+     * 抓取中发出的数据字节数
+     */
+    public synchronized long getOutByteCount() {
+        return mOutByteCount;
+    }
+
+    public long getElapsedNanos() {
+        return mElapsedNanos;
+    }
+
+    //==============================================================================================
+    // 按窗口映射抓取文件, 顺序读出记录
+    private class CaptureReader {
+
+        private final RandomAccessFile mRaf;
+        private final FileChannel mChannel;
+        private final long mSize;
+
+        private MappedByteBuffer mWindow;
+        private long mWindowStart;
+
+        CaptureReader() throws IOException {
+            mRaf = new RandomAccessFile(mFile, "r");
+            try {
+                mChannel = mRaf.getChannel();
+                mSize = mChannel.size();
+                if (!ensure(TrafficRecorder.HEADER_SIZE) || mWindow.getInt() != TrafficRecorder.MAGIC) {
+                    throw new IOException("not a capture file: " + mFile);
+                }
+                int version = mWindow.getInt();
+                if (version != TrafficRecorder.VERSION) {
+                    throw new IOException("unsupported capture version: " + version);
+                }
+                mWindow.getLong(); // 起始时间, 回放时不需要
+            } catch (IOException e) {
+                mRaf.close();
+                throw e;
+            }
+        }
+
+        // 保证当前窗口中至少还有 bytes 字节, 文件剩余不足时返回 false
+        boolean ensure(int bytes) throws IOException {
+            if (mWindow != null && mWindow.remaining() >= bytes) {
+                return true;
+            }
+            long position = mWindow != null ? mWindowStart + mWindow.position() : 0;
+            if (mSize - position < bytes) {
+                return false;
+            }
+            mWindowStart = position;
+            mWindow = mChannel.map(FileChannel.MapMode.READ_ONLY, position,
+                    Math.min(Math.max(MAP_WINDOW, bytes), mSize - position));
+            return true;
+        }
+
+        /**
+         * 下一条收到的数据, 结束或最后一条记录不完整(抓取未正常结束)时返回 null
+         *
+         * @param time 输出记录的相对时间
+         */
+        byte[] nextIn(long[] time) throws IOException {
+            while (ensure(TrafficRecorder.RECORD_HEADER_SIZE)) {
+                time[0] = mWindow.getLong();
+                byte direction = mWindow.get();
+                int length = mWindow.getInt();
+                if (direction == TrafficRecorder.DIRECTION_END || length < 0 || !ensure(length)) {
+                    return null;
+                }
+
+                synchronized (TrafficReplayer.this) {
+                    mRecordCount++;
+                    if (direction == TrafficRecorder.DIRECTION_OUT) {
+                        mOutByteCount += length;
+                    }
+                }
+                if (direction != TrafficRecorder.DIRECTION_IN) {
+                    mWindow.position(mWindow.position() + length);
+                    continue;
+                }
+                byte[] data = new byte[length];
+                mWindow.get(data);
+                return data;
+            }
+            return null;
+        }
+
+        void close() throws IOException {
+            mWindow = null;
+            mRaf.close();
+        }
+    }
+
+    private class ReplayLink implements Link {
+
+        private CaptureReader mReader;
+        private byte[] mRecord;
+        private int mRecordOffset;
+        private long mStartNanos;
+        private volatile boolean mLinkClosed;
+
+        @Override
+        public void connect() throws IOException {
+            mReader = new CaptureReader();
+        }
+
+        @Override
+        public InputStream getInputStream() throws IOException {
+            return new InputStream() {
+                @Override
+                public int read() throws IOException {
+                    byte[] b = new byte[1];
+                    return read(b, 0, 1) < 0 ? -1 : b[0] & 0xff;
+                }
+
+                @Override
+                public int read(byte[] b, int off, int len) throws IOException {
+                    if (mLinkClosed) {
+                        throw new IOException("replay link closed");
+                    }
+                    if (mRecord == null || mRecordOffset == mRecord.length) {
+                        if (!nextRecord()) {
+                            return -1;
+                        }
+                    }
+                    int count = Math.min(len, mRecord.length - mRecordOffset);
+                    System.arraycopy(mRecord, mRecordOffset, b, off, count);
+                    mRecordOffset += count;
+                    return count;
+                }
+            };
+        }
+
+        // 读线程中执行, 按原始时间或接收窗口节流
+        private boolean nextRecord() throws IOException {
+            long[] time = new long[1];
+            byte[] record = mReader.nextIn(time);
+            if (record == null) {
+                return false;
+            }
+            if (mStartNanos == 0) {
+                mStartNanos = System.nanoTime();
+            }
+
+            try {
+                if (mRealTime) {
+                    long delay = time[0] - (System.nanoTime() - mStartNanos);
+                    if (delay > 0) {
+                        Thread.sleep(delay / 1000000, (int) (delay % 1000000));
+                    }
+                }
+                // 原始发送方按信用发送, 回放时同样等待监听者处理, 不超过接收窗口
+                ConnectionManager manager = mManager;
+                while (manager != null && !mLinkClosed
+                        && manager.getReceiveBufferOccupancy() + record.length > ConnectionManager.RECEIVE_WINDOW) {
+                    Thread.sleep(1);
+                }
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException();
+            }
+
+            synchronized (TrafficReplayer.this) {
+                mByteCount += record.length;
+            }
+            mRecord = record;
+            mRecordOffset = 0;
+            return true;
+        }
+
+        @Override
+        public OutputStream getOutputStream() throws IOException {
+            return new OutputStream() {
+                @Override
+                public void write(int b) throws IOException {
+                    write(new byte[]{(byte) b}, 0, 1);
+                }
+
+                @Override
+                public void write(byte[] b, int off, int len) throws IOException {
+                    if (mLinkClosed) {
+                        throw new IOException("replay link closed");
+                    }
+                }
+            };
+        }
+
+        @Override
+        public String getAddress() {
+            return ADDRESS;
+        }
+
+        @Override
+        public synchronized void close() throws IOException {
+            if (mLinkClosed) {
+                return;
+            }
+            mLinkClosed = true;
+            try {
+                if (mReader != null) {
+                    mReader.close();
+                }
+            } finally {
+                mClosed.countDown();
+            }
+        }
+    }
+}
@@ -0,0 +1,132 @@
+package com.curiosity.bluetoothchat;
+
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/**
+ * 抓取一段真实收发, 再经回放链路送入新的 ConnectionManager.
+ * 指定 -Dreplay.capture=抓取文件 时回放该文件并输出吞吐量, 可用于比较界面批处理的改动
+ */
+public class TrafficReplayerTest {
+
+    private static final int MESSAGES = 300;
+
+    private File mCapture;
+
+    @Before
+    public void setUp() throws Exception {
+        mCapture = File.createTempFile("capture", ".bin");
+    }
+
+    @After
+    public void tearDown() {
+        mCapture.delete();
+    }
+
+    @Test
+    public void replayDeliversCapturedMessagesThroughManager() throws Exception {
+        SimulatedNetwork.Config config = new SimulatedNetwork.Config();
+        config.bandwidthBytesPerSecond = 1024 * 1024;
+        config.latencyNanos = 1000000L;
+        config.jitterNanos = 0;
+        config.lossProbability = 0;
+        config.stallProbability = 0;
+        config.connectNanos = 10 * 1000000L;
+        SimulatedNetwork network = new SimulatedNetwork(config, 1, LinkClock.SYSTEM);
+
+        final CountDownLatch received = new CountDownLatch(MESSAGES);
+        ConnectionManager server = TestListener.create(network.node("server"), new TestListener() {
+            @Override
+            public void onReadData(byte[] data) {
+                super.onReadData(data);
+                received.countDown();
+            }
+        });
+        ConnectionManager client = TestListener.create(network.node("client"), new TestListener());
+        try {
+            server.startListen();
+            assertTrue(server.startCapture(mCapture));
+            client.connect("server");
+            TestListener.awaitConnected(client);
+
+            for (int i = 1; i <= MESSAGES; i++) {
+                assertTrue(client.sendData(MessageCodec.encode(TestListener.textMessage(7, i, "message " + i))));
+            }
+            assertTrue(received.await(10, TimeUnit.SECONDS));
+            server.stopCapture();
+        } finally {
+            client.release();
+            server.release();
+        }
+
+        Result result = replay(mCapture);
+        assertEquals(MESSAGES, result.messages.get());
+        assertEquals(0, result.malformed.get());
+        assertTrue(result.replayer.getRecordCount() > 0);
+        assertTrue(result.replayer.getOutByteCount() > 0);
+    }
+
+    @Test
+    public void replayExternalCapture() throws Exception {
+        String path = System.getProperty("replay.capture");
+        Assume.assumeTrue(path != null);
+
+        Result result = replay(new File(path));
+        double seconds = result.replayer.getElapsedNanos() / 1e9;
+        System.out.println("records: " + result.replayer.getRecordCount()
+                + ", in: " + result.replayer.getByteCount() + " bytes, out: " + result.replayer.getOutByteCount()
+                + " bytes, messages: " + result.messages + ", malformed: " + result.malformed);
+        System.out.println(String.format("elapsed: %.3f s, throughput: %.1f KB/s",
+                seconds, seconds > 0 ? result.replayer.getByteCount() / 1024.0 / seconds : 0));
+    }
+
+    //==============================================================================================
+    private static class Result {
+        TrafficReplayer replayer;
+        final AtomicInteger messages = new AtomicInteger();
+        final AtomicInteger malformed = new AtomicInteger();
+    }
+
+    private static Result replay(File capture) throws Exception {
+        final Result result = new Result();
+        result.replayer = new TrafficReplayer(capture, Boolean.getBoolean("replay.realtime"));
+
+        final ChatMessage message = new ChatMessage();
+        final CountDownLatch disconnected = new CountDownLatch(1);
+        ConnectionManager manager = TestListener.create(result.replayer.getLinkFactory(), new TestListener() {
+            @Override
+            public void onConnectStateChange(int oldState, int state) {
+                if (oldState == ConnectionManager.CONNECT_STATE_CONNECTED) {
+                    disconnected.countDown();
+                }
+            }
+
+            @Override
+            public void onReadData(byte[] data) {
+                if (MessageCodec.decode(data, 0, data.length, message)) {
+                    result.messages.incrementAndGet();
+                } else {
+                    result.malformed.incrementAndGet();
+                }
+                super.onReadData(data);
+            }
+        });
+        try {
+            result.replayer.replay(manager);
+            // 断开事件排在所有数据之后投递
+            assertTrue(disconnected.await(10, TimeUnit.SECONDS));
+        } finally {
+            manager.release();
+        }
+        return result;
+    }
+}
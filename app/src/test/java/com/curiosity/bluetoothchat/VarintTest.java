@@ -0,0 +1,50 @@
+package com.curiosity.bluetoothchat;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class VarintTest {
+
+    private static final long[] VALUES = {
+            0, 1, 127, 128, 300, 16383, 16384, Integer.MAX_VALUE, 0xFFFFFFFFL, Long.MAX_VALUE, -1
+    };
+
+    @Test
+    public void roundTrip() {
+        byte[] buf = new byte[Varint.MAX_SIZE + 3];
+        for (long value : VALUES) {
+            int end = Varint.write(buf, 3, value);
+            assertEquals(Varint.size(value), end - 3);
+            assertEquals(end - 3, Varint.length(buf, 3, end));
+            assertEquals(value, Varint.read(buf, 3));
+        }
+    }
+
+    @Test
+    public void sizeBoundaries() {
+        assertEquals(1, Varint.size(0));
+        assertEquals(1, Varint.size(127));
+        assertEquals(2, Varint.size(128));
+        assertEquals(3, Varint.size(16384));
+        assertEquals(Varint.MAX_SIZE, Varint.size(-1));
+    }
+
+    @Test
+    public void truncatedIsIncomplete() {
+        byte[] buf = new byte[Varint.MAX_SIZE];
+        int end = Varint.write(buf, 0, 1L << 40);
+        for (int limit = 0; limit < end; limit++) {
+            assertEquals(-1, Varint.length(buf, 0, limit));
+        }
+    }
+
+    @Test
+    public void tooLongIsMalformed() {
+        byte[] buf = new byte[Varint.MAX_SIZE + 1];
+        for (int i = 0; i < buf.length; i++) {
+            buf[i] = (byte) 0x80;
+        }
+        assertEquals(-1, Varint.length(buf, 0, buf.length));
+    }
+}
@@ -0,0 +1,183 @@
+package com.curiosity.bluetoothchat;
+
+import org.junit.Test;
+
+import java.util.PriorityQueue;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * 语音链路回环测试, 以合成的正弦波驱动 编码 -> 模拟链路 -> 抖动缓冲 -> 播放 的完整流程,
+ * 检查端到端延迟, 欠载, 补偿和迟到帧数以及编解码信噪比.
+ * <p>
+ * 链路按 RFCOMM 的特点建模: 按序到达, 延迟 = 基础延迟 + 随机抖动, 偶尔卡顿(重传)使后续帧一起推迟,
+ * 发送队列积压时按丢弃率丢帧. 时间为虚拟时间, 相同的参数和种子得到相同的结果.
+ * <p>
+ * 指定 -Dvoice.seconds=时长 (以及 voice.jitter 毫秒, voice.loss 百分比, voice.seed) 时额外运行一次并输出报告.
+ */
+public class VoiceLoopbackTest {
+
+    private static final int LATENCY_MILLIS = 20;
+    private static final double STALL_PROBABILITY = 0.01;
+    private static final int STALL_MILLIS = 120;
+
+    // 每段讲话的时长和间隔
+    private static final int TALK_FRAMES = 100;
+    private static final int PAUSE_FRAMES = 25;
+
+    @Test
+    public void cleanLinkPlaysEveryFrame() {
+        Result result = run(30, 0, 0, 1);
+        assertEquals(0, result.lostFrames);
+        assertEquals(0, result.buffer.getConcealedCount());
+        assertEquals(0, result.buffer.getLateCount());
+        assertEquals(result.sentFrames, result.buffer.getPlayedCount() + result.buffer.getSkippedCount());
+        assertTrue(result.getSnr() > 20);
+    }
+
+    @Test
+    public void lossyLinkIsConcealed() {
+        Result result = run(30, 30, 0.05, 2);
+        assertTrue(result.lostFrames > 0);
+        assertTrue(result.buffer.getConcealedCount() > 0);
+        // 补偿和跳过之外的帧都应播放, 欠载不超过讲话段数和卡顿次数
+        assertTrue(result.buffer.getPlayedCount() > result.sentFrames * 8 / 10);
+        assertTrue(result.buffer.getTargetDelay() > 2 * VoiceCodec.FRAME_MILLIS);
+        assertTrue(result.buffer.getAverageBufferDelay() < 200);
+    }
+
+    @Test
+    public void sameSeedGivesSameResult() {
+        assertEquals(run(10, 30, 0.02, 5).toString(), run(10, 30, 0.02, 5).toString());
+    }
+
+    @Test
+    public void report() {
+        String seconds = System.getProperty("voice.seconds");
+        if (seconds == null) {
+            return;
+        }
+        Result result = run(Integer.parseInt(seconds), Integer.getInteger("voice.jitter", 30),
+                Double.parseDouble(System.getProperty("voice.loss", "1")) / 100, Long.getLong("voice.seed", 1));
+        System.out.println(result);
+    }
+
+    //==============================================================================================
+    private static class Arrival implements Comparable<Arrival> {
+
+        final long mTime;
+        final byte[] mPayload;
+
+        Arrival(long time, byte[] payload) {
+            mTime = time;
+            mPayload = payload;
+        }
+
+        @Override
+        public int compareTo(Arrival other) {
+            return mTime < other.mTime ? -1 : (mTime == other.mTime ? 0 : 1);
+        }
+    }
+
+    private static class Result {
+        final JitterBuffer buffer = new JitterBuffer();
+        long sentFrames;
+        long sentBytes;
+        long lostFrames;
+        double signalEnergy;
+        double noiseEnergy;
+
+        double getSnr() {
+            return 10 * Math.log10(signalEnergy / Math.max(noiseEnergy, 1));
+        }
+
+        @Override
+        public String toString() {
+            return String.format("frames: sent %d, lost in link %d, played %d, concealed %d, late %d, skipped %d%n",
+                    sentFrames, lostFrames, buffer.getPlayedCount(), buffer.getConcealedCount(),
+                    buffer.getLateCount(), buffer.getSkippedCount())
+                    + String.format("underruns: %d, jitter: %.1f ms, target delay: %d ms%n",
+                    buffer.getUnderrunCount(), buffer.getJitter(), buffer.getTargetDelay())
+                    + String.format("latency: %.1f ms end to end, %.1f ms buffering%n",
+                    buffer.getAverageLatency(), buffer.getAverageBufferDelay())
+                    + String.format("codec: %.1f bytes/frame, SNR %.1f dB",
+                    sentFrames > 0 ? (double) sentBytes / sentFrames : 0, getSnr());
+        }
+    }
+
+    private static Result run(int seconds, int jitterMillis, double loss, long seed) {
+        Result result = new Result();
+        Random random = new Random(seed);
+        VoiceCodec sender = new VoiceCodec();
+        VoiceCodec receiver = new VoiceCodec();
+        VoiceCodec reference = new VoiceCodec();
+        PriorityQueue<Arrival> link = new PriorityQueue<>();
+
+        short[] pcm = new short[VoiceCodec.FRAME_SAMPLES];
+        short[] out = new short[VoiceCodec.FRAME_SAMPLES];
+        VoicePacket decoded = new VoicePacket();
+
+        int frameCount = seconds * 1000 / VoiceCodec.FRAME_MILLIS;
+        long lastArrival = 0;
+
+        // 播放时刻与采集时刻错开, 模拟两端声卡时钟不对齐
+        long playPhase = VoiceCodec.FRAME_MILLIS / 2 + 3;
+        long end = (long) frameCount * VoiceCodec.FRAME_MILLIS + 1000;
+
+        for (long now = 0; now < end; now++) {
+            int frame = (int) (now / VoiceCodec.FRAME_MILLIS);
+            if (now % VoiceCodec.FRAME_MILLIS == 0 && frame < frameCount
+                    && frame % (TALK_FRAMES + PAUSE_FRAMES) < TALK_FRAMES) {
+                synthesize(frame, pcm);
+                boolean last = frame % (TALK_FRAMES + PAUSE_FRAMES) == TALK_FRAMES - 1;
+                byte[] payload = sender.encode(frame, now, last ? VoiceCodec.FLAG_END : 0, pcm, 0);
+                result.sentFrames++;
+                result.sentBytes += payload.length;
+
+                // 编解码误差
+                reference.decode(payload, 0, payload.length, decoded);
+                for (int i = 0; i < pcm.length; i++) {
+                    double error = decoded.pcm[i] - pcm[i];
+                    result.signalEnergy += (double) pcm[i] * pcm[i];
+                    result.noiseEnergy += error * error;
+                }
+
+                if (random.nextDouble() < loss) {
+                    result.lostFrames++;
+                } else {
+                    long delay = LATENCY_MILLIS + (long) (random.nextDouble() * jitterMillis);
+                    if (random.nextDouble() < STALL_PROBABILITY) {
+                        delay += STALL_MILLIS;
+                    }
+                    // 链路按序到达, 前面的帧被推迟时后面的帧也随之推迟
+                    lastArrival = Math.max(lastArrival, now + delay);
+                    link.add(new Arrival(lastArrival, payload));
+                }
+            }
+
+            while (!link.isEmpty() && link.peek().mTime <= now) {
+                byte[] payload = link.poll().mPayload;
+                VoicePacket packet = new VoicePacket();
+                if (receiver.decode(payload, 0, payload.length, packet)) {
+                    result.buffer.put(packet, now);
+                }
+            }
+
+            if (now % VoiceCodec.FRAME_MILLIS == playPhase) {
+                result.buffer.poll(now, out);
+            }
+        }
+        return result;
+    }
+
+    // 两个正弦叠加, 幅度随时间缓慢变化
+    private static void synthesize(int frame, short[] pcm) {
+        for (int i = 0; i < pcm.length; i++) {
+            double t = (double) (frame * VoiceCodec.FRAME_SAMPLES + i) / VoiceCodec.SAMPLE_RATE;
+            double envelope = 0.5 + 0.4 * Math.sin(2 * Math.PI * 0.5 * t);
+            double value = Math.sin(2 * Math.PI * 440 * t) * 0.7 + Math.sin(2 * Math.PI * 1250 * t) * 0.3;
+            pcm[i] = (short) (value * envelope * 12000);
+        }
+    }
+}